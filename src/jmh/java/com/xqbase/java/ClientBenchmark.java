@@ -0,0 +1,121 @@
+package com.xqbase.java;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.bootstrap.HttpServer;
+import org.apache.http.impl.nio.bootstrap.ServerBootstrap;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.protocol.BasicAsyncRequestHandler;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end requests against an embedded loopback server
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClientBenchmark {
+
+    @Param({"256", "65536"})
+    public int responseBytes;
+
+    private HttpServer server;
+    private AsyncClient client;
+    private String url;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        final byte[] body = new byte[responseBytes];
+        server = ServerBootstrap.bootstrap()
+                .setLocalAddress(InetAddress.getLoopbackAddress())
+                .setListenerPort(0)
+                .registerHandler("*", new BasicAsyncRequestHandler(new HttpRequestHandler() {
+                    @Override
+                    public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+                        response.setEntity(new NByteArrayEntity(body, ContentType.APPLICATION_OCTET_STREAM));
+                    }
+                }))
+                .create();
+        server.start();
+        server.getEndpoint().waitFor();
+        int port = ((InetSocketAddress) server.getEndpoint().getAddress()).getPort();
+        url = "http://127.0.0.1:" + port + "/bench";
+
+        client = new AsyncClient();
+        client.setDefaultMaxPerRoute(64);
+        client.setSerializer(new CountingSerializer());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        server.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    public Object rawGet() throws Exception {
+        return client.get(url).get();
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    public Object typedGet() throws Exception {
+        return client.get(url, Integer.class).get();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public Object typedGetBatch() throws Exception {
+        List<ListenableFuture<Integer>> futures = new ArrayList<ListenableFuture<Integer>>(32);
+        for (int i = 0; i < 32; i++) {
+            futures.add(client.get(url, Integer.class));
+        }
+        return Futures.allAsList(futures).get();
+    }
+
+    /**
+     * Reads the whole body and returns its length, to measure the client rather than a codec
+     */
+    private static class CountingSerializer implements Serializer {
+
+        @Override
+        public void serialize(Object obj, OutputStream stream) throws IOException {
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public Object deserialize(Class objClass, InputStream stream) throws IOException {
+            byte[] tmp = new byte[AsyncClient.DEFAULT_BUFFER_SIZE];
+            int total = 0;
+            int l;
+            while ((l = stream.read(tmp)) != -1) {
+                total += l;
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.xqbase.java;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MultipartBenchmark {
+
+    @Param({"1", "64"})
+    public int fileMegabytes;
+
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("multipart", ".bin");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(fileMegabytes * 1024L * 1024L);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    private SimpleMultipartEntity entity() {
+        SimpleMultipartEntity entity = new SimpleMultipartEntity();
+        entity.addPart("name", "value");
+        entity.addPart("file", file);
+        return entity;
+    }
+
+    @Benchmark
+    public long contentLength() {
+        return entity().getContentLength();
+    }
+
+    @Benchmark
+    public long writeTo() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        entity().writeTo(out);
+        return out.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
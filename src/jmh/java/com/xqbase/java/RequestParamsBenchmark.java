@@ -0,0 +1,72 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RequestParamsBenchmark {
+
+    @Param({"2", "10", "50"})
+    public int paramCount;
+
+    private RequestParams params;
+    private RequestParams frozen;
+
+    @Setup
+    public void setup() {
+        params = build();
+        frozen = params.freeze();
+    }
+
+    private RequestParams build() {
+        RequestParams params = new RequestParams();
+        for (int i = 0; i < paramCount; i++) {
+            params.put("key" + i, "value " + i);
+        }
+
+        ArrayList<String> values = new ArrayList<String>();
+        for (int i = 0; i < paramCount; i++) {
+            values.add("item" + i);
+        }
+        params.put("list", values);
+
+        return params;
+    }
+
+    @Benchmark
+    public RequestParams create() {
+        return build();
+    }
+
+    @Benchmark
+    public String paramString() {
+        return params.getParamString();
+    }
+
+    @Benchmark
+    public String frozenUrl() {
+        return AsyncClient.getUrlWithQueryString(false, "http://localhost:8080/api/items", frozen);
+    }
+
+    @Benchmark
+    public HttpEntity entity() {
+        return params.getEntity();
+    }
+
+    @Benchmark
+    public String asString() {
+        return params.toString();
+    }
+}
@@ -0,0 +1,73 @@
+package com.xqbase.java;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializerBenchmark {
+
+    public static class Item {
+        public long id;
+        public String name;
+        public double price;
+        public boolean available;
+        public List<String> tags;
+    }
+
+    public static class Catalog {
+        public String title;
+        public List<Item> items;
+    }
+
+    private final Serializer serializer = new DefaultJsonSerializer();
+    private Catalog catalog;
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws IOException {
+        catalog = new Catalog();
+        catalog.title = "catalog";
+        catalog.items = new ArrayList<Item>();
+        for (int i = 0; i < 100; i++) {
+            Item item = new Item();
+            item.id = i;
+            item.name = "item \"" + i + "\"";
+            item.price = i * 1.25;
+            item.available = i % 3 != 0;
+            item.tags = new ArrayList<String>();
+            item.tags.add("tag" + i);
+            item.tags.add("common");
+            catalog.items.add(item);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(catalog, out);
+        payload = out.toByteArray();
+    }
+
+    @Benchmark
+    public int serialize() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        serializer.serialize(catalog, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException {
+        return serializer.deserialize(Catalog.class, new ByteArrayInputStream(payload));
+    }
+}
@@ -0,0 +1,57 @@
+package com.xqbase.java;
+
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UrlBenchmark {
+
+    @Param({"2", "10"})
+    public int paramCount;
+
+    private RequestParams params;
+
+    @Setup
+    public void setup() {
+        params = new RequestParams();
+        for (int i = 0; i < paramCount; i++) {
+            params.put("key" + i, i % 2 == 0 ? "value" + i : "value with spaces & symbols/" + i);
+        }
+    }
+
+    @Benchmark
+    public String urlWithQueryString() {
+        return AsyncClient.getUrlWithQueryString(false, "http://localhost:8080/api/items", params);
+    }
+
+    @Benchmark
+    public String urlWithExistingQueryString() {
+        return AsyncClient.getUrlWithQueryString(false, "http://localhost:8080/api/items?fixed=1", params);
+    }
+
+    /**
+     * The former path: name value pairs formatted by URLEncodedUtils, then concatenated
+     */
+    @Benchmark
+    public String urlEncodedUtilsBaseline() {
+        String url = "http://localhost:8080/api/items";
+        String paramString = URLEncodedUtils.format(params.getParamsList(), "UTF-8").trim();
+        if (!paramString.equals("") && !paramString.equals("?")) {
+            url += url.contains("?") ? "&" : "?";
+            url += paramString;
+        }
+
+        return url;
+    }
+}
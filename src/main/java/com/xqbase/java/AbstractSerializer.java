@@ -0,0 +1,141 @@
+package com.xqbase.java;
+
+import com.google.common.primitives.Primitives;
+import com.google.common.reflect.TypeToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Base class of serializers which support generic types, buffers and channels and
+ * declare the media type they read and write, so that a {@link SerializerRegistry}
+ * can pick them by Content-Type. Subclasses implement the stream methods and may
+ * override the buffer and channel entry points with a faster path.
+ */
+public abstract class AbstractSerializer implements Serializer {
+
+    /**
+     * @return the media type of the serialized form, e.g. application/json
+     */
+    public abstract String getContentType();
+
+    /**
+     * Deserialize an object of the given, possibly generic, type from the stream
+     * @param type the target type
+     * @param stream the serialized form
+     * @return the object
+     * @throws IOException
+     */
+    public abstract Object deserialize(Type type, InputStream stream) throws IOException;
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Object deserialize(Class objClass, InputStream stream) throws IOException {
+        return deserialize((Type) objClass, stream);
+    }
+
+    /**
+     * Deserialize an object from the remaining bytes of the buffer
+     * @param type the target type
+     * @param buffer the serialized form
+     * @return the object
+     * @throws IOException
+     */
+    public Object deserialize(Type type, ByteBuffer buffer) throws IOException {
+        return deserialize(type, new ByteBufferInputStream(buffer));
+    }
+
+    /**
+     * Deserialize an object from the channel, reading it to the end
+     * @param type the target type
+     * @param channel the serialized form
+     * @return the object
+     * @throws IOException
+     */
+    public Object deserialize(Type type, ReadableByteChannel channel) throws IOException {
+        return deserialize(type, Channels.newInputStream(channel));
+    }
+
+    /**
+     * Serialize the object into a buffer
+     * @param obj the object
+     * @return the serialized form, ready to be read
+     * @throws IOException
+     */
+    public ByteBuffer serialize(Object obj) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        serialize(obj, out);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Deserialize with any serializer, passing the generic type if it supports it
+     * and the raw class otherwise
+     */
+    static Object deserialize(Serializer serializer, Type type, InputStream stream) throws IOException {
+        if (serializer instanceof AbstractSerializer) {
+            return ((AbstractSerializer) serializer).deserialize(type, stream);
+        }
+
+        return serializer.deserialize(type instanceof Class ? (Class<?>) type : TypeToken.of(type).getRawType(), stream);
+    }
+
+    static Object deserialize(Serializer serializer, Type type, byte[] body) throws IOException {
+        if (serializer instanceof AbstractSerializer) {
+            return ((AbstractSerializer) serializer).deserialize(type, ByteBuffer.wrap(body));
+        }
+
+        return deserialize(serializer, type, new ByteArrayInputStream(body));
+    }
+
+    static Object deserialize(Serializer serializer, Type type, ByteBuffer buffer) throws IOException {
+        if (serializer instanceof AbstractSerializer) {
+            return ((AbstractSerializer) serializer).deserialize(type, buffer);
+        }
+
+        return deserialize(serializer, type, new ByteBufferInputStream(buffer));
+    }
+
+    /**
+     * Cast a deserialized object to the requested type, checking its raw class
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T cast(TypeToken<T> type, Object obj) {
+        return (T) Primitives.wrap(type.getRawType()).cast(obj);
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return len == 0 ? 0 : -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -1,35 +1,70 @@
 package com.xqbase.java;
 
+import com.google.common.base.Function;
+import com.google.common.reflect.TypeToken;
 import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.FutureFallback;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.RedirectStrategy;
 import org.apache.http.client.config.AuthSchemes;
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.impl.nio.client.HttpAsyncClients;
-import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
 import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
 import org.apache.http.impl.nio.reactor.IOReactorConfig;
-import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
 import org.apache.http.nio.reactor.ConnectingIOReactor;
 import org.apache.http.util.EntityUtils;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 
 public class AsyncClient implements Closeable {
 
@@ -42,25 +77,71 @@ public class AsyncClient implements Closeable {
     public static final int DEFAULT_BUFFER_SIZE = 8192;
     public static final int DEFAULT_MAX_RETRIES = 5;
     public static final int DEFAULT_RETRY_SLEEP_TIME_MILLIS = 1500;
+    public static final int DEFAULT_MAX_PIPELINE_DEPTH = 16;
+    public static final int DEFAULT_MAX_IO_THREADS = 4;
+    private static final HttpHost UNKNOWN_ROUTE = new HttpHost("unknown", 0);
+    private static final String[] DEFAULT_SINGLE_FLIGHT_VARY_HEADERS = {"Accept", "Accept-Encoding", "Accept-Language", "Authorization", "Cookie"};
 
     private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
     private int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
     private int connectionRequestTimeout = DEFAULT_CONNECTION_REQUEST_TIMEOUT;
     private int defaultMaxPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    private int maxTotal = -1;
     private boolean redirectsEnabled = DEFAULT_REDIRECTS_ENABLED;
     private boolean relativeRedirectsAllowed = DEFAULT_REDIRECTS_ENABLED;
     private boolean circularRedirectsAllowed = DEFAULT_REDIRECTS_ENABLED;
+    private boolean streamingDeserialization = false;
+    private boolean singleFlightEnabled = false;
+    private boolean contentCompression = true;
+    private int requestCompressionThreshold = -1;
+    private boolean pipeliningEnabled = false;
+    private int maxPipelineDepth = DEFAULT_MAX_PIPELINE_DEPTH;
+    private String[] singleFlightVaryHeaders = DEFAULT_SINGLE_FLIGHT_VARY_HEADERS;
 
     private final CloseableHttpAsyncClient httpAsyncClient;
-    private PoolingNHttpClientConnectionManager connManager;
+    private final TransformDispatcher dispatcher;
+    private final ScheduledExecutorService scheduler;
+    private final ClientMetrics metrics = new ClientMetrics();
+    private final CachingDnsResolver dnsResolver = new CachingDnsResolver();
+    private final RetryExecutor retryExecutor;
+    private final HedgingExecutor hedgingExecutor;
+    private final Pipeliner pipeliner;
+    private final SingleFlight singleFlight = new SingleFlight();
+    private volatile ResponseCache responseCache;
+    private final ConcurrentMap<HttpHost, ConcurrencyLimiter> concurrencyLimiters = new ConcurrentHashMap<HttpHost, ConcurrencyLimiter>();
+    private volatile ConcurrencyLimitPolicy concurrencyLimitPolicy;
+    private final ConcurrentMap<HttpHost, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<HttpHost, CircuitBreaker>();
+    private volatile CircuitBreakerPolicy circuitBreakerPolicy;
+    private final ConcurrentMap<HttpHost, RateLimiter> rateLimiters = new ConcurrentHashMap<HttpHost, RateLimiter>();
+    private final ConcurrentMap<HttpHost, RateLimitPolicy> routeRateLimitPolicies = new ConcurrentHashMap<HttpHost, RateLimitPolicy>();
+    private volatile RateLimitPolicy rateLimitPolicy;
+    private final ConcurrentMap<String, LoadBalancer> services = new ConcurrentHashMap<String, LoadBalancer>();
+    private volatile LoadBalancerPolicy loadBalancerPolicy = new LoadBalancerPolicy();
+    private InstrumentedConnectionManager connManager;
+    private volatile boolean started = false;
     private RequestConfig requestConfig;
     private RedirectStrategy redirectStrategy;
+    private Serializer serializer = new DefaultJsonSerializer();
+    private volatile SerializerRegistry serializerRegistry;
 
+    /**
+     * Create a client with one I/O reactor thread per processor, up to {@link #DEFAULT_MAX_IO_THREADS}
+     */
     public AsyncClient() throws IOException {
+        this(Math.min(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_IO_THREADS));
+    }
+
+    /**
+     * Create a client whose I/O reactor has the given number of threads. No thread is started
+     * before the first request or warm-up.
+     * @param ioThreadCount I/O reactor threads
+     */
+    public AsyncClient(int ioThreadCount) throws IOException {
+        int processors = Runtime.getRuntime().availableProcessors();
 
         // Create I/O reactor configuration
         IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
-                .setIoThreadCount(Runtime.getRuntime().availableProcessors())
+                .setIoThreadCount(ioThreadCount < 1 ? Math.min(processors, DEFAULT_MAX_IO_THREADS) : ioThreadCount)
                 .setTcpNoDelay(true)
                 .build();
 
@@ -68,9 +149,9 @@ public class AsyncClient implements Closeable {
         ConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(ioReactorConfig);
 
         // Create a custom Connection Manager
-        connManager = new PoolingNHttpClientConnectionManager(ioReactor);
+        connManager = new InstrumentedConnectionManager(ioReactor, metrics, dnsResolver);
         connManager.setDefaultMaxPerRoute(defaultMaxPerRoute);
-        connManager.setMaxTotal(defaultMaxPerRoute * MAX_CONN_MULTIPLICATION);
+        connManager.setMaxTotal(getMaxTotal());
 
         // Create global request configuration
         RequestConfig defaultRequestConfig = RequestConfig.custom()
@@ -91,6 +172,142 @@ public class AsyncClient implements Closeable {
                 .setDefaultRequestConfig(defaultRequestConfig)
                 .setRedirectStrategy(redirectStrategy)
                 .build();
+
+        // Create the pool the responses are deserialized on, off the I/O reactor threads
+        dispatcher = new TransformDispatcher(MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(processors,
+                new ThreadFactoryBuilder().setNameFormat("async-client-transform-%d").setDaemon(true).build())));
+
+        // Create the shared timer for delayed work such as retry backoff
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("async-client-timer").setDaemon(true).build());
+        retryExecutor = new RetryExecutor(scheduler, new RetryPolicy());
+        hedgingExecutor = new HedgingExecutor(scheduler, metrics);
+        pipeliner = new Pipeliner(connManager, metrics, new AsyncFunction<HttpUriRequest, HttpResponse>() {
+            @Override
+            public ListenableFuture<HttpResponse> apply(HttpUriRequest request) {
+                return sendRequest(null, request);
+            }
+        });
+
+        registerGauges();
+    }
+
+    /**
+     * Start the I/O reactor on first use, so that a client which is never used starts no thread
+     */
+    private void start() {
+        if (!started) {
+            synchronized (this) {
+                if (!started) {
+                    httpAsyncClient.start();
+                    started = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Open pooled connections to the routes ahead of the first requests, so that these do not pay
+     * for connecting. Connections to https routes start their TLS handshake as well.
+     * @param routes the target hosts, a service is warmed up on each of its endpoints
+     * @param connectionsPerRoute connections to open per route, at most the route's maximum
+     * @return future of the number of connections open in the pool, fewer than asked for if some failed to connect
+     */
+    public ListenableFuture<Integer> warmUp(List<HttpHost> routes, int connectionsPerRoute) {
+        start();
+        List<HttpHost> hosts = new ArrayList<HttpHost>();
+        for (HttpHost route : routes) {
+            LoadBalancer balancer = services.get(route.getHostName().toLowerCase(Locale.ROOT));
+            if (balancer == null) {
+                hosts.add(Routes.normalize(route));
+            } else {
+                hosts.addAll(balancer.getHosts());
+            }
+        }
+
+        List<ListenableFuture<Integer>> warmUps = new ArrayList<ListenableFuture<Integer>>(hosts.size());
+        for (final HttpHost host : hosts) {
+            final HttpRoute route = Routes.toHttpRoute(host);
+            final int connections = Math.max(0, Math.min(connectionsPerRoute, connManager.getMaxPerRoute(route)));
+            // Resolve off the calling thread first, the pool then finds the addresses in the cache
+            warmUps.add(Futures.transform(Futures.withFallback(dnsResolver.resolveAsync(host.getHostName()),
+                    new FutureFallback<InetAddress[]>() {
+                @Override
+                public ListenableFuture<InetAddress[]> create(Throwable t) {
+                    return Futures.immediateFuture(null);
+                }
+            }), new AsyncFunction<InetAddress[], Integer>() {
+                @Override
+                public ListenableFuture<Integer> apply(InetAddress[] addresses) {
+                    return connManager.warmUp(route, connections, connectTimeout, connectionRequestTimeout);
+                }
+            }));
+        }
+
+        return Futures.transform(Futures.allAsList(warmUps), new Function<List<Integer>, Integer>() {
+            @Override
+            public Integer apply(List<Integer> counts) {
+                int open = 0;
+                for (int count : counts) {
+                    open += count;
+                }
+                return open;
+            }
+        });
+    }
+
+    /**
+     * Get the serializer used to deserialize typed responses
+     * @return the serializer
+     */
+    public Serializer getSerializer() {
+        return serializer;
+    }
+
+    /**
+     * Set the serializer used to deserialize typed responses
+     * @param serializer the serializer, ignored if null
+     */
+    public void setSerializer(Serializer serializer) {
+        if (serializer != null) {
+            this.serializer = serializer;
+        }
+    }
+
+    /**
+     * Get the registry typed responses are decoded with by their Content-Type
+     * @return the serializer registry, null if every response uses the default serializer
+     */
+    public SerializerRegistry getSerializerRegistry() {
+        return serializerRegistry;
+    }
+
+    /**
+     * Negotiate the serialization of typed responses: requests advertise the registered
+     * media types in their Accept header and each response is decoded by the serializer
+     * of its Content-Type, or by the default serializer if none is registered for it.
+     * @param serializerRegistry the serializer registry, null to always use the default serializer
+     */
+    public void setSerializerRegistry(SerializerRegistry serializerRegistry) {
+        this.serializerRegistry = serializerRegistry;
+    }
+
+    /**
+     * Get the metrics of the requests sent by this client
+     * @return the client metrics
+     */
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Publish the metrics of this client, the reporter is stopped when the client is closed
+     * @param reporter the metrics reporter
+     */
+    public void addMetricsReporter(MetricsReporter reporter) {
+        if (reporter != null) {
+            metrics.addReporter(reporter);
+        }
     }
 
     /**
@@ -109,7 +326,196 @@ public class AsyncClient implements Closeable {
         defaultMaxPerRoute = defaultMaxPerRoute < 1 ? DEFAULT_MAX_CONNECTIONS_PER_ROUTE : defaultMaxPerRoute;
         this.defaultMaxPerRoute = defaultMaxPerRoute;
         this.connManager.setDefaultMaxPerRoute(this.defaultMaxPerRoute);
-        this.connManager.setMaxTotal(this.defaultMaxPerRoute * MAX_CONN_MULTIPLICATION);
+        this.connManager.setMaxTotal(getMaxTotal());
+    }
+
+    /**
+     * Get maximum connections allowed across all routes
+     * @return maximum connections allowed
+     */
+    public int getMaxTotal() {
+        return maxTotal > 0 ? maxTotal : defaultMaxPerRoute * MAX_CONN_MULTIPLICATION;
+    }
+
+    /**
+     * Determines the maximum connections allowed across all routes. Unless set,
+     * it is derived from the default maximum connections per route.
+     * @param maxTotal maximum connections value, a value below one restores the derived default
+     */
+    public void setMaxTotal(int maxTotal) {
+        this.maxTotal = maxTotal;
+        this.connManager.setMaxTotal(getMaxTotal());
+    }
+
+    /**
+     * Get maximum connections allowed to the given host
+     * @param host target host
+     * @return maximum connections allowed
+     */
+    public int getMaxPerRoute(HttpHost host) {
+        return connManager.getMaxPerRoute(Routes.toHttpRoute(host));
+    }
+
+    /**
+     * Determines the maximum connections allowed to the given host, overriding the default per route
+     * @param host target host
+     * @param maxPerRoute maximum connections value
+     */
+    public void setMaxPerRoute(HttpHost host, int maxPerRoute) {
+        connManager.setMaxPerRoute(Routes.toHttpRoute(host), maxPerRoute < 1 ? defaultMaxPerRoute : maxPerRoute);
+    }
+
+    /**
+     * Get the policy limiting the requests in flight per route
+     * @return the concurrency limit policy, null if requests are not limited
+     */
+    public ConcurrencyLimitPolicy getConcurrencyLimitPolicy() {
+        return concurrencyLimitPolicy;
+    }
+
+    /**
+     * Limit the requests in flight per route, so that a slow route can not hold every pooled
+     * connection. Requests over the limit queue briefly or fail fast with a
+     * {@link ConcurrencyLimitExceededException} instead of waiting for the connection request timeout.
+     * @param concurrencyLimitPolicy the concurrency limit policy, null disables the limit
+     */
+    public void setConcurrencyLimitPolicy(ConcurrencyLimitPolicy concurrencyLimitPolicy) {
+        this.concurrencyLimitPolicy = concurrencyLimitPolicy;
+        this.concurrencyLimiters.clear();
+    }
+
+    /**
+     * Get the current concurrency limit of the given host
+     * @param host target host
+     * @return the concurrency limit, or -1 if requests are not limited
+     */
+    public int getConcurrencyLimit(HttpHost host) {
+        ConcurrencyLimiter limiter = concurrencyLimiter(host);
+        return limiter == null ? -1 : limiter.getLimit();
+    }
+
+    /**
+     * Get the circuit breaker policy
+     * @return the circuit breaker policy, null if routes have no circuit breakers
+     */
+    public CircuitBreakerPolicy getCircuitBreakerPolicy() {
+        return circuitBreakerPolicy;
+    }
+
+    /**
+     * Give every route a circuit breaker and a bulkhead. While a route's circuit is open, or its
+     * bulkhead is full, its requests fail fast with a {@link CircuitBreakerOpenException} or a
+     * {@link ConcurrencyLimitExceededException} and never wait for a pooled connection.
+     * @param circuitBreakerPolicy the circuit breaker policy, null disables circuit breakers
+     */
+    public void setCircuitBreakerPolicy(CircuitBreakerPolicy circuitBreakerPolicy) {
+        this.circuitBreakerPolicy = circuitBreakerPolicy;
+        this.circuitBreakers.clear();
+    }
+
+    /**
+     * Whether the circuit breaker of the given host rejects its requests
+     * @param host target host
+     * @return true if the circuit is open or half-open, false if it is closed or there are no circuit breakers
+     */
+    public boolean isCircuitOpen(HttpHost host) {
+        CircuitBreaker breaker = circuitBreaker(host);
+        return breaker != null && breaker.getState() != CircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * Get the rate limit policy of the routes without their own
+     * @return the rate limit policy, null if their rate is not limited
+     */
+    public RateLimitPolicy getRateLimitPolicy() {
+        return rateLimitPolicy;
+    }
+
+    /**
+     * Limit the rate of requests of every route without its own rate limit, so that downstream
+     * quotas are respected before the server answers 429. Requests over the rate wait on the
+     * client's timer, or fail fast with a {@link RateLimitExceededException} if they would wait too long.
+     * @param rateLimitPolicy the rate limit policy, null disables the limit
+     */
+    public void setRateLimitPolicy(RateLimitPolicy rateLimitPolicy) {
+        this.rateLimitPolicy = rateLimitPolicy;
+        this.rateLimiters.clear();
+    }
+
+    /**
+     * Get the rate limit policy of the given host
+     * @param host target host
+     * @return the rate limit policy, null if its rate is not limited
+     */
+    public RateLimitPolicy getRateLimitPolicy(HttpHost host) {
+        RateLimitPolicy policy = routeRateLimitPolicies.get(Routes.normalize(host));
+        return policy == null ? rateLimitPolicy : policy;
+    }
+
+    /**
+     * Limit the rate of requests of the given host, in place of the policy of every route
+     * @param host target host
+     * @param rateLimitPolicy the rate limit policy, null to fall back to the policy of every route
+     */
+    public void setRateLimitPolicy(HttpHost host, RateLimitPolicy rateLimitPolicy) {
+        host = Routes.normalize(host);
+        if (rateLimitPolicy == null) {
+            routeRateLimitPolicies.remove(host);
+        } else {
+            routeRateLimitPolicies.put(host, rateLimitPolicy);
+        }
+        rateLimiters.remove(host);
+    }
+
+    /**
+     * Map a logical service name to its endpoints. Requests to URLs whose host is the service name,
+     * such as {@code http://orders/items}, are sent to one of the endpoints, picked by the
+     * power of two choices on requests in flight and latency. Each endpoint is its own route,
+     * with its own pooled connections, circuit breaker and concurrency limit.
+     * @param name the service name
+     * @param endpoints the endpoints, with the scheme and port requests are sent with, null or empty removes the service
+     */
+    public void setService(String name, List<HttpHost> endpoints) {
+        name = name.toLowerCase(Locale.ROOT);
+        if (endpoints == null || endpoints.isEmpty()) {
+            services.remove(name);
+        } else {
+            services.put(name, new LoadBalancer(new ArrayList<HttpHost>(endpoints), loadBalancerPolicy));
+        }
+    }
+
+    /**
+     * Get the endpoints of a service
+     * @param name the service name
+     * @return the endpoints, empty if there is no such service
+     */
+    public List<HttpHost> getServiceEndpoints(String name) {
+        LoadBalancer balancer = services.get(name.toLowerCase(Locale.ROOT));
+        return balancer == null ? Collections.<HttpHost>emptyList() : balancer.getHosts();
+    }
+
+    public LoadBalancerPolicy getLoadBalancerPolicy() {
+        return loadBalancerPolicy;
+    }
+
+    /**
+     * Set how requests are spread over the endpoints of the services, this resets their latency and ejections
+     * @param loadBalancerPolicy the load balancer policy, null restores the default one
+     */
+    public void setLoadBalancerPolicy(LoadBalancerPolicy loadBalancerPolicy) {
+        this.loadBalancerPolicy = loadBalancerPolicy == null ? new LoadBalancerPolicy() : loadBalancerPolicy;
+        for (Map.Entry<String, LoadBalancer> entry : services.entrySet()) {
+            entry.setValue(new LoadBalancer(entry.getValue().getHosts(), this.loadBalancerPolicy));
+        }
+    }
+
+    /**
+     * Get the resolver of the connection pool, which caches and refreshes the addresses of the hosts.
+     * Its lookups can be made with another resolver by {@link CachingDnsResolver#setResolver}.
+     * @return the DNS resolver
+     */
+    public CachingDnsResolver getDnsResolver() {
+        return dnsResolver;
     }
 
     /**
@@ -189,6 +595,222 @@ public class AsyncClient implements Closeable {
         updateRequestConfig();
     }
 
+    /**
+     * Get the retry policy
+     * @return the retry policy, null if retries are disabled
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryExecutor.getPolicy();
+    }
+
+    /**
+     * Set the policy deciding which failed requests are retried and how long to back off.
+     * Retries are scheduled on a shared timer and limited by a per route retry budget.
+     * @param retryPolicy the retry policy, null disables retries
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        retryExecutor.setPolicy(retryPolicy);
+    }
+
+    /**
+     * Get the hedge policy
+     * @return the hedge policy, null if requests are not hedged
+     */
+    public HedgePolicy getHedgePolicy() {
+        return hedgingExecutor.getPolicy();
+    }
+
+    /**
+     * Send a second copy of safe requests, such as GETs, which have not answered within the
+     * policy's delay, fixed or tracked from the route's latency. The first response wins
+     * and the other exchange is cancelled. Hedges are limited by a per route hedge budget.
+     * @param hedgePolicy the hedge policy, null disables hedging
+     */
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        hedgingExecutor.setPolicy(hedgePolicy);
+    }
+
+    /**
+     * Get the number of retries scheduled so far
+     * @return retry count
+     */
+    public long getRetryCount() {
+        return retryExecutor.getRetries();
+    }
+
+    /**
+     * Get the number of retries denied because the route's retry budget was exhausted
+     * @return denied retry count
+     */
+    public long getRetryBudgetExhaustedCount() {
+        return retryExecutor.getBudgetExhausted();
+    }
+
+    /**
+     * Get the total backoff scheduled before retries
+     * @return backoff in milliseconds
+     */
+    public long getRetryBackoffMillis() {
+        return retryExecutor.getBackoffMillis();
+    }
+
+    /**
+     * Get the policy deciding where buffered response bodies are deserialized
+     * @return the dispatch policy
+     */
+    public DispatchPolicy getDispatchPolicy() {
+        return dispatcher.getPolicy();
+    }
+
+    /**
+     * Set the policy deciding whether a buffered response body is deserialized inline on
+     * the thread completing the response, on the transform pool or on a virtual thread.
+     * The decisions are counted by the dispatchInline, dispatchPooled and dispatchVirtual gauges.
+     * @param dispatchPolicy the dispatch policy, null restores the default policy
+     */
+    public void setDispatchPolicy(DispatchPolicy dispatchPolicy) {
+        dispatcher.setPolicy(dispatchPolicy);
+    }
+
+    /**
+     * Whether typed responses are deserialized on the I/O reactor thread as the body arrives
+     * @return true if streaming deserialization is enabled
+     */
+    public boolean isStreamingDeserialization() {
+        return streamingDeserialization;
+    }
+
+    /**
+     * Deserialize typed responses straight from the content decoder instead of
+     * buffering the whole body and handing it to the transform pool.
+     * Serializers implementing {@link StreamingSerializer}, such as the {@link DefaultJsonSerializer},
+     * are fed chunk by chunk, so the deserialization must be cheap enough to run on the I/O reactor thread.
+     * Other serializers read the buffered body where the dispatch policy runs it.
+     * @param streamingDeserialization enable streaming deserialization
+     */
+    public void setStreamingDeserialization(boolean streamingDeserialization) {
+        this.streamingDeserialization = streamingDeserialization;
+    }
+
+    /**
+     * Whether {@link #pipeline(List)} sends its requests as pipelines
+     * @return true if pipelining is enabled
+     */
+    public boolean isPipeliningEnabled() {
+        return pipeliningEnabled;
+    }
+
+    /**
+     * Send the safe requests given to {@link #pipeline(List)} as pipelines, many requests written
+     * to one connection without waiting for their responses. Only enable this for servers
+     * known to support pipelining.
+     * @param pipeliningEnabled enable pipelining
+     */
+    public void setPipeliningEnabled(boolean pipeliningEnabled) {
+        this.pipeliningEnabled = pipeliningEnabled;
+    }
+
+    public int getMaxPipelineDepth() {
+        return maxPipelineDepth;
+    }
+
+    /**
+     * Set how many requests are written to a connection at once, more requests to a route
+     * are sent as several pipelines on connections of their own
+     * @param maxPipelineDepth maximum requests per pipeline
+     */
+    public void setMaxPipelineDepth(int maxPipelineDepth) {
+        this.maxPipelineDepth = maxPipelineDepth < 1 ? DEFAULT_MAX_PIPELINE_DEPTH : maxPipelineDepth;
+    }
+
+    /**
+     * Whether responses are requested and decoded with gzip or deflate
+     * @return true if content compression is enabled
+     */
+    public boolean isContentCompression() {
+        return contentCompression;
+    }
+
+    /**
+     * Send Accept-Encoding: gzip, deflate unless the request has its own Accept-Encoding,
+     * and decode compressed responses as they stream in. Callers see the decoded body,
+     * without the Content-Encoding and Content-Length headers.
+     * @param contentCompression enable content compression
+     */
+    public void setContentCompression(boolean contentCompression) {
+        this.contentCompression = contentCompression;
+    }
+
+    /**
+     * Get the minimum length of the request bodies compressed with gzip
+     * @return the threshold in bytes, negative if request bodies are not compressed
+     */
+    public int getRequestCompressionThreshold() {
+        return requestCompressionThreshold;
+    }
+
+    /**
+     * Compress the bodies of posts and puts with gzip when their length is at least the threshold.
+     * Only repeatable bodies of known length up to 1 MB are compressed, in memory, files and
+     * multipart bodies are sent as they are, and the server must accept Content-Encoding: gzip.
+     * @param requestCompressionThreshold the threshold in bytes, negative disables request compression
+     */
+    public void setRequestCompressionThreshold(int requestCompressionThreshold) {
+        this.requestCompressionThreshold = requestCompressionThreshold;
+    }
+
+    /**
+     * Whether concurrent identical typed GETs share a single request
+     * @return true if single flight is enabled
+     */
+    public boolean isSingleFlightEnabled() {
+        return singleFlightEnabled;
+    }
+
+    /**
+     * Let concurrent typed GETs for the same URL, response type and vary headers share one
+     * in-flight request and one deserialized result. The shared result instance is handed
+     * to every caller, so it must not be mutated.
+     * @param singleFlightEnabled enable single flight
+     */
+    public void setSingleFlightEnabled(boolean singleFlightEnabled) {
+        this.singleFlightEnabled = singleFlightEnabled;
+    }
+
+    /**
+     * Set the request headers whose values distinguish otherwise identical GETs
+     * @param headers header names, none if null
+     */
+    public void setSingleFlightVaryHeaders(String... headers) {
+        this.singleFlightVaryHeaders = headers == null ? new String[0] : headers.clone();
+    }
+
+    /**
+     * Get the number of GETs which joined an identical request already in flight
+     * @return shared request count
+     */
+    public long getSingleFlightSharedCount() {
+        return singleFlight.getShared();
+    }
+
+    /**
+     * Get the cache typed GETs are served from
+     * @return the response cache, null if responses are not cached
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Serve typed GETs from the given cache. Responses are stored according to their
+     * Cache-Control and Expires headers, and stale entries carrying an ETag or
+     * Last-Modified are revalidated with a conditional request.
+     * @param responseCache the response cache, null disables caching
+     */
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
     /**
      * Enable redirects or not
      * @param enableRedirects
@@ -226,54 +848,1126 @@ public class AsyncClient implements Closeable {
     }
 
     /**
-     * The simple get interface
+     * The simple get interface. The body of the raw response is held in pooled buffers
+     * which go back to the {@link BufferPool} once its content is read or consumed.
      * @param url request url
+     * @return future of the raw response
      */
-    public void get(String url) {
-        get(url, null);
+    public ListenableFuture<HttpResponse> get(String url) {
+        return get(url, (RequestParams) null);
     }
 
-    public void get(String url, RequestParams params) {
-        sendRequest(null, new HttpGet(getUrlWithQueryString(false, url, params)));
+    public ListenableFuture<HttpResponse> get(String url, RequestParams params) {
+        return sendRequest(null, new HttpGet(getUrlWithQueryString(false, url, params)));
     }
 
     /**
-     * The simple post interface
+     * The typed get interface
      * @param url request url
-     * @param entity request body
+     * @param params request params appended to the query string, may be null
+     * @param clazz type the response body is deserialized into
+     * @return future of the deserialized response body
      */
-    public void post(String url, HttpEntity entity) {
-        HttpPost post = new HttpPost(url);
-        post.setConfig(requestConfig);
-        post.setEntity(entity);
-        sendRequest(null, post);
+    public <T> ListenableFuture<T> get(String url, RequestParams params, Class<T> clazz) {
+        return get(url, params, TypeToken.of(clazz));
     }
 
-    private void sendRequest(HttpClientContext context, HttpUriRequest request) {
+    /**
+     * The generic typed get interface, e.g. {@code get(url, params, new TypeToken<List<Item>>() {})}
+     * @param url request url
+     * @param params request params appended to the query string, may be null
+     * @param type type the response body is deserialized into
+     * @return future of the deserialized response body
+     */
+    public <T> ListenableFuture<T> get(String url, RequestParams params, TypeToken<T> type) {
+        return sendGet(negotiate(new HttpGet(getUrlWithQueryString(false, url, params))), type);
+    }
 
+    public <T> ListenableFuture<T> get(String url, Class<T> clazz) {
+        return get(url, null, clazz);
     }
 
-    private HttpEntityEnclosingRequestBase addEntityToRequestBase(HttpEntityEnclosingRequestBase requestBase, HttpEntity entity) {
-        if (requestBase != null) {
-            requestBase.setEntity(entity);
+    /**
+     * Send the GET through the response cache and single flight if enabled
+     */
+    private <T> ListenableFuture<T> sendGet(final HttpGet request, final TypeToken<T> type) {
+        // Set before the lookups, the header is part of the single flight key and may be a varying header of cache entries
+        acceptCompression(request);
+        final ResponseCache cache = responseCache;
+        if (!singleFlightEnabled) {
+            return cache == null ? sendRequest(null, request, type) : sendCachedRequest(cache, request, type);
         }
 
-        return requestBase;
+        return singleFlight.execute(singleFlightKey(request, type), new SingleFlight.Call<T>() {
+            @Override
+            public ListenableFuture<T> call() {
+                return cache == null ? sendRequest(null, request, type) : sendCachedRequest(cache, request, type);
+            }
+        });
     }
 
-    @Override
-    public void close() throws IOException {
-        httpAsyncClient.close();
+    /**
+     * The simple post interface
+     * @param url request url
+     * @param entity request body
+     * @return future of the raw response
+     */
+    public ListenableFuture<HttpResponse> post(String url, HttpEntity entity) {
+        HttpPost post = new HttpPost(url);
+        try {
+            addEntityToRequestBase(post, entity);
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return sendRequest(null, post);
     }
 
     /**
-     * Will encode url, if not disabled, and adds params on the end of it
-     *
-     * @param url             String with URL, should be valid URL without params
-     * @param params          RequestParams to be appended on the end of URL
-     * @param shouldEncodeUrl whether url should be encoded (replaces spaces with %20)
-     * @return encoded url if requested with params appended if any available
-     */
+     * The typed post interface
+     * @param url request url
+     * @param entity request body
+     * @param clazz type the response body is deserialized into
+     * @return future of the deserialized response body
+     */
+    public <T> ListenableFuture<T> post(String url, HttpEntity entity, Class<T> clazz) {
+        return post(url, entity, TypeToken.of(clazz));
+    }
+
+    public <T> ListenableFuture<T> post(String url, HttpEntity entity, TypeToken<T> type) {
+        HttpPost post = new HttpPost(url);
+        try {
+            addEntityToRequestBase(post, entity);
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return sendRequest(null, negotiate(post), type);
+    }
+
+    public <T> ListenableFuture<T> post(String url, RequestParams params, Class<T> clazz) {
+        return post(url, paramsToEntity(params), clazz);
+    }
+
+    /**
+     * The typed put interface
+     * @param url request url
+     * @param entity request body
+     * @param clazz type the response body is deserialized into
+     * @return future of the deserialized response body
+     */
+    public <T> ListenableFuture<T> put(String url, HttpEntity entity, Class<T> clazz) {
+        return put(url, entity, TypeToken.of(clazz));
+    }
+
+    public <T> ListenableFuture<T> put(String url, HttpEntity entity, TypeToken<T> type) {
+        HttpPut put = new HttpPut(url);
+        try {
+            addEntityToRequestBase(put, entity);
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return sendRequest(null, negotiate(put), type);
+    }
+
+    public <T> ListenableFuture<T> put(String url, RequestParams params, Class<T> clazz) {
+        return put(url, paramsToEntity(params), clazz);
+    }
+
+    /**
+     * The typed delete interface
+     * @param url request url
+     * @param params request params appended to the query string, may be null
+     * @param clazz type the response body is deserialized into
+     * @return future of the deserialized response body
+     */
+    public <T> ListenableFuture<T> delete(String url, RequestParams params, Class<T> clazz) {
+        return delete(url, params, TypeToken.of(clazz));
+    }
+
+    public <T> ListenableFuture<T> delete(String url, RequestParams params, TypeToken<T> type) {
+        return sendRequest(null, negotiate(new HttpDelete(getUrlWithQueryString(false, url, params))), type);
+    }
+
+    /**
+     * Send many requests without blocking, at most {@link BatchPolicy#getConcurrency()} at once
+     * @param requests the requests
+     * @param clazz type the response bodies are deserialized into
+     * @param policy how the batch is sent, null for the defaults
+     * @return future of the deserialized response bodies, in the order of the requests
+     */
+    public <T> ListenableFuture<List<T>> batch(List<? extends HttpUriRequest> requests, Class<T> clazz, BatchPolicy policy) {
+        return batch(requests, TypeToken.of(clazz), policy, null);
+    }
+
+    public <T> ListenableFuture<List<T>> batch(List<? extends HttpUriRequest> requests, TypeToken<T> type, BatchPolicy policy) {
+        return batch(requests, type, policy, null);
+    }
+
+    /**
+     * Send many requests without blocking, at most {@link BatchPolicy#getConcurrency()} at once,
+     * and stream their results to the callback in the order of the requests. GET requests go
+     * through the response cache and single flight like {@link #get(String, RequestParams, TypeToken)}.
+     * @param requests the requests
+     * @param type type the response bodies are deserialized into
+     * @param policy how the batch is sent, null for the defaults
+     * @param callback receives each result once the results before it are in, may be null
+     * @return future of the deserialized response bodies, in the order of the requests,
+     * cancelling it cancels the requests in flight
+     */
+    public <T> ListenableFuture<List<T>> batch(final List<? extends HttpUriRequest> requests, final TypeToken<T> type,
+                                               BatchPolicy policy, BatchCallback<T> callback) {
+        Batch<T> batch = new Batch<T>(requests.size(), new Batch.Call<T>() {
+            @Override
+            public ListenableFuture<T> call(int index) {
+                HttpUriRequest request = negotiate(requests.get(index));
+                return request instanceof HttpGet ? sendGet((HttpGet) request, type) : sendRequest(null, request, type);
+            }
+        }, policy == null ? new BatchPolicy() : policy, callback);
+        return batch.start(scheduler);
+    }
+
+    /**
+     * Stream the records of a newline delimited body, such as NDJSON, to the subscriber as they arrive
+     * @param url request url
+     * @param params request params appended to the query string, may be null
+     * @param clazz type each record is deserialized into
+     * @param subscriber receives the records as far as it requests them
+     * @return future completing once the subscriber has been told the stream ended or failed
+     */
+    public <T> ListenableFuture<Void> stream(String url, RequestParams params, Class<T> clazz, RecordSubscriber<T> subscriber) {
+        return stream(new HttpGet(getUrlWithQueryString(false, url, params)), TypeToken.of(clazz), subscriber);
+    }
+
+    /**
+     * Stream the records of a newline delimited body to the subscriber as they arrive. The connection
+     * is not read while records wait for the subscriber's demand, though the socket timeout keeps
+     * running, so a subscriber holding back for long needs a request with a longer timeout.
+     * Streams are not retried nor hedged since their records may have been delivered already.
+     * @param request the request
+     * @param type type each record is deserialized into
+     * @param subscriber receives the records as far as it requests them
+     * @return future completing once the subscriber has been told the stream ended or failed,
+     * cancelling it cancels the stream
+     */
+    public <T> ListenableFuture<Void> stream(HttpUriRequest request, TypeToken<T> type, RecordSubscriber<T> subscriber) {
+        RecordStreamConsumer<T> consumer = new RecordStreamConsumer<T>(serializer, serializerRegistry, type, subscriber,
+                routeMetrics(request).getDeserialization());
+        ListenableFuture<Void> finished = consumer.subscribe();
+        consumer.started(execute(null, negotiate(request), consumer));
+        return finished;
+    }
+
+    /**
+     * Send the request and deserialize the response body, either on the transform pool
+     * or while streaming it from the content decoder
+     */
+    private <T> ListenableFuture<T> sendRequest(final HttpClientContext context, final HttpUriRequest request, final TypeToken<T> type) {
+        if (streamingDeserialization) {
+            final Serializer serializer = this.serializer;
+            final SerializerRegistry registry = this.serializerRegistry;
+            final LatencyRecorder deserialization = routeMetrics(request).getDeserialization();
+            return retryExecutor.execute(request, hedgingExecutor.wrap(request, new RetryExecutor.Attempt<T>() {
+                @Override
+                public ListenableFuture<T> execute() {
+                    return Futures.dereference(AsyncClient.this.execute(context, request,
+                            new DeserializingResponseConsumer<T>(serializer, registry, type, deserialization, dispatcher)));
+                }
+            }));
+        }
+
+        return Futures.transform(sendRequest(context, request), new AsyncTransformation<T>(type, routeMetrics(request)));
+    }
+
+    /**
+     * Serve the GET from the cache if the stored response is fresh, otherwise send it,
+     * conditionally if the stored response can be revalidated, and store the response
+     */
+    private <T> ListenableFuture<T> sendCachedRequest(final ResponseCache cache, final HttpGet request, final TypeToken<T> type) {
+        final String key = request.getURI().toString();
+        final long requestTime = System.currentTimeMillis();
+        final CacheEntry cached = cache.get(key, request, requestTime);
+        if (cached != null && cached.isFresh(requestTime)) {
+            return fromCache(cache, request, cached, type);
+        }
+        if (cached != null) {
+            cached.addConditionalHeaders(request);
+        }
+
+        return Futures.transform(sendRequest(null, request), new AsyncFunction<HttpResponse, T>() {
+            @Override
+            public ListenableFuture<T> apply(HttpResponse response) throws Exception {
+                long responseTime = System.currentTimeMillis();
+                int status = response.getStatusLine().getStatusCode();
+                HttpEntity entity = response.getEntity();
+                if (status == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                    EntityUtils.consumeQuietly(entity);
+                    CacheEntry refreshed = cached.revalidated(response, requestTime, responseTime);
+                    cache.revalidated(key, refreshed);
+                    return fromCache(cache, request, refreshed, type);
+                }
+                if (status < 200 || status >= 300) {
+                    EntityUtils.consumeQuietly(entity);
+                    throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase());
+                }
+
+                byte[] body = entity == null ? new byte[0] : EntityUtils.toByteArray(entity);
+                CacheEntry entry = CacheEntry.create(request, response, body, requestTime, responseTime);
+                if (entry == null) {
+                    cache.remove(key);
+                    return deserialize(request, serializerFor(headerValue(response, HttpHeaders.CONTENT_TYPE)), body, type);
+                }
+
+                cache.put(key, entry);
+                return fromCache(cache, request, entry, type);
+            }
+        });
+    }
+
+    private <T> ListenableFuture<T> fromCache(final ResponseCache cache, final HttpGet request, final CacheEntry entry, final TypeToken<T> type) {
+        Serializer serializer = serializerFor(entry.getContentType());
+        if (cache.isCacheDeserializedObjects()) {
+            Object obj = entry.getObject(type.getType());
+            if (obj != null) {
+                return Futures.immediateFuture(AbstractSerializer.cast(type, obj));
+            }
+
+            return Futures.transform(deserialize(request, serializer, entry.getBody(), type), new Function<T, T>() {
+                @Override
+                public T apply(T obj) {
+                    entry.putObject(type.getType(), obj);
+                    return obj;
+                }
+            });
+        }
+
+        return deserialize(request, serializer, entry.getBody(), type);
+    }
+
+    private <T> ListenableFuture<T> deserialize(final HttpGet request, final Serializer serializer, final byte[] body, final TypeToken<T> type) {
+        final LatencyRecorder deserialization = routeMetrics(request).getDeserialization();
+        return dispatcher.dispatch(body.length, new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long start = System.nanoTime();
+                try {
+                    return AbstractSerializer.cast(type, AbstractSerializer.deserialize(serializer, type.getType(), body));
+                } finally {
+                    deserialization.record(System.nanoTime() - start);
+                }
+            }
+        });
+    }
+
+    /**
+     * Send many requests without blocking. With pipelining enabled, the GET, HEAD and OPTIONS requests
+     * to the same host are written to shared connections in pipelines of at most
+     * {@link #getMaxPipelineDepth()} requests and their responses matched by order. Pipelined
+     * requests take a rate limit token, a circuit breaker permit and a concurrency limit slot each,
+     * like other requests, but are not retried nor hedged. A pipeline not admitted as a whole, and
+     * the requests left unanswered when a pipeline breaks, are sent again the usual way.
+     * @param requests the requests
+     * @return future of the responses, in the order of the requests, with their bodies held in pooled buffers until consumed.
+     * If it fails, the bodies of the responses which did arrive are released.
+     */
+    public ListenableFuture<List<HttpResponse>> pipeline(List<? extends HttpUriRequest> requests) {
+        List<ListenableFuture<HttpResponse>> responses = new ArrayList<ListenableFuture<HttpResponse>>(requests.size());
+        Map<HttpHost, List<Integer>> routes = new LinkedHashMap<HttpHost, List<Integer>>();
+        for (int i = 0; i < requests.size(); i++) {
+            HttpUriRequest request = requests.get(i);
+            HttpHost target = Routes.target(request);
+            if (!pipeliningEnabled || target == null || !isPipelinable(request)) {
+                responses.add(sendRequest(null, request));
+                continue;
+            }
+
+            if (request instanceof HttpRequestBase && ((HttpRequestBase) request).getConfig() == null) {
+                ((HttpRequestBase) request).setConfig(requestConfig);
+            }
+            acceptCompression(request);
+            List<Integer> indexes = routes.get(target);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                routes.put(target, indexes);
+            }
+            indexes.add(i);
+            responses.add(null);
+        }
+
+        for (Map.Entry<HttpHost, List<Integer>> route : routes.entrySet()) {
+            List<Integer> indexes = route.getValue();
+            for (int from = 0; from < indexes.size(); from += maxPipelineDepth) {
+                List<Integer> chunk = indexes.subList(from, Math.min(from + maxPipelineDepth, indexes.size()));
+                List<HttpUriRequest> pipelined = new ArrayList<HttpUriRequest>(chunk.size());
+                for (int index : chunk) {
+                    pipelined.add(requests.get(index));
+                }
+
+                ListenableFuture<List<HttpResponse>> future = pipeline(route.getKey(), pipelined);
+                for (int j = 0; j < chunk.size(); j++) {
+                    final int position = j;
+                    responses.set(chunk.get(j), Futures.transform(future, new Function<List<HttpResponse>, HttpResponse>() {
+                        @Override
+                        public HttpResponse apply(List<HttpResponse> pipelineResponses) {
+                            return pipelineResponses.get(position);
+                        }
+                    }));
+                }
+            }
+        }
+
+        final List<ListenableFuture<HttpResponse>> pending = responses;
+        final ListenableFuture<List<HttpResponse>> result = Futures.allAsList(responses);
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (failureOf(result) != null) {
+                    // Nobody gets the responses which did arrive, hand their buffers back
+                    for (ListenableFuture<HttpResponse> response : pending) {
+                        consumeOnSuccess(response);
+                    }
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    private static void consumeOnSuccess(ListenableFuture<HttpResponse> response) {
+        Futures.addCallback(response, new com.google.common.util.concurrent.FutureCallback<HttpResponse>() {
+            @Override
+            public void onSuccess(HttpResponse response) {
+                EntityUtils.consumeQuietly(response.getEntity());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // Nothing to release
+            }
+        });
+    }
+
+    /**
+     * Send a pipeline to a host, or to one endpoint if the host is a service
+     */
+    private ListenableFuture<List<HttpResponse>> pipeline(HttpHost target, List<HttpUriRequest> requests) {
+        start();
+        LoadBalancer balancer = services.get(target.getHostName().toLowerCase(Locale.ROOT));
+        if (balancer == null) {
+            return pipelineRoute(target, requests);
+        }
+
+        final LoadBalancer.Endpoint endpoint = balancer.choose();
+        final long start = System.nanoTime();
+        final ListenableFuture<List<HttpResponse>> future = pipelineRoute(endpoint.getHost(), requests);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                Throwable failure = failureOf(future);
+                endpoint.release(failure == null ? Futures.getUnchecked(future).get(0) : null, failure, System.nanoTime() - start);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    /**
+     * Take a rate limit token for every request of the pipeline, as each would on its own
+     */
+    private ListenableFuture<List<HttpResponse>> pipelineRoute(final HttpHost target, final List<HttpUriRequest> requests) {
+        RateLimiter limiter = rateLimiter(target);
+        if (limiter == null) {
+            return pipelineGuarded(target, requests);
+        }
+
+        List<ListenableFuture<Void>> tokens = new ArrayList<ListenableFuture<Void>>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            tokens.add(limiter.acquire());
+        }
+        return Futures.transform(Futures.allAsList(tokens), new AsyncFunction<List<Void>, List<HttpResponse>>() {
+            @Override
+            public ListenableFuture<List<HttpResponse>> apply(List<Void> admitted) {
+                return pipelineGuarded(target, requests);
+            }
+        });
+    }
+
+    /**
+     * Take a permit of the circuit breaker and of the concurrency limit for every request of the pipeline.
+     * A pipeline the breaker or the limit does not admit as a whole is sent one request at a time,
+     * each of them waiting for its own permits or failing.
+     */
+    private ListenableFuture<List<HttpResponse>> pipelineGuarded(final HttpHost target, final List<HttpUriRequest> requests) {
+        CircuitBreaker breaker = circuitBreaker(target);
+        final List<CircuitBreaker.Permit> permits = new ArrayList<CircuitBreaker.Permit>(requests.size());
+        if (breaker != null) {
+            try {
+                for (int i = 0; i < requests.size(); i++) {
+                    permits.add(breaker.acquire());
+                }
+            } catch (RejectedExecutionException e) {
+                for (CircuitBreaker.Permit permit : permits) {
+                    permit.release(null, e);
+                }
+                return sendOneByOne(requests);
+            }
+        }
+
+        final ListenableFuture<List<HttpResponse>> future = pipelineLimited(target, requests);
+        if (!permits.isEmpty()) {
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    Throwable failure = failureOf(future);
+                    List<HttpResponse> responses = failure == null ? Futures.getUnchecked(future) : null;
+                    for (int i = 0; i < permits.size(); i++) {
+                        permits.get(i).release(responses == null ? null : responses.get(i), failure);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+        return future;
+    }
+
+    private ListenableFuture<List<HttpResponse>> pipelineLimited(final HttpHost target, final List<HttpUriRequest> requests) {
+        ConcurrencyLimiter limiter = concurrencyLimiter(target);
+        if (limiter == null) {
+            return pipeliner.execute(target, requests, requestConfig, contentCompression);
+        }
+
+        List<ListenableFuture<ConcurrencyLimiter.Permit>> acquired = new ArrayList<ListenableFuture<ConcurrencyLimiter.Permit>>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            acquired.add(limiter.acquire());
+        }
+        return Futures.transform(Futures.successfulAsList(acquired), new AsyncFunction<List<ConcurrencyLimiter.Permit>, List<HttpResponse>>() {
+            @Override
+            public ListenableFuture<List<HttpResponse>> apply(final List<ConcurrencyLimiter.Permit> permits) {
+                if (permits.contains(null)) {
+                    // Give the slots back without feeding the limit, nothing was sent
+                    CancellationException unsent = new CancellationException("Pipeline not admitted by the concurrency limit");
+                    for (ConcurrencyLimiter.Permit permit : permits) {
+                        if (permit != null) {
+                            permit.release(unsent);
+                        }
+                    }
+                    return sendOneByOne(requests);
+                }
+
+                final ListenableFuture<List<HttpResponse>> future = pipeliner.execute(target, requests, requestConfig, contentCompression);
+                future.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        Throwable failure = failureOf(future);
+                        for (ConcurrencyLimiter.Permit permit : permits) {
+                            permit.release(failure);
+                        }
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+                return future;
+            }
+        });
+    }
+
+    private ListenableFuture<List<HttpResponse>> sendOneByOne(List<HttpUriRequest> requests) {
+        List<ListenableFuture<HttpResponse>> responses = new ArrayList<ListenableFuture<HttpResponse>>(requests.size());
+        for (HttpUriRequest request : requests) {
+            responses.add(sendRequest(null, request));
+        }
+        return Futures.allAsList(responses);
+    }
+
+    private static boolean isPipelinable(HttpUriRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            return false;
+        }
+        // Pipelines are written to direct connections only
+        if (request instanceof Configurable) {
+            RequestConfig config = ((Configurable) request).getConfig();
+            if (config != null && config.getProxy() != null) {
+                return false;
+            }
+        }
+        String method = request.getMethod().toUpperCase(Locale.ROOT);
+        return method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS");
+    }
+
+    /**
+     * Send the request without blocking, the returned future completes on the I/O reactor thread.
+     * Cancelling the returned future aborts the underlying exchange.
+     */
+    private ListenableFuture<HttpResponse> sendRequest(final HttpClientContext context, final HttpUriRequest request) {
+        return retryExecutor.execute(request, hedgingExecutor.wrap(request, new RetryExecutor.Attempt<HttpResponse>() {
+            @Override
+            public ListenableFuture<HttpResponse> execute() {
+                return AsyncClient.this.execute(context, request, new PooledResponseConsumer(BufferPool.getDefault()));
+            }
+        }));
+    }
+
+    private <T> ListenableFuture<T> execute(final HttpClientContext context, final HttpUriRequest request, final HttpAsyncResponseConsumer<T> consumer) {
+        HttpHost target = Routes.target(request);
+        LoadBalancer balancer = target == null ? null : services.get(target.getHostName().toLowerCase(Locale.ROOT));
+        if (balancer == null) {
+            return executeRoute(context, request, target, consumer);
+        }
+
+        // Every attempt picks its endpoint, so that retries and hedges can go to another one
+        final LoadBalancer.Endpoint endpoint = balancer.choose();
+        final LatencyRecorder serviceLatency = metrics.route(target).getLatency();
+        final long start = System.nanoTime();
+        final ListenableFuture<T> future = executeRoute(context, request, endpoint.getHost(), consumer);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                long nanos = System.nanoTime() - start;
+                Throwable failure = failureOf(future);
+                endpoint.release(failure == null ? Futures.getUnchecked(future) : null, failure, nanos);
+                if (!(failure instanceof CancellationException)) {
+                    serviceLatency.record(nanos);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    private <T> ListenableFuture<T> executeRoute(final HttpClientContext context, final HttpUriRequest request, final HttpHost target, final HttpAsyncResponseConsumer<T> consumer) {
+        RateLimiter limiter = rateLimiter(target);
+        if (limiter == null) {
+            return executeGuarded(context, request, target, consumer);
+        }
+
+        // A request over the rate waits for its token before it takes a slot of the bulkhead
+        return Futures.transform(limiter.acquire(), new AsyncFunction<Void, T>() {
+            @Override
+            public ListenableFuture<T> apply(Void admitted) {
+                return executeGuarded(context, request, target, consumer);
+            }
+        });
+    }
+
+    private <T> ListenableFuture<T> executeGuarded(final HttpClientContext context, final HttpUriRequest request, final HttpHost target, final HttpAsyncResponseConsumer<T> consumer) {
+        CircuitBreaker breaker = circuitBreaker(target);
+        if (breaker == null) {
+            return executeLimited(context, request, target, consumer);
+        }
+
+        final CircuitBreaker.Permit permit;
+        try {
+            permit = breaker.acquire();
+        } catch (RejectedExecutionException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        final ListenableFuture<T> future = executeLimited(context, request, target, consumer);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                Throwable failure = failureOf(future);
+                permit.release(failure == null ? Futures.getUnchecked(future) : null, failure);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    private <T> ListenableFuture<T> executeLimited(final HttpClientContext context, final HttpUriRequest request, final HttpHost target, final HttpAsyncResponseConsumer<T> consumer) {
+        ListenableFuture<InetAddress[]> resolved = resolveAhead(request, target);
+        if (resolved == null || resolved.isDone()) {
+            return executeResolved(context, request, target, consumer);
+        }
+
+        // Wait for the lookup without blocking, the pool then finds the addresses in the cache,
+        // or the cached failure, which fails the request the usual way
+        return Futures.transform(Futures.withFallback(resolved, new FutureFallback<InetAddress[]>() {
+            @Override
+            public ListenableFuture<InetAddress[]> create(Throwable t) {
+                return Futures.immediateFuture(null);
+            }
+        }), new AsyncFunction<InetAddress[], T>() {
+            @Override
+            public ListenableFuture<T> apply(InetAddress[] addresses) {
+                return executeResolved(context, request, target, consumer);
+            }
+        });
+    }
+
+    /**
+     * Resolve the target host of a request before its connection is leased, the pool resolves
+     * on the leasing thread, which may be an I/O reactor thread
+     * @return future of the lookup, null if the request goes through a proxy
+     */
+    private ListenableFuture<InetAddress[]> resolveAhead(HttpUriRequest request, HttpHost target) {
+        if (target == null) {
+            return null;
+        }
+        if (request instanceof Configurable) {
+            RequestConfig config = ((Configurable) request).getConfig();
+            if (config != null && config.getProxy() != null) {
+                return null;
+            }
+        }
+        return dnsResolver.resolveAsync(target.getHostName());
+    }
+
+    private <T> ListenableFuture<T> executeResolved(final HttpClientContext context, final HttpUriRequest request, final HttpHost target, final HttpAsyncResponseConsumer<T> consumer) {
+        ConcurrencyLimiter limiter = concurrencyLimiter(target);
+        if (limiter == null) {
+            return doExecute(context, request, target, consumer);
+        }
+
+        return Futures.transform(limiter.acquire(), new AsyncFunction<ConcurrencyLimiter.Permit, T>() {
+            @Override
+            public ListenableFuture<T> apply(final ConcurrencyLimiter.Permit permit) {
+                final ListenableFuture<T> future = doExecute(context, request, target, consumer);
+                future.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        permit.release(failureOf(future));
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+                return future;
+            }
+        });
+    }
+
+    private <T> ListenableFuture<T> doExecute(HttpClientContext context, HttpUriRequest request, HttpHost target, HttpAsyncResponseConsumer<T> consumer) {
+        start();
+        if (request instanceof HttpRequestBase && ((HttpRequestBase) request).getConfig() == null) {
+            ((HttpRequestBase) request).setConfig(requestConfig);
+        }
+        if (context == null) {
+            context = HttpClientContext.create();
+        }
+        if (contentCompression) {
+            acceptCompression(request);
+            consumer = new DecompressingResponseConsumer<T>(consumer);
+        }
+
+        final RouteMetrics routeMetrics = metrics.route(target == null ? UNKNOWN_ROUTE : target);
+        final long start = System.nanoTime();
+        routeMetrics.requestStarted();
+
+        HttpAsyncRequestProducer producer = target == null ? HttpAsyncMethods.create(request) : HttpAsyncMethods.create(target, request);
+        final SettableFuture<T> result = SettableFuture.create();
+        final InstrumentedConnectionManager.Exchange exchange = new InstrumentedConnectionManager.Exchange();
+        InstrumentedConnectionManager.starting(exchange);
+        Future<T> submitted = null;
+        try {
+            submitted = httpAsyncClient.execute(producer,
+                    new InstrumentedResponseConsumer<T>(consumer, routeMetrics, start), context, new FutureCallback<T>() {
+                @Override
+                public void completed(T response) {
+                    result.set(response);
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    result.setException(ex);
+                }
+
+                @Override
+                public void cancelled() {
+                    result.cancel(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            // Rejected, e.g. by a client shutting down, still completed through the listener below
+            result.setException(e);
+        } finally {
+            InstrumentedConnectionManager.started();
+        }
+        final Future<T> future = submitted;
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (result.isCancelled() && future != null) {
+                    exchange.abort();
+                    future.cancel(true);
+                }
+                routeMetrics.requestCompleted(System.nanoTime() - start, failureOf(result));
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        return result;
+    }
+
+    /**
+     * Advertise the media types of the registered serializers, unless the request has an Accept header
+     */
+    private <R extends HttpUriRequest> R negotiate(R request) {
+        SerializerRegistry registry = serializerRegistry;
+        if (request != null && registry != null && !request.containsHeader(HttpHeaders.ACCEPT)) {
+            String accept = registry.getAcceptHeader();
+            if (!accept.isEmpty()) {
+                request.setHeader(HttpHeaders.ACCEPT, accept);
+            }
+        }
+
+        return request;
+    }
+
+    /**
+     * Advertise the content codings the client decodes if content compression is enabled,
+     * unless the request has an Accept-Encoding header
+     */
+    private void acceptCompression(HttpRequest request) {
+        if (contentCompression && !request.containsHeader(HttpHeaders.ACCEPT_ENCODING)) {
+            request.setHeader(HttpHeaders.ACCEPT_ENCODING, Compression.ACCEPT_ENCODING);
+        }
+    }
+
+    /**
+     * Get the serializer of a response body, falling back to the default serializer
+     * @param contentType the Content-Type of the response, may be null
+     */
+    private Serializer serializerFor(String contentType) {
+        SerializerRegistry registry = serializerRegistry;
+        Serializer serializer = registry == null ? null : registry.forContentType(contentType);
+        return serializer == null ? this.serializer : serializer;
+    }
+
+    private static String headerValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    private String singleFlightKey(HttpUriRequest request, TypeToken<?> type) {
+        StringBuilder key = new StringBuilder(request.getURI().toString());
+        key.append('\n').append(type);
+        for (String name : singleFlightVaryHeaders) {
+            for (Header header : request.getHeaders(name)) {
+                key.append('\n').append(name).append(':').append(header.getValue());
+            }
+        }
+
+        return key.toString();
+    }
+
+    private CircuitBreaker circuitBreaker(HttpHost host) {
+        CircuitBreakerPolicy policy = circuitBreakerPolicy;
+        if (policy == null || host == null) {
+            return null;
+        }
+
+        host = Routes.normalize(host);
+        CircuitBreaker breaker = circuitBreakers.get(host);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(host, policy);
+            CircuitBreaker existing = circuitBreakers.putIfAbsent(host, breaker);
+            if (existing != null) {
+                breaker = existing;
+            }
+        }
+
+        return breaker;
+    }
+
+    private RateLimiter rateLimiter(HttpHost host) {
+        if (host == null) {
+            return null;
+        }
+
+        host = Routes.normalize(host);
+        RateLimiter limiter = rateLimiters.get(host);
+        if (limiter == null) {
+            RateLimitPolicy policy = routeRateLimitPolicies.get(host);
+            if (policy == null) {
+                policy = rateLimitPolicy;
+            }
+            if (policy == null) {
+                return null;
+            }
+            limiter = new RateLimiter(host, policy, scheduler);
+            RateLimiter existing = rateLimiters.putIfAbsent(host, limiter);
+            if (existing != null) {
+                limiter = existing;
+            }
+        }
+
+        return limiter;
+    }
+
+    private ConcurrencyLimiter concurrencyLimiter(HttpHost host) {
+        ConcurrencyLimitPolicy policy = concurrencyLimitPolicy;
+        if (policy == null || host == null) {
+            return null;
+        }
+
+        host = Routes.normalize(host);
+        ConcurrencyLimiter limiter = concurrencyLimiters.get(host);
+        if (limiter == null) {
+            limiter = new ConcurrencyLimiter(host, policy, scheduler);
+            ConcurrencyLimiter existing = concurrencyLimiters.putIfAbsent(host, limiter);
+            if (existing != null) {
+                limiter = existing;
+            }
+        }
+
+        return limiter;
+    }
+
+    /**
+     * Get the failure of a completed future
+     * @return the failure, or null if the future succeeded
+     */
+    private static Throwable failureOf(Future<?> future) {
+        try {
+            Uninterruptibles.getUninterruptibly(future);
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (CancellationException e) {
+            return e;
+        }
+    }
+
+    private RouteMetrics routeMetrics(HttpUriRequest request) {
+        HttpHost host = Routes.target(request);
+        return metrics.route(host == null ? UNKNOWN_ROUTE : host);
+    }
+
+    private void registerGauges() {
+        metrics.registerGauge("retries", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return retryExecutor.getRetries();
+            }
+        });
+        metrics.registerGauge("retryBudgetExhausted", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return retryExecutor.getBudgetExhausted();
+            }
+        });
+        metrics.registerGauge("retryBackoffMillis", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return retryExecutor.getBackoffMillis();
+            }
+        });
+        metrics.registerGauge("hedges", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return hedgingExecutor.getHedges();
+            }
+        });
+        metrics.registerGauge("hedgeWins", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return hedgingExecutor.getHedgeWins();
+            }
+        });
+        metrics.registerGauge("hedgeBudgetExhausted", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return hedgingExecutor.getBudgetExhausted();
+            }
+        });
+        metrics.registerGauge("circuitBreakerRejected", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                long rejected = 0;
+                for (CircuitBreaker breaker : circuitBreakers.values()) {
+                    rejected += breaker.getCircuitRejected();
+                }
+                return rejected;
+            }
+        });
+        metrics.registerGauge("bulkheadRejected", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                long rejected = 0;
+                for (CircuitBreaker breaker : circuitBreakers.values()) {
+                    rejected += breaker.getBulkheadRejected();
+                }
+                return rejected;
+            }
+        });
+        metrics.registerGauge("rateLimitDelayed", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                long delayed = 0;
+                for (RateLimiter limiter : rateLimiters.values()) {
+                    delayed += limiter.getDelayed();
+                }
+                return delayed;
+            }
+        });
+        metrics.registerGauge("rateLimitRejected", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                long rejected = 0;
+                for (RateLimiter limiter : rateLimiters.values()) {
+                    rejected += limiter.getRejected();
+                }
+                return rejected;
+            }
+        });
+        metrics.registerGauge("openCircuits", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                long open = 0;
+                for (CircuitBreaker breaker : circuitBreakers.values()) {
+                    if (breaker.getState() != CircuitBreaker.State.CLOSED) {
+                        open++;
+                    }
+                }
+                return open;
+            }
+        });
+        metrics.registerGauge("ejectedEndpoints", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                long ejected = 0;
+                for (LoadBalancer balancer : services.values()) {
+                    ejected += balancer.getEjected();
+                }
+                return ejected;
+            }
+        });
+        metrics.registerGauge("dnsHits", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return dnsResolver.getHitCount();
+            }
+        });
+        metrics.registerGauge("dnsMisses", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return dnsResolver.getMissCount();
+            }
+        });
+        metrics.registerGauge("dnsStale", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return dnsResolver.getStaleCount();
+            }
+        });
+        metrics.registerGauge("pipelines", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return pipeliner.getPipelines();
+            }
+        });
+        metrics.registerGauge("pipelineResent", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return pipeliner.getResent();
+            }
+        });
+        metrics.registerGauge("singleFlightShared", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return singleFlight.getShared();
+            }
+        });
+        metrics.registerGauge("dispatchInline", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return dispatcher.getInlineCount();
+            }
+        });
+        metrics.registerGauge("dispatchPooled", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return dispatcher.getPooledCount();
+            }
+        });
+        metrics.registerGauge("dispatchVirtual", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return dispatcher.getVirtualCount();
+            }
+        });
+        metrics.registerGauge("bufferPoolHits", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return BufferPool.getDefault().getHitCount();
+            }
+        });
+        metrics.registerGauge("bufferPoolMisses", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return BufferPool.getDefault().getMissCount();
+            }
+        });
+        metrics.registerGauge("bufferPoolLeaks", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return BufferPool.getDefault().getLeakCount();
+            }
+        });
+        metrics.registerGauge("bufferPoolBytes", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return BufferPool.getDefault().getPooledBytes();
+            }
+        });
+        metrics.registerGauge("cacheHits", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                ResponseCache cache = responseCache;
+                return cache == null ? 0 : cache.getHitCount();
+            }
+        });
+        metrics.registerGauge("cacheMisses", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                ResponseCache cache = responseCache;
+                return cache == null ? 0 : cache.getMissCount();
+            }
+        });
+        metrics.registerGauge("cacheEvictions", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                ResponseCache cache = responseCache;
+                return cache == null ? 0 : cache.getEvictionCount();
+            }
+        });
+        metrics.registerGauge("cacheBytes", new ClientMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                ResponseCache cache = responseCache;
+                return cache == null ? 0 : cache.weight();
+            }
+        });
+    }
+
+    /**
+     * @throws IOException if the body can not be read to compress it
+     */
+    private void addEntityToRequestBase(HttpEntityEnclosingRequestBase requestBase, HttpEntity entity) throws IOException {
+        requestBase.setEntity(Compression.compress(entity, requestCompressionThreshold));
+    }
+
+    private static HttpEntity paramsToEntity(RequestParams params) {
+        return params == null ? null : params.getEntity();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            pipeliner.close();
+            boolean wasStarted;
+            synchronized (this) {
+                wasStarted = started;
+                started = true;
+            }
+            if (wasStarted) {
+                httpAsyncClient.close();
+            } else {
+                connManager.shutdown();
+            }
+        } finally {
+            dispatcher.shutdown();
+            dnsResolver.shutdown();
+            scheduler.shutdownNow();
+            metrics.stopReporters();
+        }
+    }
+
+    /**
+     * Will encode url, if not disabled, and adds params on the end of it
+     *
+     * @param url             String with URL, should be valid URL without params
+     * @param params          RequestParams to be appended on the end of URL
+     * @param shouldEncodeUrl whether url should be encoded (replaces spaces with %20)
+     * @return encoded url if requested with params appended if any available
+     */
     public static String getUrlWithQueryString(boolean shouldEncodeUrl, String url, RequestParams params) {
         if (url == null) {
             return null;
@@ -287,33 +1981,35 @@ public class AsyncClient implements Closeable {
             }
         }
 
-        if (params != null) {
-            String paramString = params.getParamString().trim();
-
-            if (!paramString.equals("") && !paramString.equals("?")) {
-                url += url.contains("?") ? "&" : "?";
-                url += paramString;
-            }
+        if (params == null) {
+            return url;
         }
 
-        return url;
+        UrlBuilder builder = UrlBuilder.local(url).append(params);
+        return builder.length() == url.length() ? url : builder.toString();
     }
 
-    private class AsyncTransformation implements AsyncFunction<HttpResponse, Object> {
+    private class AsyncTransformation<T> implements AsyncFunction<HttpResponse, T> {
 
-        private final ListeningExecutorService transformPool;
-        private final Class clazz;
+        private final TypeToken<T> type;
+        private final RouteMetrics metrics;
 
-        private Serializer serializer = new DefaultJsonSerializer();
-
-        public AsyncTransformation(final ListeningExecutorService transformPool, Class clazz) {
-            this.transformPool = transformPool;
-            this.clazz = clazz;
+        public AsyncTransformation(final TypeToken<T> type, final RouteMetrics metrics) {
+            this.type = type;
+            this.metrics = metrics;
         }
 
         @Override
-        public ListenableFuture<Object> apply(HttpResponse response) throws Exception {
-            return this.transformPool.submit(new TransformWorker(response, this.clazz));
+        public ListenableFuture<T> apply(HttpResponse response) throws Exception {
+            int status = response.getStatusLine().getStatusCode();
+            if (status < 200 || status >= 300) {
+                close(response);
+                throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase());
+            }
+
+            Serializer serializer = serializerFor(headerValue(response, HttpHeaders.CONTENT_TYPE));
+            HttpEntity entity = response.getEntity();
+            return dispatcher.dispatch(entity == null ? 0 : entity.getContentLength(), new TransformWorker(response, serializer));
         }
 
         private void close(HttpResponse response) {
@@ -327,21 +2023,30 @@ public class AsyncClient implements Closeable {
             }
         }
 
-        private class TransformWorker implements Callable {
+        private class TransformWorker implements Callable<T> {
 
             private final HttpResponse response;
-            private final Class clazz;
+            private final Serializer serializer;
 
-            public TransformWorker(final HttpResponse response, final Class clazz) {
+            public TransformWorker(final HttpResponse response, final Serializer serializer) {
                 this.response = response;
-                this.clazz = clazz;
+                this.serializer = serializer;
             }
 
             @Override
-            public Object call() throws Exception {
-                Object obj = serializer.deserialize(clazz, response.getEntity().getContent());
-                close(response);
-                return obj;
+            public T call() throws Exception {
+                long start = System.nanoTime();
+                try {
+                    HttpEntity entity = response.getEntity();
+                    if (entity == null) {
+                        return null;
+                    }
+
+                    return AbstractSerializer.cast(type, AbstractSerializer.deserialize(serializer, type.getType(), entity.getContent()));
+                } finally {
+                    close(response);
+                    metrics.getDeserialization().record(System.nanoTime() - start);
+                }
             }
         }
     }
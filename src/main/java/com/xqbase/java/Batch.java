@@ -0,0 +1,212 @@
+package com.xqbase.java;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sends the calls of a batch with a bounded number in flight and gathers their results
+ * in the order of the calls.
+ */
+class Batch<T> {
+
+    interface Call<T> {
+        ListenableFuture<T> call(int index) throws Exception;
+    }
+
+    private final int size;
+    private final Call<T> call;
+    private final BatchCallback<T> callback;
+    private final int concurrency;
+    private final boolean failureTolerant;
+    private final int deadlineMillis;
+
+    private final SettableFuture<List<T>> result = SettableFuture.create();
+    private final AtomicReferenceArray<ListenableFuture<T>> inFlight;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger draining = new AtomicInteger();
+    private volatile boolean expired = false;
+
+    // Guarded by this
+    private final Object[] results;
+    private final Throwable[] failures;
+    private final boolean[] done;
+    private int delivered = 0;
+
+    /**
+     * @param size the number of calls
+     * @param callback receives the results in order, may be null
+     */
+    public Batch(int size, final Call<T> call, final BatchPolicy policy, final BatchCallback<T> callback) {
+        this.size = size;
+        this.call = call;
+        this.callback = callback;
+        this.concurrency = policy.getConcurrency();
+        this.failureTolerant = policy.isFailureTolerant();
+        this.deadlineMillis = policy.getDeadlineMillis();
+        this.inFlight = new AtomicReferenceArray<ListenableFuture<T>>(size);
+        this.results = new Object[size];
+        this.failures = new Throwable[size];
+        this.done = new boolean[size];
+    }
+
+    /**
+     * Send the first calls, the others follow as the calls in flight finish
+     * @param scheduler the timer of the deadline
+     * @return future of the results, cancelling it cancels the calls in flight
+     */
+    public ListenableFuture<List<T>> start(ScheduledExecutorService scheduler) {
+        if (size == 0) {
+            result.set(new ArrayList<T>(0));
+            return result;
+        }
+
+        final Future<?> deadline = deadlineMillis == 0 ? null : scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, deadlineMillis, TimeUnit.MILLISECONDS);
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (deadline != null) {
+                    deadline.cancel(false);
+                }
+                for (int i = 0; i < size; i++) {
+                    ListenableFuture<T> future = inFlight.getAndSet(i, null);
+                    if (future != null) {
+                        future.cancel(true);
+                    }
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        drain();
+        return result;
+    }
+
+    /**
+     * Send calls until the window is full. Calls finishing while sending, possibly on this
+     * very thread, leave the sending to the thread already in the loop instead of recursing.
+     */
+    private void drain() {
+        if (draining.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            while (!expired && !result.isDone() && running.get() < concurrency && next.get() < size) {
+                running.incrementAndGet();
+                send(next.getAndIncrement());
+            }
+        } while (draining.decrementAndGet() != 0);
+    }
+
+    private void send(final int index) {
+        ListenableFuture<T> future;
+        try {
+            future = call.call(index);
+        } catch (Exception e) {
+            future = Futures.immediateFailedFuture(e);
+        }
+        inFlight.set(index, future);
+        if (result.isDone() && inFlight.compareAndSet(index, future, null)) {
+            future.cancel(true);
+        }
+
+        Futures.addCallback(future, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                complete(index, value, null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                complete(index, null, t);
+            }
+        });
+    }
+
+    private void complete(int index, T value, Throwable failure) {
+        inFlight.set(index, null);
+        running.decrementAndGet();
+        if (failure != null && !failureTolerant) {
+            result.setException(failure);
+            return;
+        }
+
+        deliver(index, value, failure);
+        drain();
+    }
+
+    /**
+     * Fail the calls not finished yet, unless failures are tolerated the batch fails as a whole
+     */
+    private void expire() {
+        expired = true;
+        TimeoutException timeout = new TimeoutException("Batch of " + size + " calls exceeded its deadline of "
+                + deadlineMillis + " ms");
+        if (!failureTolerant) {
+            result.setException(timeout);
+            return;
+        }
+
+        for (int i = 0; i < size; i++) {
+            deliver(i, null, timeout);
+        }
+    }
+
+    /**
+     * Record the result of a call and hand the results now in order to the callback
+     */
+    @SuppressWarnings("unchecked")
+    private void deliver(int index, T value, Throwable failure) {
+        List<T> list = null;
+        synchronized (this) {
+            if (done[index] || result.isDone()) {
+                return;
+            }
+            results[index] = value;
+            failures[index] = failure;
+            done[index] = true;
+
+            while (delivered < size && done[delivered]) {
+                if (callback != null) {
+                    try {
+                        if (failures[delivered] == null) {
+                            callback.onResult(delivered, (T) results[delivered]);
+                        } else {
+                            callback.onFailure(delivered, failures[delivered]);
+                        }
+                    } catch (RuntimeException e) {
+                        // The callback's own failure does not stop the batch
+                    }
+                }
+                delivered++;
+            }
+
+            if (delivered == size) {
+                list = new ArrayList<T>(size);
+                for (Object obj : results) {
+                    list.add((T) obj);
+                }
+            }
+        }
+
+        if (list != null) {
+            result.set(list);
+        }
+    }
+}
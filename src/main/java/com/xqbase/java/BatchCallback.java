@@ -0,0 +1,21 @@
+package com.xqbase.java;
+
+/**
+ * Receives the results of a batch one by one, in the order of its requests. The calls are
+ * made one at a time, on the thread which completed the request, so they should not block.
+ */
+public interface BatchCallback<T> {
+
+    /**
+     * @param index position of the request in the batch
+     * @param result the deserialized response body
+     */
+    void onResult(int index, T result);
+
+    /**
+     * Only called for batches tolerating failures, otherwise the batch fails instead
+     * @param index position of the request in the batch
+     * @param failure why the request failed
+     */
+    void onFailure(int index, Throwable failure);
+}
@@ -0,0 +1,53 @@
+package com.xqbase.java;
+
+/**
+ * Configures how the requests of a batch are sent. At most {@link #getConcurrency()} of them
+ * are in flight at once, so that one batch cannot take the whole connection pool, and the
+ * next one is sent as soon as one finishes.
+ */
+public class BatchPolicy {
+
+    public static final int DEFAULT_CONCURRENCY = AsyncClient.DEFAULT_MAX_CONNECTIONS_PER_ROUTE / 2;
+
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private boolean failureTolerant = false;
+    private int deadlineMillis = 0;
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Set how many requests of the batch may be in flight at the same time
+     * @param concurrency maximum requests in flight
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency < 1 ? DEFAULT_CONCURRENCY : concurrency;
+    }
+
+    public boolean isFailureTolerant() {
+        return failureTolerant;
+    }
+
+    /**
+     * Set whether the batch completes in spite of failed requests, with null in their place.
+     * Otherwise the first failure fails the batch and cancels the requests in flight.
+     * @param failureTolerant true to keep going after a failure
+     */
+    public void setFailureTolerant(boolean failureTolerant) {
+        this.failureTolerant = failureTolerant;
+    }
+
+    public int getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /**
+     * Set how long the whole batch may take, the requests still in flight or not sent by then
+     * are cancelled and fail with a {@link java.util.concurrent.TimeoutException}
+     * @param deadlineMillis deadline in milliseconds, 0 for none
+     */
+    public void setDeadlineMillis(int deadlineMillis) {
+        this.deadlineMillis = deadlineMillis < 0 ? 0 : deadlineMillis;
+    }
+}
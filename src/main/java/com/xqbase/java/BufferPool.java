@@ -0,0 +1,281 @@
+package com.xqbase.java;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers in power of two size classes, from {@link AsyncClient#DEFAULT_BUFFER_SIZE}
+ * up to {@link #MAX_POOLED_SIZE}. Each thread keeps a few buffers of each class
+ * and shares the rest through a bounded global queue, so leasing a buffer on the
+ * I/O reactor thread and releasing it on a transform thread still recycles it.
+ * <p>
+ * With leak detection enabled, by the system property {@code com.xqbase.java.bufferPool.leakDetection}
+ * or {@link #setLeakDetection(boolean)}, every lease remembers where it was made, and buffers
+ * garbage collected without having been released are counted and reported with that stack trace.
+ */
+public class BufferPool {
+
+    public static final int MAX_POOLED_SIZE = 1024 * 1024;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(AsyncClient.DEFAULT_BUFFER_SIZE);
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE) - MIN_SHIFT + 1;
+    private static final int THREAD_LOCAL_BUFFERS = 4;
+    private static final long GLOBAL_BYTES_PER_CLASS = 4L * 1024 * 1024;
+
+    private static final BufferPool DEFAULT = new BufferPool();
+
+    private final Queue<ByteBuffer>[] global;
+    private final AtomicInteger[] globalSizes = new AtomicInteger[CLASSES];
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> local = new ThreadLocal<ArrayDeque<ByteBuffer>[]>() {
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        protected ArrayDeque<ByteBuffer>[] initialValue() {
+            ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[CLASSES];
+            for (int i = 0; i < CLASSES; i++) {
+                caches[i] = new ArrayDeque<ByteBuffer>(THREAD_LOCAL_BUFFERS);
+            }
+            return caches;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    private volatile boolean leakDetection = Boolean.getBoolean("com.xqbase.java.bufferPool.leakDetection");
+    // Keyed by identity hash code, the leases must not keep their buffers reachable
+    private final Map<Integer, List<Lease>> leases = new HashMap<Integer, List<Lease>>();
+    private final AtomicInteger trackedLeases = new AtomicInteger();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferPool() {
+        global = new Queue[CLASSES];
+        for (int i = 0; i < CLASSES; i++) {
+            global[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            globalSizes[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Get the pool shared by the clients
+     * @return the pool
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Lease a cleared direct buffer of at least the given capacity. Buffers larger than
+     * {@link #MAX_POOLED_SIZE} are allocated on each lease.
+     */
+    ByteBuffer acquire(int capacity) {
+        if (leakDetection) {
+            reportLeaks();
+        }
+
+        int index = sizeClass(capacity);
+        ByteBuffer buffer = null;
+        if (index >= 0) {
+            buffer = local.get()[index].pollLast();
+            if (buffer == null) {
+                buffer = global[index].poll();
+                if (buffer != null) {
+                    globalSizes[index].decrementAndGet();
+                }
+            }
+        }
+
+        if (buffer != null) {
+            hits.incrementAndGet();
+            pooledBytes.addAndGet(-buffer.capacity());
+            buffer.clear();
+        } else {
+            misses.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(index >= 0 ? AsyncClient.DEFAULT_BUFFER_SIZE << index : capacity);
+        }
+
+        if (leakDetection) {
+            track(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Hand a leased buffer back, it must not be used afterwards
+     * @param buffer the buffer, ignored if null
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (trackedLeases.get() > 0) {
+            untrack(buffer);
+        }
+
+        int index = sizeClass(buffer.capacity());
+        if (index < 0 || !buffer.isDirect() || (AsyncClient.DEFAULT_BUFFER_SIZE << index) != buffer.capacity()) {
+            return;
+        }
+
+        pooledBytes.addAndGet(buffer.capacity());
+        ArrayDeque<ByteBuffer> cache = local.get()[index];
+        if (cache.size() < THREAD_LOCAL_BUFFERS) {
+            cache.addLast(buffer);
+        } else if (globalSizes[index].incrementAndGet() <= GLOBAL_BYTES_PER_CLASS / buffer.capacity()) {
+            global[index].offer(buffer);
+        } else {
+            globalSizes[index].decrementAndGet();
+            pooledBytes.addAndGet(-buffer.capacity());
+        }
+    }
+
+    /**
+     * Whether leases are tracked to report buffers which are never released
+     * @return true if leak detection is enabled
+     */
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * Track every lease with the stack trace of its caller, which costs a stack walk
+     * per lease, so this is meant for debugging. Only buffers leased after enabling
+     * it are tracked.
+     * @param leakDetection enable leak detection
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+    }
+
+    /**
+     * Get the number of leases served from a pooled buffer
+     * @return hit count
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of leases which allocated a new buffer
+     * @return miss count
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of tracked buffers garbage collected without having been released
+     * @return leak count
+     */
+    public long getLeakCount() {
+        if (leakDetection) {
+            reportLeaks();
+        }
+        return leaks.get();
+    }
+
+    /**
+     * Get the capacity of the buffers waiting in the pool
+     * @return pooled bytes
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Get the size class of a capacity
+     * @return the index of the class, or -1 if buffers of this capacity are not pooled
+     */
+    private static int sizeClass(int capacity) {
+        if (capacity > MAX_POOLED_SIZE) {
+            return -1;
+        }
+        if (capacity <= AsyncClient.DEFAULT_BUFFER_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+
+    private void track(ByteBuffer buffer) {
+        Lease lease = new Lease(buffer, collected);
+        synchronized (leases) {
+            List<Lease> bucket = leases.get(lease.hash);
+            if (bucket == null) {
+                bucket = new ArrayList<Lease>(1);
+                leases.put(lease.hash, bucket);
+            }
+            bucket.add(lease);
+        }
+        trackedLeases.incrementAndGet();
+    }
+
+    private void untrack(ByteBuffer buffer) {
+        int hash = System.identityHashCode(buffer);
+        synchronized (leases) {
+            List<Lease> bucket = leases.get(hash);
+            if (bucket == null) {
+                return;
+            }
+            for (Iterator<Lease> it = bucket.iterator(); it.hasNext(); ) {
+                Lease lease = it.next();
+                if (lease.get() == buffer) {
+                    // A cleared reference is never enqueued
+                    lease.clear();
+                    it.remove();
+                    trackedLeases.decrementAndGet();
+                    break;
+                }
+            }
+            if (bucket.isEmpty()) {
+                leases.remove(hash);
+            }
+        }
+    }
+
+    private void reportLeaks() {
+        Lease lease;
+        while ((lease = (Lease) collected.poll()) != null) {
+            synchronized (leases) {
+                List<Lease> bucket = leases.get(lease.hash);
+                if (bucket == null || !bucket.remove(lease)) {
+                    continue;
+                }
+                if (bucket.isEmpty()) {
+                    leases.remove(lease.hash);
+                }
+            }
+            trackedLeases.decrementAndGet();
+            leaks.incrementAndGet();
+            IllegalStateException leak = new IllegalStateException("A pooled buffer was garbage collected without having been released");
+            leak.setStackTrace(lease.site.getStackTrace());
+            leak.printStackTrace();
+        }
+    }
+
+    /**
+     * Tracks a leased buffer, enqueued if the buffer is collected while still leased
+     */
+    private static class Lease extends WeakReference<ByteBuffer> {
+
+        private final Throwable site = new Throwable();
+        private final int hash;
+
+        Lease(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.hash = System.identityHashCode(buffer);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.xqbase.java;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpMessage;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.DateUtils;
+
+import java.lang.reflect.Type;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A cached response body together with its freshness and validators, and the
+ * objects it has already been deserialized into.
+ */
+class CacheEntry {
+
+    private final byte[] body;
+    private final String contentType;
+    private final String etag;
+    private final String lastModified;
+    private final long expiresAt;
+    private final Map<String, String> varyValues;
+    private final ConcurrentMap<Type, Object> objects;
+
+    private CacheEntry(final byte[] body, final String contentType, final String etag, final String lastModified,
+                       final long expiresAt, final Map<String, String> varyValues, final ConcurrentMap<Type, Object> objects) {
+        this.body = body;
+        this.contentType = contentType;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expiresAt = expiresAt;
+        this.varyValues = varyValues;
+        this.objects = objects;
+    }
+
+    /**
+     * Create an entry for a successful response to a GET
+     * @param request the request
+     * @param response the response
+     * @param body the response body
+     * @param requestTime when the request was sent
+     * @param responseTime when the response was received
+     * @return the entry, or null if the response must not be stored
+     */
+    public static CacheEntry create(HttpRequest request, HttpResponse response, byte[] body, long requestTime, long responseTime) {
+        if (!"GET".equals(request.getRequestLine().getMethod())
+                || response.getStatusLine().getStatusCode() != HttpStatus.SC_OK
+                || hasDirective(response, "no-store")) {
+            return null;
+        }
+
+        Map<String, String> varyValues = new LinkedHashMap<String, String>();
+        for (Header vary : response.getHeaders(HttpHeaders.VARY)) {
+            for (HeaderElement element : vary.getElements()) {
+                String name = element.getName();
+                if ("*".equals(name)) {
+                    return null;
+                }
+                varyValues.put(name, headerValue(request, name));
+            }
+        }
+
+        String etag = headerValue(response, HttpHeaders.ETAG);
+        String lastModified = headerValue(response, HttpHeaders.LAST_MODIFIED);
+        long expiresAt = expiresAt(response, requestTime, responseTime);
+        if (expiresAt <= responseTime && etag == null && lastModified == null) {
+            // Neither fresh nor revalidatable
+            return null;
+        }
+
+        return new CacheEntry(body, headerValue(response, HttpHeaders.CONTENT_TYPE), etag, lastModified, expiresAt, varyValues, new ConcurrentHashMap<Type, Object>());
+    }
+
+    /**
+     * Create the entry replacing this one after the server confirmed it with a 304
+     * @param notModified the 304 response
+     * @param requestTime when the conditional request was sent
+     * @param responseTime when the response was received
+     * @return the refreshed entry sharing body and deserialized objects with this one
+     */
+    public CacheEntry revalidated(HttpResponse notModified, long requestTime, long responseTime) {
+        String newEtag = headerValue(notModified, HttpHeaders.ETAG);
+        String newLastModified = headerValue(notModified, HttpHeaders.LAST_MODIFIED);
+        return new CacheEntry(body, contentType, newEtag != null ? newEtag : etag,
+                newLastModified != null ? newLastModified : lastModified,
+                expiresAt(notModified, requestTime, responseTime), varyValues, objects);
+    }
+
+    public boolean isFresh(long now) {
+        return now < expiresAt;
+    }
+
+    /**
+     * Whether the entry was stored for a request with the same values of the varying headers
+     */
+    public boolean matches(HttpRequest request) {
+        for (Map.Entry<String, String> vary : varyValues.entrySet()) {
+            String value = headerValue(request, vary.getKey());
+            if (value == null ? vary.getValue() != null : !value.equals(vary.getValue())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Turn the request into a conditional one validating this entry
+     */
+    public void addConditionalHeaders(HttpRequest request) {
+        if (etag != null) {
+            request.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return the Content-Type of the stored response, null if it had none
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    public int getWeight() {
+        return body.length;
+    }
+
+    public Object getObject(Type type) {
+        return objects.get(type);
+    }
+
+    public void putObject(Type type, Object obj) {
+        if (obj != null) {
+            objects.put(type, obj);
+        }
+    }
+
+    /**
+     * Compute when the response stops being fresh from Cache-Control, or else Expires,
+     * corrected by the age the response already had when it was received
+     */
+    private static long expiresAt(HttpResponse response, long requestTime, long responseTime) {
+        if (hasDirective(response, "no-cache")) {
+            return responseTime;
+        }
+
+        long lifetime = -1;
+        String maxAge = directive(response, "max-age");
+        if (maxAge != null) {
+            lifetime = parseSeconds(maxAge) * 1000;
+        } else {
+            Date expires = parseDate(headerValue(response, HttpHeaders.EXPIRES));
+            if (expires != null) {
+                Date date = parseDate(headerValue(response, HttpHeaders.DATE));
+                lifetime = expires.getTime() - (date != null ? date.getTime() : responseTime);
+            }
+        }
+        if (lifetime <= 0) {
+            return responseTime;
+        }
+
+        long age = Math.max(0, parseSeconds(headerValue(response, HttpHeaders.AGE)) * 1000) + (responseTime - requestTime);
+        return responseTime + lifetime - age;
+    }
+
+    private static boolean hasDirective(HttpResponse response, String name) {
+        for (Header header : response.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+            for (HeaderElement element : header.getElements()) {
+                if (name.equalsIgnoreCase(element.getName())) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static String directive(HttpResponse response, String name) {
+        for (Header header : response.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+            for (HeaderElement element : header.getElements()) {
+                if (name.equalsIgnoreCase(element.getName())) {
+                    return element.getValue();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static String headerValue(HttpMessage message, String name) {
+        Header header = message.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Date parseDate(String value) {
+        return value == null ? null : DateUtils.parseDate(value);
+    }
+}
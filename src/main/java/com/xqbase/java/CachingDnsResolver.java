@@ -0,0 +1,390 @@
+package com.xqbase.java;
+
+import com.google.common.net.InetAddresses;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolver of the connection pool which caches the addresses of each host. Lookups run on
+ * a small pool of their own and are refreshed in the background before entries expire,
+ * so requests to a host in use never wait for the resolver. Expired addresses are served
+ * for a while longer, while they are looked up again or when the lookup fails, so only
+ * the first resolution of a host waits for a lookup. Each resolution rotates the addresses,
+ * spreading the connections of a host over all of them.
+ * <p>
+ * The addresses of a lookup carry no time to live, so entries live for the time configured
+ * here, which defaults to the JVM's {@code networkaddress.cache.ttl}.
+ */
+public class CachingDnsResolver implements DnsResolver {
+
+    public static final int DEFAULT_TTL_MILLIS = securityTtlMillis("networkaddress.cache.ttl", 30 * 1000);
+    public static final int DEFAULT_NEGATIVE_TTL_MILLIS = securityTtlMillis("networkaddress.cache.negative.ttl", 10 * 1000);
+    public static final double DEFAULT_REFRESH_RATIO = 0.8;
+    public static final int DEFAULT_MAX_STALE_MILLIS = 5 * 60 * 1000;
+    private static final int LOOKUP_THREADS = 4;
+
+    private volatile DnsResolver resolver = SystemDefaultDnsResolver.INSTANCE;
+    private volatile int ttlMillis = DEFAULT_TTL_MILLIS;
+    private volatile int negativeTtlMillis = DEFAULT_NEGATIVE_TTL_MILLIS;
+    private volatile double refreshRatio = DEFAULT_REFRESH_RATIO;
+    private volatile int maxStaleMillis = DEFAULT_MAX_STALE_MILLIS;
+
+    private final ListeningExecutorService executor;
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentMap<String, ListenableFuture<Entry>> lookups = new ConcurrentHashMap<String, ListenableFuture<Entry>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    public CachingDnsResolver() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(LOOKUP_THREADS, LOOKUP_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("async-client-dns-%d").setDaemon(true).build());
+        pool.allowCoreThreadTimeOut(true);
+        executor = MoreExecutors.listeningDecorator(pool);
+    }
+
+    /**
+     * Resolve a host, from the cache unless it has no entry yet or its entry is too stale
+     * to be served, in which case this waits for the lookup
+     * @return the addresses, rotated on each call
+     */
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        if (InetAddresses.isInetAddress(host)) {
+            return new InetAddress[] {InetAddresses.forString(host)};
+        }
+
+        String key = host.toLowerCase(Locale.ROOT);
+        Entry entry = cached(key);
+        if (entry == null) {
+            try {
+                entry = Uninterruptibles.getUninterruptibly(lookup(key));
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return entry.rotated();
+    }
+
+    /**
+     * Resolve a host without blocking, so that the connection pool finds it in the cache afterwards
+     * @return future of the addresses, failed with an {@link UnknownHostException} if the host can not be resolved
+     */
+    public ListenableFuture<InetAddress[]> resolveAsync(String host) {
+        if (InetAddresses.isInetAddress(host)) {
+            return Futures.immediateFuture(new InetAddress[] {InetAddresses.forString(host)});
+        }
+
+        String key = host.toLowerCase(Locale.ROOT);
+        Entry entry = cached(key);
+        if (entry != null) {
+            return entry.result();
+        }
+
+        return Futures.transform(lookup(key), new AsyncFunction<Entry, InetAddress[]>() {
+            @Override
+            public ListenableFuture<InetAddress[]> apply(Entry entry) {
+                return entry.result();
+            }
+        });
+    }
+
+    /**
+     * Get the cached entry of a host, refreshing it in the background when it is about to expire
+     * or when it expired but its addresses may still be served
+     * @return the entry, null if there is none or it expired without addresses to serve
+     */
+    private Entry cached(String key) {
+        Entry entry = cache.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        long now = System.nanoTime();
+        if (now - entry.expiresAt >= 0) {
+            if (!isServable(entry, now)) {
+                misses.incrementAndGet();
+                return null;
+            }
+            staleHits.incrementAndGet();
+            refresh(key);
+            return entry;
+        }
+        if (now - entry.refreshAt >= 0) {
+            refresh(key);
+        }
+        (entry.stale ? staleHits : hits).incrementAndGet();
+        return entry;
+    }
+
+    private void refresh(String key) {
+        if (!lookups.containsKey(key)) {
+            refreshes.incrementAndGet();
+            lookup(key);
+        }
+    }
+
+    /**
+     * Whether the addresses of an entry are not too old to be served past their expiry
+     */
+    private boolean isServable(Entry entry, long now) {
+        return entry.addresses != null
+                && now - entry.resolvedAt < TimeUnit.MILLISECONDS.toNanos((long) ttlMillis + maxStaleMillis);
+    }
+
+    /**
+     * Look a host up on the lookup pool, joining the lookup already running for it
+     * @return future of the new entry, which never fails
+     */
+    private ListenableFuture<Entry> lookup(final String key) {
+        final SettableFuture<Entry> lookup = SettableFuture.create();
+        ListenableFuture<Entry> existing = lookups.putIfAbsent(key, lookup);
+        if (existing != null) {
+            return existing;
+        }
+
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                Entry entry;
+                try {
+                    entry = new Entry(resolver.resolve(key), null, ttlMillis);
+                } catch (UnknownHostException e) {
+                    entry = failed(key, e);
+                } catch (RuntimeException e) {
+                    UnknownHostException failure = new UnknownHostException(key);
+                    failure.initCause(e);
+                    entry = failed(key, failure);
+                }
+                cache.put(key, entry);
+                lookups.remove(key, lookup);
+                lookup.set(entry);
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RuntimeException e) {
+            // Shut down, resolve on the calling thread
+            task.run();
+        }
+        return lookup;
+    }
+
+    /**
+     * Keep serving the previous addresses of a host whose lookup failed, if they are not too old
+     */
+    private Entry failed(String key, UnknownHostException failure) {
+        Entry previous = cache.get(key);
+        if (previous != null && isServable(previous, System.nanoTime())) {
+            return new Entry(previous, negativeTtlMillis);
+        }
+        return new Entry(null, failure, negativeTtlMillis);
+    }
+
+    public DnsResolver getResolver() {
+        return resolver;
+    }
+
+    /**
+     * Set the resolver the lookups are made with
+     * @param resolver the resolver, null restores the system resolver
+     */
+    public void setResolver(DnsResolver resolver) {
+        this.resolver = resolver == null ? SystemDefaultDnsResolver.INSTANCE : resolver;
+    }
+
+    public int getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * Set how long the addresses of a host are cached
+     * @param ttlMillis time to live in milliseconds
+     */
+    public void setTtlMillis(int ttlMillis) {
+        this.ttlMillis = ttlMillis < 1 ? DEFAULT_TTL_MILLIS : ttlMillis;
+    }
+
+    public int getNegativeTtlMillis() {
+        return negativeTtlMillis;
+    }
+
+    /**
+     * Set how long a failed lookup is cached before the host is looked up again
+     * @param negativeTtlMillis time to live in milliseconds
+     */
+    public void setNegativeTtlMillis(int negativeTtlMillis) {
+        this.negativeTtlMillis = negativeTtlMillis < 1 ? DEFAULT_NEGATIVE_TTL_MILLIS : negativeTtlMillis;
+    }
+
+    public double getRefreshRatio() {
+        return refreshRatio;
+    }
+
+    /**
+     * Set how far into its time to live an entry is refreshed in the background
+     * @param refreshRatio ratio between 0 and 1
+     */
+    public void setRefreshRatio(double refreshRatio) {
+        this.refreshRatio = refreshRatio <= 0 || refreshRatio >= 1 ? DEFAULT_REFRESH_RATIO : refreshRatio;
+    }
+
+    public int getMaxStaleMillis() {
+        return maxStaleMillis;
+    }
+
+    /**
+     * Set how long after their expiry addresses are served, while they are looked up again
+     * or while their host can not be resolved
+     * @param maxStaleMillis maximum staleness in milliseconds, zero never serves expired addresses
+     */
+    public void setMaxStaleMillis(int maxStaleMillis) {
+        this.maxStaleMillis = maxStaleMillis < 0 ? DEFAULT_MAX_STALE_MILLIS : maxStaleMillis;
+    }
+
+    /**
+     * Get the number of resolutions served from the cache
+     * @return hit count
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of resolutions which waited for a lookup
+     * @return miss count
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of resolutions served expired addresses
+     * @return stale count
+     */
+    public long getStaleCount() {
+        return staleHits.get();
+    }
+
+    /**
+     * Get the number of background refreshes
+     * @return refresh count
+     */
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    /**
+     * Drop every cached entry
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Stop the lookup threads, lookups afterwards run on the calling thread
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static int securityTtlMillis(String property, int defaultMillis) {
+        try {
+            String value = Security.getProperty(property);
+            int seconds = value == null ? -1 : Integer.parseInt(value.trim());
+            return seconds > 0 ? seconds * 1000 : defaultMillis;
+        } catch (RuntimeException e) {
+            return defaultMillis;
+        }
+    }
+
+    /**
+     * Copy a cached failure, so that callers do not share its stack trace
+     */
+    private static UnknownHostException copy(UnknownHostException failure) {
+        UnknownHostException copy = new UnknownHostException(failure.getMessage());
+        copy.initCause(failure.getCause() == null ? failure : failure.getCause());
+        return copy;
+    }
+
+    private class Entry {
+
+        private final InetAddress[] addresses;
+        private final UnknownHostException failure;
+        private final long resolvedAt;
+        private final long refreshAt;
+        private final long expiresAt;
+        private final boolean stale;
+        private final AtomicInteger next;
+
+        Entry(InetAddress[] addresses, UnknownHostException failure, int ttlMillis) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.resolvedAt = System.nanoTime();
+            long ttl = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+            this.refreshAt = resolvedAt + (addresses == null ? ttl : (long) (ttl * refreshRatio));
+            this.expiresAt = resolvedAt + ttl;
+            this.stale = false;
+            this.next = new AtomicInteger();
+        }
+
+        /**
+         * Extend a stale entry, it is looked up again once the extension passes
+         */
+        Entry(Entry stale, int extensionMillis) {
+            this.addresses = stale.addresses;
+            this.failure = null;
+            this.resolvedAt = stale.resolvedAt;
+            this.expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(extensionMillis);
+            this.refreshAt = expiresAt;
+            this.stale = true;
+            this.next = stale.next;
+        }
+
+        InetAddress[] rotated() throws UnknownHostException {
+            if (addresses == null) {
+                throw copy(failure);
+            }
+            int n = addresses.length;
+            if (n <= 1) {
+                return addresses.clone();
+            }
+            int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+            InetAddress[] rotated = new InetAddress[n];
+            for (int i = 0; i < n; i++) {
+                rotated[i] = addresses[(start + i) % n];
+            }
+            return rotated;
+        }
+
+        ListenableFuture<InetAddress[]> result() {
+            return addresses == null ? Futures.<InetAddress[]>immediateFailedFuture(copy(failure))
+                    : Futures.immediateFuture(addresses.clone());
+        }
+    }
+}
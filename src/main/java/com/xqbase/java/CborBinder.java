@@ -0,0 +1,720 @@
+package com.xqbase.java;
+
+import com.google.common.primitives.Primitives;
+import com.google.common.reflect.TypeToken;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reads and writes the CBOR form of one type, the counterpart of {@link JsonBinder} for
+ * {@link CborReader} and {@link CborWriter}. Binders are built once per type and cached,
+ * so values are bound as they are read and written instead of going through a generic model.
+ */
+abstract class CborBinder {
+
+    private static final ConcurrentMap<Type, CborBinder> BINDERS = new ConcurrentHashMap<Type, CborBinder>();
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    /**
+     * Read a value, nulls included
+     */
+    abstract Object read(CborReader reader) throws IOException;
+
+    /**
+     * Write a non null value
+     */
+    abstract void write(CborWriter writer, Object value) throws IOException;
+
+    /**
+     * Get the binder of the given type, building it on first use
+     */
+    static CborBinder of(Type type) {
+        CborBinder binder = BINDERS.get(type);
+        if (binder == null) {
+            binder = create(type);
+            CborBinder existing = BINDERS.putIfAbsent(type, binder);
+            if (existing != null) {
+                binder = existing;
+            }
+        }
+        return binder;
+    }
+
+    static void writeNullable(CborWriter writer, CborBinder binder, Object value) throws IOException {
+        if (value == null) {
+            writer.nullValue();
+        } else {
+            binder.write(writer, value);
+        }
+    }
+
+    private static CborBinder create(Type type) {
+        if (type instanceof WildcardType) {
+            return of(((WildcardType) type).getUpperBounds()[0]);
+        }
+        if (type instanceof TypeVariable) {
+            Type[] bounds = ((TypeVariable<?>) type).getBounds();
+            return of(bounds.length == 0 ? Object.class : bounds[0]);
+        }
+        if (type instanceof GenericArrayType) {
+            return new ArrayBinder(((GenericArrayType) type).getGenericComponentType());
+        }
+
+        Class<?> raw = TypeToken.of(type).getRawType();
+        CborBinder scalar = scalar(Primitives.wrap(raw));
+        if (scalar != null) {
+            return scalar;
+        }
+        if (raw == Object.class) {
+            return ANY;
+        }
+        if (raw == byte[].class) {
+            return BYTES;
+        }
+        if (raw.isArray()) {
+            return new ArrayBinder(raw.getComponentType());
+        }
+        if (raw.isEnum()) {
+            return new EnumBinder(raw);
+        }
+        if (Collection.class.isAssignableFrom(raw)) {
+            return new CollectionBinder(raw, JsonBinder.typeArgument(type, Collection.class, 0));
+        }
+        if (Map.class.isAssignableFrom(raw)) {
+            return new MapBinder(raw, JsonBinder.typeArgument(type, Map.class, 0), JsonBinder.typeArgument(type, Map.class, 1));
+        }
+        return new ObjectBinder(type, raw);
+    }
+
+    private static CborBinder scalar(Class<?> wrapped) {
+        if (wrapped == String.class) {
+            return STRING;
+        } else if (wrapped == Integer.class) {
+            return INT;
+        } else if (wrapped == Long.class) {
+            return LONG;
+        } else if (wrapped == Double.class) {
+            return DOUBLE;
+        } else if (wrapped == Boolean.class) {
+            return BOOLEAN;
+        } else if (wrapped == Float.class) {
+            return FLOAT;
+        } else if (wrapped == Short.class) {
+            return SHORT;
+        } else if (wrapped == Byte.class) {
+            return BYTE;
+        } else if (wrapped == Character.class) {
+            return CHAR;
+        } else if (wrapped == BigDecimal.class) {
+            return BIG_DECIMAL;
+        } else if (wrapped == BigInteger.class) {
+            return BIG_INTEGER;
+        }
+        return null;
+    }
+
+    /**
+     * Binder reading nulls itself, returning null for them
+     */
+    private abstract static class NullableBinder extends CborBinder {
+
+        @Override
+        Object read(CborReader reader) throws IOException {
+            return reader.nextNullIf() ? null : readValue(reader);
+        }
+
+        abstract Object readValue(CborReader reader) throws IOException;
+    }
+
+    static final CborBinder STRING = new NullableBinder() {
+        @Override
+        Object readValue(CborReader reader) throws IOException {
+            return reader.nextString();
+        }
+
+        @Override
+        void write(CborWriter writer, Object value) {
+            writer.value((String) value);
+        }
+    };
+
+    static final CborBinder INT = new NullableBinder() {
+        @Override
+        Object readValue(CborReader reader) throws IOException {
+            return reader.nextInt();
+        }
+
+        @Override
+        void write(CborWriter writer, Object value) {
+            writer.value(((Integer) value).longValue());
+        }
+    };
+
+    static final CborBinder LONG = new NullableBinder() {
+        @Override
+        Object readValue(CborReader reader) throws IOException {
+            return reader.nextLong();
+        }
+
+        @Override
+        void write(CborWriter writer, Object value) {
+            writer.value(((Long) value).longValue());
+        }
+    };
+
+    static final CborBinder DOUBLE = new NullableBinder() {
+        @Override
+        Object readValue(CborReader reader) throws IOException {
+            return reader.nextDouble();
+        }
+
+        @Override
+        void write(CborWriter writer, Object value) {
+            writer.value(((Double) value).doubleValue());
+        }
+    };
+
+    static final CborBinder BOOLEAN = new NullableBinder() {
+        @Override
+        Object readValue(CborReader reader) throws IOException {
+            return reader.nextBoolean();
+        }
+
+        @Override
+        void write(CborWriter writer, Object value) {
+            writer.value(((Boolean) value).booleanValue());
+        }
+    };
+
+    static final CborBinder FLOAT = new NullableBinder() {
+        @Override
+        Object readValue(CborReader reader) throws IOException {
+            return (float) reader.nextDouble();
+        }
+
+        @Override
+        void write(CborWriter writer, Object value) {
+            writer.value(((Float) value).doubleValue());
+        }
+    };
+
+    static final CborBinder SHORT = new NullableBinder() {
+        @Override
+        Object readValue(CborReader reader) throws IOException {
+            return (short) reader.nextLong(Short.MIN_VALUE, Short.MAX_VALUE);
+        }
+
+        @Override
+        void write(CborWriter writer, Object value) {
+            writer.value(((Short) value).longValue());
+        }
+    };
+
+    static final CborBinder BYTE = new NullableBinder() {
+        @Override
+        Object readValue(CborReader reader) throws IOException {
+            return (byte) reader.nextLong(Byte.MIN_VALUE, Byte.MAX_VALUE);
+        }
+
+        @Override
+        void write(CborWriter writer, Object value) {
+            writer.value(((Byte) value).longValue());
+        }
+    };
+
+    static final CborBinder CHAR = new NullableBinder() {
+        @Override
+        Object readValue(CborReader reader) throws IOException {
+            String s = reader.nextString();
+            return s.isEmpty() ? '\0' : s.charAt(0);
+        }
+
+        @Override
+        void write(CborWriter writer, Object value) {
+            writer.value(value.toString());
+        }
+    };
+
+    /**
+     * Decimals are written as doubles, big integers as longs
+     */
+    static final CborBinder BIG_DECIMAL = new NullableBinder() {
+        @Override
+        Object readValue(CborReader reader) throws IOException {
+            Object value = reader.readValue();
+            try {
+                return new BigDecimal(String.valueOf(value));
+            } catch (NumberFormatException e) {
+                throw new IOException("Expected a number but found " + value);
+            }
+        }
+
+        @Override
+        void write(CborWriter writer, Object value) {
+            writer.value(((BigDecimal) value).doubleValue());
+        }
+    };
+
+    static final CborBinder BIG_INTEGER = new NullableBinder() {
+        @Override
+        Object readValue(CborReader reader) throws IOException {
+            return BigInteger.valueOf(reader.nextLong());
+        }
+
+        @Override
+        void write(CborWriter writer, Object value) {
+            writer.value(((BigInteger) value).longValue());
+        }
+    };
+
+    /**
+     * Byte arrays are written as byte strings, and read from byte strings, base64 text or arrays of integers
+     */
+    static final CborBinder BYTES = new NullableBinder() {
+        @Override
+        Object readValue(CborReader reader) throws IOException {
+            if (reader.peekMajor() == CborReader.MAJOR_ARRAY) {
+                return ARRAY_OF_BYTES.readValue(reader);
+            }
+            return reader.nextBytes();
+        }
+
+        @Override
+        void write(CborWriter writer, Object value) {
+            writer.value((byte[]) value);
+        }
+    };
+
+    private static final ArrayBinder ARRAY_OF_BYTES = new ArrayBinder(byte.class);
+
+    /**
+     * Reads the generic model of {@link CborReader#readValue()}, writes values by their runtime class
+     */
+    static final CborBinder ANY = new CborBinder() {
+        @Override
+        Object read(CborReader reader) throws IOException {
+            return reader.readValue();
+        }
+
+        @Override
+        void write(CborWriter writer, Object value) throws IOException {
+            if (value.getClass() == Object.class) {
+                writer.beginObject(0);
+            } else {
+                of(value.getClass()).write(writer, value);
+            }
+        }
+    };
+
+    private static class EnumBinder extends NullableBinder {
+
+        private final Map<String, Object> constants = new HashMap<String, Object>();
+        private final Class<?> enumClass;
+
+        EnumBinder(Class<?> enumClass) {
+            this.enumClass = enumClass;
+            for (Object constant : enumClass.getEnumConstants()) {
+                constants.put(((Enum<?>) constant).name(), constant);
+            }
+        }
+
+        @Override
+        Object readValue(CborReader reader) throws IOException {
+            String name = reader.nextString();
+            Object constant = constants.get(name);
+            if (constant == null) {
+                throw new IOException("No constant " + name + " in " + enumClass.getName());
+            }
+            return constant;
+        }
+
+        @Override
+        void write(CborWriter writer, Object value) {
+            writer.value(((Enum<?>) value).name());
+        }
+    }
+
+    private static class ArrayBinder extends NullableBinder {
+
+        private final Type componentType;
+        private final Class<?> componentClass;
+        private CborBinder component;
+
+        ArrayBinder(Type componentType) {
+            this.componentType = componentType;
+            this.componentClass = TypeToken.of(componentType).getRawType();
+        }
+
+        private CborBinder component() {
+            CborBinder binder = component;
+            if (binder == null) {
+                binder = component = of(componentType);
+            }
+            return binder;
+        }
+
+        @Override
+        Object readValue(CborReader reader) throws IOException {
+            CborBinder binder = component();
+            List<Object> elements = new ArrayList<Object>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                elements.add(binder.read(reader));
+            }
+            reader.endArray();
+
+            Object array = Array.newInstance(componentClass, elements.size());
+            for (int i = 0; i < elements.size(); i++) {
+                Object element = elements.get(i);
+                if (element != null || !componentClass.isPrimitive()) {
+                    Array.set(array, i, element);
+                }
+            }
+            return array;
+        }
+
+        @Override
+        void write(CborWriter writer, Object value) throws IOException {
+            CborBinder binder = component();
+            if (value instanceof Object[]) {
+                Object[] elements = (Object[]) value;
+                writer.beginArray(elements.length);
+                for (Object element : elements) {
+                    writeNullable(writer, binder, element);
+                }
+            } else {
+                int len = Array.getLength(value);
+                writer.beginArray(len);
+                for (int i = 0; i < len; i++) {
+                    binder.write(writer, Array.get(value, i));
+                }
+            }
+        }
+    }
+
+    private static class CollectionBinder extends NullableBinder {
+
+        private final Class<?> raw;
+        private final Type elementType;
+        private final MethodHandle constructor;
+        private CborBinder element;
+
+        CollectionBinder(Class<?> raw, Type elementType) {
+            this.raw = raw;
+            this.elementType = elementType;
+            this.constructor = raw.isInterface() || Modifier.isAbstract(raw.getModifiers()) ? null : JsonBinder.constructor(raw);
+        }
+
+        private CborBinder element() {
+            CborBinder binder = element;
+            if (binder == null) {
+                binder = element = of(elementType);
+            }
+            return binder;
+        }
+
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Object readValue(CborReader reader) throws IOException {
+            Collection<Object> collection;
+            if (constructor != null) {
+                collection = (Collection<Object>) JsonBinder.newInstance(constructor, raw);
+            } else if (EnumSet.class.isAssignableFrom(raw)) {
+                collection = (Collection) EnumSet.noneOf((Class<Enum>) TypeToken.of(elementType).getRawType());
+            } else if (SortedSet.class.isAssignableFrom(raw)) {
+                collection = new TreeSet<Object>();
+            } else if (Set.class.isAssignableFrom(raw)) {
+                collection = new LinkedHashSet<Object>();
+            } else {
+                collection = new ArrayList<Object>();
+            }
+
+            CborBinder binder = element();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                collection.add(binder.read(reader));
+            }
+            reader.endArray();
+            return collection;
+        }
+
+        @Override
+        void write(CborWriter writer, Object value) throws IOException {
+            CborBinder binder = element();
+            // Copied, so that the length written matches the elements of a collection changing meanwhile
+            Object[] elements = ((Collection<?>) value).toArray();
+            writer.beginArray(elements.length);
+            for (Object element : elements) {
+                writeNullable(writer, binder, element);
+            }
+        }
+    }
+
+    private static class MapBinder extends NullableBinder {
+
+        private final Class<?> raw;
+        private final Type keyType;
+        private final Type valueType;
+        private final MethodHandle constructor;
+        private CborBinder value;
+
+        MapBinder(Class<?> raw, Type keyType, Type valueType) {
+            this.raw = raw;
+            this.keyType = keyType;
+            this.valueType = valueType;
+            this.constructor = raw.isInterface() || Modifier.isAbstract(raw.getModifiers()) ? null : JsonBinder.constructor(raw);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        Object readValue(CborReader reader) throws IOException {
+            Map<Object, Object> map;
+            if (constructor != null) {
+                map = (Map<Object, Object>) JsonBinder.newInstance(constructor, raw);
+            } else if (SortedMap.class.isAssignableFrom(raw)) {
+                map = new TreeMap<Object, Object>();
+            } else {
+                map = new LinkedHashMap<Object, Object>();
+            }
+
+            CborBinder valueBinder = valueBinder();
+            boolean convertKeys = keyType != String.class && keyType != Object.class;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                map.put(convertKeys ? ValueMapper.fromValue(name, keyType) : name, valueBinder.read(reader));
+            }
+            reader.endObject();
+            return map;
+        }
+
+        @Override
+        void write(CborWriter writer, Object obj) throws IOException {
+            CborBinder valueBinder = valueBinder();
+            Object[] entries = ((Map<?, ?>) obj).entrySet().toArray();
+            writer.beginObject(entries.length);
+            for (Object e : entries) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) e;
+                Object k = entry.getKey();
+                writer.value(k instanceof Enum ? ((Enum<?>) k).name() : String.valueOf(k));
+                writeNullable(writer, valueBinder, entry.getValue());
+            }
+        }
+
+        private CborBinder valueBinder() {
+            CborBinder binder = value;
+            if (binder == null) {
+                binder = value = of(valueType);
+            }
+            return binder;
+        }
+    }
+
+    /**
+     * Binds the non-static, non-transient fields of a class
+     */
+    private static class ObjectBinder extends CborBinder {
+
+        private final Class<?> raw;
+        private final MethodHandle constructor;
+        private final List<FieldBinding> fields = new ArrayList<FieldBinding>();
+        private final Map<String, FieldBinding> fieldsByName = new HashMap<String, FieldBinding>();
+
+        ObjectBinder(Type type, Class<?> raw) {
+            this.raw = raw;
+            this.constructor = JsonBinder.constructor(raw);
+            TypeToken<?> token = TypeToken.of(type);
+            for (Class<?> c = raw; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()
+                            || fieldsByName.containsKey(field.getName())) {
+                        continue;
+                    }
+                    FieldBinding binding = new FieldBinding(field, token.resolveType(field.getGenericType()).getType());
+                    fields.add(binding);
+                    fieldsByName.put(field.getName(), binding);
+                }
+            }
+        }
+
+        @Override
+        Object read(CborReader reader) throws IOException {
+            if (reader.nextNullIf()) {
+                return null;
+            }
+
+            Object obj = JsonBinder.newInstance(constructor, raw);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                FieldBinding field = fieldsByName.get(reader.nextName());
+                if (field == null) {
+                    reader.skipValue();
+                } else {
+                    field.read(reader, obj);
+                }
+            }
+            reader.endObject();
+            return obj;
+        }
+
+        @Override
+        void write(CborWriter writer, Object obj) throws IOException {
+            writer.beginObject(fields.size());
+            for (FieldBinding field : fields) {
+                field.write(writer, obj);
+            }
+        }
+    }
+
+    /**
+     * A field accessed through method handles, primitives of the common types are
+     * read and written without boxing
+     */
+    private static class FieldBinding {
+
+        private static final int OBJECT = 0;
+        private static final int INT = 1;
+        private static final int LONG = 2;
+        private static final int DOUBLE = 3;
+        private static final int BOOLEAN = 4;
+
+        private final Type type;
+        private final String name;
+        private final byte[] encodedName;
+        private final int kind;
+        private final boolean primitive;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+        private CborBinder binder;
+
+        FieldBinding(Field field, Type type) {
+            this.type = type;
+            this.name = field.getName();
+            this.encodedName = CborWriter.encodeName(name);
+            Class<?> fieldType = field.getType();
+            this.kind = fieldType == int.class ? INT : fieldType == long.class ? LONG
+                    : fieldType == double.class ? DOUBLE : fieldType == boolean.class ? BOOLEAN : OBJECT;
+            this.primitive = fieldType.isPrimitive();
+            Class<?> handleType = kind == OBJECT ? Object.class : fieldType;
+
+            field.setAccessible(true);
+            try {
+                this.getter = LOOKUP.unreflectGetter(field)
+                        .asType(MethodType.methodType(handleType, Object.class));
+                MethodHandle set;
+                if (Modifier.isFinal(field.getModifiers())) {
+                    // Final fields can only be set reflectively
+                    set = LOOKUP.findVirtual(Field.class, "set", MethodType.methodType(void.class, Object.class, Object.class))
+                            .bindTo(field);
+                } else {
+                    set = LOOKUP.unreflectSetter(field);
+                }
+                this.setter = set.asType(MethodType.methodType(void.class, Object.class, handleType));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("Can not bind field " + field, e);
+            }
+        }
+
+        private CborBinder binder() {
+            CborBinder b = binder;
+            if (b == null) {
+                b = binder = of(type);
+            }
+            return b;
+        }
+
+        void read(CborReader reader, Object obj) throws IOException {
+            try {
+                switch (kind) {
+                    case INT:
+                        if (!reader.nextNullIf()) {
+                            setter.invokeExact(obj, reader.nextInt());
+                        }
+                        break;
+                    case LONG:
+                        if (!reader.nextNullIf()) {
+                            setter.invokeExact(obj, reader.nextLong());
+                        }
+                        break;
+                    case DOUBLE:
+                        if (!reader.nextNullIf()) {
+                            setter.invokeExact(obj, reader.nextDouble());
+                        }
+                        break;
+                    case BOOLEAN:
+                        if (!reader.nextNullIf()) {
+                            setter.invokeExact(obj, reader.nextBoolean());
+                        }
+                        break;
+                    default:
+                        Object value = binder().read(reader);
+                        if (value != null || !primitive) {
+                            setter.invokeExact(obj, value);
+                        }
+                }
+            } catch (IOException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IOException("Can not set " + name, t);
+            }
+        }
+
+        void write(CborWriter writer, Object obj) throws IOException {
+            writer.name(encodedName);
+            try {
+                switch (kind) {
+                    case INT:
+                        writer.value((long) (int) getter.invokeExact(obj));
+                        break;
+                    case LONG:
+                        writer.value((long) getter.invokeExact(obj));
+                        break;
+                    case DOUBLE:
+                        writer.value((double) getter.invokeExact(obj));
+                        break;
+                    case BOOLEAN:
+                        writer.value((boolean) getter.invokeExact(obj));
+                        break;
+                    default:
+                        writeNullable(writer, binder(), (Object) getter.invokeExact(obj));
+                }
+            } catch (IOException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IOException("Can not get " + name, t);
+            }
+        }
+    }
+}
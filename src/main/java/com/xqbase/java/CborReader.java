@@ -0,0 +1,555 @@
+package com.xqbase.java;
+
+import com.google.common.io.BaseEncoding;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pull parser reading CBOR (RFC 7049) straight from a buffer or a stream. Tags are skipped,
+ * definite and indefinite length items are read alike, and lengths and integers beyond
+ * the range of a long are rejected.
+ */
+class CborReader {
+
+    static final int END = -1;
+
+    static final int MAJOR_UNSIGNED = 0;
+    static final int MAJOR_NEGATIVE = 1;
+    static final int MAJOR_BYTES = 2;
+    static final int MAJOR_TEXT = 3;
+    static final int MAJOR_ARRAY = 4;
+    static final int MAJOR_MAP = 5;
+    static final int MAJOR_TAG = 6;
+    static final int MAJOR_SIMPLE = 7;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int INDEFINITE = 31;
+    private static final int BREAK = 0xFF;
+    private static final int FALSE = MAJOR_SIMPLE << 5 | 20;
+    private static final int TRUE = MAJOR_SIMPLE << 5 | 21;
+    private static final int NULL = MAJOR_SIMPLE << 5 | 22;
+    private static final int UNDEFINED = MAJOR_SIMPLE << 5 | 23;
+    private static final int MAX_DEPTH = 512;
+
+    private final InputStream in;
+    private final ByteBuffer buf;
+    // Initial byte of the next item once peeked, its tags skipped
+    private int initial = END;
+    // Items left in each open array or map, -1 if of indefinite length
+    private final long[] remaining = new long[MAX_DEPTH + 1];
+    private int depth = 0;
+
+    CborReader(ByteBuffer buffer) {
+        this.in = null;
+        this.buf = buffer;
+    }
+
+    CborReader(InputStream in) {
+        this.in = in;
+        this.buf = ByteBuffer.allocate(AsyncClient.DEFAULT_BUFFER_SIZE);
+        this.buf.flip();
+    }
+
+    /**
+     * Get the initial byte of the next item without consuming it
+     * @return the byte, or {@link #END} at the end of the input
+     */
+    int peek() throws IOException {
+        if (initial != END) {
+            return initial;
+        }
+        if (!buf.hasRemaining() && !fill(1, false)) {
+            return END;
+        }
+
+        int b = readByte();
+        while (b >>> 5 == MAJOR_TAG) {
+            // Tags only annotate the following item
+            argument(b & 0x1F);
+            b = readByte();
+        }
+        initial = b;
+        return b;
+    }
+
+    /**
+     * Get the major type of the next item
+     */
+    int peekMajor() throws IOException {
+        int b = peek();
+        if (b == END) {
+            throw new EOFException("Truncated CBOR data");
+        }
+        if (b == BREAK) {
+            throw new IOException("Unexpected break");
+        }
+        return b >>> 5;
+    }
+
+    /**
+     * Whether the current array or map has another element, or entry
+     */
+    boolean hasNext() throws IOException {
+        long left = remaining[depth];
+        if (left < 0) {
+            return peek() != BREAK;
+        }
+        if (left == 0) {
+            return false;
+        }
+        remaining[depth] = left - 1;
+        return true;
+    }
+
+    void beginArray() throws IOException {
+        enter(MAJOR_ARRAY, "an array");
+    }
+
+    void endArray() throws IOException {
+        exit();
+    }
+
+    void beginObject() throws IOException {
+        enter(MAJOR_MAP, "a map");
+    }
+
+    void endObject() throws IOException {
+        exit();
+    }
+
+    /**
+     * Read the key of a map entry, keys other than text are turned into strings
+     */
+    String nextName() throws IOException {
+        return peekMajor() == MAJOR_TEXT ? nextString() : String.valueOf(readValue());
+    }
+
+    /**
+     * Consume a null, or undefined, if it is the next value
+     * @return true if a null was consumed
+     */
+    boolean nextNullIf() throws IOException {
+        int b = peek();
+        if (b != NULL && b != UNDEFINED) {
+            return false;
+        }
+        initial = END;
+        return true;
+    }
+
+    String nextString() throws IOException {
+        int major = peekMajor();
+        if (major == MAJOR_TEXT || major == MAJOR_BYTES) {
+            return new String(readBytes(), UTF_8);
+        }
+        if (major == MAJOR_ARRAY || major == MAJOR_MAP) {
+            throw new IOException("Expected a string but found " + describe(major));
+        }
+        return String.valueOf(readValue());
+    }
+
+    /**
+     * Read a byte string, or a text holding base64
+     */
+    byte[] nextBytes() throws IOException {
+        int major = peekMajor();
+        if (major == MAJOR_BYTES) {
+            return readBytes();
+        }
+        if (major != MAJOR_TEXT) {
+            throw new IOException("Expected bytes but found " + describe(major));
+        }
+        try {
+            return BaseEncoding.base64().decode(new String(readBytes(), UTF_8));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed base64 value", e);
+        }
+    }
+
+    boolean nextBoolean() throws IOException {
+        int b = peek();
+        if (b == TRUE || b == FALSE) {
+            initial = END;
+            return b == TRUE;
+        }
+        if (peekMajor() == MAJOR_TEXT) {
+            return Boolean.parseBoolean(nextString());
+        }
+        throw new IOException("Expected a boolean but found " + describe(peekMajor()));
+    }
+
+    long nextLong() throws IOException {
+        int major = peekMajor();
+        if (major == MAJOR_TEXT) {
+            String s = nextString();
+            try {
+                return Long.parseLong(s);
+            } catch (NumberFormatException e) {
+                throw new IOException("Expected a number but found \"" + s + "\"");
+            }
+        }
+
+        int info = consume() & 0x1F;
+        switch (major) {
+            case MAJOR_UNSIGNED:
+                return integer(argument(info), false);
+            case MAJOR_NEGATIVE:
+                return integer(argument(info), true);
+            case MAJOR_SIMPLE:
+                double d = floating(info);
+                // The bounds are powers of two, exact in a double
+                if (d != Math.rint(d) || d < Long.MIN_VALUE || d >= 0x1p63) {
+                    throw new IOException("Expected an integer in range but found " + d);
+                }
+                return (long) d;
+            default:
+                throw new IOException("Expected a number but found " + describe(major));
+        }
+    }
+
+    /**
+     * Read the next integer, which must be within the range of the narrower type it is bound to
+     */
+    long nextLong(long min, long max) throws IOException {
+        long value = nextLong();
+        if (value < min || value > max) {
+            throw new IOException("Integer out of range " + value);
+        }
+        return value;
+    }
+
+    int nextInt() throws IOException {
+        return (int) nextLong(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    double nextDouble() throws IOException {
+        int major = peekMajor();
+        if (major == MAJOR_UNSIGNED || major == MAJOR_NEGATIVE) {
+            return nextLong();
+        }
+        if (major == MAJOR_SIMPLE) {
+            return floating(consume() & 0x1F);
+        }
+        if (major == MAJOR_TEXT) {
+            String s = nextString();
+            try {
+                return Double.parseDouble(s);
+            } catch (NumberFormatException e) {
+                throw new IOException("Expected a number but found \"" + s + "\"");
+            }
+        }
+        throw new IOException("Expected a number but found " + describe(major));
+    }
+
+    /**
+     * Skip the next item, nested items included
+     */
+    void skipValue() throws IOException {
+        int major = peekMajor();
+        if (major == MAJOR_ARRAY || major == MAJOR_MAP) {
+            enter(major, describe(major));
+            while (hasNext()) {
+                if (major == MAJOR_MAP) {
+                    skipValue();
+                }
+                skipValue();
+            }
+            exit();
+        } else if ((major == MAJOR_BYTES || major == MAJOR_TEXT) && (initial & 0x1F) == INDEFINITE) {
+            readBytes();
+        } else if (major == MAJOR_BYTES || major == MAJOR_TEXT) {
+            skip(argument(consume() & 0x1F));
+        } else if (major == MAJOR_SIMPLE) {
+            simple(consume() & 0x1F);
+        } else {
+            argument(consume() & 0x1F);
+        }
+    }
+
+    /**
+     * Read the next item into the generic model: null, {@link String}, {@link Boolean},
+     * {@link Long}, {@link Double}, {@code byte[]}, {@link List} and {@link Map} with string keys
+     */
+    Object readValue() throws IOException {
+        int major = peekMajor();
+        switch (major) {
+            case MAJOR_UNSIGNED:
+            case MAJOR_NEGATIVE:
+                return nextLong();
+            case MAJOR_BYTES:
+                return readBytes();
+            case MAJOR_TEXT:
+                return new String(readBytes(), UTF_8);
+            case MAJOR_ARRAY:
+                List<Object> list = new ArrayList<Object>();
+                beginArray();
+                while (hasNext()) {
+                    list.add(readValue());
+                }
+                endArray();
+                return list;
+            case MAJOR_MAP:
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                beginObject();
+                while (hasNext()) {
+                    String name = nextName();
+                    map.put(name, readValue());
+                }
+                endObject();
+                return map;
+            default:
+                return simple(consume() & 0x1F);
+        }
+    }
+
+    /**
+     * Fail unless the input has been read to its end
+     */
+    void expectEnd() throws IOException {
+        if (peek() != END) {
+            throw new IOException("Expected the end of the CBOR data");
+        }
+    }
+
+    private void enter(int major, String expected) throws IOException {
+        int actual = peekMajor();
+        if (actual != major) {
+            throw new IOException("Expected " + expected + " but found " + describe(actual));
+        }
+        if (depth == MAX_DEPTH) {
+            throw new IOException("CBOR data nested too deeply");
+        }
+        int info = consume() & 0x1F;
+        long count = info == INDEFINITE ? -1 : argument(info);
+        if (count < 0 && info != INDEFINITE) {
+            throw new IOException("Invalid CBOR length " + BigInteger.valueOf(count).add(BigInteger.ONE.shiftLeft(64)));
+        }
+        remaining[++depth] = count;
+    }
+
+    private void exit() throws IOException {
+        if (remaining[depth] < 0) {
+            if (peek() != BREAK) {
+                throw new IOException("Expected a break");
+            }
+            initial = END;
+        } else if (remaining[depth] != 0) {
+            throw new IOException(remaining[depth] + " items left unread in a CBOR container");
+        }
+        depth--;
+    }
+
+    private int consume() {
+        int b = initial;
+        initial = END;
+        return b;
+    }
+
+    /**
+     * Read a byte or text string, of definite or indefinite length, the head not yet consumed
+     */
+    private byte[] readBytes() throws IOException {
+        int major = peekMajor();
+        int info = consume() & 0x1F;
+        if (info != INDEFINITE) {
+            return bytes(argument(info));
+        }
+
+        byte[] result = new byte[0];
+        for (int b; (b = readByte()) != BREAK; ) {
+            if (b >>> 5 != major || (b & 0x1F) == INDEFINITE) {
+                throw new IOException("Invalid chunk in indefinite length string");
+            }
+            byte[] chunk = bytes(argument(b & 0x1F));
+            int len = result.length;
+            result = Arrays.copyOf(result, len + chunk.length);
+            System.arraycopy(chunk, 0, result, len, chunk.length);
+        }
+        return result;
+    }
+
+    private Object simple(int info) throws IOException {
+        switch (info) {
+            case 20:
+                return Boolean.FALSE;
+            case 21:
+                return Boolean.TRUE;
+            case 22:
+            case 23:
+                return null;
+            default:
+                return floating(info);
+        }
+    }
+
+    private double floating(int info) throws IOException {
+        switch (info) {
+            case 25:
+                require(2);
+                return halfToDouble(buf.getShort() & 0xFFFF);
+            case 26:
+                require(4);
+                return buf.getFloat();
+            case 27:
+                require(8);
+                return buf.getDouble();
+            default:
+                throw new IOException("Unsupported simple value " + info);
+        }
+    }
+
+    /**
+     * Read the argument of an item head: a length, a count or the magnitude of an integer
+     * @return the argument, negative if it is beyond the range of a long
+     */
+    private long argument(int info) throws IOException {
+        if (info < 24) {
+            return info;
+        }
+        switch (info) {
+            case 24:
+                return readByte();
+            case 25:
+                require(2);
+                return buf.getShort() & 0xFFFFL;
+            case 26:
+                require(4);
+                return buf.getInt() & 0xFFFFFFFFL;
+            case 27:
+                require(8);
+                return buf.getLong();
+            default:
+                throw new IOException("Invalid additional info " + info);
+        }
+    }
+
+    /**
+     * Turn the argument of an integer item into its value
+     */
+    private static long integer(long argument, boolean negative) throws IOException {
+        // A uint64 beyond Long.MAX_VALUE reads as negative, as would its negation minus one
+        if (argument < 0) {
+            BigInteger magnitude = BigInteger.valueOf(argument).add(BigInteger.ONE.shiftLeft(64));
+            throw new IOException("Integer out of range " + (negative ? magnitude.negate().subtract(BigInteger.ONE) : magnitude));
+        }
+        return negative ? -1 - argument : argument;
+    }
+
+    private byte[] bytes(long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE - 8 || in == null && length > buf.remaining()) {
+            throw new IOException("Invalid CBOR length " + length);
+        }
+
+        // A stream does not tell how much is left, the array grows as the bytes arrive
+        int len = (int) length;
+        byte[] bytes = new byte[Math.min(len, in == null ? len : AsyncClient.DEFAULT_BUFFER_SIZE)];
+        int read = 0;
+        while (read < len) {
+            if (!buf.hasRemaining()) {
+                require(1);
+            }
+            if (read == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(len, bytes.length * 2L));
+            }
+            int n = Math.min(buf.remaining(), bytes.length - read);
+            buf.get(bytes, read, n);
+            read += n;
+        }
+        return bytes;
+    }
+
+    private void skip(long length) throws IOException {
+        if (length < 0) {
+            throw new IOException("Invalid CBOR length " + length);
+        }
+        while (length > 0) {
+            if (!buf.hasRemaining()) {
+                require(1);
+            }
+            int n = (int) Math.min(buf.remaining(), length);
+            buf.position(buf.position() + n);
+            length -= n;
+        }
+    }
+
+    private int readByte() throws IOException {
+        require(1);
+        return buf.get() & 0xFF;
+    }
+
+    private void require(int n) throws IOException {
+        if (buf.remaining() < n) {
+            fill(n, true);
+        }
+    }
+
+    /**
+     * Read from the stream until the buffer holds at least the given number of bytes
+     * @return false at the end of the input if it is allowed there
+     */
+    private boolean fill(int n, boolean required) throws IOException {
+        if (in != null) {
+            buf.compact();
+            try {
+                while (buf.position() < n) {
+                    int read = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+                    if (read < 0) {
+                        break;
+                    }
+                    buf.position(buf.position() + read);
+                }
+            } finally {
+                buf.flip();
+            }
+            if (buf.remaining() >= n) {
+                return true;
+            }
+        }
+        if (required || buf.hasRemaining()) {
+            throw new EOFException("Truncated CBOR data");
+        }
+        return false;
+    }
+
+    private static String describe(int major) {
+        switch (major) {
+            case MAJOR_UNSIGNED:
+            case MAJOR_NEGATIVE:
+                return "an integer";
+            case MAJOR_BYTES:
+                return "bytes";
+            case MAJOR_TEXT:
+                return "a string";
+            case MAJOR_ARRAY:
+                return "an array";
+            case MAJOR_MAP:
+                return "a map";
+            default:
+                return "a simple value";
+        }
+    }
+
+    private static double halfToDouble(int half) {
+        int exponent = (half >> 10) & 0x1F;
+        int mantissa = half & 0x3FF;
+        double value;
+        if (exponent == 0) {
+            value = mantissa * Math.pow(2, -24);
+        } else if (exponent == 31) {
+            value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        } else {
+            value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+        }
+        return (half & 0x8000) == 0 ? value : -value;
+    }
+}
@@ -0,0 +1,59 @@
+package com.xqbase.java;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary serializer writing CBOR (RFC 7049). Numbers are written in their
+ * shortest form and strings are length prefixed, so decoding needs no scanning for
+ * delimiters or escapes. Indefinite length items and tags are accepted when reading.
+ * Values are bound through a {@link CborBinder} both ways, with no generic model in between.
+ */
+public class CborSerializer extends AbstractSerializer {
+
+    public static final String CONTENT_TYPE = "application/cbor";
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public void serialize(Object obj, OutputStream stream) throws IOException {
+        write(obj).writeTo(stream);
+    }
+
+    @Override
+    public ByteBuffer serialize(Object obj) throws IOException {
+        return write(obj).toByteBuffer();
+    }
+
+    @Override
+    public Object deserialize(Type type, InputStream stream) throws IOException {
+        return read(type, new CborReader(stream));
+    }
+
+    @Override
+    public Object deserialize(Type type, ByteBuffer buffer) throws IOException {
+        return read(type, new CborReader(buffer));
+    }
+
+    private static CborWriter write(Object obj) throws IOException {
+        CborWriter writer = new CborWriter();
+        CborBinder.writeNullable(writer, obj == null ? null : CborBinder.of(obj.getClass()), obj);
+        return writer;
+    }
+
+    private static Object read(Type type, CborReader reader) throws IOException {
+        if (reader.peek() == CborReader.END) {
+            return null;
+        }
+
+        Object obj = CborBinder.of(type).read(reader);
+        reader.expectEnd();
+        return obj;
+    }
+}
@@ -0,0 +1,139 @@
+package com.xqbase.java;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Writes CBOR (RFC 7049) into a growing buffer, the counterpart of {@link CborReader}.
+ * Numbers are written in their shortest form, and arrays and maps with their length,
+ * so no item needs a break marker.
+ */
+class CborWriter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] buf = new byte[256];
+    private int len = 0;
+
+    void nullValue() {
+        put(CborReader.MAJOR_SIMPLE << 5 | 22);
+    }
+
+    void value(String s) {
+        byte[] bytes = s.getBytes(UTF_8);
+        head(CborReader.MAJOR_TEXT, bytes.length);
+        put(bytes);
+    }
+
+    void value(long n) {
+        if (n >= 0) {
+            head(CborReader.MAJOR_UNSIGNED, n);
+        } else {
+            head(CborReader.MAJOR_NEGATIVE, -1 - n);
+        }
+    }
+
+    /**
+     * Doubles which a float represents exactly are written as floats
+     */
+    void value(double d) {
+        if ((double) (float) d == d || Double.isNaN(d)) {
+            put(CborReader.MAJOR_SIMPLE << 5 | 26);
+            putInt(Float.floatToIntBits((float) d));
+        } else {
+            put(CborReader.MAJOR_SIMPLE << 5 | 27);
+            long bits = Double.doubleToLongBits(d);
+            putInt((int) (bits >>> 32));
+            putInt((int) bits);
+        }
+    }
+
+    void value(boolean b) {
+        put(CborReader.MAJOR_SIMPLE << 5 | (b ? 21 : 20));
+    }
+
+    void value(byte[] bytes) {
+        head(CborReader.MAJOR_BYTES, bytes.length);
+        put(bytes);
+    }
+
+    void beginArray(int size) {
+        head(CborReader.MAJOR_ARRAY, size);
+    }
+
+    void beginObject(int size) {
+        head(CborReader.MAJOR_MAP, size);
+    }
+
+    /**
+     * Write a member name encoded by {@link #encodeName(String)}
+     */
+    void name(byte[] encodedName) {
+        put(encodedName);
+    }
+
+    /**
+     * Encode a member name once, so that writing it is a plain copy
+     */
+    static byte[] encodeName(String name) {
+        CborWriter writer = new CborWriter();
+        writer.value(name);
+        return Arrays.copyOf(writer.buf, writer.len);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, len);
+    }
+
+    ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, len);
+    }
+
+    private void head(int major, long length) {
+        int type = major << 5;
+        if (length < 24) {
+            put(type | (int) length);
+        } else if (length < 0x100) {
+            put(type | 24);
+            put((int) length);
+        } else if (length < 0x10000) {
+            put(type | 25);
+            put((int) (length >>> 8));
+            put((int) length);
+        } else if (length < 0x100000000L) {
+            put(type | 26);
+            putInt((int) length);
+        } else {
+            put(type | 27);
+            putInt((int) (length >>> 32));
+            putInt((int) length);
+        }
+    }
+
+    private void putInt(int n) {
+        put(n >>> 24);
+        put(n >>> 16);
+        put(n >>> 8);
+        put(n);
+    }
+
+    private void put(int b) {
+        ensure(1);
+        buf[len++] = (byte) b;
+    }
+
+    private void put(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, len, bytes.length);
+        len += bytes.length;
+    }
+
+    private void ensure(int n) {
+        if (len + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(len + n, buf.length * 2));
+        }
+    }
+}
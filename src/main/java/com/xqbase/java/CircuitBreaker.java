@@ -0,0 +1,241 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker and bulkhead of a single route.
+ */
+class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final HttpHost route;
+    private final CircuitBreakerPolicy policy;
+    private final long slowCallNanos;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong circuitRejected = new AtomicLong();
+    private final AtomicLong bulkheadRejected = new AtomicLong();
+
+    // One bucket per second of the window, guarded by this
+    private final long[] seconds;
+    private final int[] calls;
+    private final int[] failures;
+    private final int[] slowCalls;
+
+    private volatile State state = State.CLOSED;
+    private long openedAt;
+    private int probes;
+    private int probeSuccesses;
+
+    public CircuitBreaker(final HttpHost route, final CircuitBreakerPolicy policy) {
+        this.route = route;
+        this.policy = policy;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(policy.getSlowCallDurationMillis());
+        int buckets = policy.getWindowSeconds();
+        this.seconds = new long[buckets];
+        this.calls = new int[buckets];
+        this.failures = new int[buckets];
+        this.slowCalls = new int[buckets];
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getCircuitRejected() {
+        return circuitRejected.get();
+    }
+
+    public long getBulkheadRejected() {
+        return bulkheadRejected.get();
+    }
+
+    /**
+     * Let a request through
+     * @return the permit which must be released once the request finishes
+     * @throws CircuitBreakerOpenException if the circuit is open or out of probes
+     * @throws ConcurrencyLimitExceededException if the bulkhead is full
+     */
+    public Permit acquire() {
+        boolean probe = false;
+        if (state != State.CLOSED) {
+            synchronized (this) {
+                if (state == State.OPEN) {
+                    if (System.nanoTime() - openedAt < TimeUnit.MILLISECONDS.toNanos(policy.getOpenMillis())) {
+                        throw rejectOpen();
+                    }
+                    state = State.HALF_OPEN;
+                    probes = 0;
+                    probeSuccesses = 0;
+                }
+                if (state == State.HALF_OPEN) {
+                    if (probes >= policy.getHalfOpenCalls()) {
+                        throw rejectOpen();
+                    }
+                    probes++;
+                    probe = true;
+                }
+            }
+        }
+
+        if (inFlight.incrementAndGet() > policy.getMaxConcurrentCalls()) {
+            inFlight.decrementAndGet();
+            if (probe) {
+                returnProbe();
+            }
+            bulkheadRejected.incrementAndGet();
+            throw new ConcurrencyLimitExceededException("Bulkhead of " + policy.getMaxConcurrentCalls()
+                    + " concurrent calls full for " + route);
+        }
+        return new Permit(probe);
+    }
+
+    private RejectedExecutionException rejectOpen() {
+        circuitRejected.incrementAndGet();
+        return new CircuitBreakerOpenException("Circuit breaker of " + route + " is open");
+    }
+
+    private synchronized void returnProbe() {
+        if (state == State.HALF_OPEN && probes > 0) {
+            probes--;
+        }
+    }
+
+    private synchronized void onProbe(boolean failed) {
+        if (state != State.HALF_OPEN) {
+            return;
+        }
+        if (failed) {
+            open();
+        } else if (++probeSuccesses >= policy.getHalfOpenCalls()) {
+            state = State.CLOSED;
+            Arrays.fill(seconds, 0);
+            Arrays.fill(calls, 0);
+            Arrays.fill(failures, 0);
+            Arrays.fill(slowCalls, 0);
+        }
+    }
+
+    private synchronized void onCall(boolean failed, boolean slow) {
+        if (state != State.CLOSED) {
+            // Started before the circuit opened
+            return;
+        }
+
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        int index = bucket(second, seconds.length);
+        if (seconds[index] != second) {
+            seconds[index] = second;
+            calls[index] = 0;
+            failures[index] = 0;
+            slowCalls[index] = 0;
+        }
+        calls[index]++;
+        if (failed) {
+            failures[index]++;
+        }
+        if (slow) {
+            slowCalls[index]++;
+        }
+
+        int totalCalls = 0;
+        int totalFailures = 0;
+        int totalSlowCalls = 0;
+        for (int i = 0; i < seconds.length; i++) {
+            if (second - seconds[i] < seconds.length) {
+                totalCalls += calls[i];
+                totalFailures += failures[i];
+                totalSlowCalls += slowCalls[i];
+            }
+        }
+        if (totalCalls >= policy.getMinCalls()
+                && (totalFailures * 100L >= (long) policy.getFailureRateThreshold() * totalCalls
+                || totalSlowCalls * 100L >= (long) policy.getSlowCallRateThreshold() * totalCalls)) {
+            open();
+        }
+    }
+
+    /**
+     * Index of the bucket of a second, which is negative when {@link System#nanoTime()} is
+     */
+    static int bucket(long second, int buckets) {
+        return (int) ((second % buckets + buckets) % buckets);
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+    }
+
+    /**
+     * Whether the outcome of a call counts against the route
+     */
+    static boolean isFailure(Object result, Throwable failure) {
+        if (failure instanceof HttpResponseException) {
+            return ((HttpResponseException) failure).getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+        }
+        if (failure != null) {
+            return true;
+        }
+        return result instanceof HttpResponse
+                && ((HttpResponse) result).getStatusLine().getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    class Permit {
+
+        private final long start = System.nanoTime();
+        private final boolean probe;
+        private boolean released = false;
+
+        Permit(boolean probe) {
+            this.probe = probe;
+        }
+
+        /**
+         * Leave the bulkhead and feed the outcome of the request to the circuit
+         * @param result the result of the request, null if it failed
+         * @param failure the failure of the request, null if it completed
+         */
+        public void release(Object result, Throwable failure) {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            inFlight.decrementAndGet();
+
+            if (failure instanceof CancellationException || failure instanceof RejectedExecutionException) {
+                // Never reached the route, or was not waited for
+                if (probe) {
+                    returnProbe();
+                }
+                return;
+            }
+
+            boolean failed = isFailure(result, failure);
+            if (probe) {
+                onProbe(failed || System.nanoTime() - start >= slowCallNanos);
+            } else {
+                onCall(failed, System.nanoTime() - start >= slowCallNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.xqbase.java;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Signals that a request was rejected without being sent because the circuit
+ * breaker of its route is open.
+ */
+public class CircuitBreakerOpenException extends RejectedExecutionException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CircuitBreakerOpenException(String message) {
+        super(message);
+    }
+}
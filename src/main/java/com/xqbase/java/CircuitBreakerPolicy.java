@@ -0,0 +1,131 @@
+package com.xqbase.java;
+
+/**
+ * Configures the circuit breaker and bulkhead of each route. A closed circuit opens when
+ * the rate of failed or slow calls over a rolling window of seconds reaches its threshold,
+ * then rejects every request until the open period has passed. A few probe requests are
+ * let through in the half-open state, and the circuit closes once they all succeed.
+ * <p>
+ * The bulkhead caps the requests a route has in flight, so that a hanging route can not
+ * hold the connections every other route needs.
+ */
+public class CircuitBreakerPolicy {
+
+    public static final int DEFAULT_FAILURE_RATE_THRESHOLD = 50;
+    public static final int DEFAULT_SLOW_CALL_RATE_THRESHOLD = 80;
+    public static final int DEFAULT_SLOW_CALL_DURATION_MILLIS = 5 * 1000;
+    public static final int DEFAULT_WINDOW_SECONDS = 10;
+    public static final int DEFAULT_MIN_CALLS = 20;
+    public static final int DEFAULT_OPEN_MILLIS = 5 * 1000;
+    public static final int DEFAULT_HALF_OPEN_CALLS = 3;
+    public static final int DEFAULT_MAX_CONCURRENT_CALLS = AsyncClient.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+
+    private int failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+    private int slowCallRateThreshold = DEFAULT_SLOW_CALL_RATE_THRESHOLD;
+    private int slowCallDurationMillis = DEFAULT_SLOW_CALL_DURATION_MILLIS;
+    private int windowSeconds = DEFAULT_WINDOW_SECONDS;
+    private int minCalls = DEFAULT_MIN_CALLS;
+    private int openMillis = DEFAULT_OPEN_MILLIS;
+    private int halfOpenCalls = DEFAULT_HALF_OPEN_CALLS;
+    private int maxConcurrentCalls = DEFAULT_MAX_CONCURRENT_CALLS;
+
+    public int getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * Set the percentage of failed calls which opens the circuit. Calls fail on an I/O error
+     * or a server error status, client error statuses are answers of a healthy route.
+     * @param failureRateThreshold percentage between 1 and 100
+     */
+    public void setFailureRateThreshold(int failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold < 1 || failureRateThreshold > 100
+                ? DEFAULT_FAILURE_RATE_THRESHOLD : failureRateThreshold;
+    }
+
+    public int getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    /**
+     * Set the percentage of slow calls which opens the circuit
+     * @param slowCallRateThreshold percentage between 1 and 100
+     */
+    public void setSlowCallRateThreshold(int slowCallRateThreshold) {
+        this.slowCallRateThreshold = slowCallRateThreshold < 1 || slowCallRateThreshold > 100
+                ? DEFAULT_SLOW_CALL_RATE_THRESHOLD : slowCallRateThreshold;
+    }
+
+    public int getSlowCallDurationMillis() {
+        return slowCallDurationMillis;
+    }
+
+    /**
+     * Set how long a call may take before it counts as slow
+     * @param slowCallDurationMillis duration in milliseconds
+     */
+    public void setSlowCallDurationMillis(int slowCallDurationMillis) {
+        this.slowCallDurationMillis = slowCallDurationMillis < 1 ? DEFAULT_SLOW_CALL_DURATION_MILLIS : slowCallDurationMillis;
+    }
+
+    public int getWindowSeconds() {
+        return windowSeconds;
+    }
+
+    /**
+     * Set the length of the rolling window the rates are computed over
+     * @param windowSeconds window length in seconds
+     */
+    public void setWindowSeconds(int windowSeconds) {
+        this.windowSeconds = windowSeconds < 1 ? DEFAULT_WINDOW_SECONDS : windowSeconds;
+    }
+
+    public int getMinCalls() {
+        return minCalls;
+    }
+
+    /**
+     * Set how many calls the window must hold before the rates can open the circuit
+     * @param minCalls minimum calls
+     */
+    public void setMinCalls(int minCalls) {
+        this.minCalls = minCalls < 1 ? DEFAULT_MIN_CALLS : minCalls;
+    }
+
+    public int getOpenMillis() {
+        return openMillis;
+    }
+
+    /**
+     * Set how long an open circuit rejects requests before it lets probes through
+     * @param openMillis open period in milliseconds
+     */
+    public void setOpenMillis(int openMillis) {
+        this.openMillis = openMillis < 1 ? DEFAULT_OPEN_MILLIS : openMillis;
+    }
+
+    public int getHalfOpenCalls() {
+        return halfOpenCalls;
+    }
+
+    /**
+     * Set how many probes a half-open circuit lets through, all of them must succeed to close it
+     * @param halfOpenCalls probe calls
+     */
+    public void setHalfOpenCalls(int halfOpenCalls) {
+        this.halfOpenCalls = halfOpenCalls < 1 ? DEFAULT_HALF_OPEN_CALLS : halfOpenCalls;
+    }
+
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    /**
+     * Set the bulkhead, how many requests a route may have in flight before further
+     * ones fail fast with a {@link ConcurrencyLimitExceededException}
+     * @param maxConcurrentCalls maximum requests in flight per route
+     */
+    public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+        this.maxConcurrentCalls = maxConcurrentCalls < 1 ? DEFAULT_MAX_CONCURRENT_CALLS : maxConcurrentCalls;
+    }
+}
@@ -0,0 +1,114 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Metrics of an {@link AsyncClient}: per route latencies and counters, connection
+ * pool statistics and client wide gauges
+ */
+public class ClientMetrics {
+
+    /**
+     * A value sampled when it is reported
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    private final ConcurrentMap<HttpHost, RouteMetrics> routes = new ConcurrentHashMap<HttpHost, RouteMetrics>();
+    private final Map<String, Gauge> gauges = Collections.synchronizedMap(new LinkedHashMap<String, Gauge>());
+    private final List<MetricsReporter> reporters = new CopyOnWriteArrayList<MetricsReporter>();
+    private volatile ConnPoolControl<HttpRoute> pool;
+
+    /**
+     * Get the metrics of the given route, creating them on first use
+     * @param host the target host
+     * @return the route metrics
+     */
+    public RouteMetrics route(HttpHost host) {
+        host = Routes.normalize(host);
+        RouteMetrics metrics = routes.get(host);
+        if (metrics == null) {
+            metrics = new RouteMetrics(host);
+            RouteMetrics existing = routes.putIfAbsent(host, metrics);
+            if (existing != null) {
+                return existing;
+            }
+            for (MetricsReporter reporter : reporters) {
+                reporter.routeAdded(metrics);
+            }
+        }
+
+        return metrics;
+    }
+
+    public Collection<RouteMetrics> getRoutes() {
+        return new ArrayList<RouteMetrics>(routes.values());
+    }
+
+    /**
+     * @return the statistics of the whole connection pool
+     */
+    public PoolStats getTotalStats() {
+        ConnPoolControl<HttpRoute> pool = this.pool;
+        return pool == null ? new PoolStats(0, 0, 0, 0) : pool.getTotalStats();
+    }
+
+    /**
+     * @return the connection pool statistics of the given route
+     */
+    public PoolStats getStats(HttpHost host) {
+        ConnPoolControl<HttpRoute> pool = this.pool;
+        return pool == null ? new PoolStats(0, 0, 0, 0) : pool.getStats(Routes.toHttpRoute(host));
+    }
+
+    public void registerGauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return the current value of every gauge by name
+     */
+    public Map<String, Long> getGaugeValues() {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        synchronized (gauges) {
+            for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+                values.put(entry.getKey(), entry.getValue().getValue());
+            }
+        }
+
+        return values;
+    }
+
+    void setConnectionPool(ConnPoolControl<HttpRoute> pool) {
+        this.pool = pool;
+    }
+
+    void addReporter(MetricsReporter reporter) {
+        reporters.add(reporter);
+        reporter.start(this);
+        for (RouteMetrics metrics : routes.values()) {
+            reporter.routeAdded(metrics);
+        }
+    }
+
+    void stopReporters() {
+        for (MetricsReporter reporter : reporters) {
+            reporter.stop();
+        }
+        reporters.clear();
+    }
+}
@@ -0,0 +1,248 @@
+package com.xqbase.java;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Content codings of request and response bodies. Inflaters and deflaters hold
+ * native memory which is only freed by {@code end()}, so they are pooled and reset
+ * between uses instead of being allocated per request.
+ */
+final class Compression {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    static final String ACCEPT_ENCODING = GZIP + ", " + DEFLATE;
+
+    /**
+     * Longest request body compressed, bodies are compressed in memory on the caller's thread
+     */
+    static final int MAX_COMPRESSED_LENGTH = 1024 * 1024;
+
+    private static final int MAX_POOLED = Runtime.getRuntime().availableProcessors() * 4;
+    private static final Pool<Inflater> WRAPPED_INFLATERS = new Pool<Inflater>();
+    private static final Pool<Inflater> RAW_INFLATERS = new Pool<Inflater>();
+    private static final Pool<Deflater> RAW_DEFLATERS = new Pool<Deflater>();
+    private static final Pool<byte[]> BUFFERS = new Pool<byte[]>();
+
+    private Compression() {
+    }
+
+    /**
+     * Get an inflater from the pool
+     * @param nowrap true for raw deflate data, false for the zlib format
+     */
+    static Inflater acquireInflater(boolean nowrap) {
+        Inflater inflater = (nowrap ? RAW_INFLATERS : WRAPPED_INFLATERS).poll();
+        return inflater == null ? new Inflater(nowrap) : inflater;
+    }
+
+    static void releaseInflater(Inflater inflater, boolean nowrap) {
+        inflater.reset();
+        if (!(nowrap ? RAW_INFLATERS : WRAPPED_INFLATERS).offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Get a deflater producing raw deflate data from the pool
+     */
+    static Deflater acquireDeflater() {
+        Deflater deflater = RAW_DEFLATERS.poll();
+        return deflater == null ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : deflater;
+    }
+
+    static void releaseDeflater(Deflater deflater) {
+        deflater.reset();
+        if (!RAW_DEFLATERS.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Get a heap buffer of {@link AsyncClient#DEFAULT_BUFFER_SIZE} bytes from the pool,
+     * inflaters and deflaters only read and write arrays
+     */
+    static byte[] acquireBuffer() {
+        byte[] buffer = BUFFERS.poll();
+        return buffer == null ? new byte[AsyncClient.DEFAULT_BUFFER_SIZE] : buffer;
+    }
+
+    static void releaseBuffer(byte[] buffer) {
+        BUFFERS.offer(buffer);
+    }
+
+    /**
+     * Get the coding of a response body this client decodes
+     * @return gzip or deflate, null if the body is not encoded or the coding is unsupported
+     */
+    static String contentCoding(HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        Header header = entity == null ? null : response.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+        if (header == null) {
+            return null;
+        }
+
+        String coding = header.getValue().trim().toLowerCase(Locale.ROOT);
+        if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+            return GZIP;
+        }
+        return coding.equals(DEFLATE) ? DEFLATE : null;
+    }
+
+    /**
+     * Replace the entity of a response whose body is decoded as it is read, so that
+     * its headers describe the decoded body
+     */
+    static void decoded(HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        BasicHttpEntity decoded = new BasicHttpEntity();
+        decoded.setContentType(entity.getContentType());
+        decoded.setChunked(entity.isChunked());
+        decoded.setContentLength(-1);
+        response.setEntity(decoded);
+        response.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+        response.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+    }
+
+    /**
+     * Compress a request body with gzip if it is large enough. The body is compressed
+     * in memory, so only repeatable bodies of known length up to {@link #MAX_COMPRESSED_LENGTH}
+     * are compressed, and the compressed body can be sent again on retries. Files and bodies
+     * producing their own content, such as multipart bodies, are streamed as they are.
+     * @param entity the request body, may be null
+     * @param threshold the minimum length to compress, negative never compresses
+     * @return the compressed body, or the given one if it is not compressed
+     * @throws IOException if the body can not be read
+     */
+    static HttpEntity compress(HttpEntity entity, int threshold) throws IOException {
+        if (entity == null || threshold < 0 || entity.getContentEncoding() != null || !entity.isRepeatable()
+                || entity instanceof HttpAsyncContentProducer || entity instanceof FileEntity) {
+            return entity;
+        }
+        long len = entity.getContentLength();
+        if (len < threshold || len > MAX_COMPRESSED_LENGTH) {
+            return entity;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(len / 4 + 32, AsyncClient.DEFAULT_BUFFER_SIZE));
+        GzipOutputStream gzip = new GzipOutputStream(out);
+        try {
+            entity.writeTo(gzip);
+            gzip.finish();
+        } finally {
+            gzip.release();
+        }
+
+        ByteArrayEntity compressed = new ByteArrayEntity(out.toByteArray());
+        compressed.setContentType(entity.getContentType());
+        compressed.setContentEncoding(GZIP);
+        return compressed;
+    }
+
+    /**
+     * Writes the gzip format with a pooled deflater
+     */
+    private static class GzipOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final CRC32 crc = new CRC32();
+        private byte[] buf = acquireBuffer();
+        private Deflater deflater = acquireDeflater();
+
+        GzipOutputStream(OutputStream out) throws IOException {
+            this.out = out;
+            // Magic, deflate method, no flags, no modification time, no extra flags, unknown OS
+            out.write(new byte[] {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            crc.update(b, off, len);
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                drain();
+            }
+        }
+
+        void finish() throws IOException {
+            deflater.finish();
+            while (!deflater.finished()) {
+                drain();
+            }
+            writeInt((int) crc.getValue());
+            writeInt((int) deflater.getBytesRead());
+        }
+
+        void release() {
+            if (deflater != null) {
+                releaseDeflater(deflater);
+                deflater = null;
+                releaseBuffer(buf);
+                buf = null;
+            }
+        }
+
+        private void drain() throws IOException {
+            int n = deflater.deflate(buf);
+            if (n > 0) {
+                out.write(buf, 0, n);
+            }
+        }
+
+        private void writeInt(int v) throws IOException {
+            out.write(v & 0xff);
+            out.write(v >>> 8 & 0xff);
+            out.write(v >>> 16 & 0xff);
+            out.write(v >>> 24 & 0xff);
+        }
+    }
+
+    /**
+     * Bounded pool, instances beyond the bound are left to the caller to end
+     */
+    private static class Pool<E> {
+
+        private final Queue<E> queue = new ConcurrentLinkedQueue<E>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        E poll() {
+            E e = queue.poll();
+            if (e != null) {
+                size.decrementAndGet();
+            }
+            return e;
+        }
+
+        boolean offer(E e) {
+            if (size.incrementAndGet() > MAX_POOLED) {
+                size.decrementAndGet();
+                return false;
+            }
+            queue.offer(e);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.xqbase.java;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Signals that a request was rejected because its route already has as many
+ * requests in flight as its concurrency limit allows.
+ */
+public class ConcurrencyLimitExceededException extends RejectedExecutionException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ConcurrencyLimitExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,113 @@
+package com.xqbase.java;
+
+/**
+ * Configures how many requests a route may have in flight. The limit is either
+ * fixed at the initial limit or, when adaptive, adjusted from the gradient between the
+ * route's no-load round trip time and the observed ones, and backed off on timeouts.
+ * Requests over the limit wait in a short queue or fail fast with a
+ * {@link ConcurrencyLimitExceededException}.
+ */
+public class ConcurrencyLimitPolicy {
+
+    public static final int DEFAULT_INITIAL_LIMIT = 20;
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 200;
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 0;
+    public static final int DEFAULT_QUEUE_TIMEOUT_MILLIS = 50;
+    public static final double DEFAULT_RTT_TOLERANCE = 2.0;
+    public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+
+    private boolean adaptive = true;
+    private int initialLimit = DEFAULT_INITIAL_LIMIT;
+    private int minLimit = DEFAULT_MIN_LIMIT;
+    private int maxLimit = DEFAULT_MAX_LIMIT;
+    private int maxQueueSize = DEFAULT_MAX_QUEUE_SIZE;
+    private int queueTimeoutMillis = DEFAULT_QUEUE_TIMEOUT_MILLIS;
+    private double rttTolerance = DEFAULT_RTT_TOLERANCE;
+    private double backoffRatio = DEFAULT_BACKOFF_RATIO;
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Adjust the limit from the observed round trip times, or keep it fixed at the initial limit
+     * @param adaptive adaptive limit
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public int getInitialLimit() {
+        return initialLimit;
+    }
+
+    public void setInitialLimit(int initialLimit) {
+        this.initialLimit = initialLimit < 1 ? DEFAULT_INITIAL_LIMIT : initialLimit;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public void setMinLimit(int minLimit) {
+        this.minLimit = minLimit < 1 ? DEFAULT_MIN_LIMIT : minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public void setMaxLimit(int maxLimit) {
+        this.maxLimit = maxLimit < 1 ? DEFAULT_MAX_LIMIT : maxLimit;
+    }
+
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    /**
+     * Set how many requests may wait for a slot when the limit is reached, zero fails fast
+     * @param maxQueueSize maximum waiting requests per route
+     */
+    public void setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize < 0 ? DEFAULT_MAX_QUEUE_SIZE : maxQueueSize;
+    }
+
+    public int getQueueTimeoutMillis() {
+        return queueTimeoutMillis;
+    }
+
+    /**
+     * Set how long a request waits for a slot before it is rejected
+     * @param queueTimeoutMillis queue timeout in milliseconds
+     */
+    public void setQueueTimeoutMillis(int queueTimeoutMillis) {
+        this.queueTimeoutMillis = queueTimeoutMillis < 1 ? DEFAULT_QUEUE_TIMEOUT_MILLIS : queueTimeoutMillis;
+    }
+
+    public double getRttTolerance() {
+        return rttTolerance;
+    }
+
+    /**
+     * Set how many times slower than the route's no-load round trip time a response may be
+     * before the limit starts to shrink
+     * @param rttTolerance round trip time tolerance, at least 1
+     */
+    public void setRttTolerance(double rttTolerance) {
+        this.rttTolerance = rttTolerance < 1 ? DEFAULT_RTT_TOLERANCE : rttTolerance;
+    }
+
+    public double getBackoffRatio() {
+        return backoffRatio;
+    }
+
+    /**
+     * Set the factor the limit is multiplied with on a timeout
+     * @param backoffRatio backoff ratio between 0 and 1
+     */
+    public void setBackoffRatio(double backoffRatio) {
+        this.backoffRatio = backoffRatio <= 0 || backoffRatio >= 1 ? DEFAULT_BACKOFF_RATIO : backoffRatio;
+    }
+}
@@ -0,0 +1,189 @@
+package com.xqbase.java;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.HttpHost;
+
+import java.io.InterruptedIOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the requests in flight on a single route.
+ */
+class ConcurrencyLimiter {
+
+    private static final double SMOOTHING = 0.2;
+
+    private final HttpHost route;
+    private final ConcurrencyLimitPolicy policy;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final Queue<SettableFuture<Permit>> waiters = new ConcurrentLinkedQueue<SettableFuture<Permit>>();
+
+    private volatile double limit;
+    private double rttNoLoad = 0;
+
+    public ConcurrencyLimiter(final HttpHost route, final ConcurrencyLimitPolicy policy, final ScheduledExecutorService scheduler) {
+        this.route = route;
+        this.policy = policy;
+        this.scheduler = scheduler;
+        this.limit = Math.max(policy.getMinLimit(), Math.min(policy.getMaxLimit(), policy.getInitialLimit()));
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Acquire a slot for a request, the returned future fails with a
+     * {@link ConcurrencyLimitExceededException} if no slot frees up in time
+     * @return future of the permit which must be completed once the request finishes
+     */
+    public ListenableFuture<Permit> acquire() {
+        if (tryAcquire()) {
+            return Futures.immediateFuture(new Permit());
+        }
+
+        if (queued.incrementAndGet() > policy.getMaxQueueSize()) {
+            queued.decrementAndGet();
+            return reject("Concurrency limit of " + getLimit() + " reached for " + route);
+        }
+
+        final SettableFuture<Permit> waiter = SettableFuture.create();
+        waiter.addListener(new Runnable() {
+            @Override
+            public void run() {
+                queued.decrementAndGet();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        waiters.add(waiter);
+
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (waiter.setException(new ConcurrencyLimitExceededException(
+                            "Timed out waiting for a slot of the concurrency limit of " + route))) {
+                        rejected.incrementAndGet();
+                    }
+                }
+            }, policy.getQueueTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            waiter.setException(e);
+        }
+
+        // A slot may have been released while the waiter was enqueued
+        drain();
+        return waiter;
+    }
+
+    private ListenableFuture<Permit> reject(String message) {
+        rejected.incrementAndGet();
+        return Futures.immediateFailedFuture(new ConcurrencyLimitExceededException(message));
+    }
+
+    private boolean tryAcquire() {
+        for (;;) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        drain();
+    }
+
+    private void drain() {
+        while (!waiters.isEmpty() && tryAcquire()) {
+            SettableFuture<Permit> waiter = waiters.poll();
+            if (waiter == null || !waiter.set(new Permit())) {
+                // Lost the race for the waiter, or it already timed out
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private synchronized void onSample(long rttNanos, Throwable failure) {
+        if (failure instanceof InterruptedIOException || failure instanceof TimeoutException) {
+            limit = Math.max(policy.getMinLimit(), limit * policy.getBackoffRatio());
+            return;
+        }
+        if (failure != null) {
+            // A failed exchange, e.g. a refused connection, says nothing about the round trip
+            // time under load, and a cancelled one ended whenever the caller gave up
+            return;
+        }
+
+        // Track the no-load round trip time as a minimum which slowly drifts up,
+        // so that a permanent change of the route's latency is eventually accepted
+        if (rttNoLoad == 0 || rttNanos < rttNoLoad) {
+            rttNoLoad = rttNanos;
+        } else {
+            rttNoLoad += (rttNanos - rttNoLoad) / 1000;
+        }
+
+        // Scale the limit by how far the round trip time is above the tolerated no-load time,
+        // leaving room for a small queue, and smooth the change
+        double gradient = Math.max(0.5, Math.min(1.0, policy.getRttTolerance() * rttNoLoad / rttNanos));
+        double target = limit * gradient + Math.sqrt(limit);
+        if (target > limit && inFlight.get() * 2 < limit) {
+            // The current limit is not used, do not grow it
+            return;
+        }
+        limit = Math.max(policy.getMinLimit(), Math.min(policy.getMaxLimit(), limit * (1 - SMOOTHING) + target * SMOOTHING));
+    }
+
+    class Permit {
+
+        private final long start = System.nanoTime();
+        private boolean released = false;
+
+        /**
+         * Release the slot and feed the outcome of the request to the limit
+         * @param failure the failure of the request, null if it completed
+         */
+        public void release(Throwable failure) {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+
+            if (policy.isAdaptive()) {
+                onSample(System.nanoTime() - start, failure);
+            }
+            ConcurrencyLimiter.this.release();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * Response consumer which decodes gzip and deflate bodies as they stream in, handing
+ * the wrapped consumer a response that looks as if it had been sent uncompressed
+ */
+class DecompressingResponseConsumer<T> implements HttpAsyncResponseConsumer<T> {
+
+    private final HttpAsyncResponseConsumer<T> consumer;
+    private InflatingContentDecoder inflating;
+
+    public DecompressingResponseConsumer(final HttpAsyncResponseConsumer<T> consumer) {
+        this.consumer = consumer;
+    }
+
+    @Override
+    public void responseReceived(HttpResponse response) throws IOException, HttpException {
+        String coding = Compression.contentCoding(response);
+        if (coding != null) {
+            inflating = new InflatingContentDecoder(coding);
+            Compression.decoded(response);
+        }
+        consumer.responseReceived(response);
+    }
+
+    @Override
+    public void consumeContent(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+        if (inflating == null) {
+            consumer.consumeContent(decoder, ioctrl);
+            return;
+        }
+
+        inflating.setSource(decoder);
+        consumer.consumeContent(inflating, ioctrl);
+        if (decoder.isCompleted() && !inflating.isCompleted()) {
+            // The exchange completes once the transfer decoder does, keep what the consumer has not read yet
+            inflating.bufferRemaining();
+            consumer.consumeContent(inflating, ioctrl);
+        }
+    }
+
+    @Override
+    public void responseCompleted(HttpContext context) {
+        release();
+        consumer.responseCompleted(context);
+    }
+
+    @Override
+    public void failed(Exception ex) {
+        release();
+        consumer.failed(ex);
+    }
+
+    @Override
+    public Exception getException() {
+        return consumer.getException();
+    }
+
+    @Override
+    public T getResult() {
+        return consumer.getResult();
+    }
+
+    @Override
+    public boolean isDone() {
+        return consumer.isDone();
+    }
+
+    @Override
+    public boolean cancel() {
+        return consumer.cancel();
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+        consumer.close();
+    }
+
+    private void release() {
+        if (inflating != null) {
+            inflating.release();
+        }
+    }
+}
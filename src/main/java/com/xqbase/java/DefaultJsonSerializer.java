@@ -3,16 +3,66 @@ package com.xqbase.java;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
 
-public class DefaultJsonSerializer implements Serializer {
+/**
+ * JSON serializer binding objects through their fields. The binder of each type is
+ * built once and cached, and reading and writing go through per thread recycled
+ * buffers, so the steady state cost is close to the parsing itself.
+ */
+public class DefaultJsonSerializer extends AbstractSerializer implements StreamingSerializer {
+
+    public static final String CONTENT_TYPE = "application/json";
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
 
     @Override
     public void serialize(Object obj, OutputStream stream) throws IOException {
+        JsonWriter writer = new JsonWriter(stream);
+        try {
+            JsonBinder.writeNullable(writer, obj == null ? null : JsonBinder.of(obj.getClass()), obj);
+            writer.flush();
+        } finally {
+            writer.release();
+        }
+    }
+
+    @Override
+    public Object deserialize(Type type, InputStream stream) throws IOException {
+        return read(type, new JsonReader(stream));
+    }
+
+    @Override
+    public Object deserialize(Type type, ByteBuffer buffer) throws IOException {
+        if (!buffer.hasArray()) {
+            return super.deserialize(type, buffer);
+        }
 
+        JsonReader reader = new JsonReader(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        buffer.position(buffer.limit());
+        return read(type, reader);
     }
 
     @Override
-    public Object deserialize(Class objClass, InputStream stream) throws IOException {
-        return null;
+    public IncrementalDeserializer<?> newDeserializer(Type type) throws IOException {
+        return new IncrementalJsonDeserializer(type);
+    }
+
+    static Object read(Type type, JsonReader reader) throws IOException {
+        try {
+            // An empty body carries no value
+            if (reader.peek() == JsonReader.END) {
+                return null;
+            }
+            Object obj = JsonBinder.of(type).read(reader);
+            reader.expectEnd();
+            return obj;
+        } finally {
+            reader.release();
+        }
     }
 }
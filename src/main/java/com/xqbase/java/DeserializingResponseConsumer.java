@@ -0,0 +1,137 @@
+package com.xqbase.java;
+
+import com.google.common.reflect.TypeToken;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+
+/**
+ * Response consumer which deserializes the body while it is decoded.
+ * A {@link StreamingSerializer} is fed chunk by chunk on the I/O reactor thread, any other
+ * serializer reads the body once it has been buffered, wherever the {@link TransformDispatcher}
+ * runs it, so that a large body is not parsed on the reactor thread.
+ */
+class DeserializingResponseConsumer<T> extends AbstractAsyncResponseConsumer<ListenableFuture<T>> {
+
+    private final Serializer defaultSerializer;
+    private final SerializerRegistry registry;
+    private final TypeToken<T> type;
+    private final LatencyRecorder deserialization;
+    private final TransformDispatcher dispatcher;
+
+    private Serializer serializer;
+    private IncrementalDeserializer<?> deserializer;
+    private PooledInputBuffer buffer;
+    private ByteBuffer chunk;
+    private long deserializationNanos;
+
+    public DeserializingResponseConsumer(final Serializer serializer, final SerializerRegistry registry,
+                                         final TypeToken<T> type, final LatencyRecorder deserialization,
+                                         final TransformDispatcher dispatcher) {
+        this.defaultSerializer = serializer;
+        this.registry = registry;
+        this.type = type;
+        this.deserialization = deserialization;
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) throws HttpException, IOException {
+        int status = response.getStatusLine().getStatusCode();
+        if (status < 200 || status >= 300) {
+            throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase());
+        }
+
+        Header contentType = response.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+        serializer = registry == null || contentType == null ? null : registry.forContentType(contentType.getValue());
+        if (serializer == null) {
+            serializer = defaultSerializer;
+        }
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+        if (serializer instanceof StreamingSerializer) {
+            deserializer = ((StreamingSerializer) serializer).newDeserializer(type.getType());
+            chunk = BufferPool.getDefault().acquire(AsyncClient.DEFAULT_BUFFER_SIZE);
+        } else {
+            buffer = new PooledInputBuffer(BufferPool.getDefault(), entity.getContentLength());
+        }
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+        if (deserializer == null) {
+            buffer.consumeContent(decoder);
+            return;
+        }
+
+        while (decoder.read(chunk) > 0) {
+            chunk.flip();
+            long start = System.nanoTime();
+            deserializer.feed(chunk);
+            deserializationNanos += System.nanoTime() - start;
+            chunk.clear();
+        }
+    }
+
+    @Override
+    protected ListenableFuture<T> buildResult(HttpContext context) throws Exception {
+        if (deserializer == null && buffer == null) {
+            return Futures.immediateFuture(null);
+        }
+
+        if (deserializer != null) {
+            long start = System.nanoTime();
+            try {
+                return Futures.immediateFuture(AbstractSerializer.cast(type, deserializer.complete()));
+            } finally {
+                deserialization.record(deserializationNanos + System.nanoTime() - start);
+            }
+        }
+
+        // The task owns the buffered body from here on and releases it once it is read
+        final PooledInputBuffer body = buffer;
+        final Serializer serializer = this.serializer;
+        buffer = null;
+        return dispatcher.dispatch(body.length(), new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long start = System.nanoTime();
+                try {
+                    return AbstractSerializer.cast(type, AbstractSerializer.deserialize(serializer, type.getType(), body.getInputStream()));
+                } finally {
+                    deserialization.record(System.nanoTime() - start);
+                    body.release();
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void releaseResources() {
+        deserializer = null;
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+        }
+        BufferPool.getDefault().release(chunk);
+        chunk = null;
+        deserializationNanos = 0;
+        serializer = null;
+    }
+}
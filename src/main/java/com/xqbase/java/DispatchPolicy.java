@@ -0,0 +1,50 @@
+package com.xqbase.java;
+
+/**
+ * Decides where a buffered response body is deserialized. Bodies shorter than the
+ * inline threshold are deserialized right away on the thread completing the response,
+ * usually an I/O reactor thread, since handing them to another thread costs more than
+ * parsing them. Longer bodies go to the transform pool, or to a virtual thread per
+ * body where the JVM supports them and they are enabled.
+ */
+public class DispatchPolicy {
+
+    public static final int DEFAULT_INLINE_THRESHOLD = AsyncClient.DEFAULT_BUFFER_SIZE;
+
+    private int inlineThreshold = DEFAULT_INLINE_THRESHOLD;
+    private boolean virtualThreads = false;
+
+    public int getInlineThreshold() {
+        return inlineThreshold;
+    }
+
+    /**
+     * Set the length below which bodies are deserialized inline, zero never deserializes inline
+     * @param inlineThreshold the threshold in bytes
+     */
+    public void setInlineThreshold(int inlineThreshold) {
+        this.inlineThreshold = inlineThreshold < 0 ? DEFAULT_INLINE_THRESHOLD : inlineThreshold;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Deserialize the bodies which are not deserialized inline on virtual threads instead
+     * of the transform pool. Ignored on JVMs without virtual threads.
+     * @param virtualThreads enable virtual threads
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Whether a body is deserialized inline
+     * @param length the length of the body, negative if unknown
+     * @return true to deserialize on the calling thread
+     */
+    public boolean isInline(long length) {
+        return length >= 0 && length < inlineThreshold;
+    }
+}
@@ -0,0 +1,68 @@
+package com.xqbase.java;
+
+/**
+ * Count-min sketch of 4-bit counters estimating how often a key was accessed
+ * recently. All counters are halved once the number of increments reaches ten
+ * times the width, so that the estimates age and follow the current workload.
+ */
+class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xb4b82e39, 0xc3a5c85c, 0x8ff4b2ad};
+
+    private final byte[] table;
+    private final int width;
+    private final int sampleSize;
+    private int additions = 0;
+
+    public FrequencySketch(int expectedEntries) {
+        int w = 16;
+        while (w < expectedEntries && w < (1 << 22)) {
+            w <<= 1;
+        }
+        this.width = w;
+        this.sampleSize = w * 10;
+        this.table = new byte[DEPTH * w];
+    }
+
+    public int frequency(int hash) {
+        int min = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, table[index(row, hash)]);
+        }
+
+        return min;
+    }
+
+    public void increment(int hash) {
+        // Conservative update, only the counters at the minimum are incremented
+        int min = frequency(hash);
+        if (min == MAX_COUNT) {
+            return;
+        }
+        for (int row = 0; row < DEPTH; row++) {
+            int i = index(row, hash);
+            if (table[i] == min) {
+                table[i]++;
+            }
+        }
+
+        if (++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] >>= 1;
+        }
+        additions >>= 1;
+    }
+
+    private int index(int row, int hash) {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return row * width + (h & (width - 1));
+    }
+}
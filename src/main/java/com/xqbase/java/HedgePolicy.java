@@ -0,0 +1,126 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpRequest;
+
+import java.util.Locale;
+
+/**
+ * Decides which requests are hedged and how long to wait before sending the second copy.
+ * The delay is either fixed or the given percentile of the route's latency, so only
+ * requests slower than most of their route's requests are hedged.
+ */
+public class HedgePolicy {
+
+    public static final double DEFAULT_PERCENTILE = 95;
+    public static final int DEFAULT_DELAY_MILLIS = 50;
+    public static final int DEFAULT_MIN_DELAY_MILLIS = 1;
+    public static final int DEFAULT_MIN_SAMPLES = 100;
+    public static final double DEFAULT_BUDGET_RATIO = 0.05;
+    public static final int DEFAULT_BUDGET_MIN_HEDGES_PER_SECOND = 1;
+
+    private int delayMillis = -1;
+    private double percentile = DEFAULT_PERCENTILE;
+    private int minDelayMillis = DEFAULT_MIN_DELAY_MILLIS;
+    private int minSamples = DEFAULT_MIN_SAMPLES;
+    private double budgetRatio = DEFAULT_BUDGET_RATIO;
+    private int budgetMinHedgesPerSecond = DEFAULT_BUDGET_MIN_HEDGES_PER_SECOND;
+
+    public int getDelayMillis() {
+        return delayMillis;
+    }
+
+    /**
+     * Set a fixed delay before the hedge is sent
+     * @param delayMillis delay in milliseconds, negative to track the route's latency percentile
+     */
+    public void setDelayMillis(int delayMillis) {
+        this.delayMillis = delayMillis < 0 ? -1 : delayMillis;
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * Set the percentile of the route's latency used as delay, unless the delay is fixed
+     * @param percentile percentile between 0 and 100
+     */
+    public void setPercentile(double percentile) {
+        this.percentile = percentile <= 0 || percentile > 100 ? DEFAULT_PERCENTILE : percentile;
+    }
+
+    public int getMinDelayMillis() {
+        return minDelayMillis;
+    }
+
+    /**
+     * Set the lower bound of the delay tracked from the route's latency
+     * @param minDelayMillis minimum delay in milliseconds
+     */
+    public void setMinDelayMillis(int minDelayMillis) {
+        this.minDelayMillis = minDelayMillis < 0 ? DEFAULT_MIN_DELAY_MILLIS : minDelayMillis;
+    }
+
+    public int getMinSamples() {
+        return minSamples;
+    }
+
+    /**
+     * Set the requests a route must have completed before its latency percentile is trusted,
+     * {@link #DEFAULT_DELAY_MILLIS} is used until then
+     * @param minSamples minimum completed requests
+     */
+    public void setMinSamples(int minSamples) {
+        this.minSamples = minSamples < 0 ? DEFAULT_MIN_SAMPLES : minSamples;
+    }
+
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * Set the ratio of hedges to requests allowed per route, e.g. 0.05 caps the extra
+     * load at five percent once the minimum rate is used up
+     * @param budgetRatio hedges per request
+     */
+    public void setBudgetRatio(double budgetRatio) {
+        this.budgetRatio = budgetRatio < 0 ? DEFAULT_BUDGET_RATIO : budgetRatio;
+    }
+
+    public int getBudgetMinHedgesPerSecond() {
+        return budgetMinHedgesPerSecond;
+    }
+
+    /**
+     * Set the hedges per second a route may always send, regardless of its request rate
+     * @param budgetMinHedgesPerSecond minimum hedge rate
+     */
+    public void setBudgetMinHedgesPerSecond(int budgetMinHedgesPerSecond) {
+        this.budgetMinHedgesPerSecond = budgetMinHedgesPerSecond < 0 ? DEFAULT_BUDGET_MIN_HEDGES_PER_SECOND : budgetMinHedgesPerSecond;
+    }
+
+    /**
+     * Whether a request may be hedged, only safe methods are since both copies may be processed
+     * @param request the request
+     * @return true if the request may be sent twice at once
+     */
+    public boolean isHedgeable(HttpRequest request) {
+        String method = request.getRequestLine().getMethod().toUpperCase(Locale.ROOT);
+        return method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS");
+    }
+
+    /**
+     * Compute the delay before hedging a request of the route
+     * @param latency the latency of the route's requests
+     * @return delay in milliseconds
+     */
+    public long delayMillis(LatencyRecorder latency) {
+        if (delayMillis >= 0) {
+            return delayMillis;
+        }
+        if (latency.getCount() < minSamples) {
+            return DEFAULT_DELAY_MILLIS;
+        }
+        return Math.max(minDelayMillis, latency.getValueAtPercentile(percentile) / 1000);
+    }
+}
@@ -0,0 +1,247 @@
+package com.xqbase.java;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.util.EntityUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a second copy of a request which has not answered within the policy's delay,
+ * within the hedge budget of the request's route. The first response wins and the
+ * other exchange is cancelled, which hands its connection back to the pool.
+ */
+class HedgingExecutor {
+
+    private static final long DELAY_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ScheduledExecutorService scheduler;
+    private final ClientMetrics metrics;
+    private final ConcurrentMap<HttpHost, RouteState> routes = new ConcurrentHashMap<HttpHost, RouteState>();
+    private volatile HedgePolicy policy;
+
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong budgetExhausted = new AtomicLong();
+
+    public HedgingExecutor(final ScheduledExecutorService scheduler, final ClientMetrics metrics) {
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+    }
+
+    public HedgePolicy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(HedgePolicy policy) {
+        this.policy = policy;
+        routes.clear();
+    }
+
+    /**
+     * @return the number of hedges sent
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @return the number of hedges which answered before the original request
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return the number of hedges denied because the route's budget was exhausted
+     */
+    public long getBudgetExhausted() {
+        return budgetExhausted.get();
+    }
+
+    /**
+     * Wrap an attempt so that it is hedged if the policy allows it
+     */
+    public <T> RetryExecutor.Attempt<T> wrap(final HttpUriRequest request, final RetryExecutor.Attempt<T> attempt) {
+        final HedgePolicy policy = this.policy;
+        final HttpHost route = Routes.target(request);
+        if (policy == null || route == null || !policy.isHedgeable(request)) {
+            return attempt;
+        }
+
+        return new RetryExecutor.Attempt<T>() {
+            @Override
+            public ListenableFuture<T> execute() {
+                RouteState state = state(Routes.normalize(route), policy);
+                state.budget.deposit();
+                return new Hedge<T>(attempt, state).start(state.delayMillis(policy));
+            }
+        };
+    }
+
+    private RouteState state(HttpHost route, HedgePolicy policy) {
+        RouteState state = routes.get(route);
+        if (state == null) {
+            state = new RouteState(metrics.route(route).getLatency(), policy);
+            RouteState existing = routes.putIfAbsent(route, state);
+            if (existing != null) {
+                state = existing;
+            }
+        }
+
+        return state;
+    }
+
+    /**
+     * Hedge budget and delay of a route, the delay is recomputed at most once a second
+     */
+    private static class RouteState {
+
+        private final LatencyRecorder latency;
+        private final RetryBudget budget;
+        private volatile long delayMillis;
+        private volatile long refreshedAt;
+
+        RouteState(LatencyRecorder latency, HedgePolicy policy) {
+            this.latency = latency;
+            this.budget = new RetryBudget(policy.getBudgetRatio(), policy.getBudgetMinHedgesPerSecond());
+            this.delayMillis = policy.delayMillis(latency);
+            this.refreshedAt = System.nanoTime();
+        }
+
+        long delayMillis(HedgePolicy policy) {
+            long now = System.nanoTime();
+            if (now - refreshedAt > DELAY_REFRESH_NANOS) {
+                refreshedAt = now;
+                delayMillis = policy.delayMillis(latency);
+            }
+            return delayMillis;
+        }
+    }
+
+    private class Hedge<T> implements Runnable {
+
+        private final SettableFuture<T> result = SettableFuture.create();
+        private final RetryExecutor.Attempt<T> attempt;
+        private final RouteState state;
+
+        private ListenableFuture<T> primary;
+        private ListenableFuture<T> hedge;
+        private Future<?> timer;
+        private int running = 0;
+
+        Hedge(final RetryExecutor.Attempt<T> attempt, final RouteState state) {
+            this.attempt = attempt;
+            this.state = state;
+        }
+
+        ListenableFuture<T> start(long delayMillis) {
+            ListenableFuture<T> future = attempt.execute();
+            synchronized (this) {
+                primary = future;
+                running++;
+            }
+            listen(future, false);
+            try {
+                Future<?> scheduled = scheduler.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+                synchronized (this) {
+                    timer = scheduled;
+                }
+            } catch (RejectedExecutionException e) {
+                // The client is closing, go without the hedge
+            }
+
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    cancelAll();
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            return result;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (result.isDone() || running == 0) {
+                    return;
+                }
+            }
+            if (!state.budget.tryWithdraw()) {
+                budgetExhausted.incrementAndGet();
+                return;
+            }
+
+            hedges.incrementAndGet();
+            ListenableFuture<T> future = attempt.execute();
+            synchronized (this) {
+                hedge = future;
+                running++;
+            }
+            listen(future, true);
+            if (result.isDone()) {
+                future.cancel(true);
+            }
+        }
+
+        private void listen(final ListenableFuture<T> future, final boolean isHedge) {
+            Futures.addCallback(future, new FutureCallback<T>() {
+                @Override
+                public void onSuccess(T value) {
+                    if (result.set(value)) {
+                        if (isHedge) {
+                            hedgeWins.incrementAndGet();
+                        }
+                    } else if (value instanceof HttpResponse) {
+                        // The other copy won, release the body of this one
+                        EntityUtils.consumeQuietly(((HttpResponse) value).getEntity());
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    boolean last;
+                    synchronized (HedgingExecutor.Hedge.this) {
+                        last = --running == 0;
+                    }
+                    // Wait for the other copy if it is still running
+                    if (last) {
+                        result.setException(t);
+                    }
+                }
+            });
+        }
+
+        private void cancelAll() {
+            Future<?> t;
+            Future<?> p;
+            Future<?> h;
+            synchronized (this) {
+                t = timer;
+                p = primary;
+                h = hedge;
+            }
+            if (t != null) {
+                t.cancel(false);
+            }
+            if (p != null) {
+                p.cancel(true);
+            }
+            if (h != null) {
+                h.cancel(true);
+            }
+        }
+    }
+}
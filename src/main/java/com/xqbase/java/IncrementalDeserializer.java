@@ -0,0 +1,24 @@
+package com.xqbase.java;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface IncrementalDeserializer<T> {
+
+    /**
+     * Feed the next chunk of the body as it arrives from the wire.
+     * The deserializer must consume all remaining bytes of the buffer,
+     * the buffer is reused once this method returns. It is a direct buffer
+     * leased from the {@link BufferPool}, so it has no accessible array.
+     * @param src the next chunk of the body
+     * @throws IOException if the body read so far is malformed
+     */
+    void feed(ByteBuffer src) throws IOException;
+
+    /**
+     * Signal the end of the body and return the deserialized object
+     * @return the deserialized object
+     * @throws IOException if the body is malformed or truncated
+     */
+    T complete() throws IOException;
+}
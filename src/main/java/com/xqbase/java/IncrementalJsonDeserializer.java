@@ -0,0 +1,222 @@
+package com.xqbase.java;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Deserializes a JSON body as it arrives. The members of a top level array or object are
+ * bound one by one as soon as their bytes are complete, so only the member being received
+ * is held instead of the whole body. Other values, and types whose binder reads values
+ * whole, are buffered and bound at the end.
+ */
+class IncrementalJsonDeserializer implements IncrementalDeserializer<Object> {
+
+    private static final int BEFORE_VALUE = 0;
+    private static final int WHOLE = 1;
+    private static final int BEFORE_MEMBER = 2;
+    private static final int IN_NAME = 3;
+    private static final int BEFORE_COLON = 4;
+    private static final int IN_MEMBER = 5;
+    private static final int AFTER_VALUE = 6;
+
+    private final Type type;
+    private final JsonBinder binder;
+
+    private byte[] piece = new byte[256];
+    private int length;
+
+    private int state = BEFORE_VALUE;
+    private JsonBinder.Members members;
+    private Object container;
+    private boolean afterComma;
+    private String name;
+
+    // Position within the member being received
+    private int depth;
+    private boolean inString;
+    private boolean escaped;
+
+    IncrementalJsonDeserializer(Type type) throws IOException {
+        this.type = type;
+        this.binder = JsonBinder.of(type);
+    }
+
+    @Override
+    public void feed(ByteBuffer src) throws IOException {
+        while (state != WHOLE && src.hasRemaining()) {
+            accept(src.get());
+        }
+        if (state == WHOLE) {
+            int n = src.remaining();
+            ensureCapacity(n);
+            src.get(piece, length, n);
+            length += n;
+        }
+    }
+
+    @Override
+    public Object complete() throws IOException {
+        switch (state) {
+            case BEFORE_VALUE:
+                // An empty body carries no value
+                return null;
+            case WHOLE:
+                return DefaultJsonSerializer.read(type, new JsonReader(piece, 0, length));
+            case AFTER_VALUE:
+                return members.end(container);
+            default:
+                throw JsonReader.syntaxError("Unexpected end of input");
+        }
+    }
+
+    private void accept(byte b) throws IOException {
+        switch (state) {
+            case BEFORE_VALUE:
+                if (isWhitespace(b)) {
+                    return;
+                }
+                members = b == '[' || b == '{' ? binder.members() : null;
+                if (members == null || members.isObject() != (b == '{')) {
+                    // Bound whole, a mismatched container fails there as well
+                    state = WHOLE;
+                    append(b);
+                    return;
+                }
+                container = members.begin();
+                state = BEFORE_MEMBER;
+                return;
+            case BEFORE_MEMBER:
+                if (isWhitespace(b)) {
+                    return;
+                }
+                if (!afterComma && b == closer()) {
+                    state = AFTER_VALUE;
+                } else if (members.isObject()) {
+                    if (b != '"') {
+                        throw unexpected("'\"'", b);
+                    }
+                    length = 0;
+                    append(b);
+                    state = IN_NAME;
+                } else {
+                    startMember();
+                    accept(b);
+                }
+                return;
+            case IN_NAME:
+                append(b);
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    JsonReader reader = new JsonReader(piece, 0, length);
+                    try {
+                        name = reader.nextString();
+                    } finally {
+                        reader.release();
+                    }
+                    state = BEFORE_COLON;
+                }
+                return;
+            case BEFORE_COLON:
+                if (isWhitespace(b)) {
+                    return;
+                }
+                if (b != ':') {
+                    throw unexpected("':'", b);
+                }
+                startMember();
+                return;
+            case IN_MEMBER:
+                if (inString) {
+                    if (escaped) {
+                        escaped = false;
+                    } else if (b == '\\') {
+                        escaped = true;
+                    } else if (b == '"') {
+                        inString = false;
+                    }
+                } else if (b == '"') {
+                    inString = true;
+                } else if (b == '[' || b == '{') {
+                    depth++;
+                } else if (b == ']' || b == '}' || b == ',') {
+                    if (depth == 0) {
+                        endMember(b);
+                        return;
+                    }
+                    if (b != ',') {
+                        depth--;
+                    }
+                } else if (length == 0 && isWhitespace(b)) {
+                    return;
+                }
+                append(b);
+                return;
+            case AFTER_VALUE:
+                if (!isWhitespace(b)) {
+                    throw unexpected("end of input", b);
+                }
+                return;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private void startMember() {
+        length = 0;
+        depth = 0;
+        inString = false;
+        escaped = false;
+        state = IN_MEMBER;
+    }
+
+    private void endMember(byte b) throws IOException {
+        if (length == 0) {
+            throw unexpected("a value", b);
+        }
+        JsonReader reader = new JsonReader(piece, 0, length);
+        try {
+            members.read(reader, container, name);
+            reader.expectEnd();
+        } finally {
+            reader.release();
+        }
+        name = null;
+
+        if (b == ',') {
+            afterComma = true;
+            state = BEFORE_MEMBER;
+        } else if (b == closer()) {
+            state = AFTER_VALUE;
+        } else {
+            throw unexpected("',' or '" + (char) closer() + "'", b);
+        }
+    }
+
+    private byte closer() {
+        return members.isObject() ? (byte) '}' : (byte) ']';
+    }
+
+    private void append(byte b) {
+        ensureCapacity(1);
+        piece[length++] = b;
+    }
+
+    private void ensureCapacity(int n) {
+        if (length + n > piece.length) {
+            piece = Arrays.copyOf(piece, Math.max(length + n, length * 2));
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static IOException unexpected(String expected, byte b) {
+        return JsonReader.syntaxError("Expected " + expected + " but found '" + (char) (b & 0xff) + "'");
+    }
+}
@@ -0,0 +1,392 @@
+package com.xqbase.java;
+
+import org.apache.http.nio.ContentDecoder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Content decoder inflating a gzip or deflate body as it is read from the transfer decoder,
+ * so consumers see the decoded bytes without the body being buffered twice.
+ * The inflater is taken from the pool once the format is known and handed back
+ * at the end of the body or on {@link #release()}, together with the buffers
+ * leased for the compressed bytes. A gzip body may hold several members, which
+ * are decoded one after the other.
+ */
+class InflatingContentDecoder implements ContentDecoder {
+
+    /**
+     * Most bytes {@link #bufferRemaining()} inflates into memory
+     */
+    static final int MAX_REMAINING = 16 * BufferPool.MAX_POOLED_SIZE;
+
+    private static final int HEADER = 0;
+    private static final int BODY = 1;
+    private static final int TRAILER = 2;
+    private static final int DONE = 3;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final boolean gzip;
+    private final CRC32 crc;
+    private ContentDecoder source;
+    // Compressed bytes not handed to the inflater yet, leased from the buffer pool on the first read
+    private ByteBuffer in;
+    // The inflater only reads from and writes into arrays
+    private byte[] input;
+    private byte[] out;
+    private Inflater inflater;
+    private boolean nowrap;
+    private int state = HEADER;
+    private boolean received = false;
+    private boolean memberRead = false;
+    // The rest of the body, inflated once the transfer decoder completed before it was read
+    private ByteBuffer remaining;
+
+    /**
+     * @param coding gzip or deflate
+     */
+    public InflatingContentDecoder(final String coding) {
+        this.gzip = Compression.GZIP.equals(coding);
+        this.crc = gzip ? new CRC32() : null;
+    }
+
+    /**
+     * Set the transfer decoder the compressed body is read from
+     */
+    void setSource(ContentDecoder source) {
+        this.source = source;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (remaining != null) {
+            return readRemaining(dst);
+        }
+
+        int total = 0;
+        while (dst.hasRemaining()) {
+            if (state == BODY) {
+                int n = inflate(dst);
+                if (n > 0) {
+                    total += n;
+                    continue;
+                }
+                if (inflater.finished()) {
+                    // Hand back what the inflater read past the end of the compressed data
+                    in.position(in.position() - inflater.getRemaining());
+                    if (gzip) {
+                        state = TRAILER;
+                    } else {
+                        finish();
+                    }
+                    continue;
+                }
+                if (inflater.needsDictionary()) {
+                    throw new IOException("Deflate body requires a preset dictionary");
+                }
+                if (inflater.needsInput() && hasInput()) {
+                    int len = Math.min(in.remaining(), input.length);
+                    in.get(input, 0, len);
+                    inflater.setInput(input, 0, len);
+                    continue;
+                }
+            } else if (state == HEADER) {
+                if (readHeader()) {
+                    state = BODY;
+                    continue;
+                }
+                if (state == DONE) {
+                    continue;
+                }
+            } else if (state == TRAILER) {
+                if (readTrailer()) {
+                    // Another member may follow
+                    memberRead = true;
+                    inflater.reset();
+                    crc.reset();
+                    state = HEADER;
+                    continue;
+                }
+            } else {
+                skipRest();
+                return total > 0 ? total : -1;
+            }
+
+            int r = fill();
+            if (r == 0 && !source.isCompleted()) {
+                break;
+            }
+            if (r <= 0) {
+                if (state == HEADER && (!received || memberRead)) {
+                    // An empty body, or the end of the last member
+                    finish();
+                    continue;
+                }
+                throw new EOFException("Truncated " + (gzip ? Compression.GZIP : Compression.DEFLATE) + " body");
+            }
+        }
+
+        return total;
+    }
+
+    @Override
+    public boolean isCompleted() {
+        boolean ended = state == DONE || (state == HEADER && memberRead && !hasInput());
+        return ended && source.isCompleted() && (remaining == null || !remaining.hasRemaining());
+    }
+
+    /**
+     * Inflate the rest of the body once the transfer decoder has read all of it. The exchange
+     * completes with the transfer decoder, so a consumer which stopped reading early would
+     * otherwise lose the bytes still held by the inflater. They are read from memory afterwards,
+     * also once the inflater is back in the pool.
+     * @throws IOException if the rest of the body is malformed or inflates to more than {@link #MAX_REMAINING} bytes
+     */
+    void bufferRemaining() throws IOException {
+        if (remaining != null || isCompleted()) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(AsyncClient.DEFAULT_BUFFER_SIZE);
+        for (;;) {
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() >= MAX_REMAINING) {
+                    throw new IOException("Decoded body exceeds " + MAX_REMAINING + " bytes");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_REMAINING));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            if (read(buffer) < 0 || state == DONE) {
+                break;
+            }
+        }
+        buffer.flip();
+        remaining = buffer;
+    }
+
+    private int readRemaining(ByteBuffer dst) {
+        if (!remaining.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(dst.remaining(), remaining.remaining());
+        ByteBuffer slice = remaining.duplicate();
+        slice.limit(slice.position() + n);
+        dst.put(slice);
+        remaining.position(remaining.position() + n);
+        return n;
+    }
+
+    /**
+     * Hand the inflater and the buffers back to their pools
+     */
+    void release() {
+        if (inflater != null) {
+            Compression.releaseInflater(inflater, nowrap);
+            inflater = null;
+        }
+        if (input != null) {
+            Compression.releaseBuffer(input);
+            input = null;
+        }
+        if (out != null) {
+            Compression.releaseBuffer(out);
+            out = null;
+        }
+        if (in != null) {
+            BufferPool.getDefault().release(in);
+            in = null;
+        }
+    }
+
+    private void finish() {
+        state = DONE;
+        release();
+    }
+
+    /**
+     * Whatever follows the compressed data is ignored
+     */
+    private void skipRest() throws IOException {
+        if (source.isCompleted()) {
+            return;
+        }
+        ByteBuffer skipped = BufferPool.getDefault().acquire(AsyncClient.DEFAULT_BUFFER_SIZE);
+        try {
+            while (source.read(skipped) > 0) {
+                skipped.clear();
+            }
+        } finally {
+            BufferPool.getDefault().release(skipped);
+        }
+    }
+
+    private boolean hasInput() {
+        return in != null && in.hasRemaining();
+    }
+
+    private int inflate(ByteBuffer dst) throws IOException {
+        byte[] b;
+        int off;
+        if (dst.hasArray()) {
+            b = dst.array();
+            off = dst.arrayOffset() + dst.position();
+        } else {
+            if (out == null) {
+                out = Compression.acquireBuffer();
+            }
+            b = out;
+            off = 0;
+        }
+
+        int n;
+        try {
+            n = inflater.inflate(b, off, Math.min(dst.remaining(), b.length - off));
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed " + (gzip ? Compression.GZIP : Compression.DEFLATE) + " body", e);
+        }
+        if (n > 0) {
+            if (gzip) {
+                crc.update(b, off, n);
+            }
+            if (dst.hasArray()) {
+                dst.position(dst.position() + n);
+            } else {
+                dst.put(b, 0, n);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Read the gzip header, or tell the zlib format from raw deflate data
+     * @return false if more input is needed, or if no gzip member follows the last one
+     */
+    private boolean readHeader() throws IOException {
+        if (in == null) {
+            return false;
+        }
+        int start = in.position();
+        if (!gzip) {
+            if (in.remaining() < 2) {
+                return false;
+            }
+            // Servers send both, a zlib header is a compression method of 8 and a check sum of the two bytes
+            int cmf = in.get(start) & 0xff;
+            int flg = in.get(start + 1) & 0xff;
+            nowrap = (cmf & 0x0f) != 8 || ((cmf << 8) | flg) % 31 != 0;
+            acquireInflater(nowrap);
+            return true;
+        }
+
+        if (in.remaining() < 10) {
+            return false;
+        }
+        if ((in.get(start) & 0xff) != 0x1f || (in.get(start + 1) & 0xff) != 0x8b || in.get(start + 2) != 8) {
+            if (memberRead) {
+                // Not another member, what follows is ignored as it is after deflate data
+                finish();
+                return false;
+            }
+            throw new IOException("Malformed gzip header");
+        }
+        int flags = in.get(start + 3);
+        int pos = start + 10;
+        if ((flags & FEXTRA) != 0) {
+            if (in.limit() - pos < 2) {
+                return false;
+            }
+            pos += 2 + ((in.get(pos) & 0xff) | (in.get(pos + 1) & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0 && (pos = skipZeroTerminated(pos)) < 0) {
+            return false;
+        }
+        if ((flags & FCOMMENT) != 0 && (pos = skipZeroTerminated(pos)) < 0) {
+            return false;
+        }
+        if ((flags & FHCRC) != 0) {
+            pos += 2;
+        }
+        if (pos > in.limit()) {
+            return false;
+        }
+
+        in.position(pos);
+        nowrap = true;
+        acquireInflater(true);
+        return true;
+    }
+
+    private void acquireInflater(boolean nowrap) {
+        if (inflater == null) {
+            inflater = Compression.acquireInflater(nowrap);
+        }
+        if (input == null) {
+            input = Compression.acquireBuffer();
+        }
+    }
+
+    private int skipZeroTerminated(int pos) {
+        for (int i = pos; i < in.limit(); i++) {
+            if (in.get(i) == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Check the gzip trailer against the inflated bytes
+     * @return false if more input is needed
+     */
+    private boolean readTrailer() throws IOException {
+        if (in.remaining() < 8) {
+            return false;
+        }
+        long expectedCrc = readIntLE() & 0xffffffffL;
+        long expectedSize = readIntLE() & 0xffffffffL;
+        if (expectedCrc != crc.getValue() || expectedSize != (inflater.getBytesWritten() & 0xffffffffL)) {
+            throw new IOException("Corrupt gzip body");
+        }
+        return true;
+    }
+
+    private int readIntLE() {
+        return (in.get() & 0xff) | (in.get() & 0xff) << 8 | (in.get() & 0xff) << 16 | (in.get() & 0xff) << 24;
+    }
+
+    /**
+     * Read more compressed bytes behind the ones not consumed yet
+     */
+    private int fill() throws IOException {
+        BufferPool pool = BufferPool.getDefault();
+        if (in == null) {
+            in = pool.acquire(AsyncClient.DEFAULT_BUFFER_SIZE);
+        } else {
+            in.compact();
+            if (!in.hasRemaining()) {
+                // A gzip header with long optional fields
+                ByteBuffer larger = pool.acquire(in.capacity() * 2);
+                in.flip();
+                larger.put(in);
+                pool.release(in);
+                in = larger;
+            }
+        }
+        int r = source.read(in);
+        in.flip();
+        if (r > 0) {
+            received = true;
+        }
+        return r;
+    }
+}
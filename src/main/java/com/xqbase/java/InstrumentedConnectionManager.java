@@ -0,0 +1,226 @@
+package com.xqbase.java;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.conn.ManagedNHttpClientConnectionFactory;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.protocol.HttpAsyncRequestExecutor;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pooling connection manager which records how long requests wait to lease a connection,
+ * and binds the connection leased for an exchange to its {@link Exchange} so that the exchange
+ * can be aborted, which the futures of this version of the async client do not do on cancel.
+ */
+class InstrumentedConnectionManager extends PoolingNHttpClientConnectionManager {
+
+    // Set while an exchange is started, the first connection request is made on the starting thread
+    private static final ThreadLocal<Exchange> STARTING = new ThreadLocal<Exchange>();
+
+    private final ClientMetrics metrics;
+
+    public InstrumentedConnectionManager(final ConnectingIOReactor ioReactor, final ClientMetrics metrics, final DnsResolver dnsResolver) {
+        super(ioReactor, ManagedNHttpClientConnectionFactory.INSTANCE, dnsResolver);
+        this.metrics = metrics;
+        metrics.setConnectionPool(this);
+    }
+
+    @Override
+    public Future<NHttpClientConnection> requestConnection(final HttpRoute route, final Object state,
+                                                           final long connectTimeout, final long leaseTimeout,
+                                                           final TimeUnit tunit,
+                                                           final FutureCallback<NHttpClientConnection> callback) {
+        final RouteMetrics routeMetrics = metrics.route(route.getTargetHost());
+        final long start = System.nanoTime();
+        final Exchange exchange = STARTING.get();
+        STARTING.remove();
+        Future<NHttpClientConnection> future = super.requestConnection(route, state, connectTimeout, leaseTimeout, tunit, new FutureCallback<NHttpClientConnection>() {
+            @Override
+            public void completed(NHttpClientConnection conn) {
+                routeMetrics.getLeaseWait().record(System.nanoTime() - start);
+                if (callback != null) {
+                    callback.completed(conn);
+                }
+                if (exchange != null) {
+                    exchange.allocated(conn);
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                routeMetrics.getLeaseWait().record(System.nanoTime() - start);
+                if (callback != null) {
+                    callback.failed(ex);
+                }
+            }
+
+            @Override
+            public void cancelled() {
+                if (callback != null) {
+                    callback.cancelled();
+                }
+            }
+        });
+        if (exchange != null) {
+            exchange.requested(future);
+        }
+        return future;
+    }
+
+    /**
+     * Lease as many connections of the route at once, which opens the ones the pool is missing,
+     * and hand them back to the pool once every lease is done. The leases are not recorded as
+     * lease waits since no request waits for them.
+     * @param route the route
+     * @param connections the number of connections
+     * @return future of the number of connections leased, fewer than asked for if some failed to open
+     */
+    public ListenableFuture<Integer> warmUp(HttpRoute route, int connections, long connectTimeout, long leaseTimeout) {
+        WarmUp warmUp = new WarmUp(route, connections);
+        for (int i = 0; i < connections; i++) {
+            super.requestConnection(route, null, connectTimeout, leaseTimeout, TimeUnit.MILLISECONDS, warmUp);
+        }
+        return warmUp.result;
+    }
+
+    /**
+     * Mark the exchange about to be started on this thread, the connection it requests is bound to it
+     */
+    static void starting(Exchange exchange) {
+        STARTING.set(exchange);
+    }
+
+    /**
+     * Clear the mark, in case the exchange was started without requesting a connection
+     */
+    static void started() {
+        STARTING.remove();
+    }
+
+    private class WarmUp implements FutureCallback<NHttpClientConnection> {
+
+        private final HttpRoute route;
+        private final AtomicInteger pending;
+        private final List<NHttpClientConnection> leased = new ArrayList<NHttpClientConnection>();
+        private final SettableFuture<Integer> result = SettableFuture.create();
+
+        WarmUp(HttpRoute route, int connections) {
+            this.route = route;
+            this.pending = new AtomicInteger(connections);
+            if (connections == 0) {
+                result.set(0);
+            }
+        }
+
+        @Override
+        public void completed(NHttpClientConnection conn) {
+            try {
+                // Set the connection up as an exchange would, e.g. start the TLS handshake
+                if (!isRouteComplete(conn)) {
+                    HttpClientContext context = HttpClientContext.create();
+                    startRoute(conn, route, context);
+                    routeComplete(conn, route, context);
+                }
+                synchronized (leased) {
+                    leased.add(conn);
+                }
+            } catch (IOException e) {
+                try {
+                    conn.shutdown();
+                } catch (IOException ignored) {
+                    // The connection is discarded either way
+                }
+                releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+            }
+            done();
+        }
+
+        @Override
+        public void failed(Exception ex) {
+            done();
+        }
+
+        @Override
+        public void cancelled() {
+            done();
+        }
+
+        private void done() {
+            if (pending.decrementAndGet() != 0) {
+                return;
+            }
+
+            int open = 0;
+            for (NHttpClientConnection conn : leased) {
+                if (conn.isOpen()) {
+                    open++;
+                }
+                releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+            }
+            result.set(open);
+        }
+    }
+
+    /**
+     * Aborts an exchange, either its pending connection request or the exchange
+     * running on the allocated connection, which discards the connection
+     */
+    static class Exchange {
+
+        private Future<NHttpClientConnection> request;
+        private Cancellable handler;
+        private boolean aborted = false;
+
+        synchronized void requested(Future<NHttpClientConnection> request) {
+            this.request = request;
+            if (aborted) {
+                request.cancel(true);
+            }
+        }
+
+        void allocated(NHttpClientConnection conn) {
+            Object attribute = conn.getContext().getAttribute(HttpAsyncRequestExecutor.HTTP_HANDLER);
+            if (!(attribute instanceof Cancellable)) {
+                return;
+            }
+            synchronized (this) {
+                handler = (Cancellable) attribute;
+                if (!aborted) {
+                    return;
+                }
+            }
+            handler.cancel();
+        }
+
+        /**
+         * Abort the exchange, no-op once it is completed
+         */
+        void abort() {
+            Future<NHttpClientConnection> request;
+            Cancellable handler;
+            synchronized (this) {
+                aborted = true;
+                request = this.request;
+                handler = this.handler;
+            }
+            if (handler != null) {
+                handler.cancel();
+            } else if (request != null) {
+                request.cancel(true);
+            }
+        }
+    }
+}
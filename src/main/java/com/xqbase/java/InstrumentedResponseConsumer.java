@@ -0,0 +1,74 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * Response consumer which records the time to the response head and its status
+ * before handing the response to the wrapped consumer
+ */
+class InstrumentedResponseConsumer<T> implements HttpAsyncResponseConsumer<T> {
+
+    private final HttpAsyncResponseConsumer<T> consumer;
+    private final RouteMetrics metrics;
+    private final long start;
+
+    public InstrumentedResponseConsumer(final HttpAsyncResponseConsumer<T> consumer, final RouteMetrics metrics, final long start) {
+        this.consumer = consumer;
+        this.metrics = metrics;
+        this.start = start;
+    }
+
+    @Override
+    public void responseReceived(HttpResponse response) throws IOException, HttpException {
+        metrics.getFirstByte().record(System.nanoTime() - start);
+        metrics.recordStatus(response.getStatusLine().getStatusCode());
+        consumer.responseReceived(response);
+    }
+
+    @Override
+    public void consumeContent(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+        consumer.consumeContent(decoder, ioctrl);
+    }
+
+    @Override
+    public void responseCompleted(HttpContext context) {
+        consumer.responseCompleted(context);
+    }
+
+    @Override
+    public void failed(Exception ex) {
+        consumer.failed(ex);
+    }
+
+    @Override
+    public Exception getException() {
+        return consumer.getException();
+    }
+
+    @Override
+    public T getResult() {
+        return consumer.getResult();
+    }
+
+    @Override
+    public boolean isDone() {
+        return consumer.isDone();
+    }
+
+    @Override
+    public boolean cancel() {
+        return consumer.cancel();
+    }
+
+    @Override
+    public void close() throws IOException {
+        consumer.close();
+    }
+}
@@ -0,0 +1,230 @@
+package com.xqbase.java;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registers the client and per route metrics as MXBeans, named
+ * {@code com.xqbase.java:type=AsyncClient,name=<name>} and
+ * {@code com.xqbase.java:type=AsyncClient,name=<name>,route=<route>}
+ */
+public class JmxMetricsReporter implements MetricsReporter {
+
+    public interface ClientMXBean {
+        long getPoolLeased();
+        long getPoolPending();
+        long getPoolAvailable();
+        long getPoolMax();
+        Map<String, Long> getGauges();
+    }
+
+    public interface RouteMXBean {
+        String getRoute();
+        long getRequests();
+        int getInFlight();
+        long getPoolLeased();
+        long getPoolPending();
+        long getPoolAvailable();
+        double getLatencyMean();
+        long getLatency50thPercentile();
+        long getLatency99thPercentile();
+        long getLatencyMax();
+        long getFirstByte50thPercentile();
+        long getFirstByte99thPercentile();
+        long getDeserialization50thPercentile();
+        long getDeserialization99thPercentile();
+        long getLeaseWait50thPercentile();
+        long getLeaseWait99thPercentile();
+        long getStatus2xx();
+        long getStatus3xx();
+        long getStatus4xx();
+        long getStatus5xx();
+        Map<String, Long> getExceptions();
+    }
+
+    private final MBeanServer server;
+    private final String name;
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+    private ClientMetrics metrics;
+
+    public JmxMetricsReporter(String name) {
+        this(ManagementFactory.getPlatformMBeanServer(), name);
+    }
+
+    public JmxMetricsReporter(MBeanServer server, String name) {
+        this.server = server;
+        this.name = ObjectName.quote(name);
+    }
+
+    @Override
+    public synchronized void start(final ClientMetrics metrics) {
+        this.metrics = metrics;
+        register("com.xqbase.java:type=AsyncClient,name=" + name, new StandardMBean(new ClientMXBean() {
+            @Override
+            public long getPoolLeased() {
+                return metrics.getTotalStats().getLeased();
+            }
+
+            @Override
+            public long getPoolPending() {
+                return metrics.getTotalStats().getPending();
+            }
+
+            @Override
+            public long getPoolAvailable() {
+                return metrics.getTotalStats().getAvailable();
+            }
+
+            @Override
+            public long getPoolMax() {
+                return metrics.getTotalStats().getMax();
+            }
+
+            @Override
+            public Map<String, Long> getGauges() {
+                return metrics.getGaugeValues();
+            }
+        }, ClientMXBean.class, true));
+    }
+
+    @Override
+    public synchronized void routeAdded(final RouteMetrics route) {
+        final ClientMetrics metrics = this.metrics;
+        String objectName = "com.xqbase.java:type=AsyncClient,name=" + name
+                + ",route=" + ObjectName.quote(route.getRoute().toURI());
+        register(objectName, new StandardMBean(new RouteMXBean() {
+            @Override
+            public String getRoute() {
+                return route.getRoute().toURI();
+            }
+
+            @Override
+            public long getRequests() {
+                return route.getRequests();
+            }
+
+            @Override
+            public int getInFlight() {
+                return route.getInFlight();
+            }
+
+            @Override
+            public long getPoolLeased() {
+                return metrics.getStats(route.getRoute()).getLeased();
+            }
+
+            @Override
+            public long getPoolPending() {
+                return metrics.getStats(route.getRoute()).getPending();
+            }
+
+            @Override
+            public long getPoolAvailable() {
+                return metrics.getStats(route.getRoute()).getAvailable();
+            }
+
+            @Override
+            public double getLatencyMean() {
+                return route.getLatency().getMean();
+            }
+
+            @Override
+            public long getLatency50thPercentile() {
+                return route.getLatency().getValueAtPercentile(50);
+            }
+
+            @Override
+            public long getLatency99thPercentile() {
+                return route.getLatency().getValueAtPercentile(99);
+            }
+
+            @Override
+            public long getLatencyMax() {
+                return route.getLatency().getMax();
+            }
+
+            @Override
+            public long getFirstByte50thPercentile() {
+                return route.getFirstByte().getValueAtPercentile(50);
+            }
+
+            @Override
+            public long getFirstByte99thPercentile() {
+                return route.getFirstByte().getValueAtPercentile(99);
+            }
+
+            @Override
+            public long getDeserialization50thPercentile() {
+                return route.getDeserialization().getValueAtPercentile(50);
+            }
+
+            @Override
+            public long getDeserialization99thPercentile() {
+                return route.getDeserialization().getValueAtPercentile(99);
+            }
+
+            @Override
+            public long getLeaseWait50thPercentile() {
+                return route.getLeaseWait().getValueAtPercentile(50);
+            }
+
+            @Override
+            public long getLeaseWait99thPercentile() {
+                return route.getLeaseWait().getValueAtPercentile(99);
+            }
+
+            @Override
+            public long getStatus2xx() {
+                return route.getStatusCount(2);
+            }
+
+            @Override
+            public long getStatus3xx() {
+                return route.getStatusCount(3);
+            }
+
+            @Override
+            public long getStatus4xx() {
+                return route.getStatusCount(4);
+            }
+
+            @Override
+            public long getStatus5xx() {
+                return route.getStatusCount(5);
+            }
+
+            @Override
+            public Map<String, Long> getExceptions() {
+                return route.getExceptionCounts();
+            }
+        }, RouteMXBean.class, true));
+    }
+
+    @Override
+    public synchronized void stop() {
+        for (ObjectName objectName : registered) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                // Already unregistered
+            }
+        }
+        registered.clear();
+    }
+
+    private void register(String objectName, StandardMBean mbean) {
+        try {
+            ObjectName on = new ObjectName(objectName);
+            server.registerMBean(mbean, on);
+            registered.add(on);
+        } catch (JMException e) {
+            throw new IllegalStateException("Can not register " + objectName, e);
+        }
+    }
+}
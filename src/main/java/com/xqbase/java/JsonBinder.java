@@ -0,0 +1,915 @@
+package com.xqbase.java;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Primitives;
+import com.google.common.reflect.TypeToken;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reads and writes the JSON form of one type. Binders are built once per type and
+ * cached; object binders access fields through method handles resolved when the
+ * binder is built, so binding a value involves no reflection lookups.
+ */
+abstract class JsonBinder {
+
+    private static final ConcurrentMap<Type, JsonBinder> BINDERS = new ConcurrentHashMap<Type, JsonBinder>();
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    /**
+     * Read a value, the reader is positioned on its first token
+     */
+    abstract Object read(JsonReader reader) throws IOException;
+
+    /**
+     * Write a non null value
+     */
+    abstract void write(JsonWriter writer, Object value) throws IOException;
+
+    /**
+     * Get the reader of the members of the arrays or objects this binder reads, so that
+     * a value can be bound one member at a time
+     * @return the member reader, null if the values are only read whole
+     */
+    Members members() {
+        return null;
+    }
+
+    /**
+     * Get the binder of the given type, building it on first use
+     */
+    static JsonBinder of(Type type) {
+        JsonBinder binder = BINDERS.get(type);
+        if (binder == null) {
+            binder = create(type);
+            JsonBinder existing = BINDERS.putIfAbsent(type, binder);
+            if (existing != null) {
+                binder = existing;
+            }
+        }
+        return binder;
+    }
+
+    static void writeNullable(JsonWriter writer, JsonBinder binder, Object value) throws IOException {
+        if (value == null) {
+            writer.nullValue();
+        } else {
+            binder.write(writer, value);
+        }
+    }
+
+    private static JsonBinder create(Type type) {
+        if (type instanceof WildcardType) {
+            return of(((WildcardType) type).getUpperBounds()[0]);
+        }
+        if (type instanceof TypeVariable) {
+            Type[] bounds = ((TypeVariable<?>) type).getBounds();
+            return of(bounds.length == 0 ? Object.class : bounds[0]);
+        }
+        if (type instanceof GenericArrayType) {
+            return new ArrayBinder(((GenericArrayType) type).getGenericComponentType());
+        }
+
+        Class<?> raw = TypeToken.of(type).getRawType();
+        JsonBinder scalar = scalar(Primitives.wrap(raw));
+        if (scalar != null) {
+            return scalar;
+        }
+        if (raw == Object.class) {
+            return ANY;
+        }
+        if (raw == byte[].class) {
+            return BYTES;
+        }
+        if (raw.isArray()) {
+            return new ArrayBinder(raw.getComponentType());
+        }
+        if (raw.isEnum()) {
+            return new EnumBinder(raw);
+        }
+        if (Collection.class.isAssignableFrom(raw)) {
+            return new CollectionBinder(raw, typeArgument(type, Collection.class, 0));
+        }
+        if (Map.class.isAssignableFrom(raw)) {
+            return new MapBinder(raw, typeArgument(type, Map.class, 0), typeArgument(type, Map.class, 1));
+        }
+        return new ObjectBinder(type, raw);
+    }
+
+    private static JsonBinder scalar(Class<?> wrapped) {
+        if (wrapped == String.class) {
+            return STRING;
+        } else if (wrapped == Integer.class) {
+            return INT;
+        } else if (wrapped == Long.class) {
+            return LONG;
+        } else if (wrapped == Double.class) {
+            return DOUBLE;
+        } else if (wrapped == Boolean.class) {
+            return BOOLEAN;
+        } else if (wrapped == Float.class) {
+            return FLOAT;
+        } else if (wrapped == Short.class) {
+            return SHORT;
+        } else if (wrapped == Byte.class) {
+            return BYTE;
+        } else if (wrapped == Character.class) {
+            return CHAR;
+        } else if (wrapped == BigDecimal.class) {
+            return BIG_DECIMAL;
+        } else if (wrapped == BigInteger.class) {
+            return BIG_INTEGER;
+        }
+        return null;
+    }
+
+    static Type typeArgument(Type type, Class<?> supertype, int index) {
+        if (type instanceof Class) {
+            return Object.class;
+        }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Type resolved = ((TypeToken) TypeToken.of(type)).getSupertype(supertype).getType();
+        return resolved instanceof ParameterizedType
+                ? ((ParameterizedType) resolved).getActualTypeArguments()[index] : Object.class;
+    }
+
+    /**
+     * Binds an array or an object one member at a time
+     */
+    abstract static class Members {
+
+        /**
+         * @return true if the values are JSON objects, false if they are arrays
+         */
+        abstract boolean isObject();
+
+        /**
+         * Create the container the members are read into
+         */
+        abstract Object begin() throws IOException;
+
+        /**
+         * Read a member into the container, the reader is positioned on the member's value
+         * @param name the name of an object member, null for an array element
+         */
+        abstract void read(JsonReader reader, Object container, String name) throws IOException;
+
+        /**
+         * @return the value once every member is read into the container
+         */
+        Object end(Object container) {
+            return container;
+        }
+    }
+
+    /**
+     * Binder reading nulls itself, returning null for them
+     */
+    private abstract static class NullableBinder extends JsonBinder {
+
+        @Override
+        Object read(JsonReader reader) throws IOException {
+            return reader.nextNullIf() ? null : readValue(reader);
+        }
+
+        abstract Object readValue(JsonReader reader) throws IOException;
+    }
+
+    static final JsonBinder STRING = new NullableBinder() {
+        @Override
+        Object readValue(JsonReader reader) throws IOException {
+            int c = reader.peek();
+            if (c == '"') {
+                return reader.nextString();
+            }
+            return c == 't' || c == 'f' ? String.valueOf(reader.nextBoolean()) : reader.nextNumberString();
+        }
+
+        @Override
+        void write(JsonWriter writer, Object value) throws IOException {
+            writer.value((String) value);
+        }
+    };
+
+    static final JsonBinder INT = new NullableBinder() {
+        @Override
+        Object readValue(JsonReader reader) throws IOException {
+            return reader.nextInt();
+        }
+
+        @Override
+        void write(JsonWriter writer, Object value) throws IOException {
+            writer.value(((Integer) value).longValue());
+        }
+    };
+
+    static final JsonBinder LONG = new NullableBinder() {
+        @Override
+        Object readValue(JsonReader reader) throws IOException {
+            return reader.nextLong();
+        }
+
+        @Override
+        void write(JsonWriter writer, Object value) throws IOException {
+            writer.value(((Long) value).longValue());
+        }
+    };
+
+    static final JsonBinder DOUBLE = new NullableBinder() {
+        @Override
+        Object readValue(JsonReader reader) throws IOException {
+            return reader.nextDouble();
+        }
+
+        @Override
+        void write(JsonWriter writer, Object value) throws IOException {
+            writer.value(((Double) value).doubleValue());
+        }
+    };
+
+    static final JsonBinder BOOLEAN = new NullableBinder() {
+        @Override
+        Object readValue(JsonReader reader) throws IOException {
+            return reader.nextBoolean();
+        }
+
+        @Override
+        void write(JsonWriter writer, Object value) throws IOException {
+            writer.value(((Boolean) value).booleanValue());
+        }
+    };
+
+    static final JsonBinder FLOAT = new NullableBinder() {
+        @Override
+        Object readValue(JsonReader reader) throws IOException {
+            return (float) reader.nextDouble();
+        }
+
+        @Override
+        void write(JsonWriter writer, Object value) throws IOException {
+            writer.rawNumber(value.toString());
+        }
+    };
+
+    static final JsonBinder SHORT = new NullableBinder() {
+        @Override
+        Object readValue(JsonReader reader) throws IOException {
+            return (short) reader.nextLong(Short.MIN_VALUE, Short.MAX_VALUE);
+        }
+
+        @Override
+        void write(JsonWriter writer, Object value) throws IOException {
+            writer.value(((Short) value).longValue());
+        }
+    };
+
+    static final JsonBinder BYTE = new NullableBinder() {
+        @Override
+        Object readValue(JsonReader reader) throws IOException {
+            return (byte) reader.nextLong(Byte.MIN_VALUE, Byte.MAX_VALUE);
+        }
+
+        @Override
+        void write(JsonWriter writer, Object value) throws IOException {
+            writer.value(((Byte) value).longValue());
+        }
+    };
+
+    static final JsonBinder CHAR = new NullableBinder() {
+        @Override
+        Object readValue(JsonReader reader) throws IOException {
+            String s = reader.nextString();
+            return s.isEmpty() ? '\0' : s.charAt(0);
+        }
+
+        @Override
+        void write(JsonWriter writer, Object value) throws IOException {
+            writer.value(value.toString());
+        }
+    };
+
+    static final JsonBinder BIG_DECIMAL = new NullableBinder() {
+        @Override
+        Object readValue(JsonReader reader) throws IOException {
+            return new BigDecimal(reader.nextNumberString());
+        }
+
+        @Override
+        void write(JsonWriter writer, Object value) throws IOException {
+            writer.rawNumber(((BigDecimal) value).toString());
+        }
+    };
+
+    static final JsonBinder BIG_INTEGER = new NullableBinder() {
+        @Override
+        Object readValue(JsonReader reader) throws IOException {
+            return new BigInteger(reader.nextNumberString());
+        }
+
+        @Override
+        void write(JsonWriter writer, Object value) throws IOException {
+            writer.rawNumber(value.toString());
+        }
+    };
+
+    /**
+     * Byte arrays are written as base64 strings
+     */
+    static final JsonBinder BYTES = new NullableBinder() {
+        @Override
+        Object readValue(JsonReader reader) throws IOException {
+            if (reader.peek() == '[') {
+                return ARRAY_OF_BYTES.readValue(reader);
+            }
+            try {
+                return BaseEncoding.base64().decode(reader.nextString());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed base64 value", e);
+            }
+        }
+
+        @Override
+        void write(JsonWriter writer, Object value) throws IOException {
+            writer.value(BaseEncoding.base64().encode((byte[]) value));
+        }
+    };
+
+    private static final ArrayBinder ARRAY_OF_BYTES = new ArrayBinder(byte.class);
+
+    /**
+     * Reads the generic model of {@link JsonReader#readValue()}, writes values by their runtime class
+     */
+    static final JsonBinder ANY = new JsonBinder() {
+        @Override
+        Object read(JsonReader reader) throws IOException {
+            return reader.readValue();
+        }
+
+        @Override
+        void write(JsonWriter writer, Object value) throws IOException {
+            if (value.getClass() == Object.class) {
+                writer.beginObject();
+                writer.endObject();
+            } else {
+                of(value.getClass()).write(writer, value);
+            }
+        }
+    };
+
+    private static class EnumBinder extends NullableBinder {
+
+        private final Map<String, Object> constants = new HashMap<String, Object>();
+        private final Class<?> enumClass;
+
+        EnumBinder(Class<?> enumClass) {
+            this.enumClass = enumClass;
+            for (Object constant : enumClass.getEnumConstants()) {
+                constants.put(((Enum<?>) constant).name(), constant);
+            }
+        }
+
+        @Override
+        Object readValue(JsonReader reader) throws IOException {
+            String name = reader.nextString();
+            Object constant = constants.get(name);
+            if (constant == null) {
+                throw new IOException("No constant " + name + " in " + enumClass.getName());
+            }
+            return constant;
+        }
+
+        @Override
+        void write(JsonWriter writer, Object value) throws IOException {
+            writer.value(((Enum<?>) value).name());
+        }
+    }
+
+    private static class ArrayBinder extends NullableBinder {
+
+        private final Type componentType;
+        private final Class<?> componentClass;
+        private JsonBinder component;
+
+        ArrayBinder(Type componentType) {
+            this.componentType = componentType;
+            this.componentClass = TypeToken.of(componentType).getRawType();
+        }
+
+        private JsonBinder component() {
+            JsonBinder binder = component;
+            if (binder == null) {
+                binder = component = of(componentType);
+            }
+            return binder;
+        }
+
+        @Override
+        Object readValue(JsonReader reader) throws IOException {
+            JsonBinder binder = component();
+            List<Object> elements = new ArrayList<Object>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                elements.add(binder.read(reader));
+            }
+            reader.endArray();
+            return toArray(elements);
+        }
+
+        @Override
+        Members members() {
+            return new Members() {
+                @Override
+                boolean isObject() {
+                    return false;
+                }
+
+                @Override
+                Object begin() {
+                    return new ArrayList<Object>();
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                void read(JsonReader reader, Object container, String name) throws IOException {
+                    ((List<Object>) container).add(component().read(reader));
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                Object end(Object container) {
+                    return toArray((List<Object>) container);
+                }
+            };
+        }
+
+        private Object toArray(List<Object> elements) {
+            Object array = Array.newInstance(componentClass, elements.size());
+            for (int i = 0; i < elements.size(); i++) {
+                Object element = elements.get(i);
+                if (element != null || !componentClass.isPrimitive()) {
+                    Array.set(array, i, element);
+                }
+            }
+            return array;
+        }
+
+        @Override
+        void write(JsonWriter writer, Object value) throws IOException {
+            JsonBinder binder = component();
+            writer.beginArray();
+            if (value instanceof Object[]) {
+                for (Object element : (Object[]) value) {
+                    writeNullable(writer, binder, element);
+                }
+            } else {
+                int len = Array.getLength(value);
+                for (int i = 0; i < len; i++) {
+                    binder.write(writer, Array.get(value, i));
+                }
+            }
+            writer.endArray();
+        }
+    }
+
+    private static class CollectionBinder extends NullableBinder {
+
+        private final Class<?> raw;
+        private final Type elementType;
+        private final MethodHandle constructor;
+        private JsonBinder element;
+
+        CollectionBinder(Class<?> raw, Type elementType) {
+            this.raw = raw;
+            this.elementType = elementType;
+            this.constructor = raw.isInterface() || Modifier.isAbstract(raw.getModifiers()) ? null : constructor(raw);
+        }
+
+        private JsonBinder element() {
+            JsonBinder binder = element;
+            if (binder == null) {
+                binder = element = of(elementType);
+            }
+            return binder;
+        }
+
+        @Override
+        Object readValue(JsonReader reader) throws IOException {
+            Collection<Object> collection = newCollection();
+            JsonBinder binder = element();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                collection.add(binder.read(reader));
+            }
+            reader.endArray();
+            return collection;
+        }
+
+        @Override
+        Members members() {
+            return new Members() {
+                @Override
+                boolean isObject() {
+                    return false;
+                }
+
+                @Override
+                Object begin() throws IOException {
+                    return newCollection();
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                void read(JsonReader reader, Object container, String name) throws IOException {
+                    ((Collection<Object>) container).add(element().read(reader));
+                }
+            };
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Collection<Object> newCollection() throws IOException {
+            Collection<Object> collection;
+            if (constructor != null) {
+                collection = (Collection<Object>) newInstance(constructor, raw);
+            } else if (EnumSet.class.isAssignableFrom(raw)) {
+                collection = (Collection) EnumSet.noneOf((Class<Enum>) TypeToken.of(elementType).getRawType());
+            } else if (SortedSet.class.isAssignableFrom(raw)) {
+                collection = new TreeSet<Object>();
+            } else if (Set.class.isAssignableFrom(raw)) {
+                collection = new LinkedHashSet<Object>();
+            } else {
+                collection = new ArrayList<Object>();
+            }
+            return collection;
+        }
+
+        @Override
+        void write(JsonWriter writer, Object value) throws IOException {
+            JsonBinder binder = element();
+            writer.beginArray();
+            if (value instanceof List && value instanceof RandomAccess) {
+                List<?> list = (List<?>) value;
+                for (int i = 0, size = list.size(); i < size; i++) {
+                    writeNullable(writer, binder, list.get(i));
+                }
+            } else {
+                for (Object element : (Collection<?>) value) {
+                    writeNullable(writer, binder, element);
+                }
+            }
+            writer.endArray();
+        }
+    }
+
+    private static class MapBinder extends NullableBinder {
+
+        private final Class<?> raw;
+        private final Type keyType;
+        private final Type valueType;
+        private final boolean convertKeys;
+        private final MethodHandle constructor;
+        private JsonBinder value;
+
+        MapBinder(Class<?> raw, Type keyType, Type valueType) {
+            this.raw = raw;
+            this.keyType = keyType;
+            this.valueType = valueType;
+            this.convertKeys = keyType != String.class && keyType != Object.class;
+            this.constructor = raw.isInterface() || Modifier.isAbstract(raw.getModifiers()) ? null : constructor(raw);
+        }
+
+        @Override
+        Object readValue(JsonReader reader) throws IOException {
+            Map<Object, Object> map = newMap();
+            JsonBinder valueBinder = valueBinder();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                map.put(readKey(name), valueBinder.read(reader));
+            }
+            reader.endObject();
+            return map;
+        }
+
+        @Override
+        Members members() {
+            return new Members() {
+                @Override
+                boolean isObject() {
+                    return true;
+                }
+
+                @Override
+                Object begin() throws IOException {
+                    return newMap();
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                void read(JsonReader reader, Object container, String name) throws IOException {
+                    ((Map<Object, Object>) container).put(readKey(name), valueBinder().read(reader));
+                }
+            };
+        }
+
+        @SuppressWarnings("unchecked")
+        private Map<Object, Object> newMap() throws IOException {
+            if (constructor != null) {
+                return (Map<Object, Object>) newInstance(constructor, raw);
+            } else if (SortedMap.class.isAssignableFrom(raw)) {
+                return new TreeMap<Object, Object>();
+            }
+            return new LinkedHashMap<Object, Object>();
+        }
+
+        @Override
+        void write(JsonWriter writer, Object obj) throws IOException {
+            JsonBinder valueBinder = valueBinder();
+            writer.beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) obj).entrySet()) {
+                Object k = entry.getKey();
+                writer.name(k instanceof Enum ? ((Enum<?>) k).name() : String.valueOf(k));
+                writeNullable(writer, valueBinder, entry.getValue());
+            }
+            writer.endObject();
+        }
+
+        /**
+         * Keys are member names, convert them like any other string value
+         */
+        private Object readKey(String name) throws IOException {
+            return convertKeys ? ValueMapper.fromValue(name, keyType) : name;
+        }
+
+        private JsonBinder valueBinder() {
+            JsonBinder binder = value;
+            if (binder == null) {
+                binder = value = of(valueType);
+            }
+            return binder;
+        }
+    }
+
+    /**
+     * Binds the non-static, non-transient fields of a class
+     */
+    private static class ObjectBinder extends JsonBinder {
+
+        private final Class<?> raw;
+        private final MethodHandle constructor;
+        private final FieldBinding[] fields;
+        private final Map<String, FieldBinding> fieldsByName = new HashMap<String, FieldBinding>();
+
+        ObjectBinder(Type type, Class<?> raw) {
+            this.raw = raw;
+            this.constructor = constructor(raw);
+            List<FieldBinding> bindings = new ArrayList<FieldBinding>();
+            TypeToken<?> token = TypeToken.of(type);
+            for (Class<?> c = raw; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()
+                            || fieldsByName.containsKey(field.getName())) {
+                        continue;
+                    }
+                    FieldBinding binding = new FieldBinding(field, token.resolveType(field.getGenericType()).getType());
+                    bindings.add(binding);
+                    fieldsByName.put(field.getName(), binding);
+                }
+            }
+            this.fields = bindings.toArray(new FieldBinding[bindings.size()]);
+        }
+
+        @Override
+        Object read(JsonReader reader) throws IOException {
+            if (reader.nextNullIf()) {
+                return null;
+            }
+
+            Object obj = newInstance(constructor, raw);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                readField(reader, obj, reader.nextName());
+            }
+            reader.endObject();
+            return obj;
+        }
+
+        private void readField(JsonReader reader, Object obj, String name) throws IOException {
+            FieldBinding field = fieldsByName.get(name);
+            if (field == null) {
+                reader.skipValue();
+            } else {
+                field.read(reader, obj);
+            }
+        }
+
+        @Override
+        Members members() {
+            return new Members() {
+                @Override
+                boolean isObject() {
+                    return true;
+                }
+
+                @Override
+                Object begin() throws IOException {
+                    return newInstance(constructor, raw);
+                }
+
+                @Override
+                void read(JsonReader reader, Object container, String name) throws IOException {
+                    readField(reader, container, name);
+                }
+            };
+        }
+
+        @Override
+        void write(JsonWriter writer, Object obj) throws IOException {
+            writer.beginObject();
+            for (FieldBinding field : fields) {
+                field.write(writer, obj);
+            }
+            writer.endObject();
+        }
+    }
+
+    /**
+     * A field accessed through method handles, primitives of the common types are
+     * read and written without boxing
+     */
+    private static class FieldBinding {
+
+        private static final int OBJECT = 0;
+        private static final int INT = 1;
+        private static final int LONG = 2;
+        private static final int DOUBLE = 3;
+        private static final int BOOLEAN = 4;
+
+        private final Type type;
+        private final byte[] encodedName;
+        private final int kind;
+        private final boolean primitive;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+        private JsonBinder binder;
+
+        FieldBinding(Field field, Type type) {
+            this.type = type;
+            this.encodedName = JsonWriter.encodeName(field.getName());
+            Class<?> fieldType = field.getType();
+            this.kind = fieldType == int.class ? INT : fieldType == long.class ? LONG
+                    : fieldType == double.class ? DOUBLE : fieldType == boolean.class ? BOOLEAN : OBJECT;
+            this.primitive = fieldType.isPrimitive();
+            Class<?> handleType = kind == OBJECT ? Object.class : fieldType;
+
+            field.setAccessible(true);
+            try {
+                this.getter = LOOKUP.unreflectGetter(field)
+                        .asType(MethodType.methodType(handleType, Object.class));
+                MethodHandle set;
+                if (Modifier.isFinal(field.getModifiers())) {
+                    // Final fields can only be set reflectively
+                    set = LOOKUP.findVirtual(Field.class, "set", MethodType.methodType(void.class, Object.class, Object.class))
+                            .bindTo(field);
+                } else {
+                    set = LOOKUP.unreflectSetter(field);
+                }
+                this.setter = set.asType(MethodType.methodType(void.class, Object.class, handleType));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("Can not bind field " + field, e);
+            }
+        }
+
+        private JsonBinder binder() {
+            JsonBinder b = binder;
+            if (b == null) {
+                b = binder = of(type);
+            }
+            return b;
+        }
+
+        void read(JsonReader reader, Object obj) throws IOException {
+            try {
+                switch (kind) {
+                    case INT:
+                        if (!reader.nextNullIf()) {
+                            setter.invokeExact(obj, reader.nextInt());
+                        }
+                        break;
+                    case LONG:
+                        if (!reader.nextNullIf()) {
+                            setter.invokeExact(obj, reader.nextLong());
+                        }
+                        break;
+                    case DOUBLE:
+                        if (!reader.nextNullIf()) {
+                            setter.invokeExact(obj, reader.nextDouble());
+                        }
+                        break;
+                    case BOOLEAN:
+                        if (!reader.nextNullIf()) {
+                            setter.invokeExact(obj, reader.nextBoolean());
+                        }
+                        break;
+                    default:
+                        Object value = binder().read(reader);
+                        if (value != null || !primitive) {
+                            setter.invokeExact(obj, value);
+                        }
+                }
+            } catch (IOException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IOException("Can not set " + new String(encodedName, "UTF-8"), t);
+            }
+        }
+
+        void write(JsonWriter writer, Object obj) throws IOException {
+            try {
+                switch (kind) {
+                    case INT:
+                        writer.name(encodedName);
+                        writer.value((long) (int) getter.invokeExact(obj));
+                        break;
+                    case LONG:
+                        writer.name(encodedName);
+                        writer.value((long) getter.invokeExact(obj));
+                        break;
+                    case DOUBLE:
+                        writer.name(encodedName);
+                        writer.value((double) getter.invokeExact(obj));
+                        break;
+                    case BOOLEAN:
+                        writer.name(encodedName);
+                        writer.value((boolean) getter.invokeExact(obj));
+                        break;
+                    default:
+                        Object value = (Object) getter.invokeExact(obj);
+                        writer.name(encodedName);
+                        writeNullable(writer, binder(), value);
+                }
+            } catch (IOException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IOException("Can not get " + new String(encodedName, "UTF-8"), t);
+            }
+        }
+    }
+
+    static MethodHandle constructor(Class<?> raw) {
+        try {
+            Constructor<?> constructor = raw.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return LOOKUP.unreflectConstructor(constructor).asType(MethodType.methodType(Object.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static Object newInstance(MethodHandle constructor, Class<?> raw) throws IOException {
+        if (constructor == null) {
+            throw new IOException("No default constructor for " + raw.getName());
+        }
+        try {
+            return (Object) constructor.invokeExact();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IOException("Can not instantiate " + raw.getName(), t);
+        }
+    }
+}
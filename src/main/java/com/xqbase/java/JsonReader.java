@@ -0,0 +1,587 @@
+package com.xqbase.java;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pull parser reading UTF-8 JSON straight from the bytes of a stream or an array.
+ * The read and string buffers are recycled per thread, so parsing a body allocates
+ * little more than the values it returns.
+ */
+class JsonReader {
+
+    static final int END = -1;
+    private static final int MAX_DEPTH = 512;
+
+    private static final ThreadLocal<byte[]> BYTES = new ThreadLocal<byte[]>();
+    private static final ThreadLocal<char[]> CHARS = new ThreadLocal<char[]>();
+
+    private final InputStream in;
+    private byte[] buf;
+    private final boolean recycled;
+    private int pos;
+    private int limit;
+    private char[] chars;
+    private boolean expectComma = false;
+    private int depth = 0;
+
+    JsonReader(InputStream in) {
+        this.in = in;
+        byte[] bytes = BYTES.get();
+        if (bytes != null) {
+            BYTES.set(null);
+        } else {
+            bytes = new byte[AsyncClient.DEFAULT_BUFFER_SIZE];
+        }
+        this.buf = bytes;
+        this.recycled = true;
+        acquireChars();
+    }
+
+    /**
+     * Read from an array without copying it
+     */
+    JsonReader(byte[] bytes, int offset, int length) {
+        this.in = null;
+        this.buf = bytes;
+        this.recycled = false;
+        this.pos = offset;
+        this.limit = offset + length;
+        acquireChars();
+    }
+
+    private void acquireChars() {
+        char[] c = CHARS.get();
+        if (c != null) {
+            CHARS.set(null);
+        } else {
+            c = new char[256];
+        }
+        this.chars = c;
+    }
+
+    /**
+     * Hand the buffers back to the thread for the next reader
+     */
+    void release() {
+        if (recycled && buf != null) {
+            BYTES.set(buf);
+        }
+        if (chars != null && chars.length <= AsyncClient.DEFAULT_BUFFER_SIZE) {
+            CHARS.set(chars);
+        }
+        buf = null;
+        chars = null;
+    }
+
+    /**
+     * Get the first character of the next token without consuming it
+     * @return the character, or {@link #END} at the end of the input
+     */
+    int peek() throws IOException {
+        for (;;) {
+            if (pos == limit && !fill()) {
+                return END;
+            }
+            int c = buf[pos] & 0xFF;
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                pos++;
+            } else {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Whether the current object or array has another element, consuming the separating comma
+     */
+    boolean hasNext() throws IOException {
+        int c = peek();
+        if (c == '}' || c == ']') {
+            return false;
+        }
+        if (expectComma) {
+            if (c != ',') {
+                throw syntaxError("Expected ',' but found " + describe(c));
+            }
+            pos++;
+        }
+        return true;
+    }
+
+    void beginObject() throws IOException {
+        expect('{');
+        enter();
+    }
+
+    void endObject() throws IOException {
+        expect('}');
+        depth--;
+        expectComma = true;
+    }
+
+    void beginArray() throws IOException {
+        expect('[');
+        enter();
+    }
+
+    void endArray() throws IOException {
+        expect(']');
+        depth--;
+        expectComma = true;
+    }
+
+    String nextName() throws IOException {
+        String name = readString();
+        expect(':');
+        expectComma = false;
+        return name;
+    }
+
+    /**
+     * Consume a null if it is the next value
+     * @return true if a null was consumed
+     */
+    boolean nextNullIf() throws IOException {
+        if (peek() != 'n') {
+            return false;
+        }
+        literal("null");
+        expectComma = true;
+        return true;
+    }
+
+    String nextString() throws IOException {
+        String s = readString();
+        expectComma = true;
+        return s;
+    }
+
+    boolean nextBoolean() throws IOException {
+        int c = peek();
+        boolean value;
+        if (c == 't') {
+            literal("true");
+            value = true;
+        } else if (c == 'f') {
+            literal("false");
+            value = false;
+        } else if (c == '"') {
+            value = Boolean.parseBoolean(readString());
+        } else {
+            throw syntaxError("Expected a boolean but found " + describe(c));
+        }
+        expectComma = true;
+        return value;
+    }
+
+    long nextLong() throws IOException {
+        int c = peek();
+        if (c == '"') {
+            String s = readString();
+            expectComma = true;
+            try {
+                return Long.parseLong(s);
+            } catch (NumberFormatException e) {
+                throw syntaxError("Expected a number but found \"" + s + "\"");
+            }
+        }
+
+        int len = readNumber();
+        expectComma = true;
+        return isIntegral(len) ? parseLong(len) : parseIntegralDecimal(len);
+    }
+
+    int nextInt() throws IOException {
+        return (int) nextLong(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Read the next integer, which must be within the range of the narrower type it is bound to
+     */
+    long nextLong(long min, long max) throws IOException {
+        long value = nextLong();
+        if (value < min || value > max) {
+            throw syntaxError("Integer out of range " + value);
+        }
+        return value;
+    }
+
+    double nextDouble() throws IOException {
+        int c = peek();
+        if (c == '"') {
+            String s = readString();
+            expectComma = true;
+            try {
+                return Double.parseDouble(s);
+            } catch (NumberFormatException e) {
+                throw syntaxError("Expected a number but found \"" + s + "\"");
+            }
+        }
+
+        int len = readNumber();
+        expectComma = true;
+        // Integers of up to 15 digits are exact in a double
+        return len <= 15 && isIntegral(len) ? parseLong(len) : parseDouble(len);
+    }
+
+    /**
+     * Read the next number as it is written
+     */
+    String nextNumberString() throws IOException {
+        String s;
+        if (peek() == '"') {
+            s = readString();
+        } else {
+            int len = readNumber();
+            s = new String(chars, 0, len);
+        }
+        expectComma = true;
+        return s;
+    }
+
+    void skipValue() throws IOException {
+        int c = peek();
+        switch (c) {
+            case '{':
+                beginObject();
+                while (hasNext()) {
+                    nextName();
+                    skipValue();
+                }
+                endObject();
+                break;
+            case '[':
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+                break;
+            case '"':
+                nextString();
+                break;
+            case 't':
+            case 'f':
+                nextBoolean();
+                break;
+            case 'n':
+                nextNullIf();
+                break;
+            default:
+                readNumber();
+                expectComma = true;
+        }
+    }
+
+    /**
+     * Read the next value as null, {@link String}, {@link Boolean}, {@link Long},
+     * {@link Double}, {@link List} or {@link Map}
+     */
+    Object readValue() throws IOException {
+        int c = peek();
+        switch (c) {
+            case '{':
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                beginObject();
+                while (hasNext()) {
+                    String name = nextName();
+                    map.put(name, readValue());
+                }
+                endObject();
+                return map;
+            case '[':
+                List<Object> list = new ArrayList<Object>();
+                beginArray();
+                while (hasNext()) {
+                    list.add(readValue());
+                }
+                endArray();
+                return list;
+            case '"':
+                return nextString();
+            case 't':
+            case 'f':
+                return nextBoolean();
+            case 'n':
+                nextNullIf();
+                return null;
+            default:
+                int len = readNumber();
+                expectComma = true;
+                if (isIntegral(len)) {
+                    return parseLong(len);
+                }
+                return parseDouble(len);
+        }
+    }
+
+    /**
+     * Fail unless only whitespace is left
+     */
+    void expectEnd() throws IOException {
+        int c = peek();
+        if (c != END) {
+            throw syntaxError("Expected the end of the input but found " + describe(c));
+        }
+    }
+
+    private void enter() throws IOException {
+        if (++depth > MAX_DEPTH) {
+            throw syntaxError("JSON nested too deeply");
+        }
+        expectComma = false;
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = peek();
+        if (c != expected) {
+            throw syntaxError("Expected '" + expected + "' but found " + describe(c));
+        }
+        pos++;
+    }
+
+    private void literal(String literal) throws IOException {
+        for (int i = 0; i < literal.length(); i++) {
+            if (pos == limit && !fill() || buf[pos] != literal.charAt(i)) {
+                throw syntaxError("Expected " + literal);
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Copy the characters of a number token into the char buffer
+     * @return the length of the token
+     */
+    private int readNumber() throws IOException {
+        int len = 0;
+        peek();
+        for (;;) {
+            if (pos == limit && !fill()) {
+                break;
+            }
+            int c = buf[pos];
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                if (len == chars.length) {
+                    chars = Arrays.copyOf(chars, len * 2);
+                }
+                chars[len++] = (char) c;
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if (len == 0) {
+            throw syntaxError("Expected a value but found " + describe(peek()));
+        }
+        return len;
+    }
+
+    private boolean isIntegral(int len) {
+        int i = chars[0] == '-' ? 1 : 0;
+        if (i == len) {
+            return false;
+        }
+        for (; i < len; i++) {
+            if (chars[i] < '0' || chars[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long parseLong(int len) throws IOException {
+        boolean negative = chars[0] == '-';
+        int start = negative ? 1 : 0;
+        if (len - start > 18) {
+            try {
+                return Long.parseLong(new String(chars, 0, len));
+            } catch (NumberFormatException e) {
+                throw syntaxError("Integer out of range " + new String(chars, 0, len));
+            }
+        }
+
+        long value = 0;
+        for (int i = start; i < len; i++) {
+            value = value * 10 + (chars[i] - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse a number written with a fraction or an exponent which must still be an integer, e.g. 1.0 or 1e3
+     */
+    private long parseIntegralDecimal(int len) throws IOException {
+        String s = new String(chars, 0, len);
+        BigDecimal value;
+        try {
+            value = new BigDecimal(s);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Malformed number " + s);
+        }
+        try {
+            return value.longValueExact();
+        } catch (ArithmeticException e) {
+            throw syntaxError("Expected an integer in range but found " + s);
+        }
+    }
+
+    private double parseDouble(int len) throws IOException {
+        try {
+            return Double.parseDouble(new String(chars, 0, len));
+        } catch (NumberFormatException e) {
+            throw syntaxError("Malformed number " + new String(chars, 0, len));
+        }
+    }
+
+    private String readString() throws IOException {
+        expect('"');
+        int len = 0;
+        char[] out = chars;
+        for (;;) {
+            if (pos == limit && !fill()) {
+                throw syntaxError("Unterminated string");
+            }
+
+            // Copy plain ASCII without checking for escapes or multi-byte sequences
+            int end = limit;
+            int p = pos;
+            while (p < end) {
+                int b = buf[p];
+                if (b == '"' || b == '\\' || b < 0x20) {
+                    break;
+                }
+                if (len == out.length) {
+                    out = chars = Arrays.copyOf(out, len * 2);
+                }
+                out[len++] = (char) b;
+                p++;
+            }
+            pos = p;
+            if (p == end) {
+                continue;
+            }
+
+            int b = buf[pos++];
+            if (b == '"') {
+                return new String(out, 0, len);
+            }
+            if (len + 2 > out.length) {
+                out = chars = Arrays.copyOf(out, out.length * 2);
+            }
+            if (b == '\\') {
+                len = readEscape(out, len);
+            } else if (b >= 0) {
+                throw syntaxError("Unescaped control character in string");
+            } else {
+                len = readMultiByte(b & 0xFF, out, len);
+            }
+        }
+    }
+
+    private int readEscape(char[] out, int len) throws IOException {
+        int c = nextByte();
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                out[len++] = (char) c;
+                break;
+            case 'b':
+                out[len++] = '\b';
+                break;
+            case 'f':
+                out[len++] = '\f';
+                break;
+            case 'n':
+                out[len++] = '\n';
+                break;
+            case 'r':
+                out[len++] = '\r';
+                break;
+            case 't':
+                out[len++] = '\t';
+                break;
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int h = Character.digit(nextByte(), 16);
+                    if (h < 0) {
+                        throw syntaxError("Malformed unicode escape");
+                    }
+                    value = value << 4 | h;
+                }
+                out[len++] = (char) value;
+                break;
+            default:
+                throw syntaxError("Invalid escape \\" + (char) c);
+        }
+        return len;
+    }
+
+    private int readMultiByte(int b, char[] out, int len) throws IOException {
+        int codePoint;
+        int extra;
+        if ((b & 0xE0) == 0xC0) {
+            codePoint = b & 0x1F;
+            extra = 1;
+        } else if ((b & 0xF0) == 0xE0) {
+            codePoint = b & 0x0F;
+            extra = 2;
+        } else if ((b & 0xF8) == 0xF0) {
+            codePoint = b & 0x07;
+            extra = 3;
+        } else {
+            throw syntaxError("Malformed UTF-8");
+        }
+        for (int i = 0; i < extra; i++) {
+            int next = nextByte();
+            if ((next & 0xC0) != 0x80) {
+                throw syntaxError("Malformed UTF-8");
+            }
+            codePoint = codePoint << 6 | (next & 0x3F);
+        }
+        if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            out[len++] = Character.highSurrogate(codePoint);
+            out[len++] = Character.lowSurrogate(codePoint);
+        } else {
+            out[len++] = (char) codePoint;
+        }
+        return len;
+    }
+
+    private int nextByte() throws IOException {
+        if (pos == limit && !fill()) {
+            throw syntaxError("Unexpected end of input");
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        if (in == null) {
+            return false;
+        }
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) {
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private static String describe(int c) {
+        return c == END ? "end of input" : "'" + (char) c + "'";
+    }
+
+    static IOException syntaxError(String message) {
+        return new IOException("Malformed JSON: " + message);
+    }
+}
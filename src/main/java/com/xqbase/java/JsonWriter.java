@@ -0,0 +1,315 @@
+package com.xqbase.java;
+
+import com.google.common.io.BaseEncoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes UTF-8 JSON into a per thread recycled buffer which is flushed to the stream
+ * whenever it fills up, so strings and numbers are encoded without intermediate copies.
+ */
+class JsonWriter {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] NULL = "null".getBytes();
+    private static final byte[] TRUE = "true".getBytes();
+    private static final byte[] FALSE = "false".getBytes();
+    private static final byte[] MIN_LONG = String.valueOf(Long.MIN_VALUE).getBytes();
+
+    private static final ThreadLocal<byte[]> BYTES = new ThreadLocal<byte[]>();
+
+    private final OutputStream out;
+    private byte[] buf;
+    private int pos = 0;
+    private boolean needComma = false;
+
+    JsonWriter(OutputStream out) {
+        this.out = out;
+        byte[] bytes = BYTES.get();
+        if (bytes != null) {
+            BYTES.set(null);
+        } else {
+            bytes = new byte[AsyncClient.DEFAULT_BUFFER_SIZE];
+        }
+        this.buf = bytes;
+    }
+
+    /**
+     * Write out what is buffered
+     */
+    void flush() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+
+    /**
+     * Hand the buffer back to the thread for the next writer
+     */
+    void release() {
+        if (buf != null) {
+            BYTES.set(buf);
+            buf = null;
+        }
+    }
+
+    void beginObject() throws IOException {
+        beforeValue();
+        put('{');
+        needComma = false;
+    }
+
+    void endObject() throws IOException {
+        put('}');
+        needComma = true;
+    }
+
+    void beginArray() throws IOException {
+        beforeValue();
+        put('[');
+        needComma = false;
+    }
+
+    void endArray() throws IOException {
+        put(']');
+        needComma = true;
+    }
+
+    /**
+     * Write a member name encoded in advance with {@link #encodeName(String)}
+     */
+    void name(byte[] encodedName) throws IOException {
+        beforeValue();
+        put(encodedName);
+        needComma = false;
+    }
+
+    void name(String name) throws IOException {
+        beforeValue();
+        string(name);
+        put(':');
+        needComma = false;
+    }
+
+    void nullValue() throws IOException {
+        beforeValue();
+        put(NULL);
+    }
+
+    void value(boolean value) throws IOException {
+        beforeValue();
+        put(value ? TRUE : FALSE);
+    }
+
+    void value(long value) throws IOException {
+        beforeValue();
+        if (value == Long.MIN_VALUE) {
+            put(MIN_LONG);
+            return;
+        }
+
+        ensure(20);
+        if (value < 0) {
+            buf[pos++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int end = pos + digits;
+        for (int i = end - 1; i >= pos; i--) {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        pos = end;
+    }
+
+    void value(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            nullValue();
+        } else if (value == (long) value && Math.abs(value) < 1e15) {
+            value((long) value);
+        } else {
+            beforeValue();
+            String s = Double.toString(value);
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                buf[pos++] = (byte) s.charAt(i);
+            }
+        }
+    }
+
+    /**
+     * Write a number as it is written in the given string
+     */
+    void rawNumber(String number) throws IOException {
+        beforeValue();
+        ensure(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            buf[pos++] = (byte) number.charAt(i);
+        }
+    }
+
+    void value(String value) throws IOException {
+        if (value == null) {
+            nullValue();
+            return;
+        }
+        beforeValue();
+        string(value);
+    }
+
+    /**
+     * Write a value of the generic model read by {@link JsonReader#readValue()}
+     */
+    void value(Object value) throws IOException {
+        if (value == null) {
+            nullValue();
+        } else if (value instanceof String) {
+            value((String) value);
+        } else if (value instanceof Boolean) {
+            value(((Boolean) value).booleanValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            value(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            value(((Number) value).longValue());
+        } else if (value instanceof byte[]) {
+            value(BaseEncoding.base64().encode((byte[]) value));
+        } else if (value instanceof List) {
+            beginArray();
+            for (Object element : (List<?>) value) {
+                value(element);
+            }
+            endArray();
+        } else if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                name(String.valueOf(entry.getKey()));
+                value(entry.getValue());
+            }
+            endObject();
+        } else {
+            value(value.toString());
+        }
+    }
+
+    /**
+     * Encode a member name with its quotes and colon
+     */
+    static byte[] encodeName(String name) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(name.length() + 3);
+        JsonWriter writer = new JsonWriter(out);
+        try {
+            writer.string(name);
+            writer.put(':');
+            writer.flush();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            writer.release();
+        }
+    }
+
+    private void beforeValue() throws IOException {
+        if (needComma) {
+            put(',');
+        }
+        needComma = true;
+    }
+
+    private void string(String s) throws IOException {
+        int len = s.length();
+        // Up to 6 bytes per char for an escape, a quote on each side
+        ensure(Math.min(len * 6 + 2, buf.length));
+        buf[pos++] = '"';
+        for (int i = 0; i < len; i++) {
+            if (buf.length - pos < 12) {
+                flush();
+            }
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    buf[pos++] = (byte) c;
+                } else {
+                    escape(c);
+                }
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                escape(c);
+            } else {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        if (pos == buf.length) {
+            flush();
+        }
+        buf[pos++] = '"';
+    }
+
+    private void escape(char c) {
+        buf[pos++] = '\\';
+        switch (c) {
+            case '"':
+            case '\\':
+                buf[pos++] = (byte) c;
+                return;
+            case '\n':
+                buf[pos++] = 'n';
+                return;
+            case '\r':
+                buf[pos++] = 'r';
+                return;
+            case '\t':
+                buf[pos++] = 't';
+                return;
+            default:
+                buf[pos++] = 'u';
+                buf[pos++] = HEX[c >> 12 & 0xF];
+                buf[pos++] = HEX[c >> 8 & 0xF];
+                buf[pos++] = HEX[c >> 4 & 0xF];
+                buf[pos++] = HEX[c & 0xF];
+        }
+    }
+
+    private void put(int b) throws IOException {
+        if (pos == buf.length) {
+            flush();
+        }
+        buf[pos++] = (byte) b;
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        if (bytes.length > buf.length - pos) {
+            flush();
+            if (bytes.length > buf.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buf.length - pos < n) {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpHost;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the requests to a service over its endpoints with the power of two choices.
+ */
+class LoadBalancer {
+
+    private final LoadBalancerPolicy policy;
+    private final Endpoint[] endpoints;
+    private final long decayNanos;
+    private final long ejectNanos;
+    private final int maxEjected;
+    private final AtomicInteger ejected = new AtomicInteger();
+
+    public LoadBalancer(final List<HttpHost> hosts, final LoadBalancerPolicy policy) {
+        this.policy = policy;
+        this.endpoints = new Endpoint[hosts.size()];
+        for (int i = 0; i < endpoints.length; i++) {
+            endpoints[i] = new Endpoint(Routes.normalize(hosts.get(i)));
+        }
+        this.decayNanos = TimeUnit.MILLISECONDS.toNanos(policy.getDecayMillis());
+        this.ejectNanos = TimeUnit.MILLISECONDS.toNanos(policy.getEjectMillis());
+        this.maxEjected = endpoints.length * policy.getMaxEjectedPercent() / 100;
+    }
+
+    public List<HttpHost> getHosts() {
+        List<HttpHost> hosts = new ArrayList<HttpHost>(endpoints.length);
+        for (Endpoint endpoint : endpoints) {
+            hosts.add(endpoint.host);
+        }
+        return hosts;
+    }
+
+    public int getEjected() {
+        return ejected.get();
+    }
+
+    /**
+     * Pick the endpoint of the next request, which must be released once the request finishes
+     */
+    public Endpoint choose() {
+        Endpoint[] candidates = endpoints;
+        if (ejected.get() > 0) {
+            long now = System.nanoTime();
+            List<Endpoint> available = new ArrayList<Endpoint>(endpoints.length);
+            for (Endpoint endpoint : endpoints) {
+                if (!endpoint.isEjected(now)) {
+                    available.add(endpoint);
+                }
+            }
+            if (!available.isEmpty()) {
+                candidates = available.toArray(new Endpoint[available.size()]);
+            }
+        }
+
+        Endpoint chosen = candidates[0];
+        if (candidates.length > 1) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int i = random.nextInt(candidates.length);
+            int j = random.nextInt(candidates.length - 1);
+            if (j >= i) {
+                j++;
+            }
+            chosen = cheaper(candidates[i], candidates[j]);
+        }
+        chosen.inFlight.incrementAndGet();
+        return chosen;
+    }
+
+    /**
+     * Compare the requests in flight weighted by latency, an endpoint without samples yet
+     * is assumed to be as fast as the other one
+     */
+    private static Endpoint cheaper(Endpoint a, Endpoint b) {
+        double latencyA = a.latency > 0 ? a.latency : b.latency;
+        double latencyB = b.latency > 0 ? b.latency : a.latency;
+        if (latencyA == 0) {
+            return a.inFlight.get() <= b.inFlight.get() ? a : b;
+        }
+        return (a.inFlight.get() + 1) * latencyA <= (b.inFlight.get() + 1) * latencyB ? a : b;
+    }
+
+    class Endpoint {
+
+        private final HttpHost host;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        // Updated under the endpoint lock, the latency and ejection are read without it
+        private volatile double latency = 0;
+        private long lastSample;
+        private int failures = 0;
+        private volatile long ejectedUntil;
+        private volatile boolean down = false;
+
+        Endpoint(HttpHost host) {
+            this.host = host;
+        }
+
+        public HttpHost getHost() {
+            return host;
+        }
+
+        private boolean isEjected(long now) {
+            if (!down) {
+                return false;
+            }
+            if (now - ejectedUntil < 0) {
+                return true;
+            }
+            synchronized (this) {
+                if (down) {
+                    down = false;
+                    failures = 0;
+                    ejected.decrementAndGet();
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Feed the outcome of the request to the endpoint's latency and failure count
+         * @param result the result of the request, null if it failed
+         * @param failure the failure of the request, null if it completed
+         * @param nanos how long the request took
+         */
+        public void release(Object result, Throwable failure, long nanos) {
+            inFlight.decrementAndGet();
+            boolean failed;
+            if (failure instanceof CircuitBreakerOpenException) {
+                failed = true;
+            } else if (failure instanceof CancellationException || failure instanceof RejectedExecutionException) {
+                return;
+            } else {
+                failed = CircuitBreaker.isFailure(result, failure);
+            }
+
+            long now = System.nanoTime();
+            synchronized (this) {
+                if (!(failure instanceof CircuitBreakerOpenException)) {
+                    // Peak sensitive average, a slower sample is taken as is and decays afterwards
+                    if (latency == 0 || nanos > latency) {
+                        latency = nanos;
+                    } else {
+                        double weight = Math.exp(-(double) (now - lastSample) / decayNanos);
+                        latency = latency * weight + nanos * (1 - weight);
+                    }
+                    lastSample = now;
+                }
+
+                if (!failed) {
+                    failures = 0;
+                } else if (++failures >= policy.getConsecutiveFailures() && !down) {
+                    if (ejected.incrementAndGet() <= maxEjected) {
+                        down = true;
+                        ejectedUntil = now + ejectNanos;
+                    } else {
+                        ejected.decrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.xqbase.java;
+
+/**
+ * Configures how requests to a service are spread over its endpoints. Each request picks
+ * two endpoints at random and goes to the one with the lower cost, its requests in flight
+ * weighted by its decaying average latency, so slow endpoints get less traffic.
+ * Endpoints failing many times in a row are ejected for a while.
+ */
+public class LoadBalancerPolicy {
+
+    public static final int DEFAULT_DECAY_MILLIS = 10 * 1000;
+    public static final int DEFAULT_CONSECUTIVE_FAILURES = 5;
+    public static final int DEFAULT_EJECT_MILLIS = 30 * 1000;
+    public static final int DEFAULT_MAX_EJECTED_PERCENT = 50;
+
+    private int decayMillis = DEFAULT_DECAY_MILLIS;
+    private int consecutiveFailures = DEFAULT_CONSECUTIVE_FAILURES;
+    private int ejectMillis = DEFAULT_EJECT_MILLIS;
+    private int maxEjectedPercent = DEFAULT_MAX_EJECTED_PERCENT;
+
+    public int getDecayMillis() {
+        return decayMillis;
+    }
+
+    /**
+     * Set the time constant of the average latency, older samples weigh less the longer ago they were taken
+     * @param decayMillis decay time in milliseconds
+     */
+    public void setDecayMillis(int decayMillis) {
+        this.decayMillis = decayMillis < 1 ? DEFAULT_DECAY_MILLIS : decayMillis;
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Set how many requests in a row must fail to eject an endpoint. Requests fail on an I/O error,
+     * a server error status or an open circuit breaker.
+     * @param consecutiveFailures consecutive failures
+     */
+    public void setConsecutiveFailures(int consecutiveFailures) {
+        this.consecutiveFailures = consecutiveFailures < 1 ? DEFAULT_CONSECUTIVE_FAILURES : consecutiveFailures;
+    }
+
+    public int getEjectMillis() {
+        return ejectMillis;
+    }
+
+    /**
+     * Set how long an ejected endpoint gets no requests before it is put back
+     * @param ejectMillis ejection time in milliseconds
+     */
+    public void setEjectMillis(int ejectMillis) {
+        this.ejectMillis = ejectMillis < 1 ? DEFAULT_EJECT_MILLIS : ejectMillis;
+    }
+
+    public int getMaxEjectedPercent() {
+        return maxEjectedPercent;
+    }
+
+    /**
+     * Set the share of a service's endpoints which may be ejected at the same time
+     * @param maxEjectedPercent percentage between 0 and 100
+     */
+    public void setMaxEjectedPercent(int maxEjectedPercent) {
+        this.maxEjectedPercent = maxEjectedPercent < 0 || maxEjectedPercent > 100
+                ? DEFAULT_MAX_EJECTED_PERCENT : maxEjectedPercent;
+    }
+}
@@ -0,0 +1,24 @@
+package com.xqbase.java;
+
+/**
+ * Publishes the metrics of an {@link AsyncClient}, e.g. to JMX or a monitoring system
+ */
+public interface MetricsReporter {
+
+    /**
+     * Start reporting the given metrics
+     * @param metrics the client metrics
+     */
+    void start(ClientMetrics metrics);
+
+    /**
+     * Called when the client sends its first request to a route
+     * @param metrics the metrics of the new route
+     */
+    void routeAdded(RouteMetrics metrics);
+
+    /**
+     * Stop reporting, called when the client is closed
+     */
+    void stop();
+}
@@ -0,0 +1,324 @@
+package com.xqbase.java;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.protocol.RequestClientConnControl;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.UnsupportedSchemeException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncRequester;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.pool.ConnPool;
+import org.apache.http.pool.PoolEntry;
+import org.apache.http.protocol.HttpProcessorBuilder;
+import org.apache.http.protocol.RequestContent;
+import org.apache.http.protocol.RequestTargetHost;
+import org.apache.http.protocol.RequestUserAgent;
+import org.apache.http.util.VersionInfo;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends requests to a single route as pipelines, each written to one connection without
+ * waiting for the responses, which the server returns in the order of the requests.
+ * When a pipeline breaks, for instance because the server closes the connection after
+ * some of the responses, the requests left unanswered are sent again one by one.
+ * Pipelines lease their connections from the pool of the client and hand them back
+ * once the last response is read, so that they are kept alive like any other.
+ */
+class Pipeliner {
+
+    private final InstrumentedConnectionManager connManager;
+    private final HttpAsyncRequester requester;
+    private final ClientMetrics metrics;
+    private final AsyncFunction<HttpUriRequest, HttpResponse> fallback;
+
+    private final AtomicLong pipelines = new AtomicLong();
+    private final AtomicLong resent = new AtomicLong();
+
+    /**
+     * @param connManager the connection manager of the client, the pipelines lease its connections
+     * @param fallback sends a single request the usual way
+     */
+    public Pipeliner(final InstrumentedConnectionManager connManager, final ClientMetrics metrics,
+                     final AsyncFunction<HttpUriRequest, HttpResponse> fallback) {
+        this.connManager = connManager;
+        this.requester = new HttpAsyncRequester(HttpProcessorBuilder.create()
+                .add(new RequestContent())
+                .add(new RequestTargetHost())
+                .add(new RequestClientConnControl())
+                .add(new RequestUserAgent(VersionInfo.getUserAgent("Apache-HttpAsyncClient", "org.apache.http.nio.client", getClass())))
+                .build(), DefaultConnectionReuseStrategy.INSTANCE);
+        this.metrics = metrics;
+        this.fallback = fallback;
+    }
+
+    public long getPipelines() {
+        return pipelines.get();
+    }
+
+    public long getResent() {
+        return resent.get();
+    }
+
+    /**
+     * Send requests to the target as one pipeline, the requests must not go through a proxy
+     * @param config the configuration of the exchange, for its timeouts and local address
+     * @param decompress whether the responses are decoded
+     * @return future of the responses, in the order of the requests
+     */
+    public ListenableFuture<List<HttpResponse>> execute(HttpHost target, final List<HttpUriRequest> requests,
+                                                        RequestConfig config, boolean decompress) {
+        final RouteMetrics routeMetrics = metrics.route(target);
+        final long start = System.nanoTime();
+        final List<HttpAsyncRequestProducer> producers = new ArrayList<HttpAsyncRequestProducer>(requests.size());
+        final List<HttpAsyncResponseConsumer<HttpResponse>> consumers = new ArrayList<HttpAsyncResponseConsumer<HttpResponse>>(requests.size());
+        for (HttpUriRequest request : requests) {
+            producers.add(HttpAsyncMethods.create(target, originForm(request)));
+            HttpAsyncResponseConsumer<HttpResponse> consumer = new PooledResponseConsumer(BufferPool.getDefault());
+            if (decompress) {
+                consumer = new DecompressingResponseConsumer<HttpResponse>(consumer);
+            }
+            consumers.add(new InstrumentedResponseConsumer<HttpResponse>(consumer, routeMetrics, start));
+            routeMetrics.requestStarted();
+        }
+
+        HttpClientContext context = HttpClientContext.create();
+        context.setRequestConfig(config);
+        context.setTargetHost(target);
+        pipelines.incrementAndGet();
+        final SettableFuture<List<HttpResponse>> result = SettableFuture.create();
+        requester.executePipelined(target, producers, consumers, new RoutePool(config), context, new FutureCallback<List<HttpResponse>>() {
+            @Override
+            public void completed(List<HttpResponse> responses) {
+                // A connection closed by the server ends the pipeline as completed, without the responses
+                if (responses.size() != requests.size()) {
+                    resend(requests, consumers, new ConnectionClosedException("Pipeline closed after "
+                            + responses.size() + " of " + requests.size() + " responses"), start, routeMetrics, result);
+                    return;
+                }
+                long nanos = System.nanoTime() - start;
+                for (int i = 0; i < responses.size(); i++) {
+                    routeMetrics.requestCompleted(nanos, null);
+                }
+                result.set(responses);
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                resend(requests, consumers, ex, start, routeMetrics, result);
+            }
+
+            @Override
+            public void cancelled() {
+                resend(requests, consumers, new IOException("Pipeline cancelled"), start, routeMetrics, result);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * The request with its path as the request line, the connection is direct
+     */
+    private static HttpRequestWrapper originForm(HttpUriRequest request) {
+        HttpRequestWrapper wrapper = HttpRequestWrapper.wrap(request);
+        try {
+            wrapper.setURI(URIUtils.rewriteURI(request.getURI(), null, true));
+        } catch (URISyntaxException e) {
+            // Keep the absolute form, which servers accept as well
+        }
+        return wrapper;
+    }
+
+    /**
+     * Keep the responses which arrived before the pipeline broke and send the other requests one by one
+     */
+    private void resend(List<HttpUriRequest> requests, List<HttpAsyncResponseConsumer<HttpResponse>> consumers,
+                        Exception failure, long start, RouteMetrics routeMetrics,
+                        final SettableFuture<List<HttpResponse>> result) {
+        long nanos = System.nanoTime() - start;
+        List<ListenableFuture<HttpResponse>> responses = new ArrayList<ListenableFuture<HttpResponse>>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            HttpResponse response = consumers.get(i).getResult();
+            if (response != null) {
+                routeMetrics.requestCompleted(nanos, null);
+                responses.add(Futures.immediateFuture(response));
+                continue;
+            }
+
+            routeMetrics.requestCompleted(nanos, failure);
+            resent.incrementAndGet();
+            try {
+                responses.add(fallback.apply(requests.get(i)));
+            } catch (Exception e) {
+                responses.add(Futures.<HttpResponse>immediateFailedFuture(e));
+            }
+        }
+
+        Futures.addCallback(Futures.allAsList(responses), new com.google.common.util.concurrent.FutureCallback<List<HttpResponse>>() {
+            @Override
+            public void onSuccess(List<HttpResponse> responses) {
+                result.set(responses);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                result.setException(t);
+            }
+        });
+    }
+
+    /**
+     * Nothing to close, the connections belong to the pool of the client
+     */
+    public void close() throws IOException {
+    }
+
+    /**
+     * Leases the connection of a pipeline from the connection manager, sets it up for the route
+     * as an exchange of the client would, and hands it back once the pipeline is done with it
+     */
+    private class RoutePool implements ConnPool<HttpHost, Entry> {
+
+        private final RequestConfig config;
+
+        RoutePool(RequestConfig config) {
+            this.config = config;
+        }
+
+        @Override
+        public Future<Entry> lease(HttpHost target, Object state, final FutureCallback<Entry> callback) {
+            final Lease lease = new Lease(callback);
+            HttpHost host = target;
+            if (host.getPort() <= 0) {
+                try {
+                    host = new HttpHost(host.getHostName(), DefaultSchemePortResolver.INSTANCE.resolve(host), host.getSchemeName());
+                } catch (UnsupportedSchemeException e) {
+                    lease.failed(e);
+                    return lease;
+                }
+            }
+            final HttpRoute route = new HttpRoute(host, config.getLocalAddress(), "https".equalsIgnoreCase(host.getSchemeName()));
+            lease.request = connManager.requestConnection(route, state,
+                    Math.max(0, config.getConnectTimeout()), Math.max(0, config.getConnectionRequestTimeout()),
+                    TimeUnit.MILLISECONDS, new FutureCallback<NHttpClientConnection>() {
+                        @Override
+                        public void completed(NHttpClientConnection conn) {
+                            try {
+                                if (!connManager.isRouteComplete(conn)) {
+                                    HttpClientContext context = HttpClientContext.create();
+                                    connManager.startRoute(conn, route, context);
+                                    connManager.routeComplete(conn, route, context);
+                                }
+                                if (config.getSocketTimeout() >= 0) {
+                                    conn.setSocketTimeout(config.getSocketTimeout());
+                                }
+                            } catch (IOException e) {
+                                discard(conn);
+                                lease.failed(e);
+                                return;
+                            }
+                            if (!lease.completed(new Entry(route.getTargetHost(), conn))) {
+                                // Cancelled meanwhile
+                                connManager.releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+                            }
+                        }
+
+                        @Override
+                        public void failed(Exception ex) {
+                            lease.failed(ex);
+                        }
+
+                        @Override
+                        public void cancelled() {
+                            lease.cancel();
+                        }
+                    });
+            return lease;
+        }
+
+        /**
+         * A connection the server keeps alive goes back to the pool for as long as the client
+         * keeps connections without a Keep-Alive header, a broken pipeline's is shut down
+         */
+        @Override
+        public void release(Entry entry, boolean reusable) {
+            NHttpClientConnection conn = entry.getConnection();
+            if (!reusable) {
+                discard(conn);
+                return;
+            }
+            connManager.releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+        }
+
+        private void discard(NHttpClientConnection conn) {
+            try {
+                conn.shutdown();
+            } catch (IOException ignored) {
+                // The connection is discarded either way
+            }
+            connManager.releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static class Lease extends BasicFuture<Entry> {
+
+        volatile Future<NHttpClientConnection> request;
+
+        Lease(FutureCallback<Entry> callback) {
+            super(callback);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            Future<NHttpClientConnection> request = this.request;
+            if (request != null) {
+                request.cancel(true);
+            }
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    private static class Entry extends PoolEntry<HttpHost, NHttpClientConnection> {
+
+        Entry(HttpHost route, NHttpClientConnection conn) {
+            super(null, route, conn);
+        }
+
+        @Override
+        public void close() {
+            try {
+                getConnection().close();
+            } catch (IOException ignored) {
+                // Closed either way
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return !getConnection().isOpen();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.xqbase.java;
+
+import org.apache.http.nio.ContentDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Body buffer made of chunks leased from a {@link BufferPool}. Growing it leases
+ * another chunk instead of copying what was read so far, and the chunks go back
+ * to the pool once its stream is read to the end or closed, or on {@link #release()}.
+ */
+class PooledInputBuffer {
+
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    private final BufferPool pool;
+    private final int chunkSize;
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    private ByteBuffer current;
+    private long length;
+
+    /**
+     * @param pool the pool chunks are leased from
+     * @param lengthHint the expected length of the body, negative if unknown
+     */
+    public PooledInputBuffer(final BufferPool pool, final long lengthHint) {
+        this.pool = pool;
+        this.chunkSize = (int) Math.max(AsyncClient.DEFAULT_BUFFER_SIZE, Math.min(lengthHint, MAX_CHUNK_SIZE));
+    }
+
+    /**
+     * Read what the decoder has available
+     * @return the number of bytes read, -1 at the end of the body
+     */
+    int consumeContent(ContentDecoder decoder) throws IOException {
+        int total = 0;
+        for (;;) {
+            if (current == null || !current.hasRemaining()) {
+                current = pool.acquire(chunkSize);
+                chunks.add(current);
+            }
+            int n = decoder.read(current);
+            if (n <= 0) {
+                length += total;
+                return total == 0 && n < 0 ? -1 : total;
+            }
+            total += n;
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * Get a stream over the buffered bytes, it can be read once. Nothing may be
+     * consumed once it has been created.
+     */
+    InputStream getInputStream() {
+        for (ByteBuffer chunk : chunks) {
+            chunk.flip();
+        }
+        current = null;
+        return new ChunkInputStream();
+    }
+
+    /**
+     * Hand the chunks back to the pool
+     */
+    void release() {
+        for (ByteBuffer chunk : chunks) {
+            pool.release(chunk);
+        }
+        chunks.clear();
+        current = null;
+    }
+
+    private class ChunkInputStream extends InputStream {
+
+        private int index = 0;
+
+        @Override
+        public int read() throws IOException {
+            ByteBuffer chunk = chunk();
+            return chunk == null ? -1 : chunk.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer chunk = chunk();
+            if (chunk == null) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.remaining());
+            chunk.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            ByteBuffer chunk;
+            while (skipped < n && (chunk = chunk()) != null) {
+                int step = (int) Math.min(n - skipped, chunk.remaining());
+                chunk.position(chunk.position() + step);
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return index < chunks.size() ? chunks.get(index).remaining() : 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            release();
+        }
+
+        /**
+         * Get the chunk with bytes left, releasing the chunks at the end
+         * @return the chunk, or null at the end
+         */
+        private ByteBuffer chunk() {
+            while (index < chunks.size()) {
+                ByteBuffer chunk = chunks.get(index);
+                if (chunk.hasRemaining()) {
+                    return chunk;
+                }
+                index++;
+            }
+            release();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * Response consumer buffering the body in pooled chunks. The entity of the returned
+ * response hands its chunks back to the pool once its content is read to the end
+ * or closed, e.g. by {@link org.apache.http.util.EntityUtils#consume(HttpEntity)}.
+ */
+class PooledResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+
+    private final BufferPool pool;
+    private HttpResponse response;
+    private PooledInputBuffer buffer;
+    private boolean handedOver;
+
+    public PooledResponseConsumer(final BufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) {
+        this.response = response;
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+        buffer = new PooledInputBuffer(pool, entity.getContentLength());
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+        buffer.consumeContent(decoder);
+    }
+
+    @Override
+    protected HttpResponse buildResult(HttpContext context) {
+        HttpEntity entity = response.getEntity();
+        if (entity != null && buffer != null) {
+            BasicHttpEntity buffered = new BasicHttpEntity();
+            buffered.setContentType(entity.getContentType());
+            buffered.setContentEncoding(entity.getContentEncoding());
+            buffered.setChunked(entity.isChunked());
+            buffered.setContentLength(buffer.length());
+            buffered.setContent(buffer.getInputStream());
+            response.setEntity(buffered);
+            handedOver = true;
+        }
+        return response;
+    }
+
+    @Override
+    protected void releaseResources() {
+        if (buffer != null && !handedOver) {
+            buffer.release();
+        }
+        buffer = null;
+        response = null;
+    }
+}
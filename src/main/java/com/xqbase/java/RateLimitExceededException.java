@@ -0,0 +1,16 @@
+package com.xqbase.java;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Signals that a request was rejected because its route is over its rate limit
+ * and the request would have been delayed longer than allowed.
+ */
+public class RateLimitExceededException extends RejectedExecutionException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RateLimitExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,55 @@
+package com.xqbase.java;
+
+/**
+ * Configures the rate of requests a route may send, as a token bucket refilled at
+ * {@link #getPermitsPerSecond()} and holding up to {@link #getBurst()} tokens. Requests
+ * finding the bucket empty wait on the client's timer for their token, unless they would wait
+ * longer than {@link #getMaxDelayMillis()}, in which case they fail fast with a
+ * {@link RateLimitExceededException}.
+ */
+public class RateLimitPolicy {
+
+    public static final double DEFAULT_PERMITS_PER_SECOND = 100;
+    public static final int DEFAULT_BURST = 10;
+    public static final int DEFAULT_MAX_DELAY_MILLIS = 1000;
+
+    private double permitsPerSecond = DEFAULT_PERMITS_PER_SECOND;
+    private int burst = DEFAULT_BURST;
+    private int maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Set the sustained rate of requests
+     * @param permitsPerSecond requests per second
+     */
+    public void setPermitsPerSecond(double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond <= 0 ? DEFAULT_PERMITS_PER_SECOND : permitsPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Set how many requests may be sent at once after the route has been idle
+     * @param burst size of the bucket
+     */
+    public void setBurst(int burst) {
+        this.burst = burst < 1 ? DEFAULT_BURST : burst;
+    }
+
+    public int getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * Set how long a request over the rate may be delayed before it is rejected instead
+     * @param maxDelayMillis maximum delay in milliseconds, 0 to reject every request over the rate
+     */
+    public void setMaxDelayMillis(int maxDelayMillis) {
+        this.maxDelayMillis = maxDelayMillis < 0 ? DEFAULT_MAX_DELAY_MILLIS : maxDelayMillis;
+    }
+}
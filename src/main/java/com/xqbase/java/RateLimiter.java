@@ -0,0 +1,91 @@
+package com.xqbase.java;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.HttpHost;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of requests on a single route. The token bucket is kept as the time
+ * the next token is due, so that taking a token is a single compare-and-set and a request
+ * over the rate reserves a future token and waits for it on the timer.
+ */
+class RateLimiter {
+
+    private static final ListenableFuture<Void> ADMITTED = Futures.immediateFuture(null);
+
+    private final HttpHost route;
+    private final RateLimitPolicy policy;
+    private final ScheduledExecutorService scheduler;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final long maxDelayNanos;
+
+    private final AtomicLong nextToken;
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public RateLimiter(final HttpHost route, final RateLimitPolicy policy, final ScheduledExecutorService scheduler) {
+        this.route = route;
+        this.policy = policy;
+        this.scheduler = scheduler;
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / policy.getPermitsPerSecond()));
+        this.burstNanos = (policy.getBurst() - 1) * intervalNanos;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(policy.getMaxDelayMillis());
+        this.nextToken = new AtomicLong(System.nanoTime());
+    }
+
+    public long getDelayed() {
+        return delayed.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Take a token for a request
+     * @return future completing once the request may be sent, which fails with a
+     * {@link RateLimitExceededException} if it would wait longer than allowed
+     */
+    public ListenableFuture<Void> acquire() {
+        long now;
+        long delay;
+        for (;;) {
+            now = System.nanoTime();
+            long next = nextToken.get();
+            long due = next - now < 0 ? now : next;
+            delay = due - now - burstNanos;
+            if (delay > maxDelayNanos) {
+                rejected.incrementAndGet();
+                return Futures.immediateFailedFuture(new RateLimitExceededException("Rate limit of "
+                        + policy.getPermitsPerSecond() + " requests per second reached for " + route));
+            }
+            if (nextToken.compareAndSet(next, due + intervalNanos)) {
+                break;
+            }
+        }
+        if (delay <= 0) {
+            return ADMITTED;
+        }
+
+        delayed.incrementAndGet();
+        final SettableFuture<Void> admitted = SettableFuture.create();
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    admitted.set(null);
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            admitted.setException(e);
+        }
+        return admitted;
+    }
+}
@@ -0,0 +1,368 @@
+package com.xqbase.java;
+
+import com.google.common.reflect.TypeToken;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Response consumer which splits the body into newline delimited records, deserializes them
+ * on the I/O reactor thread as they arrive and hands them to a {@link RecordSubscriber} as far
+ * as it asked for them. Once records are waiting for demand the connection's input is
+ * suspended, so the server is held back by TCP flow control instead of the body being buffered.
+ */
+class RecordStreamConsumer<T> extends AbstractAsyncResponseConsumer<Void> {
+
+    private final Serializer defaultSerializer;
+    private final SerializerRegistry registry;
+    private final TypeToken<T> type;
+    private final RecordSubscriber<T> subscriber;
+    private final LatencyRecorder deserialization;
+
+    private final Queue<T> records = new ConcurrentLinkedQueue<T>();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger draining = new AtomicInteger();
+    private final AtomicBoolean suspended = new AtomicBoolean();
+    private final SettableFuture<Void> finished = SettableFuture.create();
+    private volatile IOControl ioctrl;
+    private volatile Future<?> exchange;
+    private volatile boolean ended = false;
+    private volatile boolean cancelled = false;
+    private volatile Throwable failure;
+    // Only touched while draining
+    private boolean terminated = false;
+
+    // Only touched on the I/O reactor thread
+    private Serializer serializer;
+    private ContentDecoder decoder;
+    private ByteBuffer chunk;
+    private byte[] partial;
+    private int partialLength;
+
+    public RecordStreamConsumer(final Serializer serializer, final SerializerRegistry registry, final TypeToken<T> type,
+                                final RecordSubscriber<T> subscriber, final LatencyRecorder deserialization) {
+        this.defaultSerializer = serializer;
+        this.registry = registry;
+        this.type = type;
+        this.subscriber = subscriber;
+        this.deserialization = deserialization;
+    }
+
+    /**
+     * Hand the subscription to the subscriber, before the request is sent
+     * @return future completing once the subscriber has been told the stream ended or failed,
+     * cancelling it cancels the subscription
+     */
+    public ListenableFuture<Void> subscribe() {
+        final Subscription subscription = new Subscription();
+        finished.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (finished.isCancelled()) {
+                    subscription.cancel();
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        subscriber.onSubscribe(subscription);
+        return finished;
+    }
+
+    /**
+     * Tie the stream to its exchange, whose failure fails the stream
+     */
+    public void started(ListenableFuture<?> exchange) {
+        this.exchange = exchange;
+        if (cancelled) {
+            exchange.cancel(true);
+            return;
+        }
+
+        Futures.addCallback(exchange, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(Object result) {
+                // The end of the stream is signalled once the records before it are delivered
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (!(t instanceof CancellationException && cancelled)) {
+                    failure = t;
+                    drain();
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) throws HttpException, IOException {
+        int status = response.getStatusLine().getStatusCode();
+        if (status < 200 || status >= 300) {
+            throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase());
+        }
+
+        Header contentType = response.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+        serializer = registry == null || contentType == null ? null : registry.forContentType(contentType.getValue());
+        if (serializer == null) {
+            serializer = defaultSerializer;
+        }
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+        chunk = BufferPool.getDefault().acquire(AsyncClient.DEFAULT_BUFFER_SIZE);
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+        this.ioctrl = ioctrl;
+        this.decoder = decoder;
+        if (cancelled) {
+            return;
+        }
+
+        // Read no further than the records the subscriber is ready for
+        while (records.isEmpty()) {
+            if (decoder.read(chunk) <= 0) {
+                return;
+            }
+            chunk.flip();
+            split();
+            chunk.clear();
+            drain();
+        }
+
+        if (!decoder.isCompleted()) {
+            ioctrl.suspendInput();
+            suspended.set(true);
+            resume();
+        }
+    }
+
+    /**
+     * Deserialize the complete lines of the chunk and keep the rest for the next one
+     */
+    private void split() throws IOException {
+        int from = chunk.position();
+        for (int i = from; i < chunk.limit(); i++) {
+            if (chunk.get(i) != '\n') {
+                continue;
+            }
+
+            ByteBuffer line = chunk.duplicate();
+            line.limit(i).position(from);
+            if (partialLength > 0) {
+                append(line);
+                line = ByteBuffer.wrap(partial, 0, partialLength);
+                partialLength = 0;
+            }
+            decode(line);
+            from = i + 1;
+        }
+
+        chunk.position(from);
+        append(chunk);
+    }
+
+    private void append(ByteBuffer bytes) {
+        int length = partialLength + bytes.remaining();
+        if (partial == null || length > partial.length) {
+            byte[] grown = new byte[Math.max(length, partial == null ? AsyncClient.DEFAULT_BUFFER_SIZE : partial.length * 2)];
+            if (partialLength > 0) {
+                System.arraycopy(partial, 0, grown, 0, partialLength);
+            }
+            partial = grown;
+        }
+        bytes.get(partial, partialLength, bytes.remaining());
+        partialLength = length;
+    }
+
+    private void decode(ByteBuffer line) throws IOException {
+        while (line.hasRemaining() && isWhitespace(line.get(line.limit() - 1))) {
+            line.limit(line.limit() - 1);
+        }
+        while (line.hasRemaining() && isWhitespace(line.get(line.position()))) {
+            line.position(line.position() + 1);
+        }
+        if (!line.hasRemaining()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            Object obj = AbstractSerializer.deserialize(serializer, type.getType(), line);
+            if (obj != null) {
+                records.add(AbstractSerializer.cast(type, obj));
+            }
+        } finally {
+            deserialization.record(System.nanoTime() - start);
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * Let the reactor read again once the waiting records are delivered
+     */
+    private void resume() {
+        IOControl ioctrl = this.ioctrl;
+        if (records.isEmpty() && ioctrl != null && suspended.compareAndSet(true, false)) {
+            ioctrl.requestInput();
+        }
+    }
+
+    /**
+     * Deliver records as far as demanded, then the end or failure of the stream. Signals raised
+     * while another thread is delivering are left to that thread, so they never overlap.
+     */
+    private void drain() {
+        if (draining.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            if (!terminated && !cancelled) {
+                deliver();
+            }
+        } while (draining.decrementAndGet() != 0);
+    }
+
+    private void deliver() {
+        Throwable failure = this.failure;
+        if (failure != null) {
+            terminated = true;
+            records.clear();
+            subscriber.onError(failure);
+            finished.setException(failure);
+            return;
+        }
+
+        while (demand.get() > 0 && !cancelled) {
+            T record = records.poll();
+            if (record == null) {
+                break;
+            }
+            if (demand.get() != Long.MAX_VALUE) {
+                demand.decrementAndGet();
+            }
+            try {
+                subscriber.onNext(record);
+            } catch (RuntimeException e) {
+                // A subscriber which throws is cancelled
+                terminated = true;
+                cancelled = true;
+                abort();
+                finished.setException(e);
+                return;
+            }
+        }
+
+        if (ended && records.isEmpty() && !cancelled) {
+            terminated = true;
+            subscriber.onComplete();
+            finished.set(null);
+        }
+    }
+
+    private void abort() {
+        records.clear();
+        Future<?> exchange = this.exchange;
+        if (exchange != null) {
+            exchange.cancel(true);
+        }
+    }
+
+    @Override
+    protected Void buildResult(HttpContext context) throws Exception {
+        // A decoding decoder may still hold the end of the body, which no longer waits for demand
+        // since the connection has been read to the end
+        if (decoder != null && !cancelled) {
+            while (decoder.read(chunk) > 0) {
+                chunk.flip();
+                split();
+                chunk.clear();
+            }
+        }
+
+        // The connection goes back to the pool, it must not be left suspended
+        IOControl ioctrl = this.ioctrl;
+        if (ioctrl != null && suspended.compareAndSet(true, false)) {
+            ioctrl.requestInput();
+        }
+
+        // The last record may not end with a newline
+        if (partialLength > 0) {
+            ByteBuffer line = ByteBuffer.wrap(partial, 0, partialLength);
+            partialLength = 0;
+            decode(line);
+        }
+        ended = true;
+        drain();
+        return null;
+    }
+
+    @Override
+    protected void releaseResources() {
+        BufferPool.getDefault().release(chunk);
+        chunk = null;
+        decoder = null;
+        partial = null;
+        partialLength = 0;
+        serializer = null;
+    }
+
+    private class Subscription implements RecordSubscription {
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                failure = new IllegalArgumentException("Requested " + n + " records, the demand must be positive");
+                drain();
+                abort();
+                return;
+            }
+
+            long current;
+            long next;
+            do {
+                current = demand.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!demand.compareAndSet(current, next));
+            drain();
+            resume();
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            abort();
+            finished.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.xqbase.java;
+
+/**
+ * Receives the records of a streamed response, e.g. newline delimited JSON, as they arrive.
+ * No more records are delivered than requested through the subscription, the connection
+ * is not read while the subscriber has not asked for more. The calls are made one at a time,
+ * on the I/O reactor thread or on the thread requesting more records, so they should not block.
+ */
+public interface RecordSubscriber<T> {
+
+    /**
+     * Called once before any other call
+     * @param subscription the subscription to request records from
+     */
+    void onSubscribe(RecordSubscription subscription);
+
+    void onNext(T record);
+
+    /**
+     * The stream failed or its response had an error status, no more calls follow
+     */
+    void onError(Throwable failure);
+
+    /**
+     * Every record of the response has been delivered, no more calls follow
+     */
+    void onComplete();
+}
@@ -0,0 +1,19 @@
+package com.xqbase.java;
+
+/**
+ * Link between a streamed response and its {@link RecordSubscriber}, through which the
+ * subscriber asks for more records or stops the stream.
+ */
+public interface RecordSubscription {
+
+    /**
+     * Ask for up to n more records, reading from the connection resumes if it was held back
+     * @param n the number of records, {@link Long#MAX_VALUE} for no limit
+     */
+    void request(long n);
+
+    /**
+     * Stop the stream and abort the exchange, no more records are delivered
+     */
+    void cancel();
+}
@@ -1,30 +1,39 @@
 package com.xqbase.java;
 
+import org.apache.http.Consts;
 import org.apache.http.HttpEntity;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicNameValuePair;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Request parameters, kept in insertion order in parallel key and value arrays.
+ * A key may hold several values. A <code>RequestParams</code> is not thread safe
+ * while it is being built; {@link #freeze()} returns an immutable snapshot which
+ * can be shared across threads and requests.
+ */
 public class RequestParams {
 
-    private static String ENCODING = "UTF-8";
+    private static final ContentType FORM_CONTENT_TYPE = ContentType.create("application/x-www-form-urlencoded", Consts.UTF_8);
+    private static final int INITIAL_CAPACITY = 4;
 
-    protected ConcurrentHashMap<String, String> urlParams;
-    protected ConcurrentHashMap<String, FileWrapper> fileParams;
-    protected ConcurrentHashMap<String, ArrayList<String>> urlParamsWithArray;
+    private String[] keys;
+    private Object[] values;
+    private int size = 0;
+    private final boolean frozen;
+    private volatile String encoded;
 
     /**
      * Constructs a new empty <code>RequestParams</code> instance.
      */
     public RequestParams() {
-        init();
+        this.frozen = false;
     }
 
     /**
@@ -33,8 +42,8 @@ public class RequestParams {
      * @param source the source key/value string map to add.
      */
     public RequestParams(Map<String, String> source) {
-        init();
-
+        this.frozen = false;
+        ensureCapacity(source.size());
         for(Map.Entry<String, String> entry : source.entrySet()) {
             put(entry.getKey(), entry.getValue());
         }
@@ -47,8 +56,7 @@ public class RequestParams {
      * @param value the value string for the initial param.
      */
     public RequestParams(String key, String value) {
-        init();
-
+        this.frozen = false;
         put(key, value);
     }
 
@@ -60,10 +68,11 @@ public class RequestParams {
      * @throws IllegalArgumentException if the number of arguments isn't even.
      */
     public RequestParams(Object... keysAndValues) {
-        init();
+        this.frozen = false;
         int len = keysAndValues.length;
         if (len % 2 != 0)
             throw new IllegalArgumentException("Supplied arguments must be even");
+        ensureCapacity(len / 2);
         for (int i = 0; i < len; i += 2) {
             String key = String.valueOf(keysAndValues[i]);
             String val = String.valueOf(keysAndValues[i + 1]);
@@ -71,40 +80,79 @@ public class RequestParams {
         }
     }
 
-    private void init(){
-        urlParams = new ConcurrentHashMap<String, String>();
-        fileParams = new ConcurrentHashMap<String, FileWrapper>();
-        urlParamsWithArray = new ConcurrentHashMap<String, ArrayList<String>>();
+    private RequestParams(RequestParams source) {
+        this.frozen = true;
+        this.size = source.size;
+        if (size > 0) {
+            this.keys = Arrays.copyOf(source.keys, size);
+            this.values = Arrays.copyOf(source.values, size);
+        }
     }
 
     /**
-     * Adds a key/value string pair to the request.
+     * Adds a key/value string pair to the request, replacing the values of the key.
      * @param key the key name for the new param.
      * @param value the value string for the new param.
      */
     public void put(String key, String value){
         if(key != null && value != null) {
-            urlParams.put(key, value);
+            replace(key, value);
+        }
+    }
+
+    /**
+     * Adds another value to a key, keeping the values it already has.
+     * @param key the key name for the param.
+     * @param value the value string to add.
+     */
+    public void add(String key, String value) {
+        checkMutable();
+        if(key != null && value != null) {
+            append(key, value);
         }
     }
 
     /**
-     * Adds a file to the request.
+     * Adds a file to the request. The file is streamed when the request is sent.
      * @param key the key name for the new param.
      * @param file the file to add.
      */
     public void put(String key, File file) throws FileNotFoundException {
-        put(key, new FileInputStream(file), file.getName());
+        put(key, file, null);
+    }
+
+    /**
+     * Adds a file to the request. The file is streamed when the request is sent.
+     * @param key the key name for the new param.
+     * @param file the file to add.
+     * @param contentType the content type of the file, eg. application/json
+     */
+    public void put(String key, File file, String contentType) throws FileNotFoundException {
+        if (file == null || !file.isFile()) {
+            throw new FileNotFoundException(String.valueOf(file));
+        }
+        if(key != null) {
+            replace(key, new FileWrapper(file, contentType));
+        }
     }
 
     /**
-     * Adds param with more than one value.
+     * Adds param with more than one value, replacing the values of the key.
      * @param key the key name for the new param.
      * @param values is the ArrayList with values for the param.
      */
     public void put(String key, ArrayList<String> values)  {
+        checkMutable();
         if(key != null && values != null) {
-            urlParamsWithArray.put(key, values);
+            int index = indexOf(key);
+            remove(key);
+            ensureCapacity(size + values.size());
+            int at = index < 0 ? size : index;
+            for (String value : values) {
+                if (value != null) {
+                    insert(at++, key, value);
+                }
+            }
         }
     }
 
@@ -136,7 +184,7 @@ public class RequestParams {
      */
     public void put(String key, InputStream stream, String fileName, String contentType) {
         if(key != null && stream != null) {
-            fileParams.put(key, new FileWrapper(stream, fileName, contentType));
+            replace(key, new FileWrapper(stream, fileName, contentType));
         }
     }
 
@@ -145,121 +193,237 @@ public class RequestParams {
      * @param key the key name for the parameter to remove.
      */
     public void remove(String key){
-        urlParams.remove(key);
-        fileParams.remove(key);
-        urlParamsWithArray.remove(key);
+        checkMutable();
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if (!keys[i].equals(key)) {
+                keys[j] = keys[i];
+                values[j] = values[i];
+                j++;
+            }
+        }
+        for (int i = j; i < size; i++) {
+            keys[i] = null;
+            values[i] = null;
+        }
+        size = j;
+    }
+
+    /**
+     * Returns the number of values, counting every value of a multi-value key.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Returns an immutable copy of the params, which can be shared between threads and
+     * reused across requests. Its encoded query string is computed once.
+     * @throws IllegalStateException if a param is an input stream, which can only be sent once
+     */
+    public RequestParams freeze() {
+        if (frozen) {
+            return this;
+        }
+        for (int i = 0; i < size; i++) {
+            if (values[i] instanceof FileWrapper && ((FileWrapper) values[i]).inputStream != null) {
+                throw new IllegalStateException("Input stream param can not be shared: " + keys[i]);
+            }
+        }
+
+        return new RequestParams(this);
     }
 
     @Override
     public String toString() {
-        StringBuilder result = new StringBuilder();
-        for(ConcurrentHashMap.Entry<String, String> entry : urlParams.entrySet()) {
+        StringBuilder result = new StringBuilder(size * 16);
+        for (int i = 0; i < size; i++) {
             if(result.length() > 0)
                 result.append("&");
 
-            result.append(entry.getKey());
+            result.append(keys[i]);
             result.append("=");
-            result.append(entry.getValue());
+            result.append(values[i] instanceof String ? (String) values[i] : "FILE");
         }
 
-        for(ConcurrentHashMap.Entry<String, FileWrapper> entry : fileParams.entrySet()) {
-            if(result.length() > 0)
-                result.append("&");
+        return result.toString();
+    }
 
-            result.append(entry.getKey());
-            result.append("=");
-            result.append("FILE");
+    /**
+     * Returns an HttpEntity containing all request parameters
+     */
+    public HttpEntity getEntity() {
+        if(!hasFiles()) {
+            return new StringEntity(getParamString(), FORM_CONTENT_TYPE);
         }
 
-        for(ConcurrentHashMap.Entry<String, ArrayList<String>> entry : urlParamsWithArray.entrySet()) {
-            if(result.length() > 0)
-                result.append("&");
+        SimpleMultipartEntity multipartEntity = new SimpleMultipartEntity();
+        for (int i = 0; i < size; i++) {
+            String key = keys[i];
+            if (values[i] instanceof String) {
+                multipartEntity.addPart(key, (String) values[i]);
+                continue;
+            }
 
-            ArrayList<String> values = entry.getValue();
-            for (String value : values) {
-                if (values.indexOf(value) != 0)
-                    result.append("&");
-                result.append(entry.getKey());
-                result.append("=");
-                result.append(value);
+            FileWrapper file = (FileWrapper) values[i];
+            if(file.file != null) {
+                if(file.contentType != null) {
+                    multipartEntity.addPart(key, file.file, file.contentType);
+                } else {
+                    multipartEntity.addPart(key, file.file);
+                }
+            } else if(file.inputStream != null) {
+                if(file.contentType != null) {
+                    multipartEntity.addPart(key, file.getFileName(), file.inputStream, file.contentType);
+                } else {
+                    multipartEntity.addPart(key, file.getFileName(), file.inputStream);
+                }
             }
         }
 
-        return result.toString();
+        return multipartEntity;
     }
 
     /**
-     * Returns an HttpEntity containing all request parameters
+     * Append the URL parameters in insertion order
+     * @param builder the URL builder
      */
-    public HttpEntity getEntity() {
-        HttpEntity entity = null;
-
-        if(!fileParams.isEmpty()) {
-            SimpleMultipartEntity multipartEntity = new SimpleMultipartEntity();
+    void appendTo(UrlBuilder builder) {
+        if (frozen) {
+            builder.appendEncoded(getParamString());
+            return;
+        }
 
-            // Add string params
-            for(ConcurrentHashMap.Entry<String, String> entry : urlParams.entrySet()) {
-                multipartEntity.addPart(entry.getKey(), entry.getValue());
+        for (int i = 0; i < size; i++) {
+            if (values[i] instanceof String) {
+                builder.append(keys[i], (String) values[i]);
             }
+        }
+    }
 
-            // Add dupe params
-            for(ConcurrentHashMap.Entry<String, ArrayList<String>> entry : urlParamsWithArray.entrySet()) {
-                ArrayList<String> values = entry.getValue();
-                for (String value : values) {
-                    multipartEntity.addPart(entry.getKey(), value);
-                }
+    protected List<BasicNameValuePair> getParamsList() {
+        List<BasicNameValuePair> lparams = new ArrayList<BasicNameValuePair>(size);
+        for (int i = 0; i < size; i++) {
+            if (values[i] instanceof String) {
+                lparams.add(new BasicNameValuePair(keys[i], (String) values[i]));
             }
+        }
+
+        return lparams;
+    }
+
+    protected String getParamString() {
+        String result = encoded;
+        if (result != null) {
+            return result;
+        }
 
-            // Add file params
-            int currentIndex = 0;
-            int lastIndex = fileParams.entrySet().size() - 1;
-            for(ConcurrentHashMap.Entry<String, FileWrapper> entry : fileParams.entrySet()) {
-                FileWrapper file = entry.getValue();
-                if(file.inputStream != null) {
-                    boolean isLast = currentIndex == lastIndex;
-                    if(file.contentType != null) {
-                        multipartEntity.addPart(entry.getKey(), file.getFileName(), file.inputStream, file.contentType, isLast);
-                    } else {
-                        multipartEntity.addPart(entry.getKey(), file.getFileName(), file.inputStream, isLast);
-                    }
+        StringBuilder buf = new StringBuilder(size * 16);
+        for (int i = 0; i < size; i++) {
+            if (values[i] instanceof String) {
+                if (buf.length() > 0) {
+                    buf.append('&');
                 }
-                currentIndex++;
+                UrlBuilder.encode(keys[i], buf);
+                buf.append('=');
+                UrlBuilder.encode((String) values[i], buf);
             }
+        }
+        result = buf.toString();
+        if (frozen) {
+            encoded = result;
+        }
 
-            entity = multipartEntity;
-        } else {
-            try {
-                entity = new UrlEncodedFormEntity(getParamsList(), ENCODING);
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
+        return result;
+    }
+
+    private boolean hasFiles() {
+        for (int i = 0; i < size; i++) {
+            if (values[i] instanceof FileWrapper) {
+                return true;
             }
         }
 
-        return entity;
+        return false;
     }
 
-    protected List<BasicNameValuePair> getParamsList() {
-        List<BasicNameValuePair> lparams = new LinkedList<BasicNameValuePair>();
+    private int indexOf(String key) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
 
-        for(ConcurrentHashMap.Entry<String, String> entry : urlParams.entrySet()) {
-            lparams.add(new BasicNameValuePair(entry.getKey(), entry.getValue()));
+    /**
+     * Set the single value of the key, keeping the position of its first value
+     */
+    private void replace(String key, Object value) {
+        checkMutable();
+        int index = indexOf(key);
+        if (index < 0) {
+            append(key, value);
+            return;
         }
 
-        for(ConcurrentHashMap.Entry<String, ArrayList<String>> entry : urlParamsWithArray.entrySet()) {
-            ArrayList<String> values = entry.getValue();
-            for (String value : values) {
-                lparams.add(new BasicNameValuePair(entry.getKey(), value));
+        values[index] = value;
+        int j = index + 1;
+        for (int i = index + 1; i < size; i++) {
+            if (!keys[i].equals(key)) {
+                keys[j] = keys[i];
+                values[j] = values[i];
+                j++;
             }
         }
+        for (int i = j; i < size; i++) {
+            keys[i] = null;
+            values[i] = null;
+        }
+        size = j;
+    }
 
-        return lparams;
+    private void append(String key, Object value) {
+        ensureCapacity(size + 1);
+        keys[size] = key;
+        values[size] = value;
+        size++;
     }
 
-    protected String getParamString() {
-        return URLEncodedUtils.format(getParamsList(), ENCODING);
+    private void insert(int index, String key, Object value) {
+        ensureCapacity(size + 1);
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(values, index, values, index + 1, size - index);
+        keys[index] = key;
+        values[index] = value;
+        size++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (keys == null) {
+            int initial = Math.max(INITIAL_CAPACITY, capacity);
+            keys = new String[initial];
+            values = new Object[initial];
+        } else if (capacity > keys.length) {
+            int grown = Math.max(capacity, keys.length + (keys.length >> 1));
+            keys = Arrays.copyOf(keys, grown);
+            values = Arrays.copyOf(values, grown);
+        }
+    }
+
+    private void checkMutable() {
+        if (frozen) {
+            throw new UnsupportedOperationException("Frozen request params can not be modified");
+        }
     }
 
     private static class FileWrapper {
+        public File file;
         public InputStream inputStream;
         public String fileName;
         public String contentType;
@@ -270,6 +434,12 @@ public class RequestParams {
             this.contentType = contentType;
         }
 
+        public FileWrapper(File file, String contentType) {
+            this.file = file;
+            this.fileName = file.getName();
+            this.contentType = contentType;
+        }
+
         public String getFileName() {
             if(fileName != null) {
                 return fileName;
@@ -0,0 +1,365 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpRequest;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size bounded store of cacheable GET responses, evicting with W-TinyLFU: new entries
+ * enter a small LRU window, and an entry leaving the window is only admitted to the
+ * main segmented LRU if it was accessed more often recently than the entry it would evict.
+ * This keeps frequently read responses cached under a scan of one-off URLs.
+ * <p>
+ * Lookups read a concurrent map without locking. Their effect on the eviction order and
+ * the frequency sketch is recorded in striped buffers, replayed under the eviction lock
+ * once a buffer fills up or by the next write, and dropped when a buffer is full, which
+ * only costs the policy some precision.
+ */
+public class ResponseCache {
+
+    public static final long DEFAULT_MAXIMUM_BYTES = 64 * 1024 * 1024;
+    private static final int AVERAGE_ENTRY_BYTES = 4096;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int REMOVED = -1;
+
+    private static final int READ_BUFFERS = ceilingPowerOfTwo(Runtime.getRuntime().availableProcessors() * 2);
+    private static final int READ_BUFFER_SIZE = 32;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+
+    private final ConcurrentMap<String, Node> data = new ConcurrentHashMap<String, Node>();
+    private final ReadBuffer[] readBuffers = new ReadBuffer[READ_BUFFERS];
+    private volatile boolean cacheDeserializedObjects = false;
+
+    // Guarded by the eviction lock
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final long[] weights = new long[3];
+    private final Node[] queues = {new Node(), new Node(), new Node()};
+    private final FrequencySketch sketch;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ResponseCache() {
+        this(DEFAULT_MAXIMUM_BYTES);
+    }
+
+    /**
+     * Constructs a cache holding response bodies up to the given total size
+     * @param maximumBytes the maximum size of the cached bodies
+     */
+    public ResponseCache(long maximumBytes) {
+        this.maximumWeight = maximumBytes < 1 ? DEFAULT_MAXIMUM_BYTES : maximumBytes;
+        this.windowMaximum = Math.max(1, this.maximumWeight / 100);
+        this.protectedMaximum = (this.maximumWeight - this.windowMaximum) * 80 / 100;
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, this.maximumWeight / AVERAGE_ENTRY_BYTES));
+        for (int i = 0; i < READ_BUFFERS; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+    }
+
+    public boolean isCacheDeserializedObjects() {
+        return cacheDeserializedObjects;
+    }
+
+    /**
+     * Keep the objects a cached body was deserialized into, per class, so that a hit skips
+     * the deserialization. Cached objects are shared between callers and must not be mutated.
+     * @param cacheDeserializedObjects cache deserialized objects
+     */
+    public void setCacheDeserializedObjects(boolean cacheDeserializedObjects) {
+        this.cacheDeserializedObjects = cacheDeserializedObjects;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getRevalidationCount() {
+        return revalidations.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    public long weight() {
+        evictionLock.lock();
+        try {
+            return totalWeight();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private long totalWeight() {
+        return weights[WINDOW] + weights[PROBATION] + weights[PROTECTED];
+    }
+
+    public void clear() {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            for (Node node : data.values()) {
+                node.queue = REMOVED;
+            }
+            data.clear();
+            for (int i = 0; i < queues.length; i++) {
+                queues[i].prev = queues[i].next = queues[i];
+                weights[i] = 0;
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Look up the entry stored for the request, counting a hit only if it is still fresh
+     * @param key the cache key
+     * @param request the request, to match the headers the response varies on
+     * @param now the current time in milliseconds
+     * @return the entry, fresh or stale, or null if there is none
+     */
+    CacheEntry get(String key, HttpRequest request, long now) {
+        Node node = data.get(key);
+        CacheEntry entry = node == null ? null : node.entry;
+        if (entry == null || !entry.matches(request)) {
+            // The put which follows a miss counts the access in the sketch
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (entry.isFresh(now)) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        afterRead(node);
+        return entry;
+    }
+
+    void put(String key, CacheEntry entry) {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            sketch.increment(key.hashCode());
+            Node node = data.get(key);
+            if (entry.getWeight() > maximumWeight) {
+                if (node != null) {
+                    remove(node);
+                }
+                return;
+            }
+
+            if (node != null) {
+                weights[node.queue] += entry.getWeight() - node.entry.getWeight();
+                node.entry = entry;
+                onAccess(node);
+            } else {
+                node = new Node(key, entry);
+                data.put(key, node);
+                link(node, WINDOW);
+            }
+            evict();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    void revalidated(String key, CacheEntry entry) {
+        revalidations.incrementAndGet();
+        put(key, entry);
+    }
+
+    void remove(String key) {
+        evictionLock.lock();
+        try {
+            Node node = data.get(key);
+            if (node != null) {
+                remove(node);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Record a read in the buffer of the calling thread's stripe, replaying the buffer
+     * if it filled up and the eviction lock is free
+     */
+    private void afterRead(Node node) {
+        ReadBuffer buffer = readBuffers[stripe()];
+        long reads = buffer.reads;
+        long writes = buffer.writes.get();
+        long pending = writes - reads;
+        if (pending < READ_BUFFER_SIZE && buffer.writes.compareAndSet(writes, writes + 1)) {
+            buffer.slots.lazySet((int) (writes & READ_BUFFER_MASK), node);
+            pending++;
+        }
+        if (pending >= READ_BUFFER_DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (READ_BUFFERS - 1);
+    }
+
+    private void drainReadBuffers() {
+        for (ReadBuffer buffer : readBuffers) {
+            long reads = buffer.reads;
+            long writes = buffer.writes.get();
+            for (; reads < writes; reads++) {
+                int index = (int) (reads & READ_BUFFER_MASK);
+                Node node = buffer.slots.get(index);
+                if (node == null) {
+                    // Claimed but not published yet, left for the next drain
+                    break;
+                }
+                buffer.slots.lazySet(index, null);
+                if (node.queue != REMOVED) {
+                    sketch.increment(node.key.hashCode());
+                    onAccess(node);
+                }
+            }
+            buffer.reads = reads;
+        }
+    }
+
+    private void onAccess(Node node) {
+        if (node.queue == PROBATION) {
+            // Promote, demoting the least recently used protected entries if it overflows
+            unlink(node);
+            link(node, PROTECTED);
+            while (weights[PROTECTED] > protectedMaximum) {
+                Node demoted = queues[PROTECTED].prev;
+                unlink(demoted);
+                link(demoted, PROBATION);
+            }
+        } else {
+            unlink(node);
+            link(node, node.queue);
+        }
+    }
+
+    private void evict() {
+        // Entries leaving the window become candidates at the head of the probation queue
+        int candidates = 0;
+        while (weights[WINDOW] > windowMaximum) {
+            Node node = queues[WINDOW].prev;
+            unlink(node);
+            link(node, PROBATION);
+            candidates++;
+        }
+
+        while (totalWeight() > maximumWeight) {
+            Node victim = queues[PROBATION].prev;
+            Node candidate = queues[PROBATION].next;
+            if (victim == queues[PROBATION]) {
+                victim = queues[PROTECTED].prev != queues[PROTECTED] ? queues[PROTECTED].prev : queues[WINDOW].prev;
+                remove(victim);
+            } else if (candidates > 0 && candidate != victim) {
+                // Admit the candidate only if it is used more often than the victim
+                if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                    remove(victim);
+                } else {
+                    remove(candidate);
+                    candidates--;
+                }
+            } else {
+                remove(victim);
+                candidates = Math.max(0, candidates - 1);
+            }
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(Node node) {
+        unlink(node);
+        node.queue = REMOVED;
+        data.remove(node.key);
+    }
+
+    private void link(Node node, int queue) {
+        Node head = queues[queue];
+        node.queue = queue;
+        node.next = head.next;
+        node.prev = head;
+        head.next.prev = node;
+        head.next = node;
+        weights[queue] += node.entry.getWeight();
+    }
+
+    private void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = node.next = null;
+        weights[node.queue] -= node.entry.getWeight();
+    }
+
+    private static int ceilingPowerOfTwo(int n) {
+        int power = 1;
+        while (power < n) {
+            power <<= 1;
+        }
+        return power;
+    }
+
+    /**
+     * Lossy ring buffer of reads, written by any thread and drained under the eviction lock
+     */
+    private static class ReadBuffer {
+        final AtomicLong writes = new AtomicLong();
+        final AtomicReferenceArray<Node> slots = new AtomicReferenceArray<Node>(READ_BUFFER_SIZE);
+        volatile long reads = 0;
+    }
+
+    private static class Node {
+        final String key;
+        volatile CacheEntry entry;
+        // Guarded by the eviction lock, like the links
+        int queue;
+        Node prev;
+        Node next;
+
+        /**
+         * Sentinel of a circular queue, the most recently used node follows it
+         */
+        Node() {
+            this.key = null;
+            this.prev = this;
+            this.next = this;
+        }
+
+        Node(String key, CacheEntry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+    }
+}
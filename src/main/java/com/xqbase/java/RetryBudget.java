@@ -0,0 +1,83 @@
+package com.xqbase.java;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free token bucket limiting the retries of a route. Every request deposits
+ * a fraction of a token, every retry withdraws a whole one, and a minimum rate
+ * of tokens trickles in over time so that low traffic routes can still retry.
+ */
+class RetryBudget {
+
+    private static final long SCALE = 1000;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final long deposit;
+    private final long minPerSecond;
+    private final long capacity;
+    private final long fillNanos;
+
+    private final AtomicLong balance;
+    private final AtomicLong lastRefill;
+
+    public RetryBudget(double ratio, int minRetriesPerSecond) {
+        this.deposit = (long) (ratio * SCALE);
+        this.minPerSecond = minRetriesPerSecond * SCALE;
+        this.capacity = Math.max(minRetriesPerSecond, 1) * 10 * SCALE;
+        this.fillNanos = minPerSecond == 0 ? 0 : (capacity / minPerSecond + 1) * NANOS_PER_SECOND;
+        this.balance = new AtomicLong(this.minPerSecond);
+        this.lastRefill = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Record a first attempt
+     */
+    public void deposit() {
+        add(deposit);
+    }
+
+    /**
+     * Try to withdraw a retry from the budget
+     * @return false if the budget is exhausted
+     */
+    public boolean tryWithdraw() {
+        return tryWithdraw(System.nanoTime());
+    }
+
+    /**
+     * Try to withdraw a retry from the budget, refilling it up to the given time
+     */
+    boolean tryWithdraw(long now) {
+        refill(now);
+        for (;;) {
+            long current = balance.get();
+            if (current < SCALE) {
+                return false;
+            }
+            if (balance.compareAndSet(current, current - SCALE)) {
+                return true;
+            }
+        }
+    }
+
+    private void refill(long now) {
+        long last = lastRefill.get();
+        // Past the time to fill the bucket from empty the elapsed time makes no difference,
+        // clamping it keeps the product from overflowing after a long idle period
+        long elapsed = Math.min(now - last, fillNanos);
+        long tokens = elapsed * minPerSecond / NANOS_PER_SECOND;
+        if (tokens > 0 && lastRefill.compareAndSet(last, now)) {
+            add(tokens);
+        }
+    }
+
+    private void add(long tokens) {
+        for (;;) {
+            long current = balance.get();
+            long next = Math.min(capacity, current + tokens);
+            if (next == current || balance.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+}
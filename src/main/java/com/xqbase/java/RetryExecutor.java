@@ -0,0 +1,194 @@
+package com.xqbase.java;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.util.EntityUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-executes failed requests on the shared scheduler, never blocking a thread
+ * while backing off, and within the retry budget of the request's route.
+ */
+class RetryExecutor {
+
+    interface Attempt<T> {
+        ListenableFuture<T> execute();
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentMap<HttpHost, RetryBudget> budgets = new ConcurrentHashMap<HttpHost, RetryBudget>();
+    private volatile RetryPolicy policy;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong budgetExhausted = new AtomicLong();
+    private final AtomicLong backoffMillis = new AtomicLong();
+
+    public RetryExecutor(final ScheduledExecutorService scheduler, final RetryPolicy policy) {
+        this.scheduler = scheduler;
+        this.policy = policy;
+    }
+
+    public RetryPolicy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(RetryPolicy policy) {
+        this.policy = policy;
+        budgets.clear();
+    }
+
+    /**
+     * @return the number of retries scheduled
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return the number of retries denied because the route's budget was exhausted
+     */
+    public long getBudgetExhausted() {
+        return budgetExhausted.get();
+    }
+
+    /**
+     * @return the total backoff scheduled in milliseconds
+     */
+    public long getBackoffMillis() {
+        return backoffMillis.get();
+    }
+
+    public <T> ListenableFuture<T> execute(HttpUriRequest request, Attempt<T> attempt) {
+        RetryPolicy policy = this.policy;
+        if (policy == null || policy.getMaxRetries() == 0) {
+            return attempt.execute();
+        }
+
+        // Requests without a target, which the client can not route anyway, are not budgeted
+        HttpHost route = Routes.target(request);
+        RetryBudget budget = route == null ? null : budget(route, policy);
+        if (budget != null) {
+            budget.deposit();
+        }
+
+        Retry<T> retry = new Retry<T>(request, attempt, policy, budget);
+        retry.run();
+        return retry.result;
+    }
+
+    private RetryBudget budget(HttpHost route, RetryPolicy policy) {
+        RetryBudget budget = budgets.get(route);
+        if (budget == null) {
+            budget = new RetryBudget(policy.getBudgetRatio(), policy.getBudgetMinRetriesPerSecond());
+            RetryBudget existing = budgets.putIfAbsent(route, budget);
+            if (existing != null) {
+                budget = existing;
+            }
+        }
+
+        return budget;
+    }
+
+    private class Retry<T> implements Runnable, FutureCallback<T> {
+
+        private final SettableFuture<T> result = SettableFuture.create();
+        private final HttpUriRequest request;
+        private final Attempt<T> attempt;
+        private final RetryPolicy policy;
+        private final RetryBudget budget;
+
+        private volatile Future<?> current;
+        private int retried = 0;
+        private long delay = 0;
+
+        public Retry(final HttpUriRequest request, final Attempt<T> attempt, final RetryPolicy policy, final RetryBudget budget) {
+            this.request = request;
+            this.attempt = attempt;
+            this.policy = policy;
+            this.budget = budget;
+
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    Future<?> future = current;
+                    if (result.isCancelled() && future != null) {
+                        future.cancel(true);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        @Override
+        public void run() {
+            if (result.isDone()) {
+                return;
+            }
+
+            ListenableFuture<T> future = attempt.execute();
+            current = future;
+            Futures.addCallback(future, this);
+        }
+
+        @Override
+        public void onSuccess(T value) {
+            if (value instanceof HttpResponse) {
+                HttpResponse response = (HttpResponse) value;
+                if (!result.isDone() && policy.isRetryable(request, response.getStatusLine().getStatusCode())
+                        && scheduleRetry()) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    return;
+                }
+            }
+
+            if (!result.set(value) && value instanceof HttpResponse) {
+                // Cancelled while the attempt was in flight, release the body nobody will read
+                EntityUtils.consumeQuietly(((HttpResponse) value).getEntity());
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            if (t instanceof Exception && !result.isDone()
+                    && policy.isRetryable(request, (Exception) t) && scheduleRetry()) {
+                return;
+            }
+
+            result.setException(t);
+        }
+
+        private boolean scheduleRetry() {
+            if (retried >= policy.getMaxRetries()) {
+                return false;
+            }
+            if (budget != null && !budget.tryWithdraw()) {
+                budgetExhausted.incrementAndGet();
+                return false;
+            }
+
+            retried++;
+            delay = policy.nextDelayMillis(delay);
+            retries.incrementAndGet();
+            backoffMillis.addAndGet(delay);
+            try {
+                current = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+
+            return true;
+        }
+    }
+}
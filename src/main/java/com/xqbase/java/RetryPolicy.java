@@ -0,0 +1,163 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a failed request is retried and how long to back off before
+ * the next attempt, using exponential backoff with decorrelated jitter.
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_BASE_DELAY_MILLIS = 100;
+    public static final double DEFAULT_BUDGET_RATIO = 0.2;
+    public static final int DEFAULT_BUDGET_MIN_RETRIES_PER_SECOND = 10;
+
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<String>(
+            Arrays.asList("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE"));
+
+    private int maxRetries = AsyncClient.DEFAULT_MAX_RETRIES;
+    private int baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+    private int maxDelayMillis = AsyncClient.DEFAULT_RETRY_SLEEP_TIME_MILLIS;
+    private double budgetRatio = DEFAULT_BUDGET_RATIO;
+    private int budgetMinRetriesPerSecond = DEFAULT_BUDGET_MIN_RETRIES_PER_SECOND;
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Set the maximum retries of a single request, zero disables retries
+     * @param maxRetries maximum retries
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries < 0 ? AsyncClient.DEFAULT_MAX_RETRIES : maxRetries;
+    }
+
+    public int getBaseDelayMillis() {
+        return baseDelayMillis;
+    }
+
+    /**
+     * Set the backoff of the first retry
+     * @param baseDelayMillis base backoff in milliseconds
+     */
+    public void setBaseDelayMillis(int baseDelayMillis) {
+        this.baseDelayMillis = baseDelayMillis < 1 ? DEFAULT_BASE_DELAY_MILLIS : baseDelayMillis;
+    }
+
+    public int getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * Set the cap of the backoff between two attempts
+     * @param maxDelayMillis maximum backoff in milliseconds
+     */
+    public void setMaxDelayMillis(int maxDelayMillis) {
+        this.maxDelayMillis = maxDelayMillis < 1 ? AsyncClient.DEFAULT_RETRY_SLEEP_TIME_MILLIS : maxDelayMillis;
+    }
+
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * Set the ratio of retries to requests allowed per route, e.g. 0.2 allows
+     * one retry for every five requests once the minimum rate is used up
+     * @param budgetRatio retries per request
+     */
+    public void setBudgetRatio(double budgetRatio) {
+        this.budgetRatio = budgetRatio < 0 ? DEFAULT_BUDGET_RATIO : budgetRatio;
+    }
+
+    public int getBudgetMinRetriesPerSecond() {
+        return budgetMinRetriesPerSecond;
+    }
+
+    /**
+     * Set the retries per second a route may always spend, regardless of its request rate
+     * @param budgetMinRetriesPerSecond minimum retry rate
+     */
+    public void setBudgetMinRetriesPerSecond(int budgetMinRetriesPerSecond) {
+        this.budgetMinRetriesPerSecond = budgetMinRetriesPerSecond < 0 ? DEFAULT_BUDGET_MIN_RETRIES_PER_SECOND : budgetMinRetriesPerSecond;
+    }
+
+    /**
+     * Compute the backoff before the next attempt
+     * @param previousDelayMillis the previous backoff, zero before the first retry
+     * @return backoff in milliseconds
+     */
+    public long nextDelayMillis(long previousDelayMillis) {
+        long upper = Math.max(baseDelayMillis, previousDelayMillis * 3);
+        long delay = baseDelayMillis + (long) (ThreadLocalRandom.current().nextDouble() * (upper - baseDelayMillis));
+        return Math.min(maxDelayMillis, delay);
+    }
+
+    /**
+     * Whether the request can be sent again after the given failure
+     * @param request the failed request
+     * @param ex the failure
+     * @return true if the request should be retried
+     */
+    public boolean isRetryable(HttpRequest request, Exception ex) {
+        if (!isRepeatable(request)) {
+            return false;
+        }
+        if (ex instanceof HttpResponseException) {
+            return isRetryable(request, ((HttpResponseException) ex).getStatusCode());
+        }
+        if (ex instanceof UnknownHostException || ex instanceof SSLException) {
+            return false;
+        }
+        if (ex instanceof ConnectException || ex instanceof ConnectTimeoutException) {
+            // The request never reached the server
+            return true;
+        }
+
+        return ex instanceof IOException && isIdempotent(request);
+    }
+
+    /**
+     * Whether the request can be sent again after the server answered with the given status
+     * @param request the request
+     * @param status the response status code
+     * @return true if the request should be retried
+     */
+    public boolean isRetryable(HttpRequest request, int status) {
+        if (!isRepeatable(request) || !isIdempotent(request)) {
+            return false;
+        }
+
+        return status == HttpStatus.SC_BAD_GATEWAY
+                || status == HttpStatus.SC_SERVICE_UNAVAILABLE
+                || status == HttpStatus.SC_GATEWAY_TIMEOUT;
+    }
+
+    public boolean isIdempotent(HttpRequest request) {
+        return IDEMPOTENT_METHODS.contains(request.getRequestLine().getMethod().toUpperCase(Locale.ROOT));
+    }
+
+    private boolean isRepeatable(HttpRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,127 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpHost;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies and counters of the requests sent to a single route
+ */
+public class RouteMetrics {
+
+    private final HttpHost route;
+
+    private final LatencyRecorder latency = new LatencyRecorder();
+    private final LatencyRecorder firstByte = new LatencyRecorder();
+    private final LatencyRecorder deserialization = new LatencyRecorder();
+    private final LatencyRecorder leaseWait = new LatencyRecorder();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLongArray statusClasses = new AtomicLongArray(6);
+    private final ConcurrentMap<String, AtomicLong> exceptions = new ConcurrentHashMap<String, AtomicLong>();
+
+    public RouteMetrics(final HttpHost route) {
+        this.route = route;
+    }
+
+    public HttpHost getRoute() {
+        return route;
+    }
+
+    /**
+     * @return the latency from sending the request to receiving the whole response
+     */
+    public LatencyRecorder getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the latency from sending the request to receiving the response head
+     */
+    public LatencyRecorder getFirstByte() {
+        return firstByte;
+    }
+
+    /**
+     * @return the time spent deserializing response bodies
+     */
+    public LatencyRecorder getDeserialization() {
+        return deserialization;
+    }
+
+    /**
+     * @return the time spent waiting to lease a connection from the pool
+     */
+    public LatencyRecorder getLeaseWait() {
+        return leaseWait;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Get the number of responses with a status code in the given class
+     * @param statusClass the first digit of the status code, 1 to 5
+     * @return response count
+     */
+    public long getStatusCount(int statusClass) {
+        return statusClass < 1 || statusClass > 5 ? 0 : statusClasses.get(statusClass);
+    }
+
+    /**
+     * @return the number of failed requests per exception class name
+     */
+    public Map<String, Long> getExceptionCounts() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : exceptions.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+
+        return counts;
+    }
+
+    void requestStarted() {
+        requests.incrementAndGet();
+        inFlight.incrementAndGet();
+    }
+
+    void requestCompleted(long nanos, Throwable failure) {
+        inFlight.decrementAndGet();
+        latency.record(nanos);
+        if (failure != null) {
+            recordException(failure);
+        }
+    }
+
+    void recordStatus(int status) {
+        int statusClass = status / 100;
+        if (statusClass >= 1 && statusClass <= 5) {
+            statusClasses.incrementAndGet(statusClass);
+        }
+    }
+
+    void recordException(Throwable failure) {
+        String name = failure instanceof CancellationException ? "Cancelled" : failure.getClass().getName();
+        AtomicLong counter = exceptions.get(name);
+        if (counter == null) {
+            AtomicLong existing = exceptions.putIfAbsent(name, counter = new AtomicLong());
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        counter.incrementAndGet();
+    }
+}
@@ -0,0 +1,45 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.routing.HttpRoute;
+
+/**
+ * Maps requests to the host they are routed to, with the port made explicit so that
+ * per route state is shared between URLs with and without the default port.
+ */
+final class Routes {
+
+    private Routes() {
+    }
+
+    /**
+     * Get the target host of the request
+     * @param request the request
+     * @return the target host, or null if the request URI is relative
+     */
+    public static HttpHost target(HttpUriRequest request) {
+        HttpHost host = URIUtils.extractHost(request.getURI());
+        return host == null ? null : normalize(host);
+    }
+
+    public static HttpHost normalize(HttpHost host) {
+        if (host.getPort() > 0) {
+            return host;
+        }
+
+        return new HttpHost(host.getHostName(), isSecure(host) ? 443 : 80, host.getSchemeName());
+    }
+
+    /**
+     * Get the pool route requests to the given host are leased on
+     */
+    public static HttpRoute toHttpRoute(HttpHost host) {
+        return new HttpRoute(normalize(host), null, isSecure(host));
+    }
+
+    private static boolean isSecure(HttpHost host) {
+        return "https".equalsIgnoreCase(host.getSchemeName());
+    }
+}
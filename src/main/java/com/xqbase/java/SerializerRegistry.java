@@ -0,0 +1,95 @@
+package com.xqbase.java;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks the serializer of a response by its Content-Type and builds the Accept header
+ * advertising the registered media types, in order of preference.
+ * A structured syntax suffix such as application/vnd.example+json falls back to
+ * the serializer of application/json.
+ */
+public class SerializerRegistry {
+
+    private final Map<String, Serializer> serializers = new ConcurrentHashMap<String, Serializer>();
+    private final List<String> mediaTypes = new ArrayList<String>();
+    private volatile String acceptHeader = "";
+
+    /**
+     * Register a serializer under the media type it declares. Serializers registered
+     * first are preferred.
+     * @param serializer the serializer
+     * @return this registry
+     */
+    public SerializerRegistry register(AbstractSerializer serializer) {
+        return register(serializer.getContentType(), serializer);
+    }
+
+    /**
+     * Register a serializer for the given media type
+     * @param mediaType the media type, e.g. application/json
+     * @param serializer the serializer
+     * @return this registry
+     */
+    public synchronized SerializerRegistry register(String mediaType, Serializer serializer) {
+        String key = mediaType.trim().toLowerCase(Locale.ROOT);
+        if (serializers.put(key, serializer) == null) {
+            mediaTypes.add(key);
+        }
+        acceptHeader = buildAcceptHeader();
+        return this;
+    }
+
+    /**
+     * Get the serializer of the given Content-Type
+     * @param contentType the Content-Type header value, parameters are ignored
+     * @return the serializer, or null if none is registered for it
+     */
+    public Serializer forContentType(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+
+        int end = contentType.indexOf(';');
+        String mediaType = (end < 0 ? contentType : contentType.substring(0, end)).trim().toLowerCase(Locale.ROOT);
+        Serializer serializer = serializers.get(mediaType);
+        if (serializer != null) {
+            return serializer;
+        }
+
+        int plus = mediaType.lastIndexOf('+');
+        int slash = mediaType.indexOf('/');
+        if (plus > slash && slash > 0) {
+            return serializers.get(mediaType.substring(0, slash + 1) + mediaType.substring(plus + 1));
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the Accept header value listing the registered media types, empty if there are none
+     */
+    public String getAcceptHeader() {
+        return acceptHeader;
+    }
+
+    private String buildAcceptHeader() {
+        StringBuilder accept = new StringBuilder();
+        int quality = 10;
+        for (String mediaType : mediaTypes) {
+            if (accept.length() > 0) {
+                accept.append(", ");
+            }
+            accept.append(mediaType);
+            if (quality < 10) {
+                accept.append(";q=0.").append(quality);
+            }
+            quality = Math.max(1, quality - 1);
+        }
+
+        return accept.toString();
+    }
+}
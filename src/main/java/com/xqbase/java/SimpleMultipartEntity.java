@@ -1,21 +1,40 @@
 package com.xqbase.java;
 
+import org.apache.http.Consts;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.FileContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 
-class SimpleMultipartEntity implements HttpEntity {
+/**
+ * Multipart entity which keeps its parts as descriptors and streams them on demand.
+ * Files are transferred straight from their channel into the socket when the encoder
+ * supports it, so the heap usage does not depend on the payload size. The content
+ * length is computed up front unless a part is a stream of unknown length, in which
+ * case the entity is sent chunked.
+ */
+class SimpleMultipartEntity implements HttpEntity, HttpAsyncContentProducer {
 
     private final static char[] MULTIPART_CHARS = "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
 
     private String boundary = null;
 
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    boolean isSetLast = false;
-    boolean isSetFirst = false;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private int current = 0;
+    private ByteBuffer buffer;
 
     public SimpleMultipartEntity() {
         final StringBuffer buf = new StringBuffer();
@@ -24,89 +43,71 @@ class SimpleMultipartEntity implements HttpEntity {
             buf.append(MULTIPART_CHARS[rand.nextInt(MULTIPART_CHARS.length)]);
         }
         this.boundary = buf.toString();
-
+        this.segments.add(new BytesSegment(closingBoundary()));
     }
 
-    public void writeFirstBoundaryIfNeeds(){
-        if(!isSetFirst){
-            try {
-                out.write(("--" + boundary + "\r\n").getBytes());
-            } catch (final IOException e) {
-                e.printStackTrace();
-            }
-        }
-
-        isSetFirst = true;
+    public void addPart(final String key, final String value) {
+        addSegments(new BytesSegment(partHeader(key, null, null)),
+                new BytesSegment(value.getBytes(Consts.UTF_8)));
     }
 
-    public void writeLastBoundaryIfNeeds() {
-        if(isSetLast){
-            return;
-        }
-
-        try {
-            out.write(("\r\n--" + boundary + "--\r\n").getBytes());
-        } catch (final IOException e) {
-            e.printStackTrace();
-        }
+    public void addPart(final String key, final String fileName, final InputStream fin) {
+        addPart(key, fileName, fin, "application/octet-stream");
+    }
 
-        isSetLast = true;
+    public void addPart(final String key, final String fileName, final InputStream fin, final String type) {
+        addSegments(new BytesSegment(partHeader(key, fileName, type)), new StreamSegment(fin));
     }
 
-    public void addPart(final String key, final String value) {
-        writeFirstBoundaryIfNeeds();
-        try {
-            out.write(("Content-Disposition: form-data; name=\"" +key+"\"\r\n\r\n").getBytes());
-            out.write(value.getBytes());
-            out.write(("\r\n--" + boundary + "\r\n").getBytes());
-        } catch (final IOException e) {
-            e.printStackTrace();
-        }
+    public void addPart(final String key, final File value) {
+        addPart(key, value, "application/octet-stream");
     }
 
-    public void addPart(final String key, final String fileName, final InputStream fin, final boolean isLast){
-        addPart(key, fileName, fin, "application/octet-stream", isLast);
+    public void addPart(final String key, final File value, final String type) {
+        addSegments(new BytesSegment(partHeader(key, value.getName(), type)), new FileSegment(value));
     }
 
-    public void addPart(final String key, final String fileName, final InputStream fin, String type, final boolean isLast){
-        writeFirstBoundaryIfNeeds();
-        try {
-            type = "Content-Type: "+type+"\r\n";
-            out.write(("Content-Disposition: form-data; name=\""+ key+"\"; filename=\"" + fileName + "\"\r\n").getBytes());
-            out.write(type.getBytes());
-            out.write("Content-Transfer-Encoding: binary\r\n\r\n".getBytes());
+    private void addSegments(final Segment header, final Segment body) {
+        // Keep the closing boundary as the last segment
+        int end = segments.size() - 1;
+        segments.add(end, new BytesSegment("\r\n".getBytes(Consts.ASCII)));
+        segments.add(end, body);
+        segments.add(end, header);
+    }
 
-            final byte[] tmp = new byte[4096];
-            int l = 0;
-            while ((l = fin.read(tmp)) != -1) {
-                out.write(tmp, 0, l);
-            }
-            if(!isLast)
-                out.write(("\r\n--" + boundary + "\r\n").getBytes());
-            out.flush();
-        } catch (final IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                fin.close();
-            } catch (final IOException e) {
-                e.printStackTrace();
-            }
+    private byte[] partHeader(final String key, final String fileName, final String type) {
+        StringBuilder header = new StringBuilder();
+        header.append("--").append(boundary).append("\r\n");
+        header.append("Content-Disposition: form-data; name=\"").append(key).append("\"");
+        if (fileName != null) {
+            header.append("; filename=\"").append(fileName).append("\"");
+        }
+        header.append("\r\n");
+        if (type != null) {
+            header.append("Content-Type: ").append(type).append("\r\n");
+            header.append("Content-Transfer-Encoding: binary\r\n");
         }
+        header.append("\r\n");
+
+        return header.toString().getBytes(Consts.UTF_8);
     }
 
-    public void addPart(final String key, final File value, final boolean isLast) {
-        try {
-            addPart(key, value.getName(), new FileInputStream(value), isLast);
-        } catch (final FileNotFoundException e) {
-            e.printStackTrace();
-        }
+    private byte[] closingBoundary() {
+        return ("--" + boundary + "--\r\n").getBytes(Consts.ASCII);
     }
 
     @Override
     public long getContentLength() {
-        writeLastBoundaryIfNeeds();
-        return out.toByteArray().length;
+        long len = 0;
+        for (Segment segment : segments) {
+            long segmentLength = segment.length();
+            if (segmentLength < 0) {
+                return -1;
+            }
+            len += segmentLength;
+        }
+
+        return len;
     }
 
     @Override
@@ -116,22 +117,40 @@ class SimpleMultipartEntity implements HttpEntity {
 
     @Override
     public boolean isChunked() {
-        return false;
+        return getContentLength() < 0;
     }
 
     @Override
     public boolean isRepeatable() {
-        return false;
+        for (Segment segment : segments) {
+            if (!segment.isRepeatable()) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     @Override
     public boolean isStreaming() {
-        return false;
+        return !isRepeatable();
     }
 
     @Override
     public void writeTo(final OutputStream os) throws IOException {
-        os.write(out.toByteArray());
+        final byte[] tmp = new byte[AsyncClient.DEFAULT_BUFFER_SIZE];
+        for (Segment segment : segments) {
+            InputStream in = segment.openStream();
+            try {
+                int l;
+                while ((l = in.read(tmp)) != -1) {
+                    os.write(tmp, 0, l);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        os.flush();
     }
 
     @Override
@@ -151,6 +170,240 @@ class SimpleMultipartEntity implements HttpEntity {
     @Override
     public InputStream getContent() throws IOException,
             UnsupportedOperationException {
-        return new ByteArrayInputStream(out.toByteArray());
+        List<InputStream> streams = new ArrayList<InputStream>(segments.size());
+        for (Segment segment : segments) {
+            streams.add(segment.openStream());
+        }
+
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    @Override
+    public void produceContent(final ContentEncoder encoder, final IOControl ioctrl) throws IOException {
+        if (buffer == null) {
+            buffer = BufferPool.getDefault().acquire(AsyncClient.DEFAULT_BUFFER_SIZE);
+        }
+
+        while (current < segments.size()) {
+            if (!segments.get(current).produce(encoder, buffer)) {
+                // The channel is full, wait for the next output event
+                return;
+            }
+            current++;
+        }
+
+        encoder.complete();
+        close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        current = 0;
+        BufferPool.getDefault().release(buffer);
+        buffer = null;
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private interface Segment extends Closeable {
+
+        /**
+         * @return the length in bytes, or a negative value if unknown
+         */
+        long length();
+
+        boolean isRepeatable();
+
+        InputStream openStream() throws IOException;
+
+        /**
+         * Write as much of the segment as the encoder accepts
+         * @return true once the whole segment has been written
+         */
+        boolean produce(ContentEncoder encoder, ByteBuffer buffer) throws IOException;
+    }
+
+    private static class BytesSegment implements Segment {
+
+        private final byte[] bytes;
+        private ByteBuffer pending;
+
+        public BytesSegment(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public long length() {
+            return bytes.length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public InputStream openStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public boolean produce(ContentEncoder encoder, ByteBuffer buffer) throws IOException {
+            if (pending == null) {
+                pending = ByteBuffer.wrap(bytes);
+            }
+            encoder.write(pending);
+            if (pending.hasRemaining()) {
+                return false;
+            }
+
+            pending = null;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            pending = null;
+        }
+    }
+
+    /**
+     * Copies a channel through the shared buffer, keeping whatever the encoder
+     * did not accept for the next output event
+     */
+    private abstract static class ChannelSegment implements Segment {
+
+        protected ReadableByteChannel channel;
+        private boolean eof = false;
+        private boolean buffered = false;
+
+        protected abstract ReadableByteChannel openChannel() throws IOException;
+
+        @Override
+        public boolean produce(ContentEncoder encoder, ByteBuffer buffer) throws IOException {
+            if (channel == null) {
+                channel = openChannel();
+            }
+
+            for (;;) {
+                if (!buffered) {
+                    buffer.clear();
+                    eof = channel.read(buffer) == -1;
+                    buffer.flip();
+                    buffered = true;
+                }
+                if (buffer.hasRemaining()) {
+                    encoder.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        return false;
+                    }
+                }
+                buffered = false;
+                if (eof) {
+                    close();
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            eof = false;
+            buffered = false;
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    private static class FileSegment extends ChannelSegment {
+
+        private final File file;
+        private long position = 0;
+
+        public FileSegment(final File file) {
+            this.file = file;
+        }
+
+        @Override
+        public long length() {
+            return file.length();
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return new FileInputStream(file);
+        }
+
+        @Override
+        protected ReadableByteChannel openChannel() throws IOException {
+            return new RandomAccessFile(file, "r").getChannel();
+        }
+
+        @Override
+        public boolean produce(ContentEncoder encoder, ByteBuffer buffer) throws IOException {
+            if (!(encoder instanceof FileContentEncoder)) {
+                return super.produce(encoder, buffer);
+            }
+
+            if (channel == null) {
+                channel = openChannel();
+            }
+
+            // Zero copy from the file into the socket
+            long length = ((FileChannel) channel).size();
+            while (position < length) {
+                long transferred = ((FileContentEncoder) encoder).transfer((FileChannel) channel, position, length - position);
+                if (transferred <= 0) {
+                    return false;
+                }
+                position += transferred;
+            }
+
+            close();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            position = 0;
+            super.close();
+        }
+    }
+
+    private static class StreamSegment extends ChannelSegment {
+
+        private final InputStream stream;
+
+        public StreamSegment(final InputStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public long length() {
+            return -1;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public InputStream openStream() {
+            return stream;
+        }
+
+        @Override
+        protected ReadableByteChannel openChannel() {
+            return Channels.newChannel(stream);
+        }
     }
 }
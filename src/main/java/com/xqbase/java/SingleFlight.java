@@ -0,0 +1,67 @@
+package com.xqbase.java;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls with the same key into a single call whose result is
+ * shared by every caller. A caller cancelling its future does not cancel the shared call.
+ */
+class SingleFlight {
+
+    interface Call<T> {
+        ListenableFuture<T> call();
+    }
+
+    private final ConcurrentMap<Object, SettableFuture<?>> inFlight = new ConcurrentHashMap<Object, SettableFuture<?>>();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * @return the number of calls which joined a call already in flight
+     */
+    public long getShared() {
+        return shared.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> ListenableFuture<T> execute(final Object key, Call<T> call) {
+        final SettableFuture<T> leader = SettableFuture.create();
+        SettableFuture<?> existing = inFlight.putIfAbsent(key, leader);
+        if (existing != null) {
+            shared.incrementAndGet();
+            return Futures.nonCancellationPropagating((ListenableFuture<T>) existing);
+        }
+
+        leader.addListener(new Runnable() {
+            @Override
+            public void run() {
+                inFlight.remove(key, leader);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        try {
+            Futures.addCallback(call.call(), new FutureCallback<T>() {
+                @Override
+                public void onSuccess(T result) {
+                    leader.set(result);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    leader.setException(t);
+                }
+            });
+        } catch (RuntimeException e) {
+            leader.setException(e);
+        }
+
+        return Futures.nonCancellationPropagating(leader);
+    }
+}
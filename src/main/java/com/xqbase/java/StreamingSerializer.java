@@ -0,0 +1,16 @@
+package com.xqbase.java;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+public interface StreamingSerializer extends Serializer {
+
+    /**
+     * Create a deserializer which is fed with the body chunk by chunk
+     * as it is decoded, so the whole body never has to be buffered.
+     * @param type the type to deserialize the body to, a class or a parameterized type
+     * @return a new deserializer for one body
+     * @throws IOException if no deserializer can be built for the type
+     */
+    IncrementalDeserializer<?> newDeserializer(Type type) throws IOException;
+}
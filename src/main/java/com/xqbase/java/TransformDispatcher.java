@@ -0,0 +1,108 @@
+package com.xqbase.java;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs deserialization tasks where the {@link DispatchPolicy} says, counting each decision
+ */
+class TransformDispatcher {
+
+    private final ListeningExecutorService transformPool;
+    private volatile DispatchPolicy policy = new DispatchPolicy();
+    private volatile ListeningExecutorService virtualThreads;
+    private volatile boolean virtualThreadsUnsupported = false;
+
+    private final AtomicLong inline = new AtomicLong();
+    private final AtomicLong pooled = new AtomicLong();
+    private final AtomicLong virtual = new AtomicLong();
+
+    public TransformDispatcher(final ListeningExecutorService transformPool) {
+        this.transformPool = transformPool;
+    }
+
+    DispatchPolicy getPolicy() {
+        return policy;
+    }
+
+    void setPolicy(DispatchPolicy policy) {
+        this.policy = policy == null ? new DispatchPolicy() : policy;
+    }
+
+    /**
+     * Run the task inline or hand it to another thread
+     * @param length the length of the body the task deserializes, negative if unknown
+     */
+    <T> ListenableFuture<T> dispatch(long length, Callable<T> task) {
+        DispatchPolicy policy = this.policy;
+        if (policy.isInline(length)) {
+            inline.incrementAndGet();
+            try {
+                return Futures.immediateFuture(task.call());
+            } catch (Exception e) {
+                return Futures.immediateFailedFuture(e);
+            }
+        }
+
+        ListeningExecutorService executor = policy.isVirtualThreads() ? virtualThreads() : null;
+        if (executor != null) {
+            virtual.incrementAndGet();
+            return executor.submit(task);
+        }
+
+        pooled.incrementAndGet();
+        return transformPool.submit(task);
+    }
+
+    long getInlineCount() {
+        return inline.get();
+    }
+
+    long getPooledCount() {
+        return pooled.get();
+    }
+
+    long getVirtualCount() {
+        return virtual.get();
+    }
+
+    void shutdown() {
+        transformPool.shutdown();
+        ListeningExecutorService executor = virtualThreads;
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Create the virtual thread executor on first use, it is looked up reflectively
+     * as the client runs on JVMs without virtual threads
+     * @return the executor, or null if the JVM has no virtual threads
+     */
+    private ListeningExecutorService virtualThreads() {
+        ListeningExecutorService executor = virtualThreads;
+        if (executor != null || virtualThreadsUnsupported) {
+            return executor;
+        }
+
+        synchronized (this) {
+            if (virtualThreads == null && !virtualThreadsUnsupported) {
+                try {
+                    ExecutorService created = (ExecutorService) Executors.class
+                            .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    virtualThreads = MoreExecutors.listeningDecorator(created);
+                } catch (ReflectiveOperationException e) {
+                    virtualThreadsUnsupported = true;
+                }
+            }
+            return virtualThreads;
+        }
+    }
+}
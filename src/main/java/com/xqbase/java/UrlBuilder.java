@@ -0,0 +1,182 @@
+package com.xqbase.java;
+
+/**
+ * Builds a URL with a query string, form encoding the parameters as UTF-8 straight
+ * into a single buffer. Keys and values made of safe ASCII characters only are copied
+ * as is. The encoding matches {@link org.apache.http.client.utils.URLEncodedUtils#format}.
+ * A builder can be reset and reused, it is not thread safe.
+ */
+public class UrlBuilder {
+
+    private static final int MAX_RETAINED_CAPACITY = 8192;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final boolean[] SAFE = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            SAFE[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            SAFE[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            SAFE[c] = true;
+        }
+        SAFE['-'] = SAFE['_'] = SAFE['.'] = SAFE['*'] = true;
+    }
+
+    private static final ThreadLocal<UrlBuilder> LOCAL = new ThreadLocal<UrlBuilder>() {
+        @Override
+        protected UrlBuilder initialValue() {
+            return new UrlBuilder();
+        }
+    };
+
+    private StringBuilder buf = new StringBuilder(128);
+    private boolean hasQuery;
+
+    public UrlBuilder() {
+    }
+
+    public UrlBuilder(String url) {
+        reset(url);
+    }
+
+    /**
+     * Get the builder of the current thread, reset to the given URL
+     * @param url the URL without the parameters to append
+     * @return the thread's builder
+     */
+    static UrlBuilder local(String url) {
+        return LOCAL.get().reset(url);
+    }
+
+    /**
+     * Start a new URL, dropping whatever was built so far
+     * @param url the URL without the parameters to append, may already have a query string
+     * @return this builder
+     */
+    public UrlBuilder reset(String url) {
+        if (buf.capacity() > MAX_RETAINED_CAPACITY) {
+            buf = new StringBuilder(128);
+        }
+        buf.setLength(0);
+        buf.append(url);
+        hasQuery = url.indexOf('?') >= 0;
+        return this;
+    }
+
+    /**
+     * Make sure the buffer can take the given number of additional characters
+     * @param length expected characters to append
+     * @return this builder
+     */
+    public UrlBuilder ensureCapacity(int length) {
+        buf.ensureCapacity(buf.length() + length);
+        return this;
+    }
+
+    /**
+     * Append an encoded parameter
+     * @param key the parameter name
+     * @param value the parameter value, only the name is appended if null
+     * @return this builder
+     */
+    public UrlBuilder append(String key, String value) {
+        buf.append(hasQuery ? '&' : '?');
+        hasQuery = true;
+        encode(key, buf);
+        if (value != null) {
+            buf.append('=');
+            encode(value, buf);
+        }
+        return this;
+    }
+
+    /**
+     * Append the URL parameters
+     * @param params the parameters, ignored if null
+     * @return this builder
+     */
+    public UrlBuilder append(RequestParams params) {
+        if (params != null) {
+            params.appendTo(this);
+        }
+        return this;
+    }
+
+    /**
+     * Append parameters which are already encoded
+     * @param query encoded parameters separated by '&amp;', ignored if empty
+     * @return this builder
+     */
+    UrlBuilder appendEncoded(String query) {
+        if (!query.isEmpty()) {
+            buf.append(hasQuery ? '&' : '?').append(query);
+            hasQuery = true;
+        }
+        return this;
+    }
+
+    public int length() {
+        return buf.length();
+    }
+
+    @Override
+    public String toString() {
+        return buf.toString();
+    }
+
+    /**
+     * Form encode the string as UTF-8, spaces becoming '+'
+     */
+    static void encode(String s, StringBuilder out) {
+        int len = s.length();
+        int i = 0;
+        while (i < len) {
+            char c = s.charAt(i);
+            if (c >= 128 || !SAFE[c]) {
+                break;
+            }
+            i++;
+        }
+        if (i == len) {
+            out.append(s);
+            return;
+        }
+
+        out.append(s, 0, i);
+        for (; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 128) {
+                if (SAFE[c]) {
+                    out.append(c);
+                } else if (c == ' ') {
+                    out.append('+');
+                } else {
+                    appendEscaped(c, out);
+                }
+            } else if (c < 0x800) {
+                appendEscaped(0xC0 | (c >> 6), out);
+                appendEscaped(0x80 | (c & 0x3F), out);
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                appendEscaped(0xF0 | (cp >> 18), out);
+                appendEscaped(0x80 | ((cp >> 12) & 0x3F), out);
+                appendEscaped(0x80 | ((cp >> 6) & 0x3F), out);
+                appendEscaped(0x80 | (cp & 0x3F), out);
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, replaced like the UTF-8 encoder does
+                appendEscaped('?', out);
+            } else {
+                appendEscaped(0xE0 | (c >> 12), out);
+                appendEscaped(0x80 | ((c >> 6) & 0x3F), out);
+                appendEscaped(0x80 | (c & 0x3F), out);
+            }
+        }
+    }
+
+    private static void appendEscaped(int b, StringBuilder out) {
+        out.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+}
@@ -0,0 +1,68 @@
+package com.xqbase.java;
+
+import com.google.common.primitives.Primitives;
+import com.google.common.reflect.TypeToken;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Converts member names into the key type of a map. Codecs read the keys of maps as
+ * strings, while the keys of the bound map may be numbers, booleans, characters or enum
+ * constants.
+ */
+class ValueMapper {
+
+    private ValueMapper() {
+    }
+
+    /**
+     * Convert a member name into a key of the given type
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object fromValue(String value, Type type) throws IOException {
+        Class<?> raw = TypeToken.of(type).getRawType();
+        if (raw.isAssignableFrom(String.class)) {
+            return value;
+        }
+        if (raw.isEnum()) {
+            try {
+                return Enum.valueOf((Class<Enum>) raw, value);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("No constant " + value + " in " + raw.getName());
+            }
+        }
+
+        Class<?> wrapped = Primitives.wrap(raw);
+        if (wrapped == Boolean.class) {
+            return Boolean.valueOf(value);
+        }
+        if (wrapped == Character.class) {
+            return value.isEmpty() ? '\0' : value.charAt(0);
+        }
+        try {
+            if (wrapped == Integer.class) {
+                return Integer.valueOf(value);
+            } else if (wrapped == Long.class) {
+                return Long.valueOf(value);
+            } else if (wrapped == Double.class) {
+                return Double.valueOf(value);
+            } else if (wrapped == Float.class) {
+                return Float.valueOf(value);
+            } else if (wrapped == Short.class) {
+                return Short.valueOf(value);
+            } else if (wrapped == Byte.class) {
+                return Byte.valueOf(value);
+            } else if (wrapped == BigDecimal.class) {
+                return new BigDecimal(value);
+            } else if (wrapped == BigInteger.class) {
+                return new BigInteger(value);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Expected a number but found " + value);
+        }
+        throw new IOException("Can not convert " + value + " into a key of " + type);
+    }
+}
@@ -0,0 +1,166 @@
+package com.xqbase.java;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchTest {
+
+    /**
+     * Calls completed by the test, recording how many were in flight at most
+     */
+    private static class PendingCalls implements Batch.Call<Integer> {
+
+        final List<SettableFuture<Integer>> futures = new ArrayList<SettableFuture<Integer>>();
+        int maxInFlight = 0;
+
+        @Override
+        public synchronized ListenableFuture<Integer> call(int index) {
+            SettableFuture<Integer> future = SettableFuture.create();
+            futures.add(future);
+            int inFlight = 0;
+            for (SettableFuture<Integer> f : futures) {
+                if (!f.isDone()) {
+                    inFlight++;
+                }
+            }
+            maxInFlight = Math.max(maxInFlight, inFlight);
+            return future;
+        }
+
+        synchronized SettableFuture<Integer> get(int index) {
+            return futures.get(index);
+        }
+
+        synchronized int sent() {
+            return futures.size();
+        }
+    }
+
+    private static class RecordingCallback implements BatchCallback<Integer> {
+
+        final List<String> calls = new ArrayList<String>();
+
+        @Override
+        public synchronized void onResult(int index, Integer result) {
+            calls.add(index + "=" + result);
+        }
+
+        @Override
+        public synchronized void onFailure(int index, Throwable failure) {
+            calls.add(index + "!" + failure.getClass().getSimpleName());
+        }
+    }
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private static BatchPolicy policy(int concurrency, boolean failureTolerant, int deadlineMillis) {
+        BatchPolicy policy = new BatchPolicy();
+        policy.setConcurrency(concurrency);
+        policy.setFailureTolerant(failureTolerant);
+        policy.setDeadlineMillis(deadlineMillis);
+        return policy;
+    }
+
+    @Test
+    public void testResultsInOrderWithBoundedConcurrency() throws Exception {
+        PendingCalls calls = new PendingCalls();
+        RecordingCallback callback = new RecordingCallback();
+        ListenableFuture<List<Integer>> result = new Batch<Integer>(5, calls, policy(2, false, 0), callback).start(scheduler);
+        assertEquals(2, calls.sent());
+
+        calls.get(1).set(1);
+        assertEquals(3, calls.sent());
+        // Held back until the first call completes
+        assertTrue(callback.calls.isEmpty());
+        calls.get(0).set(0);
+        assertEquals(Arrays.asList("0=0", "1=1"), callback.calls);
+
+        for (int i = 2; i < 5; i++) {
+            calls.get(i).set(i);
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), result.get());
+        assertEquals(2, calls.maxInFlight);
+    }
+
+    @Test
+    public void testFailureFailsBatchAndCancelsCallsInFlight() throws Exception {
+        PendingCalls calls = new PendingCalls();
+        ListenableFuture<List<Integer>> result = new Batch<Integer>(4, calls, policy(2, false, 0), null).start(scheduler);
+        calls.get(0).setException(new IOException());
+        try {
+            result.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(calls.get(1).isCancelled());
+        assertEquals(2, calls.sent());
+    }
+
+    @Test
+    public void testFailureTolerantBatchDeliversFailures() throws Exception {
+        PendingCalls calls = new PendingCalls();
+        RecordingCallback callback = new RecordingCallback();
+        ListenableFuture<List<Integer>> result = new Batch<Integer>(3, calls, policy(3, true, 0), callback).start(scheduler);
+        calls.get(0).set(0);
+        calls.get(1).setException(new IOException());
+        calls.get(2).set(2);
+        assertEquals(Arrays.asList(0, null, 2), result.get());
+        assertEquals(Arrays.asList("0=0", "1!IOException", "2=2"), callback.calls);
+    }
+
+    @Test(timeout = 5000)
+    public void testDeadlineTimesOutCallsLeft() throws Exception {
+        PendingCalls calls = new PendingCalls();
+        RecordingCallback callback = new RecordingCallback();
+        ListenableFuture<List<Integer>> result = new Batch<Integer>(3, calls, policy(1, true, 50), callback).start(scheduler);
+        calls.get(0).set(0);
+        assertEquals(Arrays.asList(0, null, null), result.get(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("0=0", "1!TimeoutException", "2!TimeoutException"), callback.calls);
+        // Cancelled by the timer thread, right after it completed the batch
+        try {
+            calls.get(1).get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (CancellationException e) {
+            // Expected
+        }
+        assertEquals(2, calls.sent());
+    }
+
+    @Test
+    public void testCancellingBatchCancelsCallsInFlight() {
+        PendingCalls calls = new PendingCalls();
+        ListenableFuture<List<Integer>> result = new Batch<Integer>(3, calls, policy(2, false, 0), null).start(scheduler);
+        result.cancel(true);
+        assertTrue(calls.get(0).isCancelled());
+        assertTrue(calls.get(1).isCancelled());
+        assertEquals(2, calls.sent());
+    }
+
+    @Test
+    public void testEmptyBatchCompletesAtOnce() throws Exception {
+        ListenableFuture<List<Integer>> result = new Batch<Integer>(0, new PendingCalls(), new BatchPolicy(), null).start(scheduler);
+        assertTrue(result.get().isEmpty());
+    }
+}
@@ -0,0 +1,66 @@
+package com.xqbase.java;
+
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Transfer decoder over a body held in memory, which hands out at most the given
+ * number of bytes per read and completes once the body has been read.
+ */
+class ByteArrayContentDecoder implements ContentDecoder {
+
+    private final ByteBuffer body;
+    private final int maxRead;
+
+    ByteArrayContentDecoder(byte[] body, int maxRead) {
+        this.body = ByteBuffer.wrap(body);
+        this.maxRead = maxRead;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        if (!body.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(maxRead, Math.min(dst.remaining(), body.remaining()));
+        ByteBuffer slice = body.duplicate();
+        slice.limit(slice.position() + n);
+        dst.put(slice);
+        body.position(body.position() + n);
+        return n;
+    }
+
+    @Override
+    public boolean isCompleted() {
+        return !body.hasRemaining();
+    }
+
+    static class NoopIOControl implements IOControl {
+
+        boolean suspended = false;
+
+        @Override
+        public void requestInput() {
+            suspended = false;
+        }
+
+        @Override
+        public void suspendInput() {
+            suspended = true;
+        }
+
+        @Override
+        public void requestOutput() {
+        }
+
+        @Override
+        public void suspendOutput() {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheEntryTest {
+
+    private static BasicHttpResponse response(String vary) {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setHeader("Cache-Control", "max-age=60");
+        if (vary != null) {
+            response.setHeader("Vary", vary);
+        }
+        return response;
+    }
+
+    private static HttpGet request(String acceptEncoding, String accept) {
+        HttpGet request = new HttpGet("http://localhost/resource");
+        if (acceptEncoding != null) {
+            request.setHeader("Accept-Encoding", acceptEncoding);
+        }
+        if (accept != null) {
+            request.setHeader("Accept", accept);
+        }
+        return request;
+    }
+
+    @Test
+    public void testMatchesRequestWithSameVaryingHeaders() {
+        long now = System.currentTimeMillis();
+        CacheEntry entry = CacheEntry.create(request("gzip, deflate", "application/json"),
+                response("Accept-Encoding, Accept"), new byte[0], now, now);
+        assertNotNull(entry);
+        assertTrue(entry.isFresh(now));
+        assertTrue(entry.matches(request("gzip, deflate", "application/json")));
+        assertFalse(entry.matches(request(null, "application/json")));
+        assertFalse(entry.matches(request("gzip, deflate", "application/cbor")));
+    }
+
+    @Test
+    public void testMissingVaryingHeaderMatchesOnlyMissingHeader() {
+        long now = System.currentTimeMillis();
+        CacheEntry entry = CacheEntry.create(request(null, null), response("Accept"), new byte[0], now, now);
+        assertTrue(entry.matches(request(null, null)));
+        assertTrue(entry.matches(request("gzip", null)));
+        assertFalse(entry.matches(request(null, "application/json")));
+    }
+
+    @Test
+    public void testVaryStarIsNotStored() {
+        long now = System.currentTimeMillis();
+        assertNull(CacheEntry.create(request(null, null), response("*"), new byte[0], now, now));
+    }
+
+    @Test
+    public void testCacheServesVaryingEntryToMatchingRequest() {
+        long now = System.currentTimeMillis();
+        ResponseCache cache = new ResponseCache();
+        cache.put("http://localhost/resource", CacheEntry.create(request("gzip, deflate", null),
+                response("Accept-Encoding"), new byte[]{1}, now, now));
+        assertNotNull(cache.get("http://localhost/resource", request("gzip, deflate", null), now));
+        assertNull(cache.get("http://localhost/resource", request("identity", null), now));
+    }
+}
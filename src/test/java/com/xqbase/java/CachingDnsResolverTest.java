@@ -0,0 +1,90 @@
+package com.xqbase.java;
+
+import org.apache.http.conn.DnsResolver;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class CachingDnsResolverTest {
+
+    /**
+     * Resolves every host to 10.0.0.n for the n-th lookup, lookups after the first wait for the gate
+     */
+    private static class CountingResolver implements DnsResolver {
+
+        final AtomicInteger lookups = new AtomicInteger();
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            int n = lookups.incrementAndGet();
+            if (n > 1) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return new InetAddress[] {InetAddress.getByAddress(host, new byte[] {10, 0, 0, (byte) n})};
+        }
+    }
+
+    private final CachingDnsResolver resolver = new CachingDnsResolver();
+    private final CountingResolver counting = new CountingResolver();
+
+    @After
+    public void tearDown() {
+        counting.gate.countDown();
+        resolver.shutdown();
+    }
+
+    private void expire() throws Exception {
+        resolver.setTtlMillis(20);
+        resolver.setRefreshRatio(0.99);
+        resolver.setResolver(counting);
+        assertEquals("10.0.0.1", resolver.resolve("example.test")[0].getHostAddress());
+        Thread.sleep(50);
+    }
+
+    @Test(timeout = 5000)
+    public void testExpiredEntryIsServedWhileRefreshing() throws Exception {
+        expire();
+        // The refresh is held back by the gate, the stale addresses are served meanwhile
+        assertEquals("10.0.0.1", resolver.resolve("example.test")[0].getHostAddress());
+        assertEquals("10.0.0.1", resolver.resolve("example.test")[0].getHostAddress());
+        assertEquals(2, resolver.getStaleCount());
+        assertEquals(1, resolver.getRefreshCount());
+
+        counting.gate.countDown();
+        String address;
+        do {
+            Thread.sleep(1);
+            address = resolver.resolveAsync("example.test").get()[0].getHostAddress();
+        } while (address.equals("10.0.0.1"));
+        assertEquals("10.0.0.2", address);
+        assertEquals(2, counting.lookups.get());
+    }
+
+    @Test(timeout = 5000)
+    public void testTooStaleEntryWaitsForTheLookup() throws Exception {
+        resolver.setMaxStaleMillis(0);
+        expire();
+        counting.gate.countDown();
+        assertEquals("10.0.0.2", resolver.resolve("example.test")[0].getHostAddress());
+        assertEquals(0, resolver.getStaleCount());
+    }
+
+    @Test(timeout = 5000)
+    public void testFirstResolutionWaitsForTheLookup() throws Exception {
+        resolver.setResolver(counting);
+        assertEquals("10.0.0.1", resolver.resolve("example.test")[0].getHostAddress());
+        assertEquals(1, resolver.getMissCount());
+        assertEquals(0, resolver.getHitCount());
+    }
+}
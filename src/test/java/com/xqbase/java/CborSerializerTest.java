@@ -0,0 +1,231 @@
+package com.xqbase.java;
+
+import com.google.common.reflect.TypeToken;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class CborSerializerTest {
+
+    enum Color { RED, GREEN }
+
+    public static class Item {
+        int n;
+        long l;
+        double d;
+        boolean b;
+        String s;
+        Color color;
+        byte[] bytes;
+        List<Integer> list;
+        Map<String, Long> map;
+        Item child;
+    }
+
+    public static class Small {
+        int n;
+        short s;
+    }
+
+    public static class Keyed {
+        Map<Integer, Color> byNumber;
+        Set<Color> colors;
+        BigDecimal price;
+        char c;
+        short[] shorts;
+    }
+
+    private final CborSerializer serializer = new CborSerializer();
+
+    private byte[] serialize(Object obj) throws IOException {
+        ByteBuffer encoded = serializer.serialize(obj);
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return bytes;
+    }
+
+    private static Item item() {
+        Item item = new Item();
+        item.n = -123456;
+        item.l = Long.MIN_VALUE;
+        item.d = 0.1;
+        item.b = true;
+        item.s = "h\u00e9llo";
+        item.color = Color.GREEN;
+        item.bytes = new byte[]{1, 2, 3};
+        item.list = Arrays.asList(1, null, 3);
+        item.map = new LinkedHashMap<String, Long>();
+        item.map.put("max", Long.MAX_VALUE);
+        item.child = new Item();
+        item.child.s = "child";
+        return item;
+    }
+
+    private static void assertItem(Item item) {
+        assertEquals(-123456, item.n);
+        assertEquals(Long.MIN_VALUE, item.l);
+        assertEquals(0.1, item.d, 0);
+        assertEquals(true, item.b);
+        assertEquals("h\u00e9llo", item.s);
+        assertEquals(Color.GREEN, item.color);
+        assertArrayEquals(new byte[]{1, 2, 3}, item.bytes);
+        assertEquals(Arrays.asList(1, null, 3), item.list);
+        assertEquals(Long.valueOf(Long.MAX_VALUE), item.map.get("max"));
+        assertEquals("child", item.child.s);
+        assertNull(item.child.child);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    /**
+     * Hands out one byte per read, as a slow connection would
+     */
+    private static InputStream trickle(byte[] bytes) {
+        return new FilterInputStream(new ByteArrayInputStream(bytes)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+    }
+
+    private void assertRejected(Type type, byte[] bytes) {
+        try {
+            serializer.deserialize(type, ByteBuffer.wrap(bytes));
+            fail("Accepted " + Arrays.toString(bytes));
+        } catch (IOException e) {
+            // Expected
+        }
+        try {
+            serializer.deserialize(type, trickle(bytes));
+            fail("Accepted from a stream " + Arrays.toString(bytes));
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ByteBuffer encoded = serializer.serialize(item());
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        assertItem((Item) serializer.deserialize(Item.class, ByteBuffer.wrap(bytes)));
+        assertItem((Item) serializer.deserialize(Item.class, trickle(bytes)));
+    }
+
+    @Test
+    public void testFieldsAreWrittenInDeclarationOrder() throws IOException {
+        Small small = new Small();
+        small.n = 1;
+        small.s = -1;
+        assertArrayEquals(bytes(0xA2, 0x61, 'n', 0x01, 0x61, 's', 0x20), serialize(small));
+        assertArrayEquals(bytes(0xF6), serialize(null));
+        assertArrayEquals(bytes(0x82, 0xFA, 0x3F, 0xC0, 0, 0, 0xF4), serialize(new Object[] {1.5, false}));
+    }
+
+    @Test
+    public void testKeysEnumsAndScalarsRoundTrip() throws IOException {
+        Keyed keyed = new Keyed();
+        keyed.byNumber = new LinkedHashMap<Integer, Color>();
+        keyed.byNumber.put(-7, Color.RED);
+        keyed.byNumber.put(42, null);
+        keyed.colors = EnumSet.of(Color.GREEN);
+        keyed.price = new BigDecimal("12.5");
+        keyed.c = 'x';
+        keyed.shorts = new short[] {-1, 300};
+
+        Keyed read = (Keyed) serializer.deserialize(Keyed.class, ByteBuffer.wrap(serialize(keyed)));
+        assertEquals(keyed.byNumber, read.byNumber);
+        assertEquals(keyed.colors, read.colors);
+        assertEquals(0, keyed.price.compareTo(read.price));
+        assertEquals('x', read.c);
+        assertArrayEquals(keyed.shorts, read.shorts);
+    }
+
+    @Test
+    public void testGenericTypes() throws IOException {
+        ByteBuffer encoded = serializer.serialize(Arrays.asList(item(), item()));
+        @SuppressWarnings("unchecked")
+        List<Item> items = (List<Item>) serializer.deserialize(new TypeToken<List<Item>>() {}.getType(), encoded);
+        assertEquals(2, items.size());
+        assertItem(items.get(1));
+    }
+
+    @Test
+    public void testEmptyBodyIsNull() throws IOException {
+        assertNull(serializer.deserialize(Item.class, ByteBuffer.allocate(0)));
+        assertNull(serializer.deserialize(Item.class, new ByteArrayInputStream(new byte[0])));
+    }
+
+    @Test
+    public void testIndefiniteLengthsTagsAndUnknownFields() throws IOException {
+        byte[] bytes = bytes(
+                0xBF,                                   // indefinite map
+                0x61, 'n', 0xC1, 0x18, 100,             // "n": tag 1, 100
+                0x65, 'o', 't', 'h', 'e', 'r',          // "other":
+                0x9F, 0x01, 0xA1, 0x61, 'x', 0x02, 0xFF, // [1, {"x": 2}]
+                0x61, 's', 0x7F, 0x62, 'a', 'b', 0x61, 'c', 0xFF, // "s": "ab" "c"
+                0xFF);
+        Item item = (Item) serializer.deserialize(Item.class, ByteBuffer.wrap(bytes));
+        assertEquals(100, item.n);
+        assertEquals("abc", item.s);
+        item = (Item) serializer.deserialize(Item.class, trickle(bytes));
+        assertEquals(100, item.n);
+        assertEquals("abc", item.s);
+    }
+
+    @Test
+    public void testIntegersBeyondLongAreRejected() {
+        // uint64 and negative integer of 2^64 - 1
+        assertRejected(Object.class, bytes(0x1B, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF));
+        assertRejected(Object.class, bytes(0x3B, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF));
+        // -2^63 - 1
+        assertRejected(Object.class, bytes(0x3B, 0x80, 0, 0, 0, 0, 0, 0, 0));
+    }
+
+    @Test
+    public void testIntegersOutOfFieldRangeAreRejected() throws IOException {
+        Small small = (Small) serializer.deserialize(Small.class, ByteBuffer.wrap(bytes(0xA1, 0x61, 'n', 0x3B, 0, 0, 0, 0, 0x7F, 0xFF, 0xFF, 0xFF)));
+        assertEquals(Integer.MIN_VALUE, small.n);
+        assertRejected(Small.class, bytes(0xA1, 0x61, 'n', 0x1B, 0, 0, 0, 0x17, 0x48, 0x76, 0xE7, 0xFF));
+        assertRejected(Small.class, bytes(0xA1, 0x61, 's', 0x19, 0x80, 0x00));
+        assertRejected(Small.class, bytes(0xA1, 0x61, 'n', 0xFB, 0x3F, 0xF8, 0, 0, 0, 0, 0, 0));
+    }
+
+    @Test
+    public void testInvalidLengthsAreRejected() {
+        // Text, array and map claiming 2^64 - 1 items
+        assertRejected(Object.class, bytes(0x7B, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF));
+        assertRejected(Object.class, bytes(0x9B, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF));
+        assertRejected(Object.class, bytes(0xBB, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF));
+        // Text longer than the data
+        assertRejected(Object.class, bytes(0x7A, 0x7F, 0xFF, 0xFF, 0xFF, 'a'));
+        // Truncated map
+        assertRejected(Small.class, bytes(0xA2, 0x61, 'n', 0x01));
+        // Trailing data
+        assertRejected(Object.class, bytes(0x01, 0x02));
+    }
+}
@@ -0,0 +1,94 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpHost;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerTest {
+
+    private static final HttpHost ROUTE = new HttpHost("localhost", 80);
+
+    private static CircuitBreakerPolicy policy() {
+        CircuitBreakerPolicy policy = new CircuitBreakerPolicy();
+        policy.setMinCalls(4);
+        policy.setFailureRateThreshold(50);
+        policy.setOpenMillis(50);
+        policy.setHalfOpenCalls(2);
+        return policy;
+    }
+
+    @Test
+    public void testBucketOfNegativeSecondIsInRange() {
+        assertEquals(0, CircuitBreaker.bucket(-10, 10));
+        assertEquals(9, CircuitBreaker.bucket(-1, 10));
+        assertEquals(7, CircuitBreaker.bucket(-13, 10));
+        assertEquals(3, CircuitBreaker.bucket(13, 10));
+        assertEquals(2, CircuitBreaker.bucket(Long.MIN_VALUE, 10));
+    }
+
+    @Test
+    public void testOpensOnFailureRateAndClosesAfterProbes() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(ROUTE, policy());
+        breaker.acquire().release(null, new IOException());
+        breaker.acquire().release("ok", null);
+        breaker.acquire().release(null, new IOException());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquire().release("ok", null);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        try {
+            breaker.acquire();
+            fail();
+        } catch (CircuitBreakerOpenException e) {
+            assertEquals(1, breaker.getCircuitRejected());
+        }
+
+        Thread.sleep(100);
+        CircuitBreaker.Permit first = breaker.acquire();
+        CircuitBreaker.Permit second = breaker.acquire();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        try {
+            breaker.acquire();
+            fail();
+        } catch (CircuitBreakerOpenException e) {
+            // Out of probes
+        }
+        first.release("ok", null);
+        second.release("ok", null);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testCancelledCallsDoNotCount() {
+        CircuitBreaker breaker = new CircuitBreaker(ROUTE, policy());
+        for (int i = 0; i < 10; i++) {
+            breaker.acquire().release(null, new CancellationException());
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getInFlight());
+    }
+
+    @Test
+    public void testBulkheadRejectsOverMaxConcurrentCalls() {
+        CircuitBreakerPolicy policy = policy();
+        policy.setMaxConcurrentCalls(1);
+        CircuitBreaker breaker = new CircuitBreaker(ROUTE, policy);
+        CircuitBreaker.Permit permit = breaker.acquire();
+        try {
+            breaker.acquire();
+            fail();
+        } catch (ConcurrencyLimitExceededException e) {
+            assertEquals(1, breaker.getBulkheadRejected());
+        }
+        permit.release("ok", null);
+        permit.release("ok", null);
+        assertEquals(0, breaker.getInFlight());
+        assertNotNull(breaker.acquire());
+    }
+}
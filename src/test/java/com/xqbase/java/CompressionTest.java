@@ -0,0 +1,66 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class CompressionTest {
+
+    @Test
+    public void testBodyOverThresholdIsGzipped() throws IOException {
+        byte[] body = new byte[10000];
+        Arrays.fill(body, (byte) 'a');
+        HttpEntity compressed = Compression.compress(new ByteArrayEntity(body), 1000);
+        assertEquals(Compression.GZIP, compressed.getContentEncoding().getValue());
+
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(EntityUtils.toByteArray(compressed)));
+        byte[] read = new byte[body.length];
+        int n = 0;
+        while (n < read.length) {
+            n += in.read(read, n, read.length - n);
+        }
+        assertArrayEquals(body, read);
+    }
+
+    @Test
+    public void testLargeFileAndMultipartBodiesAreSentAsTheyAre() throws IOException {
+        HttpEntity small = new ByteArrayEntity(new byte[10]);
+        assertSame(small, Compression.compress(small, 1000));
+        HttpEntity large = new ByteArrayEntity(new byte[Compression.MAX_COMPRESSED_LENGTH + 1]);
+        assertSame(large, Compression.compress(large, 0));
+
+        File file = File.createTempFile("compression", ".txt");
+        try {
+            HttpEntity fileEntity = new FileEntity(file);
+            assertSame(fileEntity, Compression.compress(fileEntity, 0));
+            SimpleMultipartEntity multipart = new SimpleMultipartEntity();
+            multipart.addPart("file", file);
+            assertSame(multipart, Compression.compress(multipart, 0));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnreadableBodyFails() throws IOException {
+        Compression.compress(new ByteArrayEntity(new byte[10]) {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                throw new IOException("unreadable");
+            }
+        }, 0);
+    }
+}
@@ -0,0 +1,79 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpHost;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyLimiterTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private ConcurrencyLimiter limiter() {
+        ConcurrencyLimitPolicy policy = new ConcurrencyLimitPolicy();
+        policy.setAdaptive(true);
+        policy.setInitialLimit(20);
+        return new ConcurrencyLimiter(new HttpHost("localhost", 80), policy, scheduler);
+    }
+
+    private static List<ConcurrencyLimiter.Permit> acquire(ConcurrencyLimiter limiter, int permits) throws Exception {
+        List<ConcurrencyLimiter.Permit> acquired = new ArrayList<ConcurrencyLimiter.Permit>();
+        for (int i = 0; i < permits; i++) {
+            acquired.add(limiter.acquire().get());
+        }
+        return acquired;
+    }
+
+    @Test
+    public void testLimitRejectsBeyondInFlight() throws Exception {
+        ConcurrencyLimiter limiter = limiter();
+        List<ConcurrencyLimiter.Permit> permits = acquire(limiter, 20);
+        assertEquals(20, limiter.getInFlight());
+        assertTrue(limiter.acquire().isDone());
+        assertEquals(1, limiter.getRejected());
+        for (ConcurrencyLimiter.Permit permit : permits) {
+            permit.release(null);
+        }
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testSlowFailuresAndCancellationsDoNotShrinkTheLimit() throws Exception {
+        ConcurrencyLimiter limiter = limiter();
+        List<ConcurrencyLimiter.Permit> permits = acquire(limiter, 15);
+        // A fast exchange sets the no-load round trip time
+        limiter.acquire().get().release(null);
+        int limit = limiter.getLimit();
+
+        Thread.sleep(100);
+        permits.get(0).release(new CancellationException());
+        permits.get(1).release(new ConnectException("refused"));
+        assertEquals(limit, limiter.getLimit());
+
+        // A slow successful exchange does
+        permits.get(2).release(null);
+        assertTrue(limiter.getLimit() < limit);
+    }
+
+    @Test
+    public void testTimeoutsBackOff() throws Exception {
+        ConcurrencyLimiter limiter = limiter();
+        limiter.acquire().get().release(new SocketTimeoutException());
+        assertEquals(18, limiter.getLimit());
+    }
+}
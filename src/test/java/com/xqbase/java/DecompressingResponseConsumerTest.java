@@ -0,0 +1,80 @@
+package com.xqbase.java;
+
+import com.google.common.reflect.TypeToken;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DecompressingResponseConsumerTest {
+
+    @Test
+    public void testConsumerStoppingEarlyGetsTheWholeBody() throws Exception {
+        int count = 2000;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        for (int i = 0; i < count; i++) {
+            gzip.write(("\"record-" + i + "\"\n").getBytes("UTF-8"));
+        }
+        gzip.close();
+
+        final List<String> records = new ArrayList<String>();
+        final RecordSubscription[] subscription = new RecordSubscription[1];
+        final boolean[] completed = new boolean[1];
+        RecordStreamConsumer<String> streaming = new RecordStreamConsumer<String>(new DefaultJsonSerializer(), null,
+                TypeToken.of(String.class), new RecordSubscriber<String>() {
+            @Override
+            public void onSubscribe(RecordSubscription s) {
+                subscription[0] = s;
+                s.request(1);
+            }
+
+            @Override
+            public void onNext(String record) {
+                records.add(record);
+            }
+
+            @Override
+            public void onError(Throwable failure) {
+                throw new AssertionError(failure);
+            }
+
+            @Override
+            public void onComplete() {
+                completed[0] = true;
+            }
+        }, new LatencyRecorder());
+        streaming.subscribe();
+        DecompressingResponseConsumer<Void> consumer = new DecompressingResponseConsumer<Void>(streaming);
+
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setHeader("Content-Encoding", "gzip");
+        response.setHeader("Content-Type", "application/x-ndjson");
+        response.setEntity(new BasicHttpEntity());
+        consumer.responseReceived(response);
+
+        // The compressed body arrives in a single read, which completes the transfer
+        ByteArrayContentDecoder decoder = new ByteArrayContentDecoder(out.toByteArray(), 8192);
+        ByteArrayContentDecoder.NoopIOControl ioctrl = new ByteArrayContentDecoder.NoopIOControl();
+        consumer.consumeContent(decoder, ioctrl);
+        assertTrue(decoder.isCompleted());
+        assertEquals(1, records.size());
+
+        consumer.responseCompleted(new BasicHttpContext());
+        assertFalse(ioctrl.suspended);
+        subscription[0].request(Long.MAX_VALUE);
+        assertEquals(count, records.size());
+        assertEquals("record-" + (count - 1), records.get(count - 1));
+        assertTrue(completed[0]);
+    }
+}
@@ -0,0 +1,96 @@
+package com.xqbase.java;
+
+import com.google.common.reflect.TypeToken;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeserializingResponseConsumerTest {
+
+    @Test
+    public void testBufferedBodyIsDeserializedByTheDispatcher() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "transform");
+            }
+        });
+        try {
+            final String[] thread = new String[1];
+            Serializer serializer = new Serializer() {
+                private final DefaultJsonSerializer json = new DefaultJsonSerializer();
+
+                @Override
+                public void serialize(Object obj, OutputStream stream) throws IOException {
+                    json.serialize(obj, stream);
+                }
+
+                @Override
+                @SuppressWarnings("rawtypes")
+                public Object deserialize(Class objClass, InputStream stream) throws IOException {
+                    thread[0] = Thread.currentThread().getName();
+                    return json.deserialize(objClass, stream);
+                }
+            };
+            DeserializingResponseConsumer<String> consumer = new DeserializingResponseConsumer<String>(serializer, null,
+                    TypeToken.of(String.class), new LatencyRecorder(),
+                    new TransformDispatcher(MoreExecutors.listeningDecorator(pool)));
+
+            // A body over the inline threshold is handed to the transform pool
+            StringBuilder body = new StringBuilder();
+            while (body.length() <= DispatchPolicy.DEFAULT_INLINE_THRESHOLD) {
+                body.append("0123456789");
+            }
+            BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+            response.setEntity(new BasicHttpEntity());
+            consumer.responseReceived(response);
+            consumer.consumeContent(new ByteArrayContentDecoder(("\"" + body + "\"").getBytes("UTF-8"), 1024),
+                    new ByteArrayContentDecoder.NoopIOControl());
+            consumer.responseCompleted(new BasicHttpContext());
+
+            ListenableFuture<String> result = consumer.getResult();
+            assertEquals(body.toString(), result.get());
+            assertEquals("transform", thread[0]);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testStreamingSerializerIsFedAsTheBodyArrives() throws Exception {
+        TransformDispatcher dispatcher = new TransformDispatcher(null);
+        DeserializingResponseConsumer<List<String>> consumer = new DeserializingResponseConsumer<List<String>>(
+                new DefaultJsonSerializer(), null, new TypeToken<List<String>>() {}, new LatencyRecorder(), dispatcher);
+
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new BasicHttpEntity());
+        consumer.responseReceived(response);
+        ByteArrayContentDecoder decoder = new ByteArrayContentDecoder("[\"a\", \"b,c\"]".getBytes("UTF-8"), 3);
+        while (!decoder.isCompleted()) {
+            consumer.consumeContent(decoder, new ByteArrayContentDecoder.NoopIOControl());
+        }
+        consumer.responseCompleted(new BasicHttpContext());
+
+        ListenableFuture<List<String>> result = consumer.getResult();
+        assertTrue(result.isDone());
+        assertEquals(Arrays.asList("a", "b,c"), result.get());
+        // Deserialized as it was decoded, nothing was left for the dispatcher
+        assertEquals(0, dispatcher.getInlineCount() + dispatcher.getPooledCount() + dispatcher.getVirtualCount());
+    }
+}
@@ -0,0 +1,107 @@
+package com.xqbase.java;
+
+import com.google.common.reflect.TypeToken;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class IncrementalJsonDeserializerTest {
+
+    public static class Item {
+        String name;
+        int[] sizes;
+        Map<Integer, String> tags;
+    }
+
+    private static final String ITEMS = " [ {\"name\":\"a,]}\\\"b\",\"sizes\":[1,2],\"tags\":{\"1\":\"x\"}} ,"
+            + "{\"name\":\"\\u00e9\",\"unknown\":{\"nested\":[{}, []]}}, null ] ";
+
+    private static Object feed(Type type, String json, int chunkSize) throws IOException {
+        IncrementalDeserializer<?> deserializer = new DefaultJsonSerializer().newDeserializer(type);
+        byte[] bytes = json.getBytes("UTF-8");
+        ByteBuffer chunk = ByteBuffer.allocateDirect(chunkSize);
+        for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+            chunk.clear();
+            chunk.put(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+            chunk.flip();
+            deserializer.feed(chunk);
+            assertEquals(0, chunk.remaining());
+        }
+        return deserializer.complete();
+    }
+
+    private static void assertRejected(Type type, String json) {
+        for (int chunkSize : new int[] {1, 7, 1024}) {
+            try {
+                feed(type, json, chunkSize);
+                fail("Accepted " + json);
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testArrayOfObjectsInChunks() throws IOException {
+        Type type = new TypeToken<List<Item>>() {}.getType();
+        for (int chunkSize : new int[] {1, 7, 1024}) {
+            List<Item> items = (List<Item>) feed(type, ITEMS, chunkSize);
+            assertEquals(3, items.size());
+            assertEquals("a,]}\"b", items.get(0).name);
+            assertArrayEquals(new int[] {1, 2}, items.get(0).sizes);
+            assertEquals("x", items.get(0).tags.get(1));
+            assertEquals("\u00e9", items.get(1).name);
+            assertNull(items.get(2));
+        }
+    }
+
+    @Test
+    public void testObjectAndArrayTypesInChunks() throws IOException {
+        for (int chunkSize : new int[] {1, 7, 1024}) {
+            Item item = (Item) feed(Item.class, "{\"sizes\" : [ 3 ] , \"name\" : \"c\"}", chunkSize);
+            assertEquals("c", item.name);
+            assertArrayEquals(new int[] {3}, item.sizes);
+
+            Item[] items = (Item[]) feed(Item[].class, ITEMS, chunkSize);
+            assertEquals(3, items.length);
+            assertEquals("\u00e9", items[1].name);
+            assertEquals(0, ((Item[]) feed(Item[].class, "[]", chunkSize)).length);
+        }
+    }
+
+    @Test
+    public void testValuesReadWhole() throws IOException {
+        for (int chunkSize : new int[] {1, 7, 1024}) {
+            assertEquals("s", feed(String.class, " \"s\" ", chunkSize));
+            assertEquals(Arrays.asList(1L, "2"), feed(Object.class, "[1,\"2\"]", chunkSize));
+            assertNull(feed(Item.class, "null", chunkSize));
+            assertNull(feed(Item.class, "", chunkSize));
+        }
+    }
+
+    @Test
+    public void testMalformedOrTruncatedBodiesAreRejected() {
+        Type type = new TypeToken<List<Item>>() {}.getType();
+        assertRejected(type, "[{},]");
+        assertRejected(type, "[,{}]");
+        assertRejected(type, "[{}}");
+        assertRejected(type, "[{}] x");
+        assertRejected(type, "[{\"name\":\"a\"}");
+        assertRejected(type, "{}");
+        assertRejected(Item.class, "{\"name\" \"a\"}");
+        assertRejected(Item.class, "{\"name\":}");
+        assertRejected(Item.class, "{\"name\":\"a\" \"b\"}");
+        assertRejected(Item.class, "{\"name\":\"a\"");
+    }
+}
@@ -0,0 +1,175 @@
+package com.xqbase.java;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InflatingContentDecoderTest {
+
+    private static byte[] body(int size) {
+        byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) ('a' + i % 7);
+        }
+        return body;
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(body);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] body, boolean nowrap) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterOutputStream deflate = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap));
+        deflate.write(body);
+        deflate.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InflatingContentDecoder decoder, int bufferSize) throws IOException {
+        return readAll(decoder, ByteBuffer.allocate(bufferSize));
+    }
+
+    private static byte[] readAll(InflatingContentDecoder decoder, ByteBuffer buffer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] bytes = new byte[buffer.capacity()];
+        while (!decoder.isCompleted()) {
+            int n = decoder.read(buffer);
+            buffer.flip();
+            int len = buffer.remaining();
+            buffer.get(bytes, 0, len);
+            out.write(bytes, 0, len);
+            buffer.clear();
+            if (n < 0) {
+                break;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testGzipInSmallReads() throws IOException {
+        byte[] body = body(100000);
+        InflatingContentDecoder decoder = new InflatingContentDecoder(Compression.GZIP);
+        decoder.setSource(new ByteArrayContentDecoder(gzip(body), 7));
+        assertArrayEquals(body, readAll(decoder, 1000));
+        assertTrue(decoder.isCompleted());
+    }
+
+    @Test
+    public void testZlibAndRawDeflate() throws IOException {
+        byte[] body = body(20000);
+        for (boolean nowrap : new boolean[] {false, true}) {
+            InflatingContentDecoder decoder = new InflatingContentDecoder(Compression.DEFLATE);
+            decoder.setSource(new ByteArrayContentDecoder(deflate(body, nowrap), 8192));
+            assertArrayEquals(body, readAll(decoder, 8192));
+        }
+    }
+
+    @Test
+    public void testRemainingBufferedOnceTransferCompletes() throws IOException {
+        byte[] body = body(40 * 1024);
+        ByteArrayContentDecoder source = new ByteArrayContentDecoder(gzip(body), 8192);
+        InflatingContentDecoder decoder = new InflatingContentDecoder(Compression.GZIP);
+        decoder.setSource(source);
+
+        // A consumer which stops after its first read, the whole compressed body is read by then
+        ByteBuffer first = ByteBuffer.allocate(1000);
+        assertEquals(1000, decoder.read(first));
+        assertTrue(source.isCompleted());
+        assertFalse(decoder.isCompleted());
+
+        decoder.bufferRemaining();
+        decoder.release();
+        byte[] rest = readAll(decoder, 8192);
+        assertArrayEquals(Arrays.copyOfRange(body, 1000, body.length), rest);
+        assertTrue(decoder.isCompleted());
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncatedBody() throws IOException {
+        byte[] gzip = gzip(body(10000));
+        InflatingContentDecoder decoder = new InflatingContentDecoder(Compression.GZIP);
+        decoder.setSource(new ByteArrayContentDecoder(Arrays.copyOf(gzip, gzip.length - 4), 8192));
+        readAll(decoder, 8192);
+    }
+
+    @Test
+    public void testGzipMembersAreConcatenated() throws IOException {
+        byte[] first = body(30000);
+        byte[] second = body(5000);
+        byte[] gzip = concat(gzip(first), gzip(second));
+        for (int chunkSize : new int[] {3, 8192}) {
+            InflatingContentDecoder decoder = new InflatingContentDecoder(Compression.GZIP);
+            decoder.setSource(new ByteArrayContentDecoder(gzip, chunkSize));
+            assertArrayEquals(concat(first, second), readAll(decoder, ByteBuffer.allocateDirect(1000)));
+            assertTrue(decoder.isCompleted());
+        }
+    }
+
+    @Test
+    public void testDataAfterLastMemberIsIgnored() throws IOException {
+        byte[] body = body(10000);
+        InflatingContentDecoder decoder = new InflatingContentDecoder(Compression.GZIP);
+        decoder.setSource(new ByteArrayContentDecoder(concat(gzip(body), new byte[20]), 8192));
+        assertArrayEquals(body, readAll(decoder, 8192));
+        assertTrue(decoder.isCompleted());
+    }
+
+    @Test
+    public void testBuffersAreLeasedFromThePool() throws IOException {
+        BufferPool pool = BufferPool.getDefault();
+        InflatingContentDecoder decoder = new InflatingContentDecoder(Compression.GZIP);
+        decoder.setSource(new ByteArrayContentDecoder(gzip(body(10000)), 8192));
+        readAll(decoder, 8192);
+
+        // The buffers of the first decoder are handed back and leased again
+        long hits = pool.getHitCount();
+        long misses = pool.getMissCount();
+        decoder = new InflatingContentDecoder(Compression.GZIP);
+        decoder.setSource(new ByteArrayContentDecoder(gzip(body(10000)), 8192));
+        readAll(decoder, 8192);
+        assertTrue(pool.getHitCount() > hits);
+        assertEquals(misses, pool.getMissCount());
+    }
+
+    @Test
+    public void testRemainingBufferedIsBounded() throws IOException {
+        InflatingContentDecoder decoder = new InflatingContentDecoder(Compression.GZIP);
+        decoder.setSource(new ByteArrayContentDecoder(gzip(new byte[InflatingContentDecoder.MAX_REMAINING + 1]), 1024 * 1024));
+        decoder.read(ByteBuffer.allocate(1));
+        try {
+            decoder.bufferRemaining();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Decoded body exceeds"));
+        } finally {
+            decoder.release();
+        }
+    }
+}
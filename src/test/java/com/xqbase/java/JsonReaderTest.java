@@ -0,0 +1,64 @@
+package com.xqbase.java;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class JsonReaderTest {
+
+    public static class Numbers {
+        int n;
+        long l;
+        short s;
+        Integer boxed;
+    }
+
+    private static Numbers read(String json) throws IOException {
+        return (Numbers) new DefaultJsonSerializer().deserialize(Numbers.class, new ByteArrayInputStream(json.getBytes("UTF-8")));
+    }
+
+    private static void assertRejected(String json) {
+        try {
+            read(json);
+            fail("Accepted " + json);
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testIntegersInRange() throws IOException {
+        Numbers numbers = read("{\"n\":-2147483648,\"l\":9223372036854775807,\"s\":-32768,\"boxed\":2147483647}");
+        assertEquals(Integer.MIN_VALUE, numbers.n);
+        assertEquals(Long.MAX_VALUE, numbers.l);
+        assertEquals(Short.MIN_VALUE, numbers.s);
+        assertEquals(Integer.valueOf(Integer.MAX_VALUE), numbers.boxed);
+    }
+
+    @Test
+    public void testIntegralDecimals() throws IOException {
+        Numbers numbers = read("{\"n\":1.0,\"l\":1e3}");
+        assertEquals(1, numbers.n);
+        assertEquals(1000, numbers.l);
+    }
+
+    @Test
+    public void testIntegersOutOfRangeAreRejected() {
+        assertRejected("{\"n\":99999999999}");
+        assertRejected("{\"n\":1e999}");
+        assertRejected("{\"l\":9223372036854775808}");
+        assertRejected("{\"l\":1e19}");
+        assertRejected("{\"s\":32768}");
+        assertRejected("{\"boxed\":2147483648}");
+    }
+
+    @Test
+    public void testFractionsAreRejected() {
+        assertRejected("{\"n\":1.5}");
+        assertRejected("{\"l\":1e-3}");
+    }
+}
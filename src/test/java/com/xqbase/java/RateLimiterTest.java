@@ -0,0 +1,80 @@
+package com.xqbase.java;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.http.HttpHost;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RateLimiterTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private RateLimiter limiter(double permitsPerSecond, int burst, int maxDelayMillis) {
+        RateLimitPolicy policy = new RateLimitPolicy();
+        policy.setPermitsPerSecond(permitsPerSecond);
+        policy.setBurst(burst);
+        policy.setMaxDelayMillis(maxDelayMillis);
+        return new RateLimiter(new HttpHost("localhost", 80), policy, scheduler);
+    }
+
+    @Test
+    public void testBurstIsAdmittedAtOnce() {
+        RateLimiter limiter = limiter(10, 5, 0);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.acquire().isDone());
+        }
+        assertEquals(0, limiter.getDelayed());
+    }
+
+    @Test(timeout = 5000)
+    public void testOverRateIsDelayedThenRejected() throws Exception {
+        RateLimiter limiter = limiter(10, 5, 150);
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire();
+        }
+
+        long start = System.nanoTime();
+        ListenableFuture<Void> delayed = limiter.acquire();
+        assertFalse(delayed.isDone());
+        assertEquals(1, limiter.getDelayed());
+
+        try {
+            limiter.acquire().get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RateLimitExceededException);
+            assertEquals(1, limiter.getRejected());
+        }
+
+        delayed.get();
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testRejectedRequestsTakeNoToken() throws Exception {
+        RateLimiter limiter = limiter(10, 1, 0);
+        limiter.acquire();
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+        }
+        Thread.sleep(150);
+        // Tokens keep accruing at the rate, the rejections reserved none of them
+        assertTrue(limiter.acquire().isDone());
+        assertEquals(100, limiter.getRejected());
+    }
+}
@@ -0,0 +1,100 @@
+package com.xqbase.java;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseCacheTest {
+
+    private static final HttpGet REQUEST = new HttpGet("http://localhost/resource");
+
+    private static CacheEntry entry(int bytes) {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setHeader("Cache-Control", "max-age=60");
+        return CacheEntry.create(REQUEST, response, new byte[bytes], 0, 0);
+    }
+
+    @Test
+    public void testFrequentlyReadEntrySurvivesScan() {
+        long entryWeight = entry(100).getWeight();
+        ResponseCache cache = new ResponseCache(entryWeight * 20);
+        cache.put("hot", entry(100));
+        // Enough reads to fill the read buffer of this thread, so they reach the sketch
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(cache.get("hot", REQUEST, 0));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertNull(cache.get("scan" + i, REQUEST, 0));
+            cache.put("scan" + i, entry(100));
+        }
+        assertNotNull(cache.get("hot", REQUEST, 0));
+        assertTrue(cache.weight() <= entryWeight * 20);
+        assertEquals(100 + 1, cache.getHitCount());
+        assertEquals(1000, cache.getMissCount());
+    }
+
+    @Test
+    public void testRemovedEntryIsNotServed() {
+        ResponseCache cache = new ResponseCache();
+        cache.put("key", entry(10));
+        assertNotNull(cache.get("key", REQUEST, 0));
+        cache.remove("key");
+        assertNull(cache.get("key", REQUEST, 0));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    @Test(timeout = 30000)
+    public void testConcurrentReadsAndWritesStayWithinWeight() throws Exception {
+        final long entryWeight = entry(100).getWeight();
+        final ResponseCache cache = new ResponseCache(entryWeight * 50);
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 20000; i++) {
+                            String key = "k" + ((i * 31 + seed) % 200);
+                            if (cache.get(key, REQUEST, 0) == null) {
+                                cache.put(key, entry(100));
+                            }
+                            if (i % 1000 == 0) {
+                                cache.remove(key);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertNull(failure.get());
+        assertTrue(cache.weight() <= entryWeight * 50);
+        assertEquals(cache.size() * entryWeight, cache.weight());
+        assertEquals(threads * 20000, cache.getHitCount() + cache.getMissCount());
+    }
+}
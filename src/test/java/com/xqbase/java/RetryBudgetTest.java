@@ -0,0 +1,58 @@
+package com.xqbase.java;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryBudgetTest {
+
+    private static int withdrawAll(RetryBudget budget, long now) {
+        int withdrawn = 0;
+        while (budget.tryWithdraw(now)) {
+            withdrawn++;
+        }
+        return withdrawn;
+    }
+
+    @Test
+    public void testStartsWithOneSecondOfMinimumRetries() {
+        RetryBudget budget = new RetryBudget(0.1, 5);
+        int withdrawn = withdrawAll(budget, System.nanoTime());
+        assertTrue("withdrew " + withdrawn, withdrawn >= 5 && withdrawn <= 6);
+    }
+
+    @Test
+    public void testDepositsEarnRetries() {
+        RetryBudget budget = new RetryBudget(0.5, 0);
+        long now = System.nanoTime();
+        assertFalse(budget.tryWithdraw(now));
+        budget.deposit();
+        assertFalse(budget.tryWithdraw(now));
+        budget.deposit();
+        assertTrue(budget.tryWithdraw(now));
+        assertFalse(budget.tryWithdraw(now));
+    }
+
+    @Test
+    public void testRefillIsCappedAtCapacity() {
+        RetryBudget budget = new RetryBudget(0.1, 2);
+        long now = System.nanoTime();
+        withdrawAll(budget, now);
+        assertFalse(budget.tryWithdraw(now));
+        // Ten seconds of the minimum rate fill the bucket
+        assertEquals(20, withdrawAll(budget, now + TimeUnit.MINUTES.toNanos(1)));
+    }
+
+    @Test
+    public void testRefillAfterLongIdlePeriodDoesNotOverflow() {
+        RetryBudget budget = new RetryBudget(0.1, 10);
+        long now = System.nanoTime();
+        withdrawAll(budget, now);
+        // (now - last) * minPerSecond overflows a long after about 10.7 days
+        assertEquals(100, withdrawAll(budget, now + TimeUnit.DAYS.toNanos(20)));
+    }
+}
@@ -0,0 +1,105 @@
+package com.xqbase.java;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetryExecutorTest {
+
+    /**
+     * Attempt which completes even if cancelled, as an exchange racing the cancellation does
+     */
+    private static class InFlightAttempt extends AbstractFuture<HttpResponse> {
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean set(HttpResponse value) {
+            return super.set(value);
+        }
+    }
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testRequestWithoutTargetIsRetriedWithoutBudget() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setMaxRetries(2);
+        policy.setBaseDelayMillis(1);
+        policy.setMaxDelayMillis(1);
+        RetryExecutor executor = new RetryExecutor(scheduler, policy);
+
+        final AtomicInteger attempts = new AtomicInteger();
+        ListenableFuture<String> result = executor.execute(new HttpGet("/relative"), new RetryExecutor.Attempt<String>() {
+            @Override
+            public ListenableFuture<String> execute() {
+                if (attempts.incrementAndGet() < 3) {
+                    return Futures.immediateFailedFuture(new IOException("failed"));
+                }
+                return Futures.immediateFuture("ok");
+            }
+        });
+
+        assertEquals("ok", result.get(5, TimeUnit.SECONDS));
+        assertEquals(3, attempts.get());
+        assertEquals(2, executor.getRetries());
+        assertEquals(0, executor.getBudgetExhausted());
+    }
+
+    @Test
+    public void testResponseOfAttemptInFlightWhenCancelledIsReleased() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setMaxRetries(2);
+        RetryExecutor executor = new RetryExecutor(scheduler, policy);
+
+        final InFlightAttempt attempt = new InFlightAttempt();
+        ListenableFuture<HttpResponse> result = executor.execute(new HttpGet("http://localhost/"),
+                new RetryExecutor.Attempt<HttpResponse>() {
+            @Override
+            public ListenableFuture<HttpResponse> execute() {
+                return attempt;
+            }
+        });
+        result.cancel(true);
+
+        final AtomicBoolean closed = new AtomicBoolean();
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 503, "Service Unavailable");
+        response.setEntity(new InputStreamEntity(new ByteArrayInputStream(new byte[10]) {
+            @Override
+            public void close() throws IOException {
+                closed.set(true);
+                super.close();
+            }
+        }));
+        attempt.set(response);
+
+        assertTrue(closed.get());
+        assertEquals(0, executor.getRetries());
+    }
+}